@@ -0,0 +1,150 @@
+package com.piraxx.benchmarks;
+
+import com.piraxx.benchmarks.repositories.BenchmarkTransactionRepository;
+import com.piraxx.sharder.configs.DataSourceConfig;
+import com.piraxx.sharder.domain.TransactionEntity;
+import com.piraxx.sharder.repositories.TransactionRepository;
+import com.piraxx.sharder.sharderPackage.DataSourcesHandlerAspect;
+import com.piraxx.sharder.sharderPackage.ShardingAspect;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategies;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end cost of the sharding aspect on repository calls, against four
+ * in-memory H2 shards behind the same pooled DataSourceConfig as the application.
+ *
+ * findByIdOnShardWithJdbc is the floor: the same primary key lookup as plain
+ * JDBC on the shard that holds the row. findByIdThroughAspect is a derived
+ * method routed by the aspect, and broadcastQuery is a @Query sent to every
+ * shard and merged in order.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class RepositoryAspectBenchmark {
+
+    /* Lives outside com.piraxx.sharder so that SharderApplication never scans it. */
+    @SpringBootConfiguration
+    @EnableAutoConfiguration
+    @EnableJpaRepositories(basePackageClasses = {TransactionRepository.class, BenchmarkTransactionRepository.class})
+    @EntityScan(basePackageClasses = TransactionEntity.class)
+    @ComponentScan(basePackageClasses = ShardingAspect.class)
+    @Import(DataSourceConfig.class)
+    public static class BenchmarkApplication {
+    }
+
+    private static final int SHARDS = 4;
+
+    private static final String SCHEMA = "CREATE TABLE IF NOT EXISTS transactions("
+            + "transaction_id INTEGER PRIMARY KEY, transaction_detail VARCHAR(255))";
+
+    @Param({"10000"})
+    private int rows;
+
+    private ConfigurableApplicationContext context;
+    private TransactionRepository transactionRepository;
+    private BenchmarkTransactionRepository benchmarkRepository;
+    private DataSource[] shardOfRow;
+    private int next;
+
+    @Setup
+    public void startApplication() throws SQLException {
+        List<String> properties = new ArrayList<>(List.of(
+                "spring.jpa.hibernate.ddl-auto=none",
+                "spring.jpa.open-in-view=false",
+                "logging.config=classpath:logback-benchmark.xml"));
+        for (int shard = 0; shard < SHARDS; shard++) {
+            // same shape as the Postgres shards, as in-memory H2 databases
+            properties.add("sharder.shards[" + shard + "].url=jdbc:h2:mem:shard_" + (shard + 1)
+                    + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1;INIT=" + SCHEMA);
+            properties.add("sharder.shards[" + shard + "].username=sa");
+            properties.add("sharder.shards[" + shard + "].password=");
+        }
+        context = new SpringApplicationBuilder(BenchmarkApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties(properties.toArray(new String[0]))
+                .run();
+        transactionRepository = context.getBean(TransactionRepository.class);
+        benchmarkRepository = context.getBean(BenchmarkTransactionRepository.class);
+        loadRows();
+    }
+
+    /* rows are written straight to the shard the placement strategy picks for their id */
+    private void loadRows() throws SQLException {
+        Map<Object, Object> dataSourceMap = DataSourcesHandlerAspect.getDataSourceMap();
+        for (Object dataSource : dataSourceMap.values()) {
+            try (Connection connection = ((DataSource) dataSource).getConnection();
+                 Statement statement = connection.createStatement()) {
+                statement.executeUpdate("delete from transactions");
+            }
+        }
+
+        shardOfRow = new DataSource[rows];
+        for (int id = 0; id < rows; id++) {
+            shardOfRow[id] = (DataSource) dataSourceMap.get(ShardPlacementStrategies.shared().getNode(id));
+            try (Connection connection = shardOfRow[id].getConnection();
+                 PreparedStatement insert = connection.prepareStatement(
+                         "insert into transactions(transaction_id, transaction_detail) values (?, ?)")) {
+                insert.setInt(1, id);
+                insert.setString(2, "transaction " + id);
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    @TearDown
+    public void stopApplication() {
+        context.close();
+    }
+
+    private int nextId() {
+        next = next + 1 == rows ? 0 : next + 1;
+        return next;
+    }
+
+    @Benchmark
+    public String findByIdOnShardWithJdbc() throws SQLException {
+        int id = nextId();
+        try (Connection connection = shardOfRow[id].getConnection();
+             PreparedStatement select = connection.prepareStatement(
+                     "select transaction_id, transaction_detail from transactions where transaction_id = ?")) {
+            select.setInt(1, id);
+            try (ResultSet resultSet = select.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(2) : null;
+            }
+        }
+    }
+
+    @Benchmark
+    public TransactionEntity findByIdThroughAspect() {
+        return transactionRepository.findById((long) nextId()).orElse(null);
+    }
+
+    @Benchmark
+    public List<TransactionEntity> broadcastQuery() {
+        return benchmarkRepository.findTransactionsBelow(100);
+    }
+}
@@ -0,0 +1,17 @@
+package com.piraxx.benchmarks.repositories;
+
+import com.piraxx.sharder.domain.TransactionEntity;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+/* A broadcast @Query for the aspect benchmark. The package still matches the sharding pointcut. */
+@Repository
+public interface BenchmarkTransactionRepository extends JpaRepository<TransactionEntity, Long> {
+
+    @Query(value = "select transaction_id, transaction_detail from transactions where transaction_id < ?1 order by transaction_id",
+            nativeQuery = true)
+    List<TransactionEntity> findTransactionsBelow(int transactionId);
+}
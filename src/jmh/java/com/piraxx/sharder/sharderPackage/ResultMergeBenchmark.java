@@ -0,0 +1,130 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.domain.TransactionEntity;
+import com.piraxx.sharder.sharderPackage.utils.HandleRepositoryMethodsReponses;
+import com.piraxx.sharder.sharderPackage.utils.HandleRepositoryMethodsReponses.ResultShape;
+import org.h2.tools.SimpleResultSet;
+import org.h2.tools.SimpleRowSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merging shard results and mapping them to entities, without a database.
+ *
+ * Every shard is a synthetic result set that generates its rows on the fly, with
+ * the ids dealt round robin over the shards so an ordered merge has to switch
+ * shard on every row. mergeOnly measures the k-way merge (or concatenation) on
+ * its own, mergeAndMapToEntities adds the row mapping done for a List<Entity>
+ * repository method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Dlogback.configurationFile=logback-benchmark.xml"})
+public class ResultMergeBenchmark {
+
+    private static final String DETAIL = "transfer to savings";
+
+    /* the cursor only asks the connection about auto-commit and closes it */
+    private static final Connection NO_OP_CONNECTION = (Connection) Proxy.newProxyInstance(
+            Connection.class.getClassLoader(),
+            new Class<?>[]{Connection.class},
+            (proxy, method, args) -> method.getName().equals("getAutoCommit") ? Boolean.TRUE : null);
+
+    interface BenchmarkQueries {
+        List<TransactionEntity> findTransactions();
+    }
+
+    @Param({"1000", "100000", "1000000"})
+    private int rows;
+
+    @Param({"2", "8"})
+    private int shards;
+
+    @Param({"true", "false"})
+    private boolean ordered;
+
+    private String nativeSql;
+    private ResultShape listOfEntities;
+
+    @Setup
+    public void resolveResultShape() throws NoSuchMethodException {
+        nativeSql = "select transaction_id, transaction_detail from transactions"
+                + (ordered ? " order by transaction_id" : "");
+        listOfEntities = HandleRepositoryMethodsReponses.resultShapeFor(
+                BenchmarkQueries.class.getMethod("findTransactions"));
+    }
+
+    @Benchmark
+    public long mergeOnly() throws SQLException {
+        long checksum = 0;
+        try (MergedResultCursor merged = HandleRepositoryMethodsReponses.combineQueryResults(openShards(), nativeSql)) {
+            while (merged.next()) {
+                checksum += merged.current().getInt(1);
+            }
+        }
+        return checksum;
+    }
+
+    @Benchmark
+    public Object mergeAndMapToEntities() throws SQLException {
+        try (MergedResultCursor merged = HandleRepositoryMethodsReponses.combineQueryResults(openShards(), nativeSql)) {
+            return listOfEntities.apply(merged);
+        }
+    }
+
+    private List<ShardCursor> openShards() {
+        List<ShardCursor> cursors = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            SimpleResultSet resultSet = new SimpleResultSet(new ShardRows(shard, shards, rows));
+            resultSet.addColumn("transaction_id", Types.INTEGER, 10, 0);
+            resultSet.addColumn("transaction_detail", Types.VARCHAR, 255, 0);
+            cursors.add(new ShardCursor(NO_OP_CONNECTION, null, resultSet));
+        }
+        return cursors;
+    }
+
+    /* ids shard, shard + shards, shard + 2 * shards, ... below the total row count */
+    private static final class ShardRows implements SimpleRowSource {
+
+        private final int first;
+        private final int step;
+        private final int limit;
+        private int id;
+
+        ShardRows(int first, int step, int limit) {
+            this.first = first;
+            this.step = step;
+            this.limit = limit;
+            this.id = first;
+        }
+
+        @Override
+        public Object[] readRow() {
+            if (id >= limit) {
+                return null;
+            }
+            Object[] row = {id, DETAIL};
+            id += step;
+            return row;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void reset() {
+            id = first;
+        }
+    }
+}
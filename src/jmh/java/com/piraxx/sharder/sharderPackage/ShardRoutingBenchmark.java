@@ -0,0 +1,83 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.sharderPackage.placement.BoundedLoadConsistentHashStrategy;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategies;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategy;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of picking a shard for one key, per key type, virtual node count and
+ * placement strategy. jump and rendezvous have no virtual nodes, so for them
+ * the virtualNodes parameter makes no difference.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class ShardRoutingBenchmark {
+
+    private static final int KEY_COUNT = 4096;
+
+    @Param({"ring", "bounded-load", "jump", "rendezvous"})
+    private String strategy;
+
+    @Param({"10", "100", "1000"})
+    private int virtualNodes;
+
+    @Param({"4", "16"})
+    private int shards;
+
+    @Param({"int", "long", "string", "uuid"})
+    private String keyType;
+
+    private ShardPlacementStrategy placementStrategy;
+    private Object[] keys;
+    private int next;
+
+    @Setup
+    public void createRing() {
+        switch (strategy) {
+            case "ring":
+                placementStrategy = new ConsistentHashing(virtualNodes);
+                break;
+            case "bounded-load":
+                placementStrategy = new BoundedLoadConsistentHashStrategy(virtualNodes, 0.25);
+                break;
+            default:
+                placementStrategy = ShardPlacementStrategies.create(strategy);
+        }
+        for (int shard = 1; shard <= shards; shard++) {
+            placementStrategy.addNode("shard" + shard);
+        }
+
+        SplittableRandom random = new SplittableRandom(42);
+        keys = new Object[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            switch (keyType) {
+                case "int":
+                    keys[i] = random.nextInt(Integer.MAX_VALUE);
+                    break;
+                case "long":
+                    keys[i] = random.nextLong(Long.MAX_VALUE);
+                    break;
+                case "string":
+                    keys[i] = "customer-" + random.nextInt(Integer.MAX_VALUE);
+                    break;
+                default:
+                    keys[i] = new UUID(random.nextLong(), random.nextLong());
+            }
+        }
+    }
+
+    @Benchmark
+    public String getNode() {
+        next = (next + 1) & (KEY_COUNT - 1);
+        return placementStrategy.getNode(keys[next]);
+    }
+}
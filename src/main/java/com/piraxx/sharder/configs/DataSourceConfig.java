@@ -1,51 +1,112 @@
 package com.piraxx.sharder.configs;
 
 import com.piraxx.sharder.sharderPackage.DataSourcesHandlerAspect;
-import com.piraxx.sharder.sharderPackage.ShardingDataSource;
-import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.beans.factory.annotation.Value;
+import com.piraxx.sharder.sharderPackage.ReplicatedDataSource;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
-import org.springframework.jdbc.datasource.DriverManagerDataSource;
 
 import javax.sql.DataSource;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 @Configuration
+@EnableConfigurationProperties(ShardProperties.class)
 public class DataSourceConfig {
 
+    // base name for database shard to which each shard unique identifier
+    // will be appended to.
+    private static final String shardsBaseName = "shard";
 
-
+    /*
+     * Every shard gets its own Hikari pool, so a short point query borrows an open
+     * connection instead of paying for a new physical connection (TCP, TLS and
+     * authentication) like DriverManagerDataSource did on each getConnection().
+     * The pools are closed by the ShardingDataSource when the context shuts down.
+     */
     @Bean
     @Primary
-    public DataSource shardingDataSource(
-            @Qualifier("shard1DataSource") DataSource shard1DataSource,
-            @Qualifier("shard2DataSource") DataSource shard2DataSource
-    ) {
+    public DataSource shardingDataSource(ShardProperties shardProperties) {
+        if (shardProperties.getShards().isEmpty()) {
+            throw new IllegalStateException("No shards configured, add at least sharder.shards[0].url");
+        }
+        Map<Object, Object> dataSourceMap = new LinkedHashMap<>();
+        Map<String, Double> shardWeights = new LinkedHashMap<>();
+        int shardCount = 1;
+        for (ShardProperties.Shard shard : shardProperties.getShards()) {
+            String shardName = shard.getName() == null || shard.getName().isBlank()
+                    ? shardsBaseName + shardCount
+                    : shard.getName();
+            if (dataSourceMap.containsKey(shardName)) {
+                throw new IllegalStateException("Shard " + shardName + " is configured twice");
+            }
+            dataSourceMap.put(shardName, createShard(shardName, shard));
+            shardWeights.put(shardName, shard.getWeight());
+            shardCount++;
+        }
+
+        Object defaultShard = shardProperties.getDefaultShard() == null
+                ? dataSourceMap.keySet().iterator().next()
+                : shardProperties.getDefaultShard();
+        if (!dataSourceMap.containsKey(defaultShard)) {
+            throw new IllegalStateException("Default shard " + defaultShard + " is not one of " + dataSourceMap.keySet());
+        }
+
         DataSourcesHandlerAspect dataSourceHandler = new DataSourcesHandlerAspect();
-        return dataSourceHandler.setDataSources(shard2DataSource);
+        return dataSourceHandler.setDataSources(dataSourceMap, (DataSource) dataSourceMap.get(defaultShard), shardWeights);
     }
 
-    @Bean(name = "shard1DataSource")
-    public DataSource shard1DataSource() {
-        DriverManagerDataSource dataSource = new DriverManagerDataSource();
-        dataSource.setDriverClassName("org.postgresql.Driver");
-        dataSource.setUrl("jdbc:postgresql://dpg-cr9plvggph6c73d3ping-a.oregon-postgres.render.com:5432/shard_1");
-        dataSource.setUsername("shard_1");
-        dataSource.setPassword("cWApl8reqUplwP2xHkwOGiyYIGu2g4Ik");
-        return dataSource;
+    /* a shard with replicas is a primary pool plus a pool per replica, reads are balanced over the replicas */
+    private static DataSource createShard(String shardName, ShardProperties.Shard shard) {
+        HikariDataSource primary = createPool(shardName, shard.getUrl(), shard.getUsername(), shard.getPassword(),
+                shard.getDriverClassName(), shard.getPool());
+        if (shard.getReplicas().isEmpty()) {
+            return primary;
+        }
+        List<DataSource> replicas = new ArrayList<>();
+        int replicaCount = 1;
+        for (ShardProperties.Replica replica : shard.getReplicas()) {
+            replicas.add(createPool(shardName + "-replica" + replicaCount,
+                    replica.getUrl(),
+                    replica.getUsername() == null ? shard.getUsername() : replica.getUsername(),
+                    replica.getPassword() == null ? shard.getPassword() : replica.getPassword(),
+                    shard.getDriverClassName(),
+                    replica.getPool()));
+            replicaCount++;
+        }
+        return new ReplicatedDataSource(shardName, primary, replicas);
     }
 
-    @Bean(name = "shard2DataSource")
-    public DataSource shard2DataSource() {
-        DriverManagerDataSource dataSource = new DriverManagerDataSource();
-        dataSource.setDriverClassName("org.postgresql.Driver");
-        dataSource.setUrl("jdbc:postgresql://dpg-cr9pmb2j1k6c73bjumq0-a.oregon-postgres.render.com:5432/shard_2");
-        dataSource.setUsername("shard_2");
-        dataSource.setPassword("2oFAnG8ZeJOscvcdPVsSGZ0q1RWYZevg");
-        return dataSource;
+    private static HikariDataSource createPool(String poolName, String url, String username, String password,
+                                               String driverClassName, ShardProperties.Pool pool) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName(poolName);
+        config.setJdbcUrl(url);
+        config.setUsername(username);
+        config.setPassword(password);
+        if (driverClassName != null) {
+            config.setDriverClassName(driverClassName);
+        }
+        config.setMaximumPoolSize(pool.getMaximumPoolSize());
+        config.setMinimumIdle(pool.getMinimumIdle());
+        config.setConnectionTimeout(pool.getConnectionTimeout().toMillis());
+        config.setIdleTimeout(pool.getIdleTimeout().toMillis());
+        config.setMaxLifetime(pool.getMaxLifetime().toMillis());
+        // the pools are not beans, so Boot does not bind them; hikaricp.* meters are tagged with the pool name
+        config.setMetricRegistry(Metrics.globalRegistry);
+
+        if (url != null && url.startsWith("jdbc:postgresql:")) {
+            config.addDataSourceProperty("preparedStatementCacheQueries", pool.getStatementCacheSize());
+            config.addDataSourceProperty("prepareThreshold", pool.getPrepareThreshold());
+            config.addDataSourceProperty("reWriteBatchedInserts", pool.isRewriteBatchedInserts());
+        }
+        pool.getDataSourceProperties().forEach(config::addDataSourceProperty);
+        return new HikariDataSource(config);
     }
 }
@@ -0,0 +1,94 @@
+package com.piraxx.sharder.configs;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The shard topology, read from the sharder.* properties:
+ *
+ * sharder.shards[0].url=jdbc:postgresql://host-1:5432/shard_1
+ * sharder.shards[0].username=shard_1
+ * sharder.shards[0].password=...
+ * sharder.shards[0].pool.maximum-pool-size=20
+ * sharder.shards[0].weight=2
+ * sharder.shards[0].replicas[0].url=jdbc:postgresql://host-1-replica:5432/shard_1
+ *
+ * Shards without a name are called shard1, shard2, ... in declaration order, which
+ * is what the placement strategy has always hashed on. Renaming or reordering
+ * shards therefore moves rows to other shards.
+ *
+ * A shard gets a share of the keys proportional to its weight, 1 by default, so
+ * a bigger machine can hold more rows. The jump placement strategy cannot
+ * weight shards and refuses weights other than 1.
+ *
+ * Replicas take the reads of their shard. A replica without credentials uses the
+ * ones of its primary, and one without pool settings gets the defaults.
+ */
+@Data
+@ConfigurationProperties(prefix = "sharder")
+public class ShardProperties {
+
+    // shard that takes queries without a shard key, the first shard when not set
+    private String defaultShard;
+
+    private List<Shard> shards = new ArrayList<>();
+
+    /**
+     * A numeric tuning setting from the environment, or the default when the variable
+     * is not set. The routing classes read these into static fields, before there is
+     * a Spring context to bind them from.
+     */
+    public static long readLongFromEnv(String name, long defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.isBlank() ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    @Data
+    public static class Shard {
+        private String name;
+        private String url;
+        private String username;
+        private String password;
+        private String driverClassName;
+        private double weight = 1.0;
+        private Pool pool = new Pool();
+        private List<Replica> replicas = new ArrayList<>();
+    }
+
+    @Data
+    public static class Replica {
+        private String url;
+        private String username;
+        private String password;
+        private Pool pool = new Pool();
+    }
+
+    @Data
+    public static class Pool {
+        private int maximumPoolSize = 10;
+        private int minimumIdle = 2;
+        private Duration connectionTimeout = Duration.ofSeconds(3);
+        private Duration idleTimeout = Duration.ofMinutes(10);
+        private Duration maxLifetime = Duration.ofMinutes(30);
+
+        /*
+         * Prepared statements kept per connection by the Postgres driver, and how many
+         * executions before a statement is prepared on the server. Broadcast queries run
+         * the same SQL over and over, so preparing on the first execution pays off.
+         */
+        private int statementCacheSize = 256;
+        private int prepareThreshold = 1;
+
+        // lets the Postgres driver send a JDBC batch of inserts as multi-row INSERT statements
+        private boolean rewriteBatchedInserts = true;
+
+        // passed to the JDBC driver as is, and take precedence over the settings above
+        private Map<String, String> dataSourceProperties = new LinkedHashMap<>();
+    }
+}
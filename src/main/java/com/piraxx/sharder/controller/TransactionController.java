@@ -8,6 +8,8 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.concurrent.CompletableFuture;
+
 @RestController
 @RequestMapping("/api/transaction")
 public class TransactionController {
@@ -16,7 +18,7 @@ public class TransactionController {
     public TransactionService transactionService;
 
     @PostMapping("/create")
-    public String testCreate(
+    public CompletableFuture<String> testCreate(
             @RequestBody TransactionRequestDto transactionRequestDto
     ){
         return transactionService.create(transactionRequestDto);
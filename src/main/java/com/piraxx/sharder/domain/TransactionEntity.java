@@ -17,7 +17,7 @@ import lombok.NoArgsConstructor;
 public class TransactionEntity {
 
     @Id
-    private Integer transactionId;
+    private Long transactionId;
 
     private String transactionDetail;
 }
@@ -12,7 +12,7 @@ import lombok.NoArgsConstructor;
 @AllArgsConstructor
 public class TransactionRequestDto {
 
-    private Integer transactionId;
+    private Long transactionId;
 
     private String transactionDetail;
 }
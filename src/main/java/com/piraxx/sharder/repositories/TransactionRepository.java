@@ -1,9 +1,11 @@
 package com.piraxx.sharder.repositories;
 
 import com.piraxx.sharder.domain.TransactionEntity;
+import com.piraxx.sharder.sharderPackage.cache.ShardCached;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
 @Repository
-public interface TransactionRepository extends JpaRepository<TransactionEntity, Integer> {
+@ShardCached
+public interface TransactionRepository extends JpaRepository<TransactionEntity, Long> {
 }
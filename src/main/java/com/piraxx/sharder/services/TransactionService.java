@@ -3,23 +3,32 @@ package com.piraxx.sharder.services;
 import com.piraxx.sharder.domain.TransactionEntity;
 import com.piraxx.sharder.domain.TransactionRequestDto;
 import com.piraxx.sharder.repositories.TransactionRepository;
+import com.piraxx.sharder.sharderPackage.ShardIds;
+import com.piraxx.sharder.sharderPackage.WriteBehindBuffer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.concurrent.CompletableFuture;
+
 @Service
 public class TransactionService {
 
     @Autowired
     public TransactionRepository transactionRepository;
 
-    public String create(TransactionRequestDto testRequest){
-         transactionRepository.save(
-                TransactionEntity.builder()
-                        .transactionId(testRequest.getTransactionId())
-                        .transactionDetail(testRequest.getTransactionDetail())
-                        .build()
-        );
-         return "Test detail: " + testRequest.getTransactionDetail();
+    /* A request without an id gets one from ShardIds, which the router places without hashing.
+     * With writeBehind=true the save is group committed with other requests and
+     * the future completes once it is durable, otherwise it is saved right away. */
+    public CompletableFuture<String> create(TransactionRequestDto testRequest){
+        TransactionEntity transaction = TransactionEntity.builder()
+                .transactionId(testRequest.getTransactionId() != null ? testRequest.getTransactionId() : ShardIds.nextId())
+                .transactionDetail(testRequest.getTransactionDetail())
+                .build();
+        CompletableFuture<TransactionEntity> saved = WriteBehindBuffer.save(transaction);
+        if(saved == null){
+            saved = CompletableFuture.completedFuture(transactionRepository.save(transaction));
+        }
+        return saved.thenApply(savedTransaction -> "Test detail: " + testRequest.getTransactionDetail());
     }
 
 
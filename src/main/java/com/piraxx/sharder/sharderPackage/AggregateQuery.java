@@ -0,0 +1,488 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.sharderPackage.metrics.ShardMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A broadcast SELECT whose select list is made of COUNT, SUM, MIN, MAX and AVG,
+ * optionally grouped, evaluated as partial aggregates on every shard and
+ * combined in the router.
+ *
+ * Each shard runs the query with AVG(x) replaced by SUM(x), COUNT(x), so only
+ * one row per group per shard crosses the wire. The router then adds up the
+ * counts and sums, keeps the smallest and largest MIN and MAX, divides the
+ * summed AVG parts, merges the groups in a hash map and applies the ORDER BY,
+ * except on text sorted by a collation Java cannot reproduce (see OrderByClause).
+ *
+ * Only plain statements are recognized: no DISTINCT (in the select list or
+ * inside an aggregate), HAVING, LIMIT/OFFSET, window functions, set operations
+ * or expressions over aggregates, and every GROUP BY column has to be in the
+ * select list since the groups are merged by the selected columns. Anything
+ * else is broadcast and merged row by row like any other SELECT.
+ */
+public final class AggregateQuery {
+
+    private static final Logger logger = LoggerFactory.getLogger(AggregateQuery.class);
+
+    enum Function {
+        // a GROUP BY column, the same value on every shard for the group
+        GROUP, COUNT, SUM, MIN, MAX, AVG
+    }
+
+    private static final Pattern AGGREGATE = Pattern.compile("(?is)^(count|sum|min|max|avg)\\s*\\((.*)\\)$");
+
+    private static final Pattern ALIAS = Pattern.compile("(?is)^(.*?\\S)\\s+(?:as\\s+)?(\"[^\"]+\"|[a-z_][a-z0-9_]*)$");
+
+    private static final Pattern UNSUPPORTED = Pattern.compile("(?i)\\b(having|limit|offset|fetch|union|intersect|except|over|distinct|for\\s+update)\\b");
+
+    private static final Pattern GROUP_BY = Pattern.compile("(?i)\\bgroup\\s+by\\b");
+
+    private static final Pattern DISTINCT_ARGUMENT = Pattern.compile("(?i)^\\s*distinct\\b");
+
+    private final String shardSql;
+    private final Function[] functions;
+    private final String[] labels;
+    // the first shard column holding the partial of each output column, AVG uses two
+    private final int[] partialColumns;
+    private final boolean grouped;
+    private final OrderByClause orderBy;
+    private final int[] sortColumns;
+
+    private AggregateQuery(String shardSql, Function[] functions, String[] labels, int[] partialColumns,
+                           boolean grouped, OrderByClause orderBy, int[] sortColumns) {
+        this.shardSql = shardSql;
+        this.functions = functions;
+        this.labels = labels;
+        this.partialColumns = partialColumns;
+        this.grouped = grouped;
+        this.orderBy = orderBy;
+        this.sortColumns = sortColumns;
+    }
+
+    /** Returns the aggregate query the statement amounts to, or null when it is not one this class can split. */
+    public static AggregateQuery parse(String sql) {
+        String statement = sql.trim().replaceAll(";$", "").trim();
+        String masked = mask(statement);
+        String lowerMasked = masked.toLowerCase(Locale.ROOT);
+        if (!lowerMasked.startsWith("select ") || UNSUPPORTED.matcher(masked).find()) {
+            return null;
+        }
+        int from = indexOfKeyword(lowerMasked, "from");
+        if (from < 0) {
+            return null;
+        }
+        int orderByStart = OrderByClause.indexOfOrderBy(masked);
+        String selectList = statement.substring("select ".length(), from);
+        String rest = orderByStart < 0 ? statement.substring(from) : statement.substring(from, orderByStart);
+        if (selectList.contains("?") || (orderByStart >= 0 && statement.indexOf('?', orderByStart) >= 0)) {
+            // placeholders in the select list would shift when AVG is split in two, and the ORDER BY is dropped
+            return null;
+        }
+
+        List<String> items = splitTopLevel(selectList);
+        Function[] functions = new Function[items.size()];
+        String[] labels = new String[items.size()];
+        String[] expressions = new String[items.size()];
+        int[] partialColumns = new int[items.size()];
+        List<String> partials = new ArrayList<>();
+        boolean hasAggregate = false;
+
+        for (int i = 0; i < items.size(); i++) {
+            String item = items.get(i).trim();
+            String alias = null;
+            if (!item.endsWith(")")) {
+                Matcher aliased = ALIAS.matcher(item);
+                if (aliased.matches() && !aliased.group(1).trim().endsWith(".")) {
+                    item = aliased.group(1).trim();
+                    alias = aliased.group(2).replace("\"", "");
+                }
+            }
+            expressions[i] = item;
+            partialColumns[i] = partials.size() + 1;
+
+            Matcher aggregate = AGGREGATE.matcher(item);
+            if (aggregate.matches() && isBalanced(aggregate.group(2))) {
+                if (DISTINCT_ARGUMENT.matcher(aggregate.group(2)).find()) {
+                    // a value found on several shards would be counted once per shard
+                    return null;
+                }
+                hasAggregate = true;
+                functions[i] = Function.valueOf(aggregate.group(1).toUpperCase(Locale.ROOT));
+                // Postgres names an unaliased aggregate column after the function
+                labels[i] = alias != null ? alias : aggregate.group(1).toLowerCase(Locale.ROOT);
+                if (functions[i] == Function.AVG) {
+                    partials.add("sum(" + aggregate.group(2) + ")");
+                    partials.add("count(" + aggregate.group(2) + ")");
+                } else {
+                    partials.add(item);
+                }
+            } else if (item.matches("(?i)[a-z_][a-z0-9_.\"]*")) {
+                functions[i] = Function.GROUP;
+                String column = item.replace("\"", "");
+                labels[i] = alias != null ? alias : column.substring(column.lastIndexOf('.') + 1);
+                partials.add(item);
+            } else {
+                // an expression like sum(a) / count(*) cannot be combined from partials
+                return null;
+            }
+        }
+        Matcher groupBy = GROUP_BY.matcher(mask(rest));
+        boolean grouped = groupBy.find();
+        if (!hasAggregate || (!grouped && Arrays.asList(functions).contains(Function.GROUP))) {
+            return null;
+        }
+        if (grouped && !groupsBySelectedColumns(rest.substring(groupBy.end()), functions, labels, expressions)) {
+            // the groups are merged by the selected GROUP columns, a group key left out of them would be lost
+            return null;
+        }
+
+        OrderByClause orderBy = OrderByClause.parse(statement);
+        int[] sortColumns = resolveSortColumns(orderBy, labels, expressions);
+        if (sortColumns == null) {
+            return null;
+        }
+        String shardSql = "select " + String.join(", ", partials) + " " + rest.trim();
+        return new AggregateQuery(shardSql, functions, labels, partialColumns, grouped, orderBy, sortColumns);
+    }
+
+    /** The statement every shard runs, returning partial aggregates. */
+    public String getShardSql() {
+        return shardSql;
+    }
+
+    /**
+     * Reads the partial aggregates of every shard, combines them and returns the
+     * final rows as a cursor, closing the shard cursors.
+     */
+    public MergedResultCursor merge(List<ShardCursor> shardCursors) throws SQLException {
+        Map<List<Object>, Object[]> groups = new LinkedHashMap<>();
+        ResultSetMetaData shardMetaData = null;
+        try {
+            for (ShardCursor cursor : shardCursors) {
+                ResultSet resultSet = cursor.getResultSet();
+                if (shardMetaData == null) {
+                    shardMetaData = resultSet.getMetaData();
+                }
+                while (cursor.advance()) {
+                    List<Object> groupKey = new ArrayList<>();
+                    for (int i = 0; i < functions.length; i++) {
+                        if (functions[i] == Function.GROUP) {
+                            groupKey.add(resultSet.getObject(partialColumns[i]));
+                        }
+                    }
+                    Object[] accumulators = groups.computeIfAbsent(groupKey, key -> new Object[functions.length * 2]);
+                    accumulate(accumulators, resultSet);
+                }
+            }
+        } finally {
+            long rowsRead = 0;
+            for (ShardCursor cursor : shardCursors) {
+                rowsRead += cursor.getRowsRead();
+                cursor.close();
+            }
+            ShardMetrics.recordRowsMerged(rowsRead);
+        }
+        if (groups.isEmpty() && !grouped) {
+            // no shard answered, a global aggregate still has exactly one row
+            groups.put(List.of(), new Object[functions.length * 2]);
+        }
+
+        List<Object[]> rows = new ArrayList<>(groups.size());
+        for (Object[] accumulators : groups.values()) {
+            rows.add(finish(accumulators));
+        }
+        String textColumn = orderBy.isOrdered() ? collatedTextColumn(rows, shardMetaData) : null;
+        if (textColumn != null) {
+            logger.warn("ORDER BY {} sorts text by its collation, the merged groups are not sorted unless it is sorted COLLATE \"C\"",
+                    textColumn);
+        } else if (orderBy.isOrdered()) {
+            Comparator<Object[]> sortValues = orderBy.comparator();
+            rows.sort((left, right) -> sortValues.compare(sortValuesOf(left), sortValuesOf(right)));
+        }
+        return MergedResultCursor.merge(List.of(ShardCursor.inMemory(toResultSet(rows, shardMetaData))), OrderByClause.none());
+    }
+
+    private void accumulate(Object[] accumulators, ResultSet resultSet) throws SQLException {
+        for (int i = 0; i < functions.length; i++) {
+            Object value = resultSet.getObject(partialColumns[i]);
+            int slot = i * 2;
+            switch (functions[i]) {
+                case GROUP:
+                    accumulators[slot] = value;
+                    break;
+                case COUNT:
+                case SUM:
+                    accumulators[slot] = add(accumulators[slot], value);
+                    break;
+                case MIN:
+                    accumulators[slot] = pick(accumulators[slot], value, true);
+                    break;
+                case MAX:
+                    accumulators[slot] = pick(accumulators[slot], value, false);
+                    break;
+                case AVG:
+                    accumulators[slot] = add(accumulators[slot], value);
+                    accumulators[slot + 1] = add(accumulators[slot + 1], resultSet.getObject(partialColumns[i] + 1));
+                    break;
+            }
+        }
+    }
+
+    private Object[] finish(Object[] accumulators) {
+        Object[] row = new Object[functions.length];
+        for (int i = 0; i < functions.length; i++) {
+            Object value = accumulators[i * 2];
+            if (functions[i] == Function.COUNT) {
+                row[i] = value == null ? 0L : ((Number) value).longValue();
+            } else if (functions[i] == Function.AVG) {
+                row[i] = average((Number) value, (Number) accumulators[i * 2 + 1]);
+            } else {
+                row[i] = value;
+            }
+        }
+        return row;
+    }
+
+    /* Postgres returns numeric for AVG of integers and numerics, double precision for floats */
+    private static Object average(Number sum, Number count) {
+        if (sum == null || count == null || count.longValue() == 0) {
+            return null;
+        }
+        if (sum instanceof Double || sum instanceof Float) {
+            return sum.doubleValue() / count.longValue();
+        }
+        return toBigDecimal(sum).divide(BigDecimal.valueOf(count.longValue()), MathContext.DECIMAL128);
+    }
+
+    private static Object add(Object total, Object value) {
+        if (value == null) {
+            return total;
+        }
+        if (total == null) {
+            return value;
+        }
+        Number a = (Number) total;
+        Number b = (Number) value;
+        if (a instanceof BigDecimal || b instanceof BigDecimal || a instanceof BigInteger || b instanceof BigInteger) {
+            return toBigDecimal(a).add(toBigDecimal(b));
+        }
+        if (a instanceof Double || b instanceof Double || a instanceof Float || b instanceof Float) {
+            return a.doubleValue() + b.doubleValue();
+        }
+        return Math.addExact(a.longValue(), b.longValue());
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object pick(Object current, Object value, boolean smallest) {
+        if (value == null) {
+            return current;
+        }
+        if (current == null) {
+            return value;
+        }
+        int comparison = ((Comparable) value).compareTo(current);
+        return (smallest ? comparison < 0 : comparison > 0) ? value : current;
+    }
+
+    private static BigDecimal toBigDecimal(Number number) {
+        if (number instanceof BigDecimal) {
+            return (BigDecimal) number;
+        }
+        if (number instanceof BigInteger) {
+            return new BigDecimal((BigInteger) number);
+        }
+        if (number instanceof Double || number instanceof Float) {
+            return BigDecimal.valueOf(number.doubleValue());
+        }
+        return BigDecimal.valueOf(number.longValue());
+    }
+
+    /* the first sort key whose text the database orders by a collation Java cannot reproduce, or null */
+    private String collatedTextColumn(List<Object[]> rows, ResultSetMetaData shardMetaData) throws SQLException {
+        List<OrderByClause.SortKey> keys = orderBy.getSortKeys();
+        for (int k = 0; k < keys.size(); k++) {
+            if (!keys.get(k).comparesLikeTheDatabase(columnType(sortColumns[k], rows, shardMetaData))) {
+                return keys.get(k).getColumn();
+            }
+        }
+        return null;
+    }
+
+    private Object[] sortValuesOf(Object[] row) {
+        Object[] values = new Object[sortColumns.length];
+        for (int i = 0; i < sortColumns.length; i++) {
+            values[i] = row[sortColumns[i]];
+        }
+        return values;
+    }
+
+    /* the merged rows as a disconnected result set, so they go through the usual result shapes */
+    private ResultSet toResultSet(List<Object[]> rows, ResultSetMetaData shardMetaData) throws SQLException {
+        RowSetMetaDataImpl metaData = new RowSetMetaDataImpl();
+        metaData.setColumnCount(functions.length);
+        for (int i = 0; i < functions.length; i++) {
+            metaData.setColumnLabel(i + 1, labels[i]);
+            metaData.setColumnName(i + 1, labels[i]);
+            metaData.setColumnType(i + 1, columnType(i, rows, shardMetaData));
+        }
+        CachedRowSet rowSet = RowSetProvider.newFactory().createCachedRowSet();
+        rowSet.setMetaData(metaData);
+        for (Object[] row : rows) {
+            rowSet.moveToInsertRow();
+            for (int i = 0; i < row.length; i++) {
+                rowSet.updateObject(i + 1, row[i]);
+            }
+            rowSet.insertRow();
+        }
+        rowSet.moveToCurrentRow();
+        rowSet.beforeFirst();
+        return rowSet;
+    }
+
+    private int columnType(int column, List<Object[]> rows, ResultSetMetaData shardMetaData) throws SQLException {
+        if (functions[column] == Function.COUNT) {
+            return Types.BIGINT;
+        }
+        if (functions[column] == Function.AVG) {
+            for (Object[] row : rows) {
+                if (row[column] != null) {
+                    return row[column] instanceof Double ? Types.DOUBLE : Types.NUMERIC;
+                }
+            }
+            return Types.NUMERIC;
+        }
+        return shardMetaData == null ? Types.OTHER : shardMetaData.getColumnType(partialColumns[column]);
+    }
+
+    private static int[] resolveSortColumns(OrderByClause orderBy, String[] labels, String[] expressions) {
+        List<OrderByClause.SortKey> keys = orderBy.getSortKeys();
+        int[] columns = new int[keys.size()];
+        for (int k = 0; k < keys.size(); k++) {
+            String column = keys.get(k).getColumn();
+            columns[k] = -1;
+            if (column.chars().allMatch(Character::isDigit)) {
+                columns[k] = Integer.parseInt(column) - 1;
+            }
+            for (int i = 0; i < labels.length && columns[k] < 0; i++) {
+                if (labels[i].equalsIgnoreCase(column)
+                        || expressions[i].replaceAll("\\s+", "").equalsIgnoreCase(column.replaceAll("\\s+", ""))) {
+                    columns[k] = i;
+                }
+            }
+            if (columns[k] < 0 || columns[k] >= labels.length) {
+                return null;
+            }
+        }
+        return columns;
+    }
+
+    /* every GROUP BY item has to be one of the plain columns of the select list */
+    private static boolean groupsBySelectedColumns(String groupList, Function[] functions, String[] labels, String[] expressions) {
+        for (String item : splitTopLevel(groupList)) {
+            String key = normalize(item);
+            boolean selected = false;
+            if (!key.isEmpty() && key.chars().allMatch(Character::isDigit)) {
+                int position = Integer.parseInt(key) - 1;
+                selected = position < functions.length && functions[position] == Function.GROUP;
+            }
+            for (int i = 0; i < functions.length && !selected; i++) {
+                if (functions[i] == Function.GROUP) {
+                    String expression = normalize(expressions[i]);
+                    selected = key.equals(expression)
+                            || key.equals(expression.substring(expression.lastIndexOf('.') + 1))
+                            || key.equals(labels[i].toLowerCase(Locale.ROOT));
+                }
+            }
+            if (!selected) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String normalize(String expression) {
+        return expression.replaceAll("\\s+", "").replace("\"", "").toLowerCase(Locale.ROOT);
+    }
+
+    /* blanks out string literals and parenthesised text so keywords are only found at the top level */
+    private static String mask(String sql) {
+        StringBuilder masked = new StringBuilder(sql.length());
+        int depth = 0;
+        boolean inLiteral = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                inLiteral = !inLiteral;
+                masked.append(' ');
+            } else if (inLiteral) {
+                masked.append(' ');
+            } else if (c == '(') {
+                depth++;
+                masked.append('(');
+            } else if (c == ')') {
+                depth--;
+                masked.append(')');
+            } else {
+                masked.append(depth > 0 ? ' ' : c);
+            }
+        }
+        return masked.toString();
+    }
+
+    private static int indexOfKeyword(String lowerMasked, String keyword) {
+        Matcher matcher = Pattern.compile("\\b" + keyword + "\\b").matcher(lowerMasked);
+        return matcher.find() ? matcher.start() : -1;
+    }
+
+    private static boolean isBalanced(String expression) {
+        int depth = 0;
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth < 0) {
+                return false;
+            }
+        }
+        return depth == 0;
+    }
+
+    private static List<String> splitTopLevel(String clause) {
+        List<String> items = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        boolean inLiteral = false;
+        for (int i = 0; i < clause.length(); i++) {
+            char c = clause.charAt(i);
+            if (c == '\'') {
+                inLiteral = !inLiteral;
+            } else if (inLiteral) {
+                continue;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                items.add(clause.substring(start, i));
+                start = i + 1;
+            }
+        }
+        items.add(clause.substring(start));
+        return items;
+    }
+}
@@ -1,14 +1,21 @@
 package com.piraxx.sharder.sharderPackage;
-import org.apache.commons.codec.digest.MurmurHash3;
-import org.springframework.stereotype.Component;
 
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import com.piraxx.sharder.configs.ShardProperties;
+import com.piraxx.sharder.sharderPackage.placement.ShardKeyHasher;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategy;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
-public class ConsistentHashing {
+public class ConsistentHashing implements ShardPlacementStrategy {
+
+    /** Virtual nodes per shard when the replicas environment variable is not set. */
+    public static final int DEFAULT_REPLICAS = 100;
 
     private int numberOfReplicas;
 
@@ -22,64 +29,163 @@ public class ConsistentHashing {
  * are using just a portion of that hash to map nodes
  * and keys to an integer in a specific range (in this case,
  * up to the maximum value of a 32-bit signed integer).
+ *
+ * The TreeMap is only touched when nodes are added or removed. Lookups go
+ * to the Ring below, which is rebuilt from the TreeMap after every change.
+ *
+ * Both belong to the instance rather than the class, so the placement before
+ * and after a topology change can exist side by side while a rebalance runs.
  */
-    private static final SortedMap<Integer, String> circle = new TreeMap<>();
+    private final SortedMap<Integer, String> circle = new TreeMap<>();
+
+    /**
+     * The same ring flattened into a sorted int[] of virtual node hashes and a
+     * parallel array of indexes into the shard names. A lookup is a binary search
+     * over primitives: no boxing, no tailMap view, no second map lookup. The
+     * arrays are published together as one object so a reader can never see the
+     * hashes of one version with the owners of another.
+     */
+    private static final class Ring {
+        private final int[] hashes;
+        private final int[] shardIndexes;
+        private final String[] shards;
+
+        private Ring(int[] hashes, int[] shardIndexes, String[] shards) {
+            this.hashes = hashes;
+            this.shardIndexes = shardIndexes;
+            this.shards = shards;
+        }
+    }
+
+    private volatile Ring ring = new Ring(new int[0], new int[0], new String[0]);
+
+    /*
+     * A shard's weight scales its number of virtual nodes, and with them its share
+     * of the ring: weight 2 gets twice the replicas. Shards of weight 1 keep the
+     * virtual nodes they always had, so weighting one shard only moves keys to or
+     * from that shard. Guarded by circle, like the TreeMap.
+     */
+    private final Map<String, Double> weights = new HashMap<>();
 
     public ConsistentHashing() {
         setReplicas();
     }
 
+    ConsistentHashing(int numberOfReplicas) {
+        this.numberOfReplicas = numberOfReplicas;
+    }
+
     private void setReplicas(){
-        this.numberOfReplicas = Integer.parseInt(System.getenv("replicas"));
+        this.numberOfReplicas = (int) ShardProperties.readLongFromEnv("replicas", DEFAULT_REPLICAS);
     }
 
+    @Override
     public void addNode(String node) {
-        for (int i = 0; i < numberOfReplicas; i++) {
-            int hash = hash(node + i);
-            circle.put(hash, node);
+        addNode(node, 1.0);
+    }
+
+    @Override
+    public void addNode(String node, double weight) {
+        if (!(weight > 0)) {
+            throw new IllegalArgumentException("The weight of shard " + node + " must be positive: " + weight);
+        }
+        synchronized (circle) {
+            if (weights.containsKey(node)) {
+                removeVirtualNodes(node);
+            }
+            weights.put(node, weight);
+            for (int i = 0; i < virtualNodesOf(node); i++) {
+                int hash = hash(node + i);
+                circle.put(hash, node);
+            }
+            rebuildRing();
         }
     }
 
+    @Override
     public void removeNode(String node) {
-        for (int i = 0; i < numberOfReplicas; i++) {
+        synchronized (circle) {
+            removeVirtualNodes(node);
+            weights.remove(node);
+            rebuildRing();
+        }
+    }
+
+    private void removeVirtualNodes(String node) {
+        for (int i = 0; i < virtualNodesOf(node); i++) {
             int hash = hash(node + i);
             circle.remove(hash);
         }
     }
 
+    private int virtualNodesOf(String node) {
+        double weight = weights.getOrDefault(node, 1.0);
+        return weight == 1.0 ? numberOfReplicas : (int) Math.max(1, Math.round(numberOfReplicas * weight));
+    }
+
+    @Override
+    public double getWeight(String node) {
+        synchronized (circle) {
+            return weights.getOrDefault(node, 1.0);
+        }
+    }
+
+    private void rebuildRing() {
+        int[] hashes = new int[circle.size()];
+        int[] shardIndexes = new int[circle.size()];
+        String[] shards = circle.values().stream().distinct().sorted().toArray(String[]::new);
+
+        int position = 0;
+        for (Map.Entry<Integer, String> virtualNode : circle.entrySet()) {
+            hashes[position] = virtualNode.getKey();
+            shardIndexes[position] = Arrays.binarySearch(shards, virtualNode.getValue());
+            position++;
+        }
+        ring = new Ring(hashes, shardIndexes, shards);
+    }
+
     /**
-     * Another feature of the data structure is it ability to return
-     * a subsection of the map based on any key value provided. The subsection returned is starts
-     * from the provided key to the end of the map. The data structure
-     * gets very beautiful when an invalid key within the
-     * range of the map’s key set stills returns something.
-     * This is because in an event that an invalid key is provided,
-     * a subsection starting from the key entry that ]
-     * is just greater than the invalid key is returned.
-     *
-     * With this being returned, we can just use the `firstKey` method to get the next
-     * valid key which now happens to be the next  node
-     * going clockwise assuming the map is considered as a ring.
+     * Walks clockwise from the key's hash to the first virtual node at or after
+     * it, wrapping around to the first virtual node when the hash is past the
+     * last one. This is what tailMap(hash).firstKey() used to do on the TreeMap,
+     * done as a binary search on the flattened ring.
      */
+    @Override
     public String getNode(Object keyObj) {
-        String key = keyObj.toString();
-        if (circle.isEmpty()) {
+        Ring current = ring;
+        if (current.hashes.length == 0) {
             return null;
         }
-        int hash = hash(key);
-        SortedMap<Integer, String> tailMap = circle.tailMap(hash);
-        int nodeHash = !tailMap.isEmpty() ? tailMap.firstKey() : circle.firstKey();
-        return circle.get(nodeHash);
+        int hash = hash(keyObj);
+        int index = Arrays.binarySearch(current.hashes, hash);
+        if (index < 0) {
+            index = -index - 1;
+            if (index == current.hashes.length) {
+                index = 0;
+            }
+        }
+        return current.shards[current.shardIndexes[index]];
     }
 
     private int hash(Object keyObj) {
-            String key = keyObj.toString();
-            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
-            return Math.abs(MurmurHash3.hash32(keyBytes, 0, keyBytes.length, 0));
+        return ShardKeyHasher.hash32(keyObj);
+    }
+
+    @Override
+    public List<String> getNodes() {
+        return List.of(ring.shards);
     }
 
     public SortedMap<Integer, String> getHashRing(){
-        return circle;
+        return Collections.unmodifiableSortedMap(circle);
     }
-}
 
+    @Override
+    public String toString() {
+        String weighted;
+        synchronized (circle) {
+            weighted = weights.values().stream().allMatch(weight -> weight == 1.0) ? "" : " weights " + weights;
+        }
+        return "ring(" + numberOfReplicas + " vnodes" + weighted + ") " + getHashRing();
+    }
+}
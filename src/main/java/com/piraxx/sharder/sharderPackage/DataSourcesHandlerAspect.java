@@ -1,71 +1,55 @@
 package com.piraxx.sharder.sharderPackage;
 
 
-import org.aspectj.lang.JoinPoint;
-import org.aspectj.lang.annotation.Aspect;
-import org.aspectj.lang.annotation.Before;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategies;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategy;
 import org.springframework.stereotype.Component;
 
 import javax.sql.DataSource;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 
-@Aspect
+/*
+ * Keeps the shards and their names for the rest of the sharder. The shards used to
+ * be learned by intercepting the arguments of DataSourceConfig.shardingDataSource,
+ * they are now handed over explicitly from the sharder.shards properties.
+ *
+ * The shard table itself lives in the ShardTopology snapshot, published together
+ * with the placement that routes to it.
+ */
 @Component
 public class DataSourcesHandlerAspect {
 
-    // List to store all the database shards
-    static Object[] args;
-
-    // base name for database shard to which each shard unique identifier
-    // will be appended to.
-    String shardsBaseName = "shard";
-
-    // Hashmap to contain datasources and their shard names
-    static Map<Object, Object> dataSourceMap = new HashMap<>();
-
-    ConsistentHashing consistentHashing;
-
-    public DataSourcesHandlerAspect(){
-        consistentHashing = new ConsistentHashing();
-    }
-
     // returns list of all data sources
     public static Object[] getShardList(){
-        return args;
+        return getDataSourceMap().values().toArray();
     }
 
-    // returns a key-value set of all shards(data sources) and their names
+    // returns a key-value set of all shards(data sources) and their names, in declaration order,
+    // as seen by the topology the running repository call is routed with
     public static Map<Object, Object> getDataSourceMap(){
-        return dataSourceMap;
+        return ShardingContextHolder.getTopology().getDataSources();
+    }
+
+    public ShardingDataSource setDataSources(Map<Object, Object> shards, DataSource defaultDataSource){
+        return setDataSources(shards, defaultDataSource, Map.of());
     }
 
-    public ShardingDataSource setDataSources(DataSource defaultDataSource){
+    // shards missing from weights get weight 1
+    public ShardingDataSource setDataSources(Map<Object, Object> shards, DataSource defaultDataSource,
+                                             Map<String, Double> weights){
+        Map<String, Double> weightedShards = new LinkedHashMap<>();
+        shards.keySet().forEach(shardName -> weightedShards.put((String) shardName, weights.getOrDefault(shardName, 1.0)));
+        // the placement is filled in before it is published, never changed in place afterwards
+        ShardPlacementStrategy placement = ShardPlacementStrategies.createWithNodes(weightedShards);
+        ShardTopology topology = ShardTopology.update(current -> current.withShards(shards, placement));
+
         ShardingDataSource shardingDataSource = new ShardingDataSource();
-        shardingDataSource.setTargetDataSources(dataSourceMap);
-        addNodesToHashRing();
+        shardingDataSource.setTargetDataSources(topology.getDataSources());
 
         // Set a default data source
         shardingDataSource.setDefaultTargetDataSource(defaultDataSource);
         return shardingDataSource;
     }
-
-
-    @Before("execution(* com.piraxx.sharder..configs..DataSourceConfig.shardingDataSource(..))")
-    private void mapDataSource(JoinPoint joinPoint){
-        args = joinPoint.getArgs();
-        int shardCount = 1;
-        for(Object arg: args){
-            dataSourceMap.put(shardsBaseName + shardCount, arg);
-            shardCount++;
-        }
-    }
-
-    private void addNodesToHashRing(){
-        for(Object key: dataSourceMap.keySet()){
-            consistentHashing.addNode((String) key);
-        }
-        System.out.println("====in DataSourcesHandlerAspect==== Hash ring => " + consistentHashing.getHashRing());
-    }
 }
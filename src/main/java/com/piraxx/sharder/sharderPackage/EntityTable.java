@@ -0,0 +1,150 @@
+package com.piraxx.sharder.sharderPackage;
+
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.type.Type;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The table behind an entity, with table and column names as Hibernate maps
+ * them so naming strategies and @Column names are respected. Used by the code
+ * that writes rows over plain JDBC: the rebalancer and the batch writer.
+ */
+final class EntityTable {
+
+    final Class<?> entityType;
+    final String name;
+    final String idColumn;
+    // the id column first, then one or more columns per persistent property
+    final List<String> columns;
+    // positions in columns of the @ShardKey fields, just the id when there are none
+    private final int[] shardKeyColumns;
+
+    private final AbstractEntityPersister persister;
+
+    /*
+     * True when every persistent property is a plain value in a single column of
+     * this table, so an entity can be written as one row without Hibernate: no
+     * associations, embeddables, collections, enums or @Version.
+     */
+    private final boolean writableAsRow;
+
+    private EntityTable(AbstractEntityPersister persister) {
+        this.persister = persister;
+        this.entityType = persister.getMappedClass();
+        this.name = persister.getTableName();
+        this.idColumn = persister.getIdentifierColumnNames()[0];
+
+        List<String> columns = new ArrayList<>(List.of(idColumn));
+        boolean writableAsRow = !persister.isVersioned();
+        Type[] propertyTypes = persister.getPropertyTypes();
+        for (int i = 0; i < propertyTypes.length; i++) {
+            String[] propertyColumns = persister.getPropertyColumnNames(i);
+            writableAsRow &= propertyColumns.length == 1
+                    && !propertyTypes[i].isAssociationType()
+                    && !propertyTypes[i].isComponentType()
+                    && !propertyTypes[i].isCollectionType()
+                    && !propertyTypes[i].getReturnedClass().isEnum();
+            for (String column : propertyColumns) {
+                if (column != null && !columns.contains(column)) {
+                    columns.add(column);
+                }
+            }
+        }
+        this.columns = Collections.unmodifiableList(columns);
+        this.shardKeyColumns = shardKeyColumnsOf(persister, columns);
+        this.writableAsRow = writableAsRow && columns.size() == propertyTypes.length + 1;
+    }
+
+    /** Every entity table with a single column id. Tables with a composite id are left out. */
+    static List<EntityTable> all(EntityManagerFactory entityManagerFactory) {
+        List<EntityTable> tables = new ArrayList<>();
+        entityManagerFactory.unwrap(SessionFactoryImplementor.class).getMappingMetamodel().forEachEntityDescriptor(persister -> {
+            if (persister instanceof AbstractEntityPersister
+                    && ((AbstractEntityPersister) persister).getIdentifierColumnNames().length == 1) {
+                tables.add(new EntityTable((AbstractEntityPersister) persister));
+            }
+        });
+        return tables;
+    }
+
+    /** The table of the entity class, or null when it is not an entity or has a composite id. */
+    static EntityTable of(EntityManagerFactory entityManagerFactory, Class<?> entityType) {
+        try {
+            Object persister = entityManagerFactory.unwrap(SessionFactoryImplementor.class)
+                    .getMappingMetamodel().getEntityDescriptor(entityType);
+            if (persister instanceof AbstractEntityPersister
+                    && ((AbstractEntityPersister) persister).getIdentifierColumnNames().length == 1) {
+                return new EntityTable((AbstractEntityPersister) persister);
+            }
+        } catch (IllegalArgumentException e) {
+            // not an entity
+        }
+        return null;
+    }
+
+    private static int[] shardKeyColumnsOf(AbstractEntityPersister persister, List<String> columns) {
+        List<String> fieldNames = ShardKeys.fieldNames(persister.getMappedClass());
+        int[] positions = new int[Math.max(1, fieldNames.size())];
+        for (int i = 0; i < fieldNames.size(); i++) {
+            String fieldName = fieldNames.get(i);
+            positions[i] = fieldName.equals(persister.getIdentifierPropertyName())
+                    ? 0
+                    : columns.indexOf(persister.getPropertyColumnNames(persister.getPropertyIndex(fieldName))[0]);
+        }
+        return positions;
+    }
+
+    /** The shard key of a row read in the order of columns, the same value ShardKeys.of gives for the entity. */
+    Object shardKeyOf(Object[] row) {
+        if (shardKeyColumns.length == 1) {
+            return row[shardKeyColumns[0]];
+        }
+        Object[] values = new Object[shardKeyColumns.length];
+        for (int i = 0; i < shardKeyColumns.length; i++) {
+            values[i] = row[shardKeyColumns[i]];
+        }
+        return ShardKeys.composite(values);
+    }
+
+    /** The columns holding the shard key, in the order ShardKeys.of combines them. */
+    List<String> shardKeyColumnNames() {
+        List<String> names = new ArrayList<>(shardKeyColumns.length);
+        for (int position : shardKeyColumns) {
+            names.add(columns.get(position));
+        }
+        return names;
+    }
+
+    boolean isWritableAsRow() {
+        return writableAsRow;
+    }
+
+    /** The column values of the entity in the order of columns, id first. Only for tables writable as rows. */
+    Object[] rowOf(Object entity, Object id) {
+        Object[] propertyValues = persister.getValues(entity);
+        Object[] row = new Object[propertyValues.length + 1];
+        row[0] = id;
+        System.arraycopy(propertyValues, 0, row, 1, propertyValues.length);
+        return row;
+    }
+
+    String insertSql() {
+        return "insert into " + name + " (" + String.join(", ", columns) + ") values ("
+                + String.join(", ", Collections.nCopies(columns.size(), "?")) + ")";
+    }
+
+    /* Postgres INSERT ... ON CONFLICT: the id decides whether the row is new */
+    String upsertSql() {
+        List<String> assignments = new ArrayList<>();
+        for (String column : columns.subList(1, columns.size())) {
+            assignments.add(column + " = excluded." + column);
+        }
+        return insertSql() + " on conflict (" + idColumn + ") do "
+                + (assignments.isEmpty() ? "nothing" : "update set " + String.join(", ", assignments));
+    }
+}
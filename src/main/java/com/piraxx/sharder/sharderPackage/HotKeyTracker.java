@@ -0,0 +1,261 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.configs.ShardProperties;
+import com.piraxx.sharder.sharderPackage.metrics.ShardMetrics;
+import com.piraxx.sharder.sharderPackage.placement.ShardKeyHasher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finds the shard keys and the shards that get the most requests, from the
+ * keys the router places, to decide what to cache or split before a hot key
+ * overloads its shard.
+ *
+ * Every placed key is counted in a Count-Min sketch: hotKeyDepth rows of
+ * hotKeyWidth counters, one counter per row picked by a hash of the key. A
+ * key's count is the smallest of its counters, which can be too high (other
+ * keys share the counters) but never too low, and is off by at most about
+ * e / hotKeyWidth of all requests. The sketch is striped: every thread counts
+ * in one of a few copies, so the counters of a hot key are not all threads
+ * fighting over the same cache lines, and a count adds up the copies.
+ *
+ * The hotKeyTopK keys with the highest counts are kept with their shard, as
+ * long as their count is above the error of the sketch: below that a key
+ * cannot be told from the others. A key is only looked up in all copies when
+ * its own copy alone suggests it could make the list, so a cold key costs a
+ * hash and hotKeyDepth increments.
+ *
+ * Every hotKeyWindowSeconds the counts are halved, so they follow the recent
+ * traffic, and the requests every shard got in the window become its rate.
+ * A key whose count reaches hotKeyLogThreshold in a window is logged once per
+ * window (0, the default, logs nothing). hotKeyTracking=false turns it off.
+ */
+public final class HotKeyTracker {
+
+    private static final Logger logger = LoggerFactory.getLogger(HotKeyTracker.class);
+
+    private static final boolean enabled = !"false".equalsIgnoreCase(System.getenv("hotKeyTracking"));
+
+    private static final int depth = (int) ShardProperties.readLongFromEnv("hotKeyDepth", 4);
+
+    // a power of two, so a counter is picked with a mask
+    private static final int width = Integer.highestOneBit((int) ShardProperties.readLongFromEnv("hotKeyWidth", 4096));
+
+    private static final int topK = (int) ShardProperties.readLongFromEnv("hotKeyTopK", 20);
+
+    private static final long windowSeconds = ShardProperties.readLongFromEnv("hotKeyWindowSeconds", 60);
+
+    private static final long logThreshold = ShardProperties.readLongFromEnv("hotKeyLogThreshold", 0);
+
+    private static final int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()));
+
+    // stripe, then row * width + column
+    private static final AtomicLongArray[] sketch = new AtomicLongArray[stripes];
+
+    static {
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            sketch[stripe] = new AtomicLongArray(depth * width);
+        }
+    }
+
+    private static final ConcurrentHashMap<Object, HotKey> hotKeys = new ConcurrentHashMap<>();
+
+    // the count a key needs to get on the list: the error of the sketch, or the lowest count on a full list
+    private static volatile long admissionCount;
+
+    private static final LongAdder requests = new LongAdder();
+
+    private static final ConcurrentHashMap<String, LongAdder> windowRequests = new ConcurrentHashMap<>();
+
+    private static volatile Map<String, Double> requestsPerSecond = Map.of();
+
+    private static final ScheduledExecutorService ticker = enabled
+            ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "hot-key-window");
+                thread.setDaemon(true);
+                return thread;
+            })
+            : null;
+
+    static {
+        if (ticker != null) {
+            ticker.scheduleAtFixedRate(HotKeyTracker::endWindow, windowSeconds, windowSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /** A key on the list, with the shard it was last placed on and its count in the sketch. */
+    public static final class HotKey {
+        private final Object key;
+        private volatile String shard;
+        private volatile long count;
+        private volatile boolean logged;
+
+        private HotKey(Object key) {
+            this.key = key;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        public String getShard() {
+            return shard;
+        }
+
+        /** The requests for the key in the recent windows, older windows counting half as much each. */
+        public long getCount() {
+            return count;
+        }
+    }
+
+    private HotKeyTracker() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Counts a request for the key, which the router placed on the shard. */
+    static void record(Object shardKey, String shard) {
+        if (!enabled || shardKey == null || shard == null) {
+            return;
+        }
+        windowRequests.computeIfAbsent(shard, key -> new LongAdder()).increment();
+        ShardMetrics.recordShardRequest(shard);
+        requests.increment();
+
+        long hash = ShardKeyHasher.hash64(shardKey);
+        AtomicLongArray counters = sketch[(int) Thread.currentThread().getId() & (stripes - 1)];
+        long ownCount = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            ownCount = Math.min(ownCount, counters.incrementAndGet(row * width + column(hash, row)));
+        }
+        // the other stripes have seen about as many requests for the key as this one
+        if (ownCount * stripes < admissionCount) {
+            return;
+        }
+        long count = count(hash);
+        HotKey hotKey = hotKeys.get(shardKey);
+        if (hotKey == null) {
+            hotKey = admit(shardKey, count);
+            if (hotKey == null) {
+                return;
+            }
+        }
+        hotKey.shard = shard;
+        hotKey.count = count;
+        if (logThreshold > 0 && count >= logThreshold && !hotKey.logged) {
+            hotKey.logged = true;
+            logger.warn("Hot shard key {} on shard {}: about {} recent requests, halved every {}s",
+                    shardKey, shard, count, windowSeconds);
+        }
+    }
+
+    /* puts the key on the list when there is room or it beats the coldest key on it */
+    private static synchronized HotKey admit(Object shardKey, long count) {
+        HotKey hotKey = hotKeys.get(shardKey);
+        if (hotKey != null) {
+            return hotKey;
+        }
+        long error = (long) (Math.E * requests.sum() / width);
+        HotKey coldest = hotKeys.size() >= topK ? coldest() : null;
+        if (count <= error || coldest != null && count <= coldest.count) {
+            admissionCount = Math.max(error, coldest == null ? 0 : coldest.count);
+            return null;
+        }
+        if (coldest != null) {
+            hotKeys.remove(coldest.key);
+        }
+        hotKey = new HotKey(shardKey);
+        hotKey.count = count;
+        hotKeys.put(shardKey, hotKey);
+        coldest = hotKeys.size() >= topK ? coldest() : null;
+        admissionCount = Math.max(error, coldest == null ? 0 : coldest.count);
+        return hotKey;
+    }
+
+    private static HotKey coldest() {
+        return hotKeys.values().stream().min(Comparator.comparingLong(hotKey -> hotKey.count)).orElse(null);
+    }
+
+    private static int column(long hash, int row) {
+        return (int) ShardKeyHasher.mix64(hash + row * 0x9E3779B97F4A7C15L) & (width - 1);
+    }
+
+    /* the smallest of the key's counters, each summed over the stripes */
+    private static long count(long hash) {
+        long count = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int index = row * width + column(hash, row);
+            long sum = 0;
+            for (AtomicLongArray counters : sketch) {
+                sum += counters.get(index);
+            }
+            count = Math.min(count, sum);
+        }
+        return count;
+    }
+
+    /** The hottest keys first, leaving out keys that are no longer above the error of the sketch. */
+    public static List<HotKey> hotKeys() {
+        long error = (long) (Math.E * requests.sum() / width);
+        List<HotKey> hottest = new ArrayList<>();
+        hotKeys.values().stream().filter(hotKey -> hotKey.count > error).forEach(hottest::add);
+        hottest.sort(Comparator.comparingLong(HotKey::getCount).reversed());
+        return hottest;
+    }
+
+    /** The keyed requests every shard got per second in the last complete window. */
+    public static Map<String, Double> requestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    /** The estimated requests for the key in the recent windows. */
+    public static long countOf(Object shardKey) {
+        return count(ShardKeyHasher.hash64(shardKey));
+    }
+
+    public static long windowSeconds() {
+        return windowSeconds;
+    }
+
+    /*
+     * Halving lets keys that cooled down drop off the list. Requests counted while
+     * the counters are halved may be halved as well, which the estimate can live with.
+     */
+    static void endWindow() {
+        try {
+            Map<String, Double> rates = new LinkedHashMap<>();
+            windowRequests.forEach((shard, requests) -> rates.put(shard, (double) requests.sumThenReset() / windowSeconds));
+            requestsPerSecond = rates;
+
+            for (AtomicLongArray counters : sketch) {
+                for (int i = 0; i < counters.length(); i++) {
+                    if (counters.get(i) != 0) {
+                        counters.getAndUpdate(i, count -> count >> 1);
+                    }
+                }
+            }
+            synchronized (HotKeyTracker.class) {
+                requests.add(-(requests.sum() >> 1));
+                hotKeys.values().removeIf(hotKey -> (hotKey.count >>= 1) == 0);
+                hotKeys.values().forEach(hotKey -> hotKey.logged = false);
+                admissionCount >>= 1;
+            }
+        } catch (RuntimeException e) {
+            logger.error("Ending the hot key window failed", e);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.sharderPackage.metrics.ShardMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Streams the rows of several open shard cursors as if they were one result set.
+ *
+ * Nothing is copied: after next() returns true, current() is the result set of
+ * whichever shard owns the row, positioned on that row, and the caller maps it
+ * straight away. Only one row per shard is in flight at any time (plus whatever
+ * the driver buffers for the fetch size), so memory stays bounded no matter how
+ * many rows the shards return.
+ *
+ * When the query has an ORDER BY every shard already returns its rows sorted,
+ * so the cursors are merged with a heap keyed on the sort columns (a k-way
+ * merge). Otherwise the shards are simply read one after the other, which is
+ * also what happens when a sort key is text in a collation Java cannot
+ * reproduce (see OrderByClause).
+ *
+ * A window over a merged cursor skips the first rows and stops after a limit,
+ * which is how a page is cut out of shards that each returned their own top
+ * offset + limit rows.
+ */
+public abstract class MergedResultCursor implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MergedResultCursor.class);
+
+    protected final List<ShardCursor> cursors;
+
+    protected MergedResultCursor(List<ShardCursor> cursors) {
+        this.cursors = cursors;
+    }
+
+    public static MergedResultCursor merge(List<ShardCursor> cursors, OrderByClause orderBy) throws SQLException {
+        if (orderBy.isOrdered() && cursors.size() > 1) {
+            ResultSetMetaData metaData = cursors.get(0).getResultSet().getMetaData();
+            int[] sortColumns = resolveSortColumns(metaData, orderBy);
+            String textColumn = sortColumns == null ? null : collatedTextColumn(metaData, orderBy, sortColumns);
+            if (sortColumns == null) {
+                logger.warn("ORDER BY columns are not part of the select list, shard results will not be merged in order");
+            } else if (textColumn != null) {
+                logger.warn("ORDER BY {} sorts text by its collation, shard results will not be merged in order unless it is sorted COLLATE \"C\"",
+                        textColumn);
+            } else {
+                return new OrderedMerge(cursors, orderBy, sortColumns);
+            }
+        }
+        return new Concatenation(cursors);
+    }
+
+    /**
+     * Like merge, but fails instead of reading the shards one after the other when
+     * the result cannot be merged in order, for callers that cut a window out of
+     * the merged order and would otherwise return the wrong rows.
+     */
+    public static MergedResultCursor mergeSorted(List<ShardCursor> cursors, OrderByClause orderBy) throws SQLException {
+        if (orderBy.isOrdered() && cursors.size() > 1) {
+            ResultSetMetaData metaData = cursors.get(0).getResultSet().getMetaData();
+            int[] sortColumns = resolveSortColumns(metaData, orderBy);
+            if (sortColumns == null) {
+                throw new SQLException("ORDER BY columns are not part of the select list, shard results cannot be merged in order");
+            }
+            String textColumn = collatedTextColumn(metaData, orderBy, sortColumns);
+            if (textColumn != null) {
+                throw new SQLException("ORDER BY " + textColumn + " sorts text by its collation, which cannot be merged across shards, sort it COLLATE \"C\"");
+            }
+            return new OrderedMerge(cursors, orderBy, sortColumns);
+        }
+        return new Concatenation(cursors);
+    }
+
+    /** The rows of the source after the first offset, at most limit of them. */
+    public static MergedResultCursor window(MergedResultCursor source, long offset, long limit) {
+        return new Window(source, offset, limit);
+    }
+
+    public abstract boolean next() throws SQLException;
+
+    /** The result set positioned on the current row. */
+    public abstract ResultSet current();
+
+    @Override
+    public void close() {
+        long rowsRead = 0;
+        boolean readFromShards = false;
+        for (ShardCursor cursor : cursors) {
+            rowsRead += cursor.getRowsRead();
+            readFromShards |= !cursor.isInMemory();
+            cursor.close();
+        }
+        // rows merged in memory, like aggregates, were already counted when they were read
+        if (readFromShards) {
+            ShardMetrics.recordRowsMerged(rowsRead);
+        }
+    }
+
+    private static int[] resolveSortColumns(ResultSetMetaData metaData, OrderByClause orderBy) throws SQLException {
+        List<OrderByClause.SortKey> keys = orderBy.getSortKeys();
+        int[] columns = new int[keys.size()];
+        for (int k = 0; k < keys.size(); k++) {
+            String column = keys.get(k).getColumn();
+            columns[k] = -1;
+            if (column.chars().allMatch(Character::isDigit)) {
+                // ORDER BY 2 refers to the second column of the select list
+                columns[k] = Integer.parseInt(column);
+                continue;
+            }
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                if (metaData.getColumnLabel(i).equalsIgnoreCase(column)) {
+                    columns[k] = i;
+                    break;
+                }
+            }
+            if (columns[k] < 0) {
+                return null;
+            }
+        }
+        return columns;
+    }
+
+    /* the first sort key whose text the shards ordered by a collation the merge cannot reproduce, or null */
+    private static String collatedTextColumn(ResultSetMetaData metaData, OrderByClause orderBy, int[] sortColumns) throws SQLException {
+        List<OrderByClause.SortKey> keys = orderBy.getSortKeys();
+        for (int k = 0; k < keys.size(); k++) {
+            if (!keys.get(k).comparesLikeTheDatabase(metaData.getColumnType(sortColumns[k]))) {
+                return keys.get(k).getColumn();
+            }
+        }
+        return null;
+    }
+
+    private static class Concatenation extends MergedResultCursor {
+
+        private int index;
+
+        Concatenation(List<ShardCursor> cursors) {
+            super(cursors);
+        }
+
+        @Override
+        public boolean next() throws SQLException {
+            while (index < cursors.size()) {
+                if (cursors.get(index).advance()) {
+                    return true;
+                }
+                index++;
+            }
+            return false;
+        }
+
+        @Override
+        public ResultSet current() {
+            return cursors.get(index).getResultSet();
+        }
+    }
+
+    private static class OrderedMerge extends MergedResultCursor {
+
+        private final int[] sortColumns;
+        private final PriorityQueue<ShardCursor> heap;
+        private ShardCursor current;
+        private boolean started;
+
+        OrderedMerge(List<ShardCursor> cursors, OrderByClause orderBy, int[] sortColumns) {
+            super(cursors);
+            this.sortColumns = sortColumns;
+            this.heap = new PriorityQueue<>(cursors.size(), rowComparator(orderBy));
+        }
+
+        @Override
+        public boolean next() throws SQLException {
+            if (!started) {
+                started = true;
+                for (ShardCursor cursor : cursors) {
+                    offer(cursor);
+                }
+            } else if (current != null) {
+                // only the shard whose row was just consumed needs to move forward
+                offer(current);
+            }
+            current = heap.poll();
+            return current != null;
+        }
+
+        @Override
+        public ResultSet current() {
+            return current.getResultSet();
+        }
+
+        private void offer(ShardCursor cursor) throws SQLException {
+            if (cursor.advance()) {
+                cursor.captureSortValues(sortColumns);
+                heap.add(cursor);
+            }
+        }
+
+        private static Comparator<ShardCursor> rowComparator(OrderByClause orderBy) {
+            Comparator<Object[]> sortValues = orderBy.comparator();
+            return (left, right) -> sortValues.compare(left.getSortValues(), right.getSortValues());
+        }
+    }
+
+    private static class Window extends MergedResultCursor {
+
+        private final MergedResultCursor source;
+        private long toSkip;
+        private long remaining;
+
+        Window(MergedResultCursor source, long offset, long limit) {
+            super(source.cursors);
+            this.source = source;
+            this.toSkip = offset;
+            this.remaining = limit;
+        }
+
+        @Override
+        public boolean next() throws SQLException {
+            while (toSkip > 0) {
+                toSkip--;
+                if (!source.next()) {
+                    remaining = 0;
+                    return false;
+                }
+            }
+            if (remaining <= 0) {
+                return false;
+            }
+            remaining--;
+            return source.next();
+        }
+
+        @Override
+        public ResultSet current() {
+            return source.current();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.piraxx.sharder.sharderPackage;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A small parser for the trailing ORDER BY of a native query. It only needs to
+ * know which columns the shards sorted on, and in which direction, so the
+ * router can merge the already sorted shard streams without sorting again.
+ *
+ * Text is the exception. The shards sort it by the collation of the column,
+ * which Java cannot reproduce (en_US puts "apple" before "Banana", Java's
+ * String order does not), so text sort keys are only merged when the query
+ * sorts them with a binary collation, like ORDER BY name COLLATE "C", whose
+ * order is the code point order the comparator uses.
+ */
+public class OrderByClause {
+
+    // collations that sort text by its code points, as Java can
+    private static final Set<String> BINARY_COLLATIONS = Set.of("c", "posix", "ucs_basic", "pg_c_utf8");
+
+    private static final Set<Integer> TEXT_TYPES = Set.of(Types.CHAR, Types.VARCHAR, Types.LONGVARCHAR,
+            Types.NCHAR, Types.NVARCHAR, Types.LONGNVARCHAR, Types.CLOB, Types.NCLOB);
+
+    public static class SortKey {
+        private final String column;
+        private final boolean ascending;
+        private final boolean nullsFirst;
+        private final boolean binaryCollation;
+
+        SortKey(String column, boolean ascending, boolean nullsFirst, boolean binaryCollation) {
+            this.column = column;
+            this.ascending = ascending;
+            this.nullsFirst = nullsFirst;
+            this.binaryCollation = binaryCollation;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+
+        public boolean isAscending() {
+            return ascending;
+        }
+
+        public boolean isNullsFirst() {
+            return nullsFirst;
+        }
+
+        public boolean isBinaryCollation() {
+            return binaryCollation;
+        }
+
+        /** Whether the comparator orders values of this JDBC type the way the database sorted them. */
+        public boolean comparesLikeTheDatabase(int sqlType) {
+            return binaryCollation || !TEXT_TYPES.contains(sqlType);
+        }
+    }
+
+    private static final OrderByClause NONE = new OrderByClause(Collections.emptyList());
+
+    private final List<SortKey> sortKeys;
+
+    private OrderByClause(List<SortKey> sortKeys) {
+        this.sortKeys = sortKeys;
+    }
+
+    public List<SortKey> getSortKeys() {
+        return sortKeys;
+    }
+
+    public boolean isOrdered() {
+        return !sortKeys.isEmpty();
+    }
+
+    /**
+     * Compares rows given as the values of the sort keys, in key order, the same way
+     * the database sorted them. Strings are compared by code point, which is the
+     * order of a binary collation only, see SortKey.comparesLikeTheDatabase.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Comparator<Object[]> comparator() {
+        return (a, b) -> {
+            for (int i = 0; i < sortKeys.size(); i++) {
+                SortKey key = sortKeys.get(i);
+                int result;
+                if (a[i] == null || b[i] == null) {
+                    if (a[i] == b[i]) {
+                        continue;
+                    }
+                    // nulls placement is independent of the sort direction
+                    return (a[i] == null) == key.isNullsFirst() ? -1 : 1;
+                }
+                result = a[i] instanceof String && b[i] instanceof String
+                        ? compareCodePoints((String) a[i], (String) b[i])
+                        : ((Comparable) a[i]).compareTo(b[i]);
+                if (result != 0) {
+                    return key.isAscending() ? result : -result;
+                }
+            }
+            return 0;
+        };
+    }
+
+    /* String.compareTo compares UTF-16 units, which puts characters above U+FFFF before U+E000 to U+FFFF */
+    private static int compareCodePoints(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int left = a.codePointAt(i);
+            int right = b.codePointAt(j);
+            if (left != right) {
+                return Integer.compare(left, right);
+            }
+            i += Character.charCount(left);
+            j += Character.charCount(right);
+        }
+        return Boolean.compare(i < a.length(), j < b.length());
+    }
+
+    public static OrderByClause none() {
+        return NONE;
+    }
+
+    public static OrderByClause parse(String sql) {
+        String lower = sql.toLowerCase(Locale.ROOT);
+        int orderBy = findTopLevelOrderBy(lower);
+        if (orderBy < 0) {
+            return NONE;
+        }
+
+        // anything after the sort list (LIMIT, OFFSET, FETCH, FOR UPDATE) is not part of it
+        String clause = sql.substring(orderBy + "order by".length());
+        String lowerClause = clause.toLowerCase(Locale.ROOT);
+        for (String terminator : new String[]{" limit ", " offset ", " fetch ", " for "}) {
+            int end = lowerClause.indexOf(terminator);
+            if (end >= 0) {
+                clause = clause.substring(0, end);
+                lowerClause = lowerClause.substring(0, end);
+            }
+        }
+
+        List<SortKey> keys = new ArrayList<>();
+        for (String item : splitTopLevel(clause.trim().replaceAll(";$", ""))) {
+            String[] tokens = item.trim().split("\\s+");
+            if (tokens.length == 0 || tokens[0].isEmpty()) {
+                continue;
+            }
+            String column = tokens[0];
+            // t.transaction_id comes back from the driver as transaction_id
+            if (column.contains(".")) {
+                column = column.substring(column.lastIndexOf('.') + 1);
+            }
+            column = column.replace("\"", "");
+
+            boolean ascending = true;
+            Boolean nullsFirst = null;
+            boolean binaryCollation = false;
+            for (int i = 1; i < tokens.length; i++) {
+                String token = tokens[i].toLowerCase(Locale.ROOT);
+                if (token.equals("desc")) {
+                    ascending = false;
+                } else if (token.equals("asc")) {
+                    ascending = true;
+                } else if (token.equals("nulls") && i + 1 < tokens.length) {
+                    nullsFirst = tokens[++i].equalsIgnoreCase("first");
+                } else if (token.equals("collate") && i + 1 < tokens.length) {
+                    String collation = tokens[++i].replace("\"", "").toLowerCase(Locale.ROOT);
+                    binaryCollation = BINARY_COLLATIONS.contains(collation.substring(collation.lastIndexOf('.') + 1));
+                }
+            }
+            // Postgres sorts nulls as if they were larger than every other value
+            keys.add(new SortKey(column, ascending, nullsFirst != null ? nullsFirst : !ascending, binaryCollation));
+        }
+        return keys.isEmpty() ? NONE : new OrderByClause(Collections.unmodifiableList(keys));
+    }
+
+    /* where the top level ORDER BY of the statement starts, or -1 */
+    static int indexOfOrderBy(String sql) {
+        return findTopLevelOrderBy(sql.toLowerCase(Locale.ROOT));
+    }
+
+    private static int findTopLevelOrderBy(String lowerSql) {
+        int depth = 0;
+        int found = -1;
+        for (int i = 0; i < lowerSql.length(); i++) {
+            char c = lowerSql.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (depth == 0 && lowerSql.startsWith("order by", i)
+                    && (i == 0 || Character.isWhitespace(lowerSql.charAt(i - 1)))) {
+                found = i;
+            }
+        }
+        return found;
+    }
+
+    static List<String> splitTopLevel(String clause) {
+        List<String> items = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < clause.length(); i++) {
+            char c = clause.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                items.add(clause.substring(start, i));
+                start = i + 1;
+            }
+        }
+        items.add(clause.substring(start));
+        return items;
+    }
+}
@@ -0,0 +1,344 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.sharderPackage.RepositoryMethodPlan.ParameterBinder;
+import com.piraxx.sharder.sharderPackage.utils.EntityRowMapper;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.SliceImpl;
+import org.springframework.data.domain.Sort;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A broadcast SELECT that only needs a window of the merged rows: a @Query with
+ * a Pageable parameter, or one that ends in a literal LIMIT/OFFSET.
+ *
+ * Sending the LIMIT and OFFSET to the shards as written would be wrong (each
+ * shard would skip its own first rows) and sending the query without them
+ * pulls the whole table into the router. Instead every shard is asked for its
+ * first offset + limit rows in the requested order, the sorted shard streams
+ * are merged with the heap of MergedResultCursor, and the router skips offset
+ * rows and keeps limit. Each shard returns at most offset + limit rows and the
+ * heap holds one row per shard, so a page costs O(page end x shards) rows
+ * instead of O(table).
+ *
+ * The merge needs the sort columns in every row, so the ORDER BY, and the Sort
+ * of a Pageable, may only name columns of the select list (or any plain column
+ * with select *). A statement that sorts on anything else is rejected when its
+ * plan is built, rather than returning a page cut out of unsorted rows.
+ *
+ * For a Page the total comes from a COUNT run on every shard in parallel and
+ * summed. Like Spring Data, the count is skipped when the page itself shows
+ * the total, on the last page. A Slice fetches one extra row per shard to know
+ * whether there is a next slice and never counts.
+ */
+public final class PagedQuery {
+
+    public enum ResultKind {
+        PAGE, SLICE, ROWS
+    }
+
+    private static final Pattern LIMIT_OFFSET = Pattern.compile("(?is)^(.*?)\\s+limit\\s+(\\d+)(?:\\s+offset\\s+(\\d+))?\\s*$");
+
+    private static final Pattern OFFSET_LIMIT = Pattern.compile("(?is)^(.*?)\\s+offset\\s+(\\d+)\\s+limit\\s+(\\d+)\\s*$");
+
+    private static final Pattern SORT_PROPERTY = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private static final Pattern ALIAS = Pattern.compile("(?is)^(.*?\\S)\\s+(?:as\\s+)?(\"[^\"]+\"|[a-z_][a-z0-9_]*)$");
+
+    private static final Pattern COLUMN = Pattern.compile("(?i)[a-z_\"][a-z0-9_.\"]*");
+
+    /* Counts the rows of every shard, only when the page itself does not show the total. */
+    @FunctionalInterface
+    interface RowCount {
+        long count() throws SQLException;
+    }
+
+    private final String baseSql;
+    private final boolean baseOrdered;
+    private final int pageableIndex;
+    private final long fixedOffset;
+    private final long fixedLimit;
+    private final ResultKind resultKind;
+    private final Class<?> rowType;
+    // the output names of the select list, null for select *
+    private final List<String> selectedColumns;
+    private final String countSql;
+    private final int[] countArgumentIndexes;
+    private final ParameterBinder[] countBinders;
+
+    private PagedQuery(String baseSql, int pageableIndex, long fixedOffset, long fixedLimit, ResultKind resultKind,
+                       Class<?> rowType, String countSql, int[] countArgumentIndexes, ParameterBinder[] countBinders) {
+        this.baseSql = baseSql;
+        this.baseOrdered = OrderByClause.indexOfOrderBy(baseSql) >= 0;
+        this.pageableIndex = pageableIndex;
+        this.fixedOffset = fixedOffset;
+        this.fixedLimit = fixedLimit;
+        this.resultKind = resultKind;
+        this.rowType = rowType;
+        this.selectedColumns = selectedColumns(baseSql);
+        this.countSql = countSql;
+        this.countArgumentIndexes = countArgumentIndexes;
+        this.countBinders = countBinders;
+    }
+
+    /**
+     * Returns the windowed form of the statement, or null when the method has no
+     * Pageable and the statement has no literal LIMIT. countSql may be null, the
+     * total is then counted over the statement itself with the method's own
+     * parameters.
+     *
+     * @throws IllegalArgumentException when the statement sorts on something that is
+     *                                  not in its select list, which the merge cannot order by
+     */
+    static PagedQuery of(String jdbcSql, int pageableIndex, ResultKind resultKind, Class<?> rowType,
+                         String countSql, int[] countArgumentIndexes, ParameterBinder[] countBinders) {
+        String statement = jdbcSql.trim().replaceAll(";$", "").trim();
+        long fixedOffset = 0;
+        long fixedLimit = -1;
+        Matcher limitOffset = LIMIT_OFFSET.matcher(statement);
+        Matcher offsetLimit = OFFSET_LIMIT.matcher(statement);
+        if (limitOffset.matches()) {
+            statement = limitOffset.group(1);
+            fixedLimit = Long.parseLong(limitOffset.group(2));
+            fixedOffset = limitOffset.group(3) == null ? 0 : Long.parseLong(limitOffset.group(3));
+        } else if (offsetLimit.matches()) {
+            statement = offsetLimit.group(1);
+            fixedOffset = Long.parseLong(offsetLimit.group(2));
+            fixedLimit = Long.parseLong(offsetLimit.group(3));
+        }
+        if (pageableIndex < 0 && fixedLimit < 0) {
+            return null;
+        }
+        List<String> selected = selectedColumns(statement);
+        for (OrderByClause.SortKey key : OrderByClause.parse(statement).getSortKeys()) {
+            if (!isSelected(key.getColumn(), selected)) {
+                throw new IllegalArgumentException("Cannot page " + jdbcSql + " across shards: ORDER BY "
+                        + key.getColumn() + " is not in the select list");
+            }
+        }
+        if (countSql == null) {
+            int orderBy = OrderByClause.indexOfOrderBy(statement);
+            countSql = "select count(*) from (" + (orderBy < 0 ? statement : statement.substring(0, orderBy)) + ") sharder_page";
+        }
+        return new PagedQuery(statement, pageableIndex, fixedOffset, fixedLimit, resultKind, rowType,
+                countSql, countArgumentIndexes, countBinders);
+    }
+
+    Object execute(RepositoryMethodPlan plan, Object[] args, Map<Object, Object> shards) throws SQLException {
+        Pageable pageable = pageableIndex < 0 || args[pageableIndex] == null
+                ? Pageable.unpaged()
+                : (Pageable) args[pageableIndex];
+        long offset = fixedOffset;
+        long limit = fixedLimit;
+        if (pageable.isPaged()) {
+            offset = pageable.getOffset();
+            limit = pageable.getPageSize();
+        }
+        // one row past the slice tells whether there is a next one
+        long fetch = resultKind == ResultKind.SLICE && limit >= 0 ? limit + 1 : limit;
+
+        String shardSql = shardSqlFor(pageable.getSort(), fetch);
+        int limitPosition = plan.getParameterCount() + 1;
+        long shardLimit = offset + fetch;
+        ScatterGatherExecutor.StatementBinder binder = preparedStatement -> {
+            plan.bindParameters(preparedStatement, args);
+            if (fetch >= 0) {
+                preparedStatement.setLong(limitPosition, shardLimit);
+            }
+        };
+
+        List<ShardCursor> shardCursors = ScatterGatherExecutor.openCursors(shards, shardSql, binder);
+        MergedResultCursor merged;
+        try {
+            merged = MergedResultCursor.mergeSorted(shardCursors, OrderByClause.parse(shardSql));
+        } catch (SQLException | RuntimeException e) {
+            shardCursors.forEach(ShardCursor::close);
+            throw e;
+        }
+        Object rows;
+        try (MergedResultCursor window = MergedResultCursor.window(merged, offset, fetch >= 0 ? fetch : Long.MAX_VALUE)) {
+            rows = plan.getResultShape().apply(window);
+        }
+        if (resultKind == ResultKind.ROWS) {
+            return rows;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<Object> content = (List<Object>) rows;
+        if (resultKind == ResultKind.SLICE) {
+            boolean hasNext = limit >= 0 && content.size() > limit;
+            return new SliceImpl<>(hasNext ? content.subList(0, (int) limit) : content, pageable, hasNext);
+        }
+        if (!pageable.isPaged()) {
+            return new PageImpl<>(content);
+        }
+        return new PageImpl<>(content, pageable, total(offset, limit, content.size(), () -> countAcrossShards(plan, args, shards)));
+    }
+
+    /* the statement every shard runs: the base statement, the Sort of the Pageable and a limit placeholder when fetch >= 0 */
+    String shardSqlFor(Sort sort, long fetch) {
+        return baseSql + orderByFor(sort) + (fetch >= 0 ? " limit ?" : "");
+    }
+
+    String getCountSql() {
+        return countSql;
+    }
+
+    /*
+     * The same shortcut as PageableExecutionUtils.getPage: a page that is not full
+     * is the last one, so the total is known without counting. An empty page past
+     * the first one says nothing, it may be past the end.
+     */
+    static long total(long offset, long limit, int contentSize, RowCount count) throws SQLException {
+        if ((offset == 0 || contentSize > 0) && contentSize < limit) {
+            return offset + contentSize;
+        }
+        return count.count();
+    }
+
+    private long countAcrossShards(RepositoryMethodPlan plan, Object[] args, Map<Object, Object> shards) throws SQLException {
+        ScatterGatherExecutor.StatementBinder binder = countBinders == null
+                ? preparedStatement -> plan.bindParameters(preparedStatement, args)
+                : preparedStatement -> {
+                    for (int position = 0; position < countBinders.length; position++) {
+                        countBinders[position].bind(preparedStatement, position + 1, args[countArgumentIndexes[position]]);
+                    }
+                };
+        Map<Object, Long> counts = ScatterGatherExecutor.execute(
+                shards,
+                countSql,
+                binder,
+                PagedQuery::readCount);
+        long total = 0;
+        for (Long count : counts.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static long readCount(PreparedStatement preparedStatement) throws SQLException {
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+    /*
+     * The Sort of the Pageable is appended to the statement. Properties are
+     * resolved to columns through the entity's @Column names and otherwise
+     * follow Spring Boot's naming, transactionId -> transaction_id. Only plain
+     * identifiers are accepted since they end up in the SQL text.
+     */
+    private String orderByFor(Sort sort) {
+        if (sort.isUnsorted()) {
+            return "";
+        }
+        StringBuilder orderBy = new StringBuilder(baseOrdered ? ", " : " order by ");
+        boolean first = true;
+        for (Sort.Order order : sort) {
+            if (!SORT_PROPERTY.matcher(order.getProperty()).matches()) {
+                throw new IllegalArgumentException("Cannot sort by " + order.getProperty());
+            }
+            String column = columnFor(order.getProperty());
+            if (!isSelected(column, selectedColumns)) {
+                throw new IllegalArgumentException("Cannot sort by " + order.getProperty() + ", it is not in the select list");
+            }
+            if (!first) {
+                orderBy.append(", ");
+            }
+            first = false;
+            orderBy.append(column).append(order.isAscending() ? " asc" : " desc");
+            if (order.getNullHandling() == Sort.NullHandling.NULLS_FIRST) {
+                orderBy.append(" nulls first");
+            } else if (order.getNullHandling() == Sort.NullHandling.NULLS_LAST) {
+                orderBy.append(" nulls last");
+            }
+        }
+        return orderBy.toString();
+    }
+
+    /* a sort key the merge can find in every row: a position, an output name, or any plain column with select * */
+    private static boolean isSelected(String sortColumn, List<String> selected) {
+        if (!sortColumn.isEmpty() && sortColumn.chars().allMatch(Character::isDigit)) {
+            int position = Integer.parseInt(sortColumn);
+            return position >= 1 && (selected == null || position <= selected.size());
+        }
+        if (selected == null) {
+            return SORT_PROPERTY.matcher(sortColumn).matches();
+        }
+        for (String column : selected) {
+            if (column.equalsIgnoreCase(sortColumn)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * The names the select list gives its columns, the way the driver reports them:
+     * the alias, or the column without its table. Null when it has a * (every column
+     * of the table is there). Unnamed expressions get no usable name.
+     */
+    private static List<String> selectedColumns(String statement) {
+        String lower = statement.toLowerCase(Locale.ROOT);
+        int from = -1;
+        int depth = 0;
+        boolean inLiteral = false;
+        for (int i = 0; i < lower.length() && from < 0; i++) {
+            char c = lower.charAt(i);
+            if (c == '\'') {
+                inLiteral = !inLiteral;
+            } else if (!inLiteral && c == '(') {
+                depth++;
+            } else if (!inLiteral && c == ')') {
+                depth--;
+            } else if (!inLiteral && depth == 0 && lower.startsWith("from", i)
+                    && i > 0 && Character.isWhitespace(lower.charAt(i - 1))
+                    && (i + 4 == lower.length() || !Character.isLetterOrDigit(lower.charAt(i + 4)))) {
+                from = i;
+            }
+        }
+        if (!lower.startsWith("select") || from < 0) {
+            return null;
+        }
+        String selectList = statement.substring("select".length(), from).trim().replaceFirst("(?i)^(distinct|all)\\s+", "");
+        List<String> columns = new ArrayList<>();
+        for (String item : OrderByClause.splitTopLevel(selectList)) {
+            String expression = item.trim();
+            if (expression.equals("*") || expression.endsWith(".*")) {
+                return null;
+            }
+            Matcher aliased = ALIAS.matcher(expression);
+            if (!COLUMN.matcher(expression).matches() && aliased.matches() && !aliased.group(1).trim().endsWith(".")) {
+                columns.add(aliased.group(2).replace("\"", ""));
+            } else if (COLUMN.matcher(expression).matches()) {
+                String column = expression.replace("\"", "");
+                columns.add(column.substring(column.lastIndexOf('.') + 1));
+            } else {
+                columns.add("");
+            }
+        }
+        return columns;
+    }
+
+    private String columnFor(String property) {
+        String column = property;
+        if (rowType != null) {
+            for (EntityRowMapper.Property candidate : EntityRowMapper.metadataFor(rowType).getProperties()) {
+                if (candidate.getField().getName().equals(property)) {
+                    column = candidate.getColumnName();
+                    break;
+                }
+            }
+        }
+        return column.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toLowerCase(Locale.ROOT);
+    }
+}
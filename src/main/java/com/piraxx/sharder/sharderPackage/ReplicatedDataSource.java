@@ -0,0 +1,224 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.configs.ShardProperties;
+import com.piraxx.sharder.sharderPackage.utils.ResourceCloser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One shard made of a primary and any number of read replicas.
+ *
+ * Connections go to the primary unless the current thread is marked read-only
+ * in the ShardingContextHolder, which the sharding aspect does for read-only
+ * repository methods and broadcast SELECTs that are not part of a read-write
+ * transaction. A read then borrows a connection from one of the replicas,
+ * picked by the balancer below, and falls back to the primary when the replica
+ * cannot hand out a connection.
+ *
+ * Two balancers are available through the replicaBalancer environment variable:
+ *
+ * least-outstanding  the replica with the fewest connections currently borrowed
+ * ewma (default)     two random replicas are compared on their moving average
+ *                    latency times their outstanding connections plus one, and
+ *                    the cheaper one wins. Comparing two random choices instead
+ *                    of all replicas keeps a burst of requests from all landing
+ *                    on the one replica that looked best a moment ago.
+ *
+ * Latency is the time a connection is held, from borrowing to close, which for
+ * the sharder's short reads is close to the query time. The average decays with
+ * replicaEwmaDecayMillis so a replica that was slow a minute ago is tried again.
+ */
+public class ReplicatedDataSource extends AbstractDataSource implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReplicatedDataSource.class);
+
+    private static final boolean leastOutstanding = "least-outstanding".equalsIgnoreCase(System.getenv("replicaBalancer"));
+
+    private static final double decayNanos = TimeUnit.MILLISECONDS.toNanos(ShardProperties.readLongFromEnv("replicaEwmaDecayMillis", 10_000));
+
+    private final String shardName;
+    private final DataSource primary;
+    private final Replica[] replicas;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    public ReplicatedDataSource(String shardName, DataSource primary, List<DataSource> replicas) {
+        this.shardName = shardName;
+        this.primary = primary;
+        this.replicas = new Replica[replicas.size()];
+        for (int i = 0; i < this.replicas.length; i++) {
+            this.replicas[i] = new Replica(replicas.get(i), i);
+        }
+    }
+
+    /** The primary of a replicated shard, or the data source itself for a shard without replicas. */
+    public static DataSource primaryOf(DataSource dataSource) {
+        return dataSource instanceof ReplicatedDataSource ? ((ReplicatedDataSource) dataSource).primary : dataSource;
+    }
+
+    public DataSource getPrimary() {
+        return primary;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (replicas.length == 0 || !ShardingContextHolder.isReadOnly()) {
+            return primary.getConnection();
+        }
+        Replica replica = pick();
+        try {
+            return replica.borrow();
+        } catch (SQLException e) {
+            logger.warn("Replica {} of shard {} unavailable, reading from the primary", replica.index, shardName, e);
+            return primary.getConnection();
+        }
+    }
+
+    public boolean hasReplicas() {
+        return replicas.length > 0;
+    }
+
+    /**
+     * A connection to one of the replicas whatever the thread's read-only flag,
+     * for a read sent a second time because the first attempt is slow. Picked
+     * by the same balancer, which already counts the slow attempt against the
+     * replica it went to.
+     */
+    public Connection getReplicaConnection() throws SQLException {
+        return pick().borrow();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return primary.getConnection(username, password);
+    }
+
+    private Replica pick() {
+        if (replicas.length == 1) {
+            return replicas[0];
+        }
+        if (leastOutstanding) {
+            // start at a rotating position so ties are spread over the replicas
+            int start = Math.floorMod(nextReplica.getAndIncrement(), replicas.length);
+            Replica best = replicas[start];
+            for (int i = 1; i < replicas.length; i++) {
+                Replica candidate = replicas[(start + i) % replicas.length];
+                if (candidate.outstanding.get() < best.outstanding.get()) {
+                    best = candidate;
+                }
+            }
+            return best;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(replicas.length);
+        int second = random.nextInt(replicas.length - 1);
+        if (second >= first) {
+            second++;
+        }
+        return replicas[first].cost() <= replicas[second].cost() ? replicas[first] : replicas[second];
+    }
+
+    @Override
+    public void close() {
+        for (Replica replica : replicas) {
+            if (replica.dataSource instanceof AutoCloseable) {
+                ResourceCloser.closeResources((AutoCloseable) replica.dataSource);
+            }
+        }
+        if (primary instanceof AutoCloseable) {
+            ResourceCloser.closeResources((AutoCloseable) primary);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return shardName + " (primary + " + replicas.length + " replicas)";
+    }
+
+    private final class Replica {
+
+        private final DataSource dataSource;
+        private final int index;
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        // written under the replica's lock, read without it
+        private volatile double ewmaNanos;
+        private long lastUpdateNanos = System.nanoTime();
+
+        Replica(DataSource dataSource, int index) {
+            this.dataSource = dataSource;
+            this.index = index;
+        }
+
+        double cost() {
+            return (ewmaNanos + 1) * (outstanding.get() + 1);
+        }
+
+        /*
+         * The connection reports back when it is closed, that is when the read is over.
+         * Statements created on it hand this connection back from getConnection(), so
+         * a cursor that closes its statement's connection still goes through here.
+         */
+        Connection borrow() throws SQLException {
+            Connection connection = dataSource.getConnection();
+            long borrowedAt = System.nanoTime();
+            outstanding.incrementAndGet();
+            AtomicBoolean returned = new AtomicBoolean();
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    (proxy, method, args) -> {
+                        if (method.getName().equals("close") && returned.compareAndSet(false, true)) {
+                            outstanding.decrementAndGet();
+                            record(System.nanoTime() - borrowedAt);
+                        }
+                        Object result = invoke(connection, method, args);
+                        if (result instanceof Statement) {
+                            return statementOf((Statement) result, method.getReturnType(), (Connection) proxy);
+                        }
+                        return result;
+                    });
+        }
+
+        private Object statementOf(Statement statement, Class<?> statementType, Connection connection) {
+            return Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[]{statementType},
+                    (proxy, method, args) -> method.getName().equals("getConnection")
+                            ? connection
+                            : invoke(statement, method, args));
+        }
+
+        private synchronized void record(long latencyNanos) {
+            long now = System.nanoTime();
+            if (ewmaNanos == 0) {
+                ewmaNanos = latencyNanos;
+            } else {
+                double weight = Math.exp(-(now - lastUpdateNanos) / decayNanos);
+                ewmaNanos = ewmaNanos * weight + latencyNanos * (1 - weight);
+            }
+            lastUpdateNanos = now;
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
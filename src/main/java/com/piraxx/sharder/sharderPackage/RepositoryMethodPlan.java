@@ -0,0 +1,163 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.sharderPackage.index.IndexedFinder;
+import com.piraxx.sharder.sharderPackage.utils.HandleRepositoryMethodsReponses.ResultShape;
+
+import java.lang.reflect.Method;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Everything the sharding aspect needs to know about one repository method,
+ * worked out the first time the method is called and never again.
+ *
+ * For @Query methods the plan holds the native SQL (with ?1 and :name
+ * placeholders already rewritten to plain JDBC ?), whether it is a SELECT
+ * or a DML statement, how to bind the method arguments and how to turn the
+ * merged rows into the declared return type. For derived methods like
+ * findById or save it holds how to pull the shard key out of the arguments,
+ * and for finders on a @ShardIndexed attribute which index to consult.
+ * Aggregate SELECTs also carry the AggregateQuery that combines the shards'
+ * partial results, paged or LIMITed SELECTs the PagedQuery that cuts the
+ * page out of the merged shard rows, and SELECTs returning a Stream, Flux or
+ * CompletableFuture the StreamingQuery that reads the shards in the background.
+ * A @Query whose WHERE clause names the shard key carries the ShardKeyPredicate
+ * that picks the shards owning the named keys.
+ */
+public final class RepositoryMethodPlan {
+
+    public enum StatementKind {
+        // a Spring Data method without @Query, routed to one shard and then proceeded
+        DERIVED,
+        // a @Query that returns rows, broadcast and merged
+        SELECT,
+        // a @Query that modifies rows, broadcast without a result
+        DML,
+        // saveAll, split by shard and written with batched upserts
+        BULK_SAVE
+    }
+
+    @FunctionalInterface
+    public interface ParameterBinder {
+        void bind(PreparedStatement preparedStatement, int position, Object value) throws SQLException;
+    }
+
+    /** Returns the value to hash for routing, or null when the call has no shard key. */
+    @FunctionalInterface
+    public interface ShardKeyExtractor {
+        Object extract(Object[] args);
+    }
+
+    private final Method method;
+    private final StatementKind statementKind;
+    private final String nativeSql;
+    private final int[] argumentIndexes;
+    private final ParameterBinder[] binders;
+    private final ResultShape resultShape;
+    private final ShardKeyExtractor shardKeyExtractor;
+    private final IndexedFinder indexedFinder;
+    private final AggregateQuery aggregateQuery;
+    private final PagedQuery pagedQuery;
+    private final StreamingQuery streamingQuery;
+    private final ShardKeyPredicate shardKeyPredicate;
+    private final boolean readOnly;
+
+    RepositoryMethodPlan(Method method,
+                         StatementKind statementKind,
+                         String nativeSql,
+                         int[] argumentIndexes,
+                         ParameterBinder[] binders,
+                         ResultShape resultShape,
+                         ShardKeyExtractor shardKeyExtractor,
+                         IndexedFinder indexedFinder,
+                         AggregateQuery aggregateQuery,
+                         PagedQuery pagedQuery,
+                         StreamingQuery streamingQuery,
+                         ShardKeyPredicate shardKeyPredicate,
+                         boolean readOnly) {
+        this.method = method;
+        this.statementKind = statementKind;
+        this.nativeSql = nativeSql;
+        this.argumentIndexes = argumentIndexes;
+        this.binders = binders;
+        this.resultShape = resultShape;
+        this.shardKeyExtractor = shardKeyExtractor;
+        this.indexedFinder = indexedFinder;
+        this.aggregateQuery = aggregateQuery;
+        this.pagedQuery = pagedQuery;
+        this.streamingQuery = streamingQuery;
+        this.shardKeyPredicate = shardKeyPredicate;
+        this.readOnly = readOnly;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public StatementKind getStatementKind() {
+        return statementKind;
+    }
+
+    public boolean usesRawQuery() {
+        return statementKind == StatementKind.SELECT || statementKind == StatementKind.DML;
+    }
+
+    public String getNativeSql() {
+        return nativeSql;
+    }
+
+    public boolean isParameterized() {
+        return binders.length > 0;
+    }
+
+    public ResultShape getResultShape() {
+        return resultShape;
+    }
+
+    public ShardKeyExtractor getShardKeyExtractor() {
+        return shardKeyExtractor;
+    }
+
+    /** The global secondary index lookup for this finder, or null when it is routed by shard key. */
+    public IndexedFinder getIndexedFinder() {
+        return indexedFinder;
+    }
+
+    /** How to combine per shard partial aggregates, or null when the rows are simply merged. */
+    public AggregateQuery getAggregateQuery() {
+        return aggregateQuery;
+    }
+
+    /** How to fetch a window of the rows, or null when the query reads all of them. */
+    public PagedQuery getPagedQuery() {
+        return pagedQuery;
+    }
+
+    /** How to hand the rows out asynchronously, or null when the method returns them directly. */
+    public StreamingQuery getStreamingQuery() {
+        return streamingQuery;
+    }
+
+    /** The shards a @Query can touch with these arguments, all the given ones unless its WHERE clause names the shard keys. */
+    public Map<Object, Object> shardsFor(Object[] args, Map<Object, Object> shards) {
+        return shardKeyPredicate == null ? shards : shardKeyPredicate.shardsFor(args, shards);
+    }
+
+    /** Whether the method only reads, so shards with replicas may serve it from one. */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /** The number of JDBC placeholders bound from the method arguments. */
+    public int getParameterCount() {
+        return binders.length;
+    }
+
+    /** Binds the method arguments to the JDBC placeholders of the native SQL. */
+    public void bindParameters(PreparedStatement preparedStatement, Object[] args) throws SQLException {
+        for (int position = 0; position < binders.length; position++) {
+            binders[position].bind(preparedStatement, position + 1, args[argumentIndexes[position]]);
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.sharderPackage.RepositoryMethodPlan.ParameterBinder;
+import com.piraxx.sharder.sharderPackage.RepositoryMethodPlan.ShardKeyExtractor;
+import com.piraxx.sharder.sharderPackage.RepositoryMethodPlan.StatementKind;
+import com.piraxx.sharder.sharderPackage.index.GlobalSecondaryIndex;
+import com.piraxx.sharder.sharderPackage.utils.HandleRepositoryMethodsReponses;
+import jakarta.persistence.Embeddable;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.AnnotatedBeanDefinition;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.core.type.filter.AssignableTypeFilter;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.Repository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.ClassUtils;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
+import java.math.BigDecimal;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Builds and caches one RepositoryMethodPlan per repository Method.
+ *
+ * Before this, every repository call went through annotation lookups, generic
+ * return type inspection and a Hibernate native query just to get the SQL
+ * string back. Now that work happens once per method and the aspect only does
+ * a map lookup. When the application context is ready the plans of every
+ * repository in the repositories package are built up front so the first
+ * request does not pay for it either.
+ */
+@Component
+public class RepositoryMethodPlanCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(RepositoryMethodPlanCache.class);
+
+    private static final String REPOSITORIES_PACKAGE = "com.piraxx.sharder.repositories";
+
+    private static final ConcurrentHashMap<Method, RepositoryMethodPlan> plans = new ConcurrentHashMap<>();
+
+    private static final Pattern READ_PREFIXES = Pattern.compile("(find|read|get|query|search|stream|count|exists)([A-Z].*)?");
+
+    private static final ClassValue<Boolean> entityClasses = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return type.isAnnotationPresent(Entity.class);
+        }
+    };
+
+    private static final ClassValue<Boolean> embeddableClasses = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return type.isAnnotationPresent(Embeddable.class);
+        }
+    };
+
+    private static EntityManager entityManager;
+
+    /* @PersistenceContext cannot inject a static field, so the shared entity
+     * manager is handed over through this setter. */
+    @PersistenceContext
+    public void setEntityManager(EntityManager sharedEntityManager) {
+        RepositoryMethodPlanCache.entityManager = sharedEntityManager;
+    }
+
+    public static RepositoryMethodPlan planFor(Method method) {
+        RepositoryMethodPlan plan = plans.get(method);
+        if (plan == null) {
+            plan = plans.computeIfAbsent(method, RepositoryMethodPlanCache::buildPlan);
+        }
+        return plan;
+    }
+
+    @EventListener(ContextRefreshedEvent.class)
+    public void prebuildPlans() {
+        ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(false) {
+            @Override
+            protected boolean isCandidateComponent(AnnotatedBeanDefinition beanDefinition) {
+                return beanDefinition.getMetadata().isInterface();
+            }
+        };
+        scanner.addIncludeFilter(new AssignableTypeFilter(Repository.class));
+
+        int count = 0;
+        for (BeanDefinition candidate : scanner.findCandidateComponents(REPOSITORIES_PACKAGE)) {
+            try {
+                Class<?> repository = ClassUtils.forName(candidate.getBeanClassName(), getClass().getClassLoader());
+                for (Method method : repository.getMethods()) {
+                    if (!method.isDefault() && !Modifier.isStatic(method.getModifiers())) {
+                        planFor(method);
+                        count++;
+                    }
+                }
+            } catch (ClassNotFoundException | RuntimeException e) {
+                logger.warn("Could not prebuild routing plans for {}", candidate.getBeanClassName(), e);
+            }
+        }
+        logger.info("Prebuilt {} repository method plans", count);
+    }
+
+    private static RepositoryMethodPlan buildPlan(Method method) {
+        Query query = method.getAnnotation(Query.class);
+        if (query == null && isSaveAll(method)) {
+            return new RepositoryMethodPlan(method, StatementKind.BULK_SAVE, null,
+                    new int[0], new ParameterBinder[0], null, args -> null, null, null, null, null, null, false);
+        }
+        if (query == null) {
+            return new RepositoryMethodPlan(method, StatementKind.DERIVED, null,
+                    new int[0], new ParameterBinder[0], null, shardKeyExtractorFor(method),
+                    GlobalSecondaryIndex.finderFor(method), null, null, null, null, isReadOnly(method));
+        }
+
+        /* Note here the is no need to check if query string is already a native
+         * query or not because passing either a jpql or a native query to
+         * session.createNativeQuery(jpql); will still return a native string*/
+        String nativeSql = getNativeSQLFromJPQL(query.value());
+
+        List<Integer> argumentIndexes = new ArrayList<>();
+        String jdbcSql = rewritePlaceholders(nativeSql, method, argumentIndexes);
+        ParameterBinder[] binders = bindersFor(method, argumentIndexes);
+
+        StatementKind kind = isSelect(jdbcSql) ? StatementKind.SELECT : StatementKind.DML;
+        /* COUNT/SUM/MIN/MAX/AVG are computed per shard and combined in the router,
+         * so the shards run the partial aggregate form of the statement */
+        AggregateQuery aggregateQuery = kind == StatementKind.SELECT ? AggregateQuery.parse(jdbcSql) : null;
+        PagedQuery pagedQuery = kind == StatementKind.SELECT && aggregateQuery == null
+                ? pagedQueryFor(method, query, jdbcSql)
+                : null;
+        StreamingQuery streamingQuery = kind == StatementKind.SELECT && aggregateQuery == null && pagedQuery == null
+                ? StreamingQuery.of(method)
+                : null;
+        int[] argumentPositions = argumentIndexes.stream().mapToInt(Integer::intValue).toArray();
+        return new RepositoryMethodPlan(method, kind, aggregateQuery != null ? aggregateQuery.getShardSql() : jdbcSql,
+                argumentPositions,
+                binders,
+                kind == StatementKind.SELECT ? HandleRepositoryMethodsReponses.resultShapeFor(method) : null,
+                args -> null,
+                null,
+                aggregateQuery,
+                pagedQuery,
+                streamingQuery,
+                shardKeyPredicateFor(method, jdbcSql, argumentPositions),
+                kind == StatementKind.SELECT);
+    }
+
+    /*
+     * Which shard keys the WHERE clause limits the statement to, checked against
+     * the table and shard key columns of the repository's entity. Without the
+     * entity manager the columns are not known and the statement stays a broadcast.
+     */
+    private static ShardKeyPredicate shardKeyPredicateFor(Method method, String jdbcSql, int[] argumentIndexes) {
+        Class<?> entityType = ResolvableType.forClass(method.getDeclaringClass()).as(Repository.class).resolveGeneric(0);
+        if (entityManager == null || entityType == null) {
+            return null;
+        }
+        try {
+            EntityTable table = EntityTable.of(entityManager.getEntityManagerFactory(), entityType);
+            if (table == null) {
+                return null;
+            }
+            ShardKeyPredicate predicate = ShardKeyPredicate.analyze(jdbcSql, argumentIndexes, table.name, table.shardKeyColumnNames());
+            if (predicate != null) {
+                logger.debug("{} is routed by the shard key in its WHERE clause", method);
+            }
+            return predicate;
+        } catch (RuntimeException e) {
+            logger.warn("Could not analyse the WHERE clause of {}, it is broadcast", method, e);
+            return null;
+        }
+    }
+
+    private static ParameterBinder[] bindersFor(Method method, List<Integer> argumentIndexes) {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        ParameterBinder[] binders = new ParameterBinder[argumentIndexes.size()];
+        for (int i = 0; i < binders.length; i++) {
+            binders[i] = binderFor(parameterTypes[argumentIndexes.get(i)]);
+        }
+        return binders;
+    }
+
+    /*
+     * A Pageable parameter, or a LIMIT written into the query, turns the broadcast
+     * into a top-N per shard. The countQuery of @Query is used for totals when
+     * there is one, otherwise the statement itself is counted.
+     */
+    private static PagedQuery pagedQueryFor(Method method, Query query, String jdbcSql) {
+        int pageableIndex = Arrays.asList(method.getParameterTypes()).indexOf(Pageable.class);
+        Class<?> returnType = method.getReturnType();
+        PagedQuery.ResultKind resultKind = returnType.equals(Page.class) ? PagedQuery.ResultKind.PAGE
+                : returnType.equals(Slice.class) ? PagedQuery.ResultKind.SLICE
+                : PagedQuery.ResultKind.ROWS;
+        Class<?> rowType = null;
+        if (method.getGenericReturnType() instanceof ParameterizedType parameterized
+                && parameterized.getActualTypeArguments()[0] instanceof Class<?> typeArgument
+                && entityClasses.get(typeArgument)) {
+            rowType = typeArgument;
+        }
+
+        String countSql = null;
+        List<Integer> countArgumentIndexes = new ArrayList<>();
+        ParameterBinder[] countBinders = null;
+        if (!query.countQuery().isEmpty()) {
+            countSql = rewritePlaceholders(getNativeSQLFromJPQL(query.countQuery()), method, countArgumentIndexes);
+            countBinders = bindersFor(method, countArgumentIndexes);
+        }
+        return PagedQuery.of(jdbcSql, pageableIndex, resultKind, rowType, countSql,
+                countArgumentIndexes.stream().mapToInt(Integer::intValue).toArray(), countBinders);
+    }
+
+    private static String getNativeSQLFromJPQL(String jpql) {
+        /*
+         * Entity manager factory or session factory is used to get the entityManager
+         * the factory is created during connection to the database so you just have to call
+         * the appropriate method and  use it.
+         *
+         * Note entity manager here is the one from the current data source.
+         */
+        if (entityManager == null) {
+            logger.warn("EntityManager not available yet, using the query as written");
+            return jpql;
+        }
+        /*
+         * The query is created through the shared entity manager and unwrapped afterwards,
+         * because unwrapping the shared entity manager itself to a Session needs a running
+         * transaction, which plans built at startup do not have.
+         */
+        try {
+            org.hibernate.query.Query<?> hibernateQuery = entityManager.createNativeQuery(jpql).unwrap(org.hibernate.query.Query.class);
+            return hibernateQuery.getQueryString();
+        } catch (RuntimeException e) {
+            logger.warn("Could not resolve native SQL, using the query as written: {}", jpql, e);
+            return jpql;
+        }
+    }
+
+    /* saveAll and saveAllAndFlush of CrudRepository / JpaRepository */
+    private static boolean isSaveAll(Method method) {
+        return method.getName().startsWith("saveAll")
+                && method.getParameterCount() == 1
+                && Iterable.class.isAssignableFrom(method.getParameterTypes()[0]);
+    }
+
+    /*
+     * A derived method reads when its name has one of the query prefixes Spring Data
+     * derives SELECTs from, or when it is declared @Transactional(readOnly = true).
+     */
+    private static boolean isReadOnly(Method method) {
+        Transactional transactional = AnnotatedElementUtils.findMergedAnnotation(method, Transactional.class);
+        if (transactional != null) {
+            return transactional.readOnly();
+        }
+        return READ_PREFIXES.matcher(method.getName()).matches();
+    }
+
+    private static boolean isSelect(String sql) {
+        String statement = sql.stripLeading().toLowerCase(Locale.ROOT);
+        return statement.startsWith("select") || statement.startsWith("with");
+    }
+
+    /*
+     * JDBC only understands positional ? markers, while @Query methods use ?1 or :name.
+     * Every marker is replaced by a plain ? and the index of the method argument it
+     * refers to is recorded in order, so binding at call time is a simple loop.
+     */
+    static String rewritePlaceholders(String sql, Method method, List<Integer> argumentIndexes) {
+        StringBuilder jdbcSql = new StringBuilder(sql.length());
+        boolean inLiteral = false;
+        int sequential = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                inLiteral = !inLiteral;
+            }
+            if (inLiteral) {
+                jdbcSql.append(c);
+                continue;
+            }
+            if (c == '?') {
+                int end = i + 1;
+                while (end < sql.length() && Character.isDigit(sql.charAt(end))) {
+                    end++;
+                }
+                argumentIndexes.add(end > i + 1 ? Integer.parseInt(sql.substring(i + 1, end)) - 1 : sequential++);
+                jdbcSql.append('?');
+                i = end - 1;
+            } else if (c == ':' && i + 1 < sql.length() && Character.isJavaIdentifierStart(sql.charAt(i + 1))
+                    && (i == 0 || sql.charAt(i - 1) != ':')) {
+                int end = i + 1;
+                while (end < sql.length() && Character.isJavaIdentifierPart(sql.charAt(end))) {
+                    end++;
+                }
+                argumentIndexes.add(indexOfNamedParameter(method, sql.substring(i + 1, end)));
+                jdbcSql.append('?');
+                i = end - 1;
+            } else {
+                jdbcSql.append(c);
+            }
+        }
+        return jdbcSql.toString();
+    }
+
+    private static int indexOfNamedParameter(Method method, String name) {
+        Parameter[] parameters = method.getParameters();
+        for (int i = 0; i < parameters.length; i++) {
+            Param param = parameters[i].getAnnotation(Param.class);
+            if ((param != null && param.value().equals(name)) || parameters[i].getName().equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No parameter named " + name + " on " + method);
+    }
+
+    /*
+     * The setter is chosen from the declared parameter type once, instead of testing
+     * the runtime class of every argument on every call.
+     */
+    static ParameterBinder binderFor(Class<?> type) {
+        if (type == String.class) {
+            return nullSafe(Types.VARCHAR, (ps, i, value) -> ps.setString(i, (String) value));
+        }
+        if (type == Integer.class || type == int.class) {
+            return nullSafe(Types.INTEGER, (ps, i, value) -> ps.setInt(i, (Integer) value));
+        }
+        if (type == Long.class || type == long.class) {
+            return nullSafe(Types.BIGINT, (ps, i, value) -> ps.setLong(i, (Long) value));
+        }
+        if (type == Boolean.class || type == boolean.class) {
+            return nullSafe(Types.BOOLEAN, (ps, i, value) -> ps.setBoolean(i, (Boolean) value));
+        }
+        if (type == Double.class || type == double.class) {
+            return nullSafe(Types.DOUBLE, (ps, i, value) -> ps.setDouble(i, (Double) value));
+        }
+        if (type == BigDecimal.class) {
+            return nullSafe(Types.NUMERIC, (ps, i, value) -> ps.setBigDecimal(i, (BigDecimal) value));
+        }
+        if (type == LocalDateTime.class) {
+            return nullSafe(Types.TIMESTAMP, (ps, i, value) -> ps.setTimestamp(i, java.sql.Timestamp.valueOf((LocalDateTime) value)));
+        }
+        if (type == LocalDate.class) {
+            return nullSafe(Types.DATE, (ps, i, value) -> ps.setDate(i, java.sql.Date.valueOf((LocalDate) value)));
+        }
+        if (type == Date.class) {
+            return nullSafe(Types.TIMESTAMP, (ps, i, value) -> ps.setTimestamp(i, new java.sql.Timestamp(((Date) value).getTime())));
+        }
+        return (ps, i, value) -> ps.setObject(i, value);
+    }
+
+    private static ParameterBinder nullSafe(int sqlType, ParameterBinder binder) {
+        return (ps, i, value) -> {
+            if (value == null) {
+                ps.setNull(i, sqlType);
+            } else {
+                binder.bind(ps, i, value);
+            }
+        };
+    }
+
+    /*
+     * Derived methods are routed by the parameters annotated with @ShardKey, or
+     * else by one argument. An entity (like in save) is routed by its shard key,
+     * a String, Number or UUID (like in findById) is used as it is, an @Embeddable
+     * composite id by the parts its entity is placed by, and anything
+     * else (Pageable, Sort, collections) carries no shard key. The declared
+     * parameter type of generic methods like save(S) is Object, so the entity
+     * check is done on the runtime class, cached in a ClassValue.
+     */
+    private static ShardKeyExtractor shardKeyExtractorFor(Method method) {
+        int[] keyParameters = shardKeyParametersOf(method);
+        if (keyParameters.length == 1) {
+            int index = keyParameters[0];
+            return args -> shardKeyOf(args[index]);
+        }
+        if (keyParameters.length > 1) {
+            return args -> {
+                Object[] values = new Object[keyParameters.length];
+                for (int i = 0; i < keyParameters.length; i++) {
+                    values[i] = shardKeyOf(args[keyParameters[i]]);
+                }
+                return ShardKeys.composite(values);
+            };
+        }
+
+        int parameterCount = method.getParameterCount();
+        if (parameterCount == 0) {
+            return args -> null;
+        }
+        if (parameterCount == 1) {
+            return args -> shardKeyOf(args[0]);
+        }
+        return args -> {
+            for (Object arg : args) {
+                if (arg != null && entityClasses.get(arg.getClass())) {
+                    return ShardKeys.of(arg);
+                }
+            }
+            return null;
+        };
+    }
+
+    private static int[] shardKeyParametersOf(Method method) {
+        Parameter[] parameters = method.getParameters();
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < parameters.length; i++) {
+            if (parameters[i].isAnnotationPresent(ShardKey.class)) {
+                indexes.add(i);
+            }
+        }
+        return indexes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static Object shardKeyOf(Object arg) {
+        if (arg == null) {
+            return null;
+        }
+        if (entityClasses.get(arg.getClass())) {
+            return ShardKeys.of(arg);
+        }
+        if (arg instanceof String || arg instanceof Number || arg instanceof UUID) {
+            return arg;
+        }
+        if (embeddableClasses.get(arg.getClass())) {
+            // a composite id, placed by the same parts as the entity it belongs to
+            return ShardKeys.ofId(arg);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,541 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.configs.ShardProperties;
+import com.piraxx.sharder.sharderPackage.metrics.ShardMetrics;
+import com.piraxx.sharder.sharderPackage.utils.ResourceCloser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs one statement against every shard at the same time instead of walking
+ * the shards one after the other. A broadcast query now costs roughly the
+ * latency of the slowest shard rather than the sum of all of them.
+ *
+ * Every attempt on a shard gets its own deadline (shardTimeoutMillis, counted
+ * from when the attempt was sent, so a hedge has its own too) and the whole
+ * fan-out has an overall deadline (fanOutDeadlineMillis). An attempt past its
+ * deadline is given up while the others go on; once the overall deadline
+ * passes, or the calling thread is interrupted because the caller gave up,
+ * every attempt still running is. A statement that is given up is cancelled
+ * with Statement.cancel() so the database stops working on it as well.
+ *
+ * The deadlines are kept by the calling thread, to the millisecond. The JDBC
+ * query timeout is set as well, as a backstop, but JDBC counts it in whole
+ * seconds, so it is rounded up. When the pool is saturated and the calling
+ * thread runs a shard itself, only that rounded timeout applies to it.
+ *
+ * Whether the calling thread only reads is carried over to the shard threads,
+ * so shards with replicas serve broadcast SELECTs from a replica.
+ *
+ * To keep the slowest shard from setting the latency of every broadcast, a
+ * read that has not answered by the shard's usual 95th percentile is sent a
+ * second time to one of the shard's replicas (hedgeReads, on by default, and
+ * never earlier than hedgeMinDelayMillis). Whichever attempt answers first is
+ * used and the other one is cancelled. Shards without replicas are not hedged.
+ *
+ * Shards whose ShardCircuitBreaker is open are not asked at all. A shard that
+ * is left out of a broadcast read, because it failed, timed out or its circuit
+ * is open, is logged and the remaining shards are answered, unless
+ * partialResults is set to fail, in which case the whole call fails.
+ */
+public class ScatterGatherExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ScatterGatherExecutor.class);
+
+    private static final long perShardTimeoutMillis = ShardProperties.readLongFromEnv("shardTimeoutMillis", 5_000);
+
+    private static final long overallDeadlineMillis = ShardProperties.readLongFromEnv("fanOutDeadlineMillis", 10_000);
+
+    private static final int fetchSize = (int) ShardProperties.readLongFromEnv("shardFetchSize", 500);
+
+    private static final boolean hedgeReads = !"false".equalsIgnoreCase(System.getenv("hedgeReads"));
+
+    private static final long hedgeMinDelayNanos = TimeUnit.MILLISECONDS.toNanos(ShardProperties.readLongFromEnv("hedgeMinDelayMillis", 5));
+
+    private static final boolean failOnPartialResults = "fail".equalsIgnoreCase(System.getenv("partialResults"));
+
+    /*
+     * A bounded pool is used rather than a thread per request. When every thread
+     * is busy and the queue is full the calling thread runs the shard itself,
+     * so under saturation we degrade to the old sequential behaviour instead of
+     * rejecting queries.
+     */
+    static final int fanOutThreads = (int) ShardProperties.readLongFromEnv("fanOutThreads",
+            Math.max(8, Runtime.getRuntime().availableProcessors() * 2));
+
+    private static final ExecutorService executor = createExecutor(fanOutThreads);
+
+    @FunctionalInterface
+    public interface StatementBinder {
+        void bind(PreparedStatement preparedStatement) throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface ShardStatementWork<T> {
+        T execute(PreparedStatement preparedStatement) throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface ConnectionSource {
+        Connection getConnection() throws SQLException;
+    }
+
+    /**
+     * Executes the statement on every shard in the map concurrently and returns the
+     * result of each shard that answered in time, keyed by shard name and in the
+     * same order as the shard map. Shards that fail or time out are logged and
+     * left out of the result, which is what the sequential loop used to do, or
+     * fail the call under the partialResults=fail policy.
+     */
+    public static <T> Map<Object, T> execute(Map<Object, Object> shardMap,
+                                             String nativeSql,
+                                             StatementBinder binder,
+                                             ShardStatementWork<T> work) throws SQLException {
+        return execute(shardMap, nativeSql, binder, work, perShardTimeoutMillis, overallDeadlineMillis);
+    }
+
+    /* execute() with its own deadlines instead of the configured ones */
+    static <T> Map<Object, T> execute(Map<Object, Object> shardMap,
+                                      String nativeSql,
+                                      StatementBinder binder,
+                                      ShardStatementWork<T> work,
+                                      long shardTimeoutMillis,
+                                      long deadlineMillis) throws SQLException {
+        Map<Object, T> results = run(shardMap, nativeSql, shardKey -> binder, shardKey -> work, false,
+                shardTimeoutMillis, deadlineMillis);
+        checkPartialResults(shardMap, results);
+        return results;
+    }
+
+    /**
+     * Executes the statement concurrently on the shards in the map, each with its own
+     * work, for writes where every shard gets different rows. Unlike execute(), a
+     * shard that fails or times out fails the whole call: a write that quietly
+     * skipped a shard would lose data.
+     */
+    public static <T> Map<Object, T> executeOnEachShard(Map<Object, ShardStatementWork<T>> workByShard,
+                                                        String nativeSql) throws SQLException {
+        Map<Object, Object> shardMap = new LinkedHashMap<>();
+        for (Object shardKey : workByShard.keySet()) {
+            Object dataSource = ShardingContextHolder.getTopology().getDataSources().get(shardKey);
+            if (dataSource == null) {
+                throw new SQLException("Unknown shard " + shardKey);
+            }
+            shardMap.put(shardKey, dataSource);
+        }
+        Map<Object, T> results = run(shardMap, nativeSql, shardKey -> null, workByShard::get, false,
+                perShardTimeoutMillis, overallDeadlineMillis);
+        if (results.size() < shardMap.size()) {
+            throw new SQLException("Statement failed on shards " + missingShards(shardMap, results) + ", see the log for the cause");
+        }
+        return results;
+    }
+
+    /**
+     * Executes the query on every shard concurrently but, instead of consuming the
+     * rows, hands back the open cursors. The caller owns them and must close them,
+     * normally by closing the MergedResultCursor built on top of them.
+     *
+     * Rows are pulled from the shards fetchSize at a time. The Postgres driver only
+     * streams when auto-commit is off, so each cursor runs in its own read transaction.
+     */
+    public static List<ShardCursor> openCursors(Map<Object, Object> shardMap,
+                                                String nativeSql,
+                                                StatementBinder binder) throws SQLException {
+        ShardStatementWork<ShardCursor> openCursor = preparedStatement -> {
+            preparedStatement.setFetchSize(fetchSize);
+            return new ShardCursor(preparedStatement.getConnection(), preparedStatement, preparedStatement.executeQuery());
+        };
+        Map<Object, ShardCursor> cursors = run(shardMap, nativeSql, shardKey -> binder, shardKey -> openCursor, true,
+                perShardTimeoutMillis, overallDeadlineMillis);
+        try {
+            checkPartialResults(shardMap, cursors);
+        } catch (SQLException e) {
+            closeRetained(cursors.values());
+            throw e;
+        }
+        return new ArrayList<>(cursors.values());
+    }
+
+    private static void checkPartialResults(Map<Object, Object> shardMap, Map<Object, ?> results) throws SQLException {
+        if (failOnPartialResults && results.size() < shardMap.size()) {
+            throw new SQLException("No answer from shards " + missingShards(shardMap, results)
+                    + " and partial results are not accepted, see the log for the cause");
+        }
+    }
+
+    private static List<Object> missingShards(Map<Object, Object> shardMap, Map<Object, ?> results) {
+        List<Object> missing = new ArrayList<>(shardMap.keySet());
+        missing.removeAll(results.keySet());
+        return missing;
+    }
+
+    /*
+     * The calling thread waits for the shard tasks to report in through a queue, so
+     * it can also wake up when a hedge is due or a deadline passes. A shard counts
+     * as answered with the first attempt that succeeds, and as failed once all of
+     * its attempts failed.
+     */
+    private static <T> Map<Object, T> run(Map<Object, Object> shardMap,
+                                          String nativeSql,
+                                          Function<Object, StatementBinder> binderForShard,
+                                          Function<Object, ShardStatementWork<T>> workForShard,
+                                          boolean retainResources,
+                                          long shardTimeoutMillis,
+                                          long deadlineMillis) throws SQLException {
+        long startNanos = System.nanoTime();
+        long overallDeadline = startNanos + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+
+        boolean readOnly = ShardingContextHolder.isReadOnly();
+        ShardMetrics.recordFanOut(shardMap.size());
+        BlockingQueue<ShardTask<T>> finished = new LinkedBlockingQueue<>();
+        Map<Object, ShardCall<T>> calls = new LinkedHashMap<>();
+        for (Map.Entry<Object, Object> shard : shardMap.entrySet()) {
+            ShardCircuitBreaker breaker = ShardCircuitBreaker.of(shard.getKey());
+            if (!breaker.tryAcquire()) {
+                logger.error("Circuit of shard {} is open, leaving it out", shard.getKey());
+                continue;
+            }
+            ShardCall<T> call = new ShardCall<>(shard.getKey(), (DataSource) shard.getValue(), breaker, readOnly && hedgeReads,
+                    shardTimeoutMillis);
+            ShardTask<T> task = new ShardTask<>(call, call.dataSource::getConnection, false, nativeSql,
+                    binderForShard.apply(shard.getKey()), workForShard.apply(shard.getKey()), retainResources, readOnly, finished);
+            call.submit(task);
+            calls.put(shard.getKey(), call);
+        }
+
+        Map<Object, T> answered = new HashMap<>();
+        int pending = calls.size();
+        try {
+            while (pending > 0) {
+                long now = System.nanoTime();
+                if (now - overallDeadline >= 0) {
+                    break;
+                }
+                long wakeUp = overallDeadline;
+                for (ShardCall<T> call : calls.values()) {
+                    if (call.resolved) {
+                        continue;
+                    }
+                    if (call.hedgeDue(now)) {
+                        call.submit(new ShardTask<>(call, ((ReplicatedDataSource) call.dataSource)::getReplicaConnection, true,
+                                nativeSql, binderForShard.apply(call.shardKey), workForShard.apply(call.shardKey),
+                                retainResources, readOnly, finished));
+                    } else if (call.hedgeAt != 0 && call.attempts.size() == 1) {
+                        wakeUp = Math.min(wakeUp, call.hedgeAt);
+                    }
+                    for (ShardTask<T> attempt : new ArrayList<>(call.attempts)) {
+                        if (attempt.isOver() || call.resolved) {
+                            continue;
+                        }
+                        if (now - attempt.deadline >= 0) {
+                            attempt.expire();
+                            if (call.failed(attempt)) {
+                                logger.error("Timed out waiting for shard: {}", call.shardKey);
+                                pending--;
+                            }
+                        } else {
+                            wakeUp = Math.min(wakeUp, attempt.deadline);
+                        }
+                    }
+                }
+                ShardTask<T> task = finished.poll(Math.max(wakeUp - now, 0), TimeUnit.NANOSECONDS);
+                if (task == null || task.call.resolved || task.expired) {
+                    // a losing or expired attempt closes what it opened, see ShardTask.cancel
+                    continue;
+                }
+                ShardCall<T> call = task.call;
+                if (task.failure == null) {
+                    answered.put(call.shardKey, task.take());
+                    call.answered(task);
+                    pending--;
+                } else if (call.failed(task)) {
+                    logger.error("Error performing operation on shard: {}", call.shardKey, task.failure);
+                    pending--;
+                }
+            }
+        } catch (InterruptedException e) {
+            // the caller gave up, so there is no point letting the shards keep working
+            calls.values().forEach(ShardCall::cancel);
+            closeRetained(answered.values());
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for shards to respond", e);
+        }
+
+        Map<Object, T> results = new LinkedHashMap<>();
+        for (ShardCall<T> call : calls.values()) {
+            if (answered.containsKey(call.shardKey)) {
+                results.put(call.shardKey, answered.get(call.shardKey));
+            } else if (!call.resolved) {
+                logger.error("Timed out waiting for shard: {}", call.shardKey);
+                call.timedOut();
+            }
+        }
+        return results;
+    }
+
+    /* One shard of a fan-out: its first attempt and, when that is slow, the hedge. */
+    private static class ShardCall<T> {
+
+        private final Object shardKey;
+        private final DataSource dataSource;
+        private final ShardCircuitBreaker breaker;
+        private final ShardLatencyTracker latency;
+        private final long timeoutMillis;
+        private final List<ShardTask<T>> attempts = new ArrayList<>(2);
+        private final long submittedAt = System.nanoTime();
+        // when to send the hedge, 0 when this call is not hedged
+        private final long hedgeAt;
+        private boolean resolved;
+
+        ShardCall(Object shardKey, DataSource dataSource, ShardCircuitBreaker breaker, boolean hedgeable, long timeoutMillis) {
+            this.shardKey = shardKey;
+            this.timeoutMillis = timeoutMillis;
+            this.dataSource = dataSource;
+            this.breaker = breaker;
+            this.latency = ShardLatencyTracker.of(shardKey);
+            long p95 = latency.p95Nanos();
+            this.hedgeAt = hedgeable && p95 >= 0
+                    && dataSource instanceof ReplicatedDataSource && ((ReplicatedDataSource) dataSource).hasReplicas()
+                    ? submittedAt + Math.max(p95, hedgeMinDelayNanos)
+                    : 0;
+        }
+
+        void submit(ShardTask<T> task) {
+            attempts.add(task);
+            task.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            task.future = executor.submit(task);
+        }
+
+        boolean hedgeDue(long now) {
+            return hedgeAt != 0 && !resolved && attempts.size() == 1 && now - hedgeAt >= 0;
+        }
+
+        void answered(ShardTask<T> winner) {
+            resolved = true;
+            latency.record(System.nanoTime() - submittedAt);
+            breaker.recordSuccess();
+            if (attempts.size() > 1) {
+                ShardMetrics.recordHedge(shardKey, winner.hedge);
+            }
+            for (ShardTask<T> attempt : attempts) {
+                if (attempt != winner) {
+                    attempt.cancel();
+                }
+            }
+        }
+
+        /* True when the shard has failed for good, false while another attempt may still answer. */
+        boolean failed(ShardTask<T> attempt) {
+            for (ShardTask<T> other : attempts) {
+                if (other != attempt && !other.isOver()) {
+                    return false;
+                }
+            }
+            resolved = true;
+            if (attempt.expired) {
+                breaker.recordFailure();
+            } else {
+                breaker.recordFailure(attempt.failure);
+            }
+            return true;
+        }
+
+        void timedOut() {
+            resolved = true;
+            breaker.recordFailure();
+            cancel();
+        }
+
+        void cancel() {
+            attempts.forEach(ShardTask::cancel);
+        }
+    }
+
+    private static class ShardTask<T> implements Runnable {
+
+        private final ShardCall<T> call;
+        private final Object shardKey;
+        private final ConnectionSource connectionSource;
+        private final boolean hedge;
+        private final String nativeSql;
+        private final StatementBinder binder;
+        private final ShardStatementWork<T> work;
+        private final boolean retainResources;
+        private final boolean readOnly;
+        private final BlockingQueue<ShardTask<T>> finished;
+
+        private volatile PreparedStatement statement;
+        private volatile boolean cancelled;
+        private volatile boolean done;
+        // given up by the waiting thread because its deadline passed
+        private volatile boolean expired;
+        private long deadline;
+        private Future<?> future;
+
+        // handed over under the task's lock, so a result is either taken or closed
+        private T result;
+        private boolean taken;
+        private Throwable failure;
+
+        ShardTask(ShardCall<T> call, ConnectionSource connectionSource, boolean hedge, String nativeSql, StatementBinder binder,
+                  ShardStatementWork<T> work, boolean retainResources, boolean readOnly, BlockingQueue<ShardTask<T>> finished) {
+            this.call = call;
+            this.shardKey = call.shardKey;
+            this.connectionSource = connectionSource;
+            this.hedge = hedge;
+            this.nativeSql = nativeSql;
+            this.binder = binder;
+            this.work = work;
+            this.retainResources = retainResources;
+            this.readOnly = readOnly;
+            this.finished = finished;
+        }
+
+        @Override
+        public void run() {
+            try {
+                T value = attempt();
+                synchronized (this) {
+                    if (cancelled && retainResources) {
+                        closeRetained(List.of(value));
+                    } else {
+                        result = value;
+                    }
+                }
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                done = true;
+                finished.add(this);
+            }
+        }
+
+        boolean isOver() {
+            return done || expired;
+        }
+
+        void expire() {
+            expired = true;
+            cancel();
+        }
+
+        synchronized T take() {
+            taken = true;
+            return result;
+        }
+
+        private T attempt() throws SQLException {
+            /*
+             * DataSource acts as a factory for pooled connections, so getConnection()
+             * borrows a connection and closing it returns it to the pool. The statement
+             * is prepared because the same broadcast SQL is executed many times with
+             * different parameters.
+             *
+             * A ResultSet is closed together with the statement that produced it, so
+             * unless the resources are retained for a cursor the work function has to
+             * consume it before this method returns.
+             */
+            Connection connection = null;
+            PreparedStatement preparedStatement = null;
+            // the caller runs the task itself when the pool is saturated, so its flag is put back afterwards
+            boolean callerReadOnly = ShardingContextHolder.isReadOnly();
+            long statementStart = 0;
+            String outcome = "error";
+            try {
+                ShardingContextHolder.setReadOnly(readOnly);
+                long acquireStart = System.nanoTime();
+                connection = connectionSource.getConnection();
+                statementStart = System.nanoTime();
+                ShardMetrics.recordConnectionAcquire(shardKey, statementStart - acquireStart);
+                ShardingContextHolder.setReadOnly(callerReadOnly);
+                if (retainResources) {
+                    connection.setAutoCommit(false);
+                }
+                preparedStatement = connection.prepareStatement(nativeSql);
+                statement = preparedStatement;
+                if (cancelled) {
+                    throw new SQLException("Statement cancelled before execution on shard " + shardKey);
+                }
+                // whole seconds, rounded up, the waiting thread cancels at the exact deadline
+                preparedStatement.setQueryTimeout((int) Math.max(1, (call.timeoutMillis + 999) / 1000));
+                if (binder != null) {
+                    binder.bind(preparedStatement);
+                }
+                T value = work.execute(preparedStatement);
+                outcome = "success";
+                if (retainResources) {
+                    // the result now owns the connection and the statement
+                    connection = null;
+                    preparedStatement = null;
+                }
+                return value;
+            } finally {
+                if (statementStart != 0) {
+                    ShardMetrics.recordStatement(shardKey, ShardMetrics.FAN_OUT_PATH,
+                            cancelled ? "cancelled" : outcome, System.nanoTime() - statementStart);
+                }
+                ShardingContextHolder.setReadOnly(callerReadOnly);
+                statement = null;
+                ResourceCloser.closeResources(preparedStatement, connection);
+            }
+        }
+
+        void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                if (retainResources && result != null && !taken) {
+                    closeRetained(List.of(result));
+                    result = null;
+                }
+            }
+            PreparedStatement running = statement;
+            if (running != null) {
+                try {
+                    running.cancel();
+                } catch (SQLException e) {
+                    logger.warn("Could not cancel statement on shard: {}", shardKey, e);
+                }
+            }
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static void closeRetained(Iterable<?> results) {
+        for (Object result : results) {
+            if (result instanceof AutoCloseable) {
+                ResourceCloser.closeResources((AutoCloseable) result);
+            }
+        }
+    }
+
+    private static ExecutorService createExecutor(int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 64),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "shard-fan-out-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
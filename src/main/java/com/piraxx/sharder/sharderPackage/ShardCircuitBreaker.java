@@ -0,0 +1,135 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.configs.ShardProperties;
+import com.piraxx.sharder.sharderPackage.metrics.ShardMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending work to a shard that keeps failing, so callers fail at once
+ * instead of each waiting for their own timeout on the same dead shard.
+ *
+ * After circuitFailureThreshold failures in a row the circuit opens and calls
+ * to the shard are refused for circuitOpenMillis. Then a single call is let
+ * through: if it succeeds the circuit closes again, if it fails the circuit
+ * stays open for another period.
+ *
+ * Only failures that say something about the shard count: timeouts, refused
+ * or broken connections. A statement the shard rejected, like a constraint
+ * violation, shows the shard is up and counts as a success.
+ */
+final class ShardCircuitBreaker {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardCircuitBreaker.class);
+
+    private static final int defaultFailureThreshold = (int) ShardProperties.readLongFromEnv("circuitFailureThreshold", 5);
+
+    private static final long defaultOpenNanos = TimeUnit.MILLISECONDS.toNanos(ShardProperties.readLongFromEnv("circuitOpenMillis", 30_000));
+
+    private static final ConcurrentHashMap<Object, ShardCircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final Object shard;
+    private final int failureThreshold;
+    private final long openNanos;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openUntil;
+    private long trialStartedAt;
+
+    private ShardCircuitBreaker(Object shard) {
+        this(shard, defaultFailureThreshold, defaultOpenNanos);
+    }
+
+    /* a breaker of its own, not shared through of(), with its own settings */
+    ShardCircuitBreaker(Object shard, int failureThreshold, long openNanos) {
+        this.shard = shard;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openNanos;
+    }
+
+    static ShardCircuitBreaker of(Object shard) {
+        return breakers.computeIfAbsent(shard, ShardCircuitBreaker::new);
+    }
+
+    /** Whether a call may go to the shard now. A refused call is counted in the metrics. */
+    synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        if ((state == State.OPEN && now - openUntil >= 0)
+                || (state == State.HALF_OPEN && now - trialStartedAt >= openNanos)) {
+            // the one trial call of the half open state, or another one when the last never reported back
+            state = State.HALF_OPEN;
+            trialStartedAt = now;
+            return true;
+        }
+        if (state == State.CLOSED) {
+            return true;
+        }
+        ShardMetrics.recordCircuitRejected(shard);
+        return false;
+    }
+
+    synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            logger.info("Circuit of shard {} closed again", shard);
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    /** Records the outcome of a call that failed with the given exception. */
+    void recordFailure(Throwable failure) {
+        if (isShardFailure(failure)) {
+            recordFailure();
+        } else {
+            recordSuccess();
+        }
+    }
+
+    synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            logger.warn("Circuit of shard {} opened after {} failures in a row", shard, consecutiveFailures);
+            state = State.OPEN;
+            openUntil = System.nanoTime() + openNanos;
+        }
+    }
+
+    /*
+     * Timeouts, refused and broken connections, wherever they are in the cause chain.
+     * The Postgres driver throws plain SQLExceptions, so their SQLState class is
+     * checked too: 08 is a connection exception, 57 covers query_canceled (the
+     * statement timeout) and the server shutting down.
+     */
+    static boolean isShardFailure(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLTransientException
+                    || cause instanceof SQLRecoverableException
+                    || cause instanceof SQLNonTransientConnectionException
+                    || cause instanceof IOException) {
+                return true;
+            }
+            if (cause instanceof SQLException) {
+                String sqlState = ((SQLException) cause).getSQLState();
+                if (sqlState != null && (sqlState.startsWith("08") || sqlState.startsWith("57"))) {
+                    return true;
+                }
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+}
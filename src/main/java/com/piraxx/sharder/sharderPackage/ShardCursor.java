@@ -0,0 +1,89 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.sharderPackage.utils.ResourceCloser;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * An open, forward only cursor on one shard. The connection, statement and
+ * result set stay open until the merge that owns this cursor is closed, so
+ * rows can be pulled from the shard in fetch size chunks instead of being
+ * copied into memory up front.
+ */
+public class ShardCursor implements AutoCloseable {
+
+    private final Connection connection;
+    private final PreparedStatement preparedStatement;
+    private final ResultSet resultSet;
+
+    // values of the ORDER BY columns for the current row, used by the k-way merge
+    private Object[] sortValues;
+
+    private long rowsRead;
+
+    public ShardCursor(Connection connection, PreparedStatement preparedStatement, ResultSet resultSet) {
+        this.connection = connection;
+        this.preparedStatement = preparedStatement;
+        this.resultSet = resultSet;
+    }
+
+    /** A cursor over rows already in memory, such as merged aggregates, with no connection behind it. */
+    public static ShardCursor inMemory(ResultSet resultSet) {
+        return new ShardCursor(null, null, resultSet);
+    }
+
+    public ResultSet getResultSet() {
+        return resultSet;
+    }
+
+    boolean advance() throws SQLException {
+        if (resultSet.next()) {
+            rowsRead++;
+            return true;
+        }
+        return false;
+    }
+
+    /** Rows pulled from the shard so far. */
+    long getRowsRead() {
+        return rowsRead;
+    }
+
+    boolean isInMemory() {
+        return connection == null;
+    }
+
+    void captureSortValues(int[] sortColumns) throws SQLException {
+        if (sortValues == null) {
+            sortValues = new Object[sortColumns.length];
+        }
+        for (int i = 0; i < sortColumns.length; i++) {
+            sortValues[i] = resultSet.getObject(sortColumns[i]);
+        }
+    }
+
+    Object[] getSortValues() {
+        return sortValues;
+    }
+
+    @Override
+    public void close() {
+        /*
+         * The cursor was opened inside a read transaction because that is the only
+         * way the Postgres driver honours the fetch size. Rolling back ends that
+         * transaction before the connection goes back to the pool.
+         */
+        try {
+            if (connection != null && !connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException ignored) {
+            // the connection is closed below either way
+        }
+        ResourceCloser.closeResources(resultSet, preparedStatement, connection);
+    }
+}
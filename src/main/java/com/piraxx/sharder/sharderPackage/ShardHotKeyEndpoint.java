@@ -0,0 +1,37 @@
+package com.piraxx.sharder.sharderPackage;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * /actuator/shardhotkeys: the shard keys with the most requests and the keyed
+ * requests per second of every shard, as counted by HotKeyTracker.
+ */
+@Component
+@Endpoint(id = "shardhotkeys")
+public class ShardHotKeyEndpoint {
+
+    @ReadOperation
+    public Map<String, Object> hotKeys() {
+        List<Map<String, Object>> hotKeys = new ArrayList<>();
+        for (HotKeyTracker.HotKey hotKey : HotKeyTracker.hotKeys()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("key", String.valueOf(hotKey.getKey()));
+            entry.put("shard", hotKey.getShard());
+            entry.put("count", hotKey.getCount());
+            hotKeys.add(entry);
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("enabled", HotKeyTracker.isEnabled());
+        report.put("windowSeconds", HotKeyTracker.windowSeconds());
+        report.put("requestsPerSecond", HotKeyTracker.requestsPerSecond());
+        report.put("hotKeys", hotKeys);
+        return report;
+    }
+}
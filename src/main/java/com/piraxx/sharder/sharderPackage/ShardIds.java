@@ -0,0 +1,137 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.sharderPackage.placement.ShardKeyHasher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates 64-bit ids that carry their placement, Snowflake style:
+ *
+ *   bit 63      0, ids stay positive
+ *   bit 62      1, marks the id as generated here
+ *   bits 22-61  milliseconds since 2024-01-01 UTC (40 bits, good until 2058)
+ *   bits 14-21  the logical bucket the row is placed by (256 buckets)
+ *   bits 9-13   the node that generated the id (idNodeId, 32 nodes)
+ *   bits 0-8    a sequence within the millisecond (512 ids per ms and node)
+ *
+ * The router recognises such ids by the marker bit and places them by their
+ * bucket, a shift and a mask, instead of hashing their decimal form (see
+ * ShardIdAwareStrategy). Buckets rather than shard numbers are encoded so the
+ * shards can still be added and removed: a bucket moves as a whole, the id
+ * stays valid. Ids a client picked, like small integers, never have bit 62 set
+ * and keep being hashed.
+ *
+ * Generation is lock free: the timestamp and sequence live in one AtomicLong
+ * that is advanced with compareAndSet. When the sequence of a millisecond runs
+ * out, or the clock goes back, the ids borrow from the next milliseconds
+ * instead of waiting, so they stay unique and increasing on a node.
+ */
+public final class ShardIds {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardIds.class);
+
+    public static final int BUCKETS = 256;
+
+    private static final long EPOCH_MILLIS = 1_704_067_200_000L;
+
+    private static final int SEQUENCE_BITS = 9;
+    private static final int NODE_BITS = 5;
+    private static final int BUCKET_BITS = 8;
+    private static final int TIMESTAMP_BITS = 40;
+
+    private static final int NODE_SHIFT = SEQUENCE_BITS;
+    private static final int BUCKET_SHIFT = NODE_SHIFT + NODE_BITS;
+    private static final int TIMESTAMP_SHIFT = BUCKET_SHIFT + BUCKET_BITS;
+
+    private static final long MARKER = 1L << 62;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long MAX_TIMESTAMP = (1L << TIMESTAMP_BITS) - 1;
+
+    private static final long nodeId = nodeId();
+
+    // milliseconds since the epoch << SEQUENCE_BITS | sequence, of the last id handed out
+    private static final AtomicLong state = new AtomicLong();
+
+    private ShardIds() {
+    }
+
+    /** A new id in a bucket picked from the id's own bits, which spreads ids evenly over the buckets. */
+    public static long nextId() {
+        long next = nextState();
+        return compose(next, (int) (ShardKeyHasher.mix64(next) & (BUCKETS - 1)));
+    }
+
+    /** A new id in the given bucket, to keep it on the same shard as other ids of that bucket. */
+    public static long nextId(int bucket) {
+        if (bucket < 0 || bucket >= BUCKETS) {
+            throw new IllegalArgumentException("Bucket must be between 0 and " + (BUCKETS - 1) + ": " + bucket);
+        }
+        return compose(nextState(), bucket);
+    }
+
+    /** Whether the key is an id generated here, whose bucket can be read from its bits. */
+    public static boolean isShardId(Object key) {
+        if (!(key instanceof Long)) {
+            return false;
+        }
+        long id = (Long) key;
+        return id > 0 && (id & MARKER) != 0;
+    }
+
+    public static int bucketOf(long id) {
+        return (int) (id >>> BUCKET_SHIFT) & (BUCKETS - 1);
+    }
+
+    public static long timestampMillisOf(long id) {
+        return ((id & ~MARKER) >>> TIMESTAMP_SHIFT) + EPOCH_MILLIS;
+    }
+
+    private static long compose(long state, int bucket) {
+        long timestamp = state >>> SEQUENCE_BITS;
+        if (timestamp > MAX_TIMESTAMP) {
+            throw new IllegalStateException("Id timestamp no longer fits in " + TIMESTAMP_BITS + " bits");
+        }
+        return MARKER
+                | timestamp << TIMESTAMP_SHIFT
+                | (long) bucket << BUCKET_SHIFT
+                | nodeId << NODE_SHIFT
+                | (state & SEQUENCE_MASK);
+    }
+
+    private static long nextState() {
+        long now = (System.currentTimeMillis() - EPOCH_MILLIS) << SEQUENCE_BITS;
+        while (true) {
+            long last = state.get();
+            // a new millisecond starts at sequence 0, otherwise the sequence goes on and carries into the time
+            long next = now > last ? now : last + 1;
+            if (state.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+    /* idNodeId, or a hash of the host name, which is only unique enough for a handful of nodes */
+    private static long nodeId() {
+        String configured = System.getenv("idNodeId");
+        if (configured != null && !configured.isBlank()) {
+            long node = Long.parseLong(configured.trim());
+            if (node < 0 || node >= 1L << NODE_BITS) {
+                throw new IllegalArgumentException("idNodeId must be between 0 and " + ((1L << NODE_BITS) - 1));
+            }
+            return node;
+        }
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        long node = ShardKeyHasher.hash32(host) & ((1L << NODE_BITS) - 1);
+        logger.warn("idNodeId is not set, using {} from the host name {}; set it to keep the ids of several nodes apart", node, host);
+        return node;
+    }
+}
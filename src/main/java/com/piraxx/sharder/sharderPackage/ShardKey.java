@@ -0,0 +1,24 @@
+package com.piraxx.sharder.sharderPackage;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Names the value a row is placed by when it is not simply the @Id.
+ *
+ * On entity fields it replaces the id as the shard key, for instance to keep
+ * all rows of one customer on one shard. Several annotated fields form a
+ * composite key, as do the fields of an @EmbeddedId unless some of them are
+ * annotated. On a repository method parameter it marks the argument, or the
+ * arguments, that a finder is routed by.
+ *
+ * Composite keys are hashed as the values' toString() joined with ':', in
+ * field or parameter order, so a finder has to declare its @ShardKey
+ * parameters in the same order as the entity declares its fields.
+ */
+@Target({ElementType.FIELD, ElementType.PARAMETER})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ShardKey {
+}
@@ -0,0 +1,453 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategies;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategy;
+
+import java.lang.reflect.Array;
+import java.util.*;
+
+/**
+ * The shard keys a @Query is limited to by its WHERE clause, so the statement
+ * can go to the shards owning them instead of to every shard.
+ *
+ * The SQL is analysed once, when the plan is built. A statement qualifies when
+ * it reads, updates or deletes rows of the entity's own table only (no joins,
+ * subqueries or unions) and its WHERE clause requires the shard key column to
+ * be equal to a value (key = ?1, key = 42) or one of a list (key IN (?1, ?2),
+ * or a collection argument). That requirement has to hold for every row, so
+ * it must not sit below an OR; conditions joined with AND around it do not
+ * matter. For a shard key of several columns every column needs an
+ * equality.
+ *
+ * At call time the values are read from the arguments and placed like any
+ * other key. Anything the analysis does not understand leaves the statement
+ * a broadcast, which is always correct, only slower.
+ */
+final class ShardKeyPredicate {
+
+    private static final Set<String> CLAUSE_ENDS = Set.of(
+            "group", "order", "limit", "offset", "having", "returning", "for", "fetch", "window", ";");
+
+    private static final Set<String> NOT_AN_ALIAS = Set.of(
+            "where", "set", "group", "order", "limit", "offset", "having", "returning", "for", "fetch", "window", ";", ",");
+
+    /* A value of the key: a method argument, or a literal written in the SQL. */
+    private static final class Value {
+
+        private final int argumentIndex;
+        private final Object literal;
+
+        Value(int argumentIndex, Object literal) {
+            this.argumentIndex = argumentIndex;
+            this.literal = literal;
+        }
+
+        Object of(Object[] args) {
+            return argumentIndex >= 0 ? args[argumentIndex] : literal;
+        }
+    }
+
+    // the values of a single column key, any of which a row may have
+    private final List<Value> values;
+    // the value of each column of a composite key, all of which a row has
+    private final List<Value> composite;
+
+    private ShardKeyPredicate(List<Value> values, List<Value> composite) {
+        this.values = values;
+        this.composite = composite;
+    }
+
+    /**
+     * The key restriction of the statement, or null when it may touch rows of any key.
+     *
+     * @param jdbcSql         the statement with plain ? placeholders
+     * @param argumentIndexes the method argument each placeholder is bound from, in order
+     * @param table           the table of the repository's entity
+     * @param keyColumns      the columns the entity is placed by, in the order of its shard key
+     */
+    static ShardKeyPredicate analyze(String jdbcSql, int[] argumentIndexes, String table, List<String> keyColumns) {
+        List<String> tokens = tokenize(jdbcSql);
+        if (tokens == null || tokens.isEmpty() || !readsOneTable(tokens)) {
+            return null;
+        }
+
+        int tableAt;
+        switch (tokens.get(0)) {
+            case "select":
+                tableAt = indexOfTopLevel(tokens, "from", 1, tokens.size()) + 1;
+                break;
+            case "delete":
+                tableAt = tokens.size() > 1 && tokens.get(1).equals("from") ? 2 : 0;
+                break;
+            case "update":
+                // UPDATE ... FROM joins other tables in
+                tableAt = indexOfTopLevel(tokens, "from", 1, tokens.size()) < 0 ? 1 : 0;
+                break;
+            default:
+                return null;
+        }
+        if (tableAt <= 0 || tableAt >= tokens.size()) {
+            return null;
+        }
+        if (tokens.get(tableAt).equals("only")) {
+            tableAt++;
+        }
+        // schema.table
+        if (tableAt + 2 < tokens.size() && tokens.get(tableAt + 1).equals(".")) {
+            tableAt += 2;
+        }
+        if (tableAt >= tokens.size() || !tokens.get(tableAt).equals(table.toLowerCase(Locale.ROOT))) {
+            return null;
+        }
+        Set<String> qualifiers = new HashSet<>(List.of(tokens.get(tableAt)));
+        int next = tableAt + 1;
+        if (next < tokens.size() && tokens.get(next).equals("as")) {
+            next++;
+        }
+        if (next < tokens.size() && !NOT_AN_ALIAS.contains(tokens.get(next))) {
+            qualifiers.add(tokens.get(next));
+            next++;
+        }
+        if (next < tokens.size() && tokens.get(next).equals(",")) {
+            // FROM a, b
+            return null;
+        }
+
+        int where = indexOfTopLevel(tokens, "where", next, tokens.size());
+        if (where < 0) {
+            return null;
+        }
+        int end = where + 1;
+        int depth = 0;
+        for (; end < tokens.size(); end++) {
+            String token = tokens.get(end);
+            depth += token.equals("(") ? 1 : token.equals(")") ? -1 : 0;
+            if (depth == 0 && CLAUSE_ENDS.contains(token)) {
+                break;
+            }
+        }
+
+        List<List<String>> conjuncts = new ArrayList<>();
+        collectConjuncts(tokens, where + 1, end, conjuncts);
+        Map<String, List<Value>> restrictions = new HashMap<>();
+        for (List<String> conjunct : conjuncts) {
+            restrict(conjunct, qualifiers, argumentIndexes, restrictions);
+        }
+
+        if (keyColumns.size() == 1) {
+            List<Value> values = restrictions.get(keyColumns.get(0).toLowerCase(Locale.ROOT));
+            return values == null ? null : new ShardKeyPredicate(values, null);
+        }
+        List<Value> composite = new ArrayList<>();
+        for (String column : keyColumns) {
+            List<Value> values = restrictions.get(column.toLowerCase(Locale.ROOT));
+            if (values == null || values.size() != 1) {
+                return null;
+            }
+            composite.add(values.get(0));
+        }
+        return new ShardKeyPredicate(null, composite);
+    }
+
+    /**
+     * The shards holding the rows the call can touch, in the order of the given
+     * shards, or all of them when the arguments do not name the keys. A key that
+     * is being moved by a rebalance is looked for on its old owner too.
+     */
+    Map<Object, Object> shardsFor(Object[] args, Map<Object, Object> shards) {
+        List<Object> keys = keysFor(args);
+        if (keys == null) {
+            return shards;
+        }
+        ShardPlacementStrategy placement = ShardPlacementStrategies.shared();
+        Set<String> owners = new HashSet<>();
+        for (Object key : keys) {
+            owners.add(placement.getNode(key));
+            String previousOwner = ShardRebalancer.previousOwner(key);
+            if (previousOwner != null) {
+                owners.add(previousOwner);
+            }
+        }
+        if (owners.size() >= shards.size()) {
+            return shards;
+        }
+        Map<Object, Object> targeted = new LinkedHashMap<>();
+        shards.forEach((name, dataSource) -> {
+            if (owners.contains(name.toString())) {
+                targeted.put(name, dataSource);
+            }
+        });
+        // an owner the shard map does not know yet, leave it to the broadcast
+        return targeted.size() == owners.size() ? targeted : shards;
+    }
+
+    /* null when a value is missing or a list is empty, the broadcast answers those */
+    private List<Object> keysFor(Object[] args) {
+        List<Object> keys = new ArrayList<>();
+        if (composite != null) {
+            Object[] parts = new Object[composite.size()];
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = composite.get(i).of(args);
+                if (parts[i] == null || isMultiValued(parts[i])) {
+                    return null;
+                }
+            }
+            keys.add(ShardKeys.composite(parts));
+            return keys;
+        }
+        for (Value value : values) {
+            Object key = value.of(args);
+            if (key instanceof Iterable) {
+                for (Object element : (Iterable<?>) key) {
+                    keys.add(element);
+                }
+            } else if (key != null && key.getClass().isArray()) {
+                for (int i = 0; i < Array.getLength(key); i++) {
+                    keys.add(Array.get(key, i));
+                }
+            } else {
+                keys.add(key);
+            }
+        }
+        return keys.isEmpty() || keys.contains(null) ? null : keys;
+    }
+
+    private static boolean isMultiValued(Object value) {
+        return value instanceof Iterable || value.getClass().isArray();
+    }
+
+    /*
+     * Splits the range at its top level ANDs, looking into parentheses that hold
+     * nothing but more ANDs. A range with a top level OR limits nothing for sure,
+     * so it contributes no conjuncts, which is safe because it is itself a conjunct.
+     */
+    private static void collectConjuncts(List<String> tokens, int from, int to, List<List<String>> conjuncts) {
+        while (from < to && tokens.get(from).equals("(") && closingParenthesis(tokens, from) == to - 1) {
+            from++;
+            to--;
+        }
+        int depth = 0;
+        for (int i = from; i < to; i++) {
+            String token = tokens.get(i);
+            depth += token.equals("(") ? 1 : token.equals(")") ? -1 : 0;
+            if (depth == 0 && token.equals("or")) {
+                return;
+            }
+        }
+        int start = from;
+        boolean inBetween = false;
+        depth = 0;
+        for (int i = from; i <= to; i++) {
+            String token = i < to ? tokens.get(i) : "and";
+            depth += token.equals("(") ? 1 : token.equals(")") ? -1 : 0;
+            if (depth != 0) {
+                continue;
+            }
+            if (token.equals("between")) {
+                inBetween = true;
+            } else if (token.equals("and") && inBetween) {
+                inBetween = false;
+            } else if (token.equals("and")) {
+                if (i > start && tokens.get(start).equals("(") && closingParenthesis(tokens, start) == i - 1) {
+                    collectConjuncts(tokens, start, i, conjuncts);
+                } else if (i > start) {
+                    conjuncts.add(tokens.subList(start, i));
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    /* Records column = value, value = column and column IN (values, ...) */
+    private static void restrict(List<String> conjunct, Set<String> qualifiers, int[] argumentIndexes,
+                                 Map<String, List<Value>> restrictions) {
+        int[] position = new int[1];
+        String column = columnAt(conjunct, position, qualifiers);
+        List<Value> values = new ArrayList<>();
+        if (column != null && position[0] + 1 < conjunct.size() && conjunct.get(position[0]).equals("=")) {
+            Value value = valueOf(conjunct.get(position[0] + 1), argumentIndexes);
+            if (value == null || position[0] + 2 != conjunct.size()) {
+                return;
+            }
+            values.add(value);
+        } else if (column != null && position[0] + 2 < conjunct.size() && conjunct.get(position[0]).equals("in")
+                && conjunct.get(position[0] + 1).equals("(") && conjunct.get(conjunct.size() - 1).equals(")")) {
+            for (int i = position[0] + 2; i < conjunct.size() - 1; i += 2) {
+                Value value = valueOf(conjunct.get(i), argumentIndexes);
+                String separator = conjunct.get(i + 1);
+                if (value == null || !(separator.equals(",") || i + 1 == conjunct.size() - 1)) {
+                    return;
+                }
+                values.add(value);
+            }
+        } else if (conjunct.size() >= 3 && conjunct.get(1).equals("=")) {
+            // the value first
+            position[0] = 2;
+            column = columnAt(conjunct, position, qualifiers);
+            Value value = valueOf(conjunct.get(0), argumentIndexes);
+            if (column == null || value == null || position[0] != conjunct.size()) {
+                return;
+            }
+            values.add(value);
+        } else {
+            return;
+        }
+        if (values.isEmpty()) {
+            return;
+        }
+        // of two restrictions on the column, the narrower one counts
+        List<Value> existing = restrictions.get(column);
+        if (existing == null || values.size() < existing.size()) {
+            restrictions.put(column, values);
+        }
+    }
+
+    /* column or qualifier.column at position[0], which is moved past it */
+    private static String columnAt(List<String> tokens, int[] position, Set<String> qualifiers) {
+        int i = position[0];
+        if (i >= tokens.size() || !isWord(tokens.get(i))) {
+            return null;
+        }
+        if (i + 2 < tokens.size() && tokens.get(i + 1).equals(".")) {
+            if (!qualifiers.contains(tokens.get(i)) || !isWord(tokens.get(i + 2))) {
+                return null;
+            }
+            position[0] = i + 3;
+            return tokens.get(i + 2);
+        }
+        position[0] = i + 1;
+        return tokens.get(i);
+    }
+
+    private static Value valueOf(String token, int[] argumentIndexes) {
+        if (token.startsWith("?")) {
+            int placeholder = Integer.parseInt(token.substring(1));
+            return placeholder < argumentIndexes.length ? new Value(argumentIndexes[placeholder], null) : null;
+        }
+        if (token.startsWith("'")) {
+            return new Value(-1, token.substring(1, token.length() - 1).replace("''", "'"));
+        }
+        if (Character.isDigit(token.charAt(0))) {
+            try {
+                // hashed by its decimal digits, the same for Integer and Long keys
+                return new Value(-1, Long.valueOf(token));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isWord(String token) {
+        return Character.isLetter(token.charAt(0)) || token.charAt(0) == '_';
+    }
+
+    private static boolean readsOneTable(List<String> tokens) {
+        int selects = 0;
+        for (String token : tokens) {
+            if (token.equals("select")) {
+                selects++;
+            }
+            if (token.equals("join") || token.equals("union") || token.equals("intersect") || token.equals("except")
+                    || token.equals("using")) {
+                return false;
+            }
+        }
+        return selects <= 1;
+    }
+
+    private static int indexOfTopLevel(List<String> tokens, String keyword, int from, int to) {
+        int depth = 0;
+        for (int i = from; i < to; i++) {
+            String token = tokens.get(i);
+            depth += token.equals("(") ? 1 : token.equals(")") ? -1 : 0;
+            if (depth == 0 && token.equals(keyword)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int closingParenthesis(List<String> tokens, int open) {
+        int depth = 0;
+        for (int i = open; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            depth += token.equals("(") ? 1 : token.equals(")") ? -1 : 0;
+            if (depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Words and quoted identifiers lower cased, string literals kept with their
+     * quotes, numbers, operators, punctuation, and the placeholders numbered in
+     * order as ?0, ?1, ... Comments are dropped. Returns null for SQL it cannot
+     * read, like an unterminated literal.
+     */
+    private static List<String> tokenize(String sql) {
+        List<String> tokens = new ArrayList<>();
+        int placeholders = 0;
+        int i = 0;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (sql.startsWith("--", i)) {
+                int end = sql.indexOf('\n', i);
+                i = end < 0 ? sql.length() : end + 1;
+            } else if (sql.startsWith("/*", i)) {
+                int end = sql.indexOf("*/", i + 2);
+                if (end < 0) {
+                    return null;
+                }
+                i = end + 2;
+            } else if (c == '\'') {
+                int end = i + 1;
+                while (true) {
+                    end = sql.indexOf('\'', end);
+                    if (end < 0) {
+                        return null;
+                    }
+                    if (end + 1 < sql.length() && sql.charAt(end + 1) == '\'') {
+                        end += 2;
+                    } else {
+                        break;
+                    }
+                }
+                tokens.add(sql.substring(i, end + 1));
+                i = end + 1;
+            } else if (c == '"') {
+                int end = sql.indexOf('"', i + 1);
+                if (end < 0) {
+                    return null;
+                }
+                tokens.add(sql.substring(i + 1, end).toLowerCase(Locale.ROOT));
+                i = end + 1;
+            } else if (c == '?') {
+                tokens.add("?" + placeholders++);
+                i++;
+            } else if (Character.isLetterOrDigit(c) || c == '_') {
+                int end = i + 1;
+                while (end < sql.length() && (Character.isLetterOrDigit(sql.charAt(end)) || sql.charAt(end) == '_'
+                        || sql.charAt(end) == '$')) {
+                    end++;
+                }
+                tokens.add(sql.substring(i, end).toLowerCase(Locale.ROOT));
+                i = end;
+            } else if ("<>=!:|".indexOf(c) >= 0) {
+                int end = i + 1;
+                while (end < sql.length() && "<>=!:|".indexOf(sql.charAt(end)) >= 0) {
+                    end++;
+                }
+                tokens.add(sql.substring(i, end));
+                i = end;
+            } else {
+                tokens.add(String.valueOf(c));
+                i++;
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,145 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.sharderPackage.utils.EntityRowMapper;
+import jakarta.persistence.Embeddable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the shard key out of entities. What the key of a class is (an
+ * @ShardKey field, several of them, the id or the parts of a composite id)
+ * is worked out once per class into a chain of MethodHandle getters, so
+ * routing an entity is a ClassValue lookup and one or two direct field reads.
+ */
+public final class ShardKeys {
+
+    private static final String COMPOSITE_SEPARATOR = ":";
+
+    private static final ClassValue<Accessor> accessors = new ClassValue<>() {
+        @Override
+        protected Accessor computeValue(Class<?> entityType) {
+            return accessorFor(entityType);
+        }
+    };
+
+    // the same, for the @Embeddable composite ids that findById and deleteById are called with
+    private static final ClassValue<Accessor> idAccessors = new ClassValue<>() {
+        @Override
+        protected Accessor computeValue(Class<?> idType) {
+            return new Accessor(null, idPartsOf(idType), true, List.of());
+        }
+    };
+
+    private ShardKeys() {
+    }
+
+    /** The value the entity is placed by, or null when it has none yet (like an unsaved generated id). */
+    public static Object of(Object entityInstance) {
+        return accessors.get(entityInstance.getClass()).keyOf(entityInstance);
+    }
+
+    /**
+     * The value the entity with the given @Embeddable composite id is placed by,
+     * read from the id the way of() reads it from the entity.
+     */
+    public static Object ofId(Object embeddableId) {
+        return idAccessors.get(embeddableId.getClass()).keyOf(embeddableId);
+    }
+
+    /** Whether the entity class is placed by its @Id or parts of its composite id, so a lookup by id can be routed. */
+    public static boolean routesById(Class<?> entityType) {
+        return accessors.get(entityType).byId;
+    }
+
+    /** The names of the entity's @ShardKey fields, empty when it is placed by its id. */
+    public static List<String> fieldNames(Class<?> entityType) {
+        return accessors.get(entityType).fieldNames;
+    }
+
+    /** The key several values form together, the way composite keys are hashed. */
+    public static Object composite(Object[] values) {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                return null;
+            }
+            if (i > 0) {
+                key.append(COMPOSITE_SEPARATOR);
+            }
+            key.append(values[i]);
+        }
+        return key.toString();
+    }
+
+    private static Accessor accessorFor(Class<?> entityType) {
+        EntityRowMapper.EntityMetadata metadata = EntityRowMapper.metadataFor(entityType);
+        List<EntityRowMapper.Property> keyProperties = annotated(metadata);
+        if (!keyProperties.isEmpty()) {
+            List<String> names = new ArrayList<>();
+            keyProperties.forEach(property -> names.add(property.getField().getName()));
+            return new Accessor(null, keyProperties, false, names);
+        }
+
+        EntityRowMapper.Property idProperty = metadata.getIdProperty();
+        if (idProperty == null) {
+            return new Accessor(null, List.of(), false, List.of());
+        }
+        Class<?> idType = idProperty.getField().getType();
+        if (!idType.isAnnotationPresent(Embeddable.class)) {
+            return new Accessor(idProperty, List.of(), true, List.of());
+        }
+        return new Accessor(idProperty, idPartsOf(idType), true, List.of());
+    }
+
+    // the parts of a composite id the key is made of: its @ShardKey parts, or all of them
+    private static List<EntityRowMapper.Property> idPartsOf(Class<?> idType) {
+        EntityRowMapper.EntityMetadata idMetadata = EntityRowMapper.metadataFor(idType);
+        List<EntityRowMapper.Property> idParts = annotated(idMetadata);
+        return idParts.isEmpty() ? idMetadata.getProperties() : idParts;
+    }
+
+    private static List<EntityRowMapper.Property> annotated(EntityRowMapper.EntityMetadata metadata) {
+        List<EntityRowMapper.Property> properties = new ArrayList<>();
+        for (EntityRowMapper.Property property : metadata.getProperties()) {
+            if (property.getField().isAnnotationPresent(ShardKey.class)) {
+                properties.add(property);
+            }
+        }
+        return properties;
+    }
+
+    private static final class Accessor {
+
+        // read first when the key lives in the id, null when it is read from the entity itself
+        private final EntityRowMapper.Property idProperty;
+        private final EntityRowMapper.Property[] parts;
+        private final boolean byId;
+        private final List<String> fieldNames;
+
+        Accessor(EntityRowMapper.Property idProperty, List<EntityRowMapper.Property> parts, boolean byId, List<String> fieldNames) {
+            this.idProperty = idProperty;
+            this.parts = parts.toArray(new EntityRowMapper.Property[0]);
+            this.byId = byId;
+            this.fieldNames = List.copyOf(fieldNames);
+        }
+
+        Object keyOf(Object entityInstance) {
+            Object source = entityInstance;
+            if (idProperty != null) {
+                source = idProperty.get(entityInstance);
+                if (parts.length == 0 || source == null) {
+                    return source;
+                }
+            }
+            if (parts.length == 1) {
+                return parts[0].get(source);
+            }
+            Object[] values = new Object[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                values[i] = parts[i].get(source);
+            }
+            return composite(values);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.piraxx.sharder.sharderPackage;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The recent response times of one shard, from handing a fan-out task to the
+ * pool until its result is in, kept to know when a read is late enough to be
+ * hedged. The last 256 samples are kept and their 95th percentile is worked
+ * out again every 16 samples, so reading it is a volatile read.
+ */
+final class ShardLatencyTracker {
+
+    private static final int WINDOW = 256;
+
+    private static final int RECOMPUTE_EVERY = 16;
+
+    // a percentile of a handful of samples says nothing yet
+    private static final int MIN_SAMPLES = 32;
+
+    private static final ConcurrentHashMap<Object, ShardLatencyTracker> trackers = new ConcurrentHashMap<>();
+
+    private final long[] samples = new long[WINDOW];
+    private int count;
+    private int next;
+    private volatile long p95Nanos = -1;
+
+    static ShardLatencyTracker of(Object shard) {
+        return trackers.computeIfAbsent(shard, key -> new ShardLatencyTracker());
+    }
+
+    synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % WINDOW;
+        count = Math.min(count + 1, WINDOW);
+        if (count >= MIN_SAMPLES && next % RECOMPUTE_EVERY == 0) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            p95Nanos = sorted[(int) Math.ceil(count * 0.95) - 1];
+        }
+    }
+
+    /** The 95th percentile of the recent response times, or -1 while there are too few of them. */
+    long p95Nanos() {
+        return p95Nanos;
+    }
+}
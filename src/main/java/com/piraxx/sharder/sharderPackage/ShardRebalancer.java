@@ -0,0 +1,381 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.configs.ShardProperties;
+import com.piraxx.sharder.sharderPackage.cache.ShardEntityCache;
+import com.piraxx.sharder.sharderPackage.index.GlobalSecondaryIndex;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategies;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategy;
+import com.piraxx.sharder.sharderPackage.utils.ResourceCloser;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.PersistenceUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+/**
+ * Adds or removes a shard while the application keeps serving requests.
+ *
+ * A topology change goes through three steps:
+ *
+ * 1. The new placement becomes the one every lookup uses, so new writes land on
+ *    the shard that will own the key. It is published in one ShardTopology
+ *    snapshot with the added shard and the old placement, and a keyed read
+ *    that finds nothing on the new owner is retried on the old one (dual
+ *    read). Deletes are sent to both owners.
+ * 2. In the background every entity table of every old shard is walked in
+ *    primary key order, and rows whose key now belongs to another shard are
+ *    copied there in batches, never faster than rebalanceRowsPerSecond. A copy
+ *    never overwrites a row that already exists on the target, because that row
+ *    was written after the change and is newer. The moved rows of a batch are
+ *    read again FOR SHARE in a transaction on the source that stays open until
+ *    they are on the target: a delete, which runs on the old owner first,
+ *    either removed the row before it is read (and it is not copied) or waits
+ *    for the copy and then finds the row on the new owner too.
+ * 3. Cut over: reads stop falling back to the old owner and the moved rows are
+ *    deleted from the shards they came from, with the same throttle.
+ *
+ * Changing the weights of the shards (reweight) is a rebalance too: the rows
+ * the new weights place elsewhere are moved the same way.
+ *
+ * Rows are routed by their @Id, the same key the aspect extracts from derived
+ * repository calls. Tables with a composite id are not moved. The new shard
+ * must already have the schema. Until the cut over a broadcast @Query can see a
+ * moved row on both shards.
+ */
+@Component
+public class ShardRebalancer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardRebalancer.class);
+
+    private static final int batchSize = (int) ShardProperties.readLongFromEnv("rebalanceBatchSize", 500);
+
+    private static final long rowsPerSecond = ShardProperties.readLongFromEnv("rebalanceRowsPerSecond", 2_000);
+
+    private final ExecutorService rebalanceExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "shard-rebalancer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private CompletableFuture<Void> running = CompletableFuture.completedFuture(null);
+
+    // what the running (or failed) rebalance works on, so a failed one can be resumed
+    private List<EntityTable> pendingTables;
+    private String pendingRetiredShard;
+
+    @PersistenceUnit
+    private EntityManagerFactory entityManagerFactory;
+
+    /**
+     * Returns the shard that owned the key before the running rebalance, when that
+     * is not the shard that owns it now, or null.
+     */
+    public static String previousOwner(Object shardKey) {
+        return ShardingContextHolder.getTopology().previousOwner(shardKey);
+    }
+
+    public static boolean isRebalancing() {
+        return ShardTopology.current().getPreviousPlacement() != null;
+    }
+
+    /** Starts routing keys to the new shard and moves its rows to it in the background. */
+    public CompletableFuture<Void> addShard(String shardName, DataSource dataSource) {
+        return addShard(shardName, dataSource, 1.0);
+    }
+
+    /** Like addShard, for a shard that gets a share of the keys proportional to its weight. */
+    public synchronized CompletableFuture<Void> addShard(String shardName, DataSource dataSource, double weight) {
+        ensureIdle();
+        Map<String, Double> shards = currentWeights();
+        if (shards.containsKey(shardName)) {
+            throw new IllegalArgumentException("Shard " + shardName + " already exists");
+        }
+        shards.put(shardName, weight);
+        List<EntityTable> tables = EntityTable.all(entityManagerFactory);
+        ShardPlacementStrategy next = ShardPlacementStrategies.createWithNodes(shards);
+        // the shard is published with the placement that sends keys to it, so it is never placed but missing
+        return start(tables, null, topology -> topology.withShard(shardName, dataSource).rebalancingTo(next));
+    }
+
+    /** Moves every row off the shard, then stops using it and closes its data source. */
+    public synchronized CompletableFuture<Void> removeShard(String shardName) {
+        ensureIdle();
+        Map<String, Double> shards = currentWeights();
+        if (shards.remove(shardName) == null) {
+            throw new IllegalArgumentException("Shard " + shardName + " does not exist");
+        }
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("Cannot remove the last shard");
+        }
+        ShardPlacementStrategy next = ShardPlacementStrategies.createWithNodes(shards);
+        return start(EntityTable.all(entityManagerFactory), shardName, topology -> topology.rebalancingTo(next));
+    }
+
+    /**
+     * Gives the shards new weights and moves the rows the new weights place
+     * elsewhere. Shards left out keep their weight.
+     */
+    public synchronized CompletableFuture<Void> reweight(Map<String, Double> weights) {
+        ensureIdle();
+        Map<String, Double> shards = currentWeights();
+        weights.forEach((shardName, weight) -> {
+            if (shards.replace(shardName, weight) == null) {
+                throw new IllegalArgumentException("Shard " + shardName + " does not exist");
+            }
+        });
+        ShardPlacementStrategy next = ShardPlacementStrategies.createWithNodes(shards);
+        return start(EntityTable.all(entityManagerFactory), null, topology -> topology.rebalancingTo(next));
+    }
+
+    /* the shards of the current placement with their weights, in placement order */
+    private static Map<String, Double> currentWeights() {
+        ShardPlacementStrategy placement = ShardPlacementStrategies.shared();
+        Map<String, Double> weights = new LinkedHashMap<>();
+        placement.getNodes().forEach(shardName -> weights.put(shardName, placement.getWeight(shardName)));
+        return weights;
+    }
+
+    private void ensureIdle() {
+        if (!running.isDone()) {
+            throw new IllegalStateException("A rebalance is already running");
+        }
+        if (isRebalancing()) {
+            throw new IllegalStateException("The previous rebalance failed before the cut over, resume it first");
+        }
+    }
+
+    /**
+     * Runs a rebalance that failed before its cut over again. Copying is idempotent,
+     * so starting over from the first row is safe.
+     */
+    public synchronized CompletableFuture<Void> resume() {
+        if (!running.isDone()) {
+            throw new IllegalStateException("A rebalance is already running");
+        }
+        ShardTopology topology = ShardTopology.current();
+        if (topology.getPreviousPlacement() == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return migrate(topology.getPreviousPlacement(), topology.getPlacement());
+    }
+
+    private CompletableFuture<Void> start(List<EntityTable> tables, String retiredShard, UnaryOperator<ShardTopology> change) {
+        // the new placement and the fallback to the old one are published in one snapshot, before the first key moves
+        ShardTopology topology = ShardTopology.update(change);
+        ShardPlacementStrategy previous = topology.getPreviousPlacement();
+        ShardPlacementStrategy next = topology.getPlacement();
+        // cached rows are filed under the shard that owned them, which changes for the moved keys
+        ShardEntityCache.invalidateAll();
+        pendingTables = tables;
+        pendingRetiredShard = retiredShard;
+        logger.info("Rebalancing from {} to {}", previous, next);
+        return migrate(previous, next);
+    }
+
+    private CompletableFuture<Void> migrate(ShardPlacementStrategy previous, ShardPlacementStrategy next) {
+        List<EntityTable> tables = pendingTables;
+        String retiredShard = pendingRetiredShard;
+        running = CompletableFuture.runAsync(() -> {
+            try {
+                for (String source : previous.getNodes()) {
+                    for (EntityTable table : tables) {
+                        copyMovedRows(table, source, next);
+                    }
+                }
+
+                ShardTopology.update(ShardTopology::cutOver);
+                logger.info("Rebalance cut over to {}", next);
+
+                for (String source : previous.getNodes()) {
+                    for (EntityTable table : tables) {
+                        deleteMovedRows(table, source, next);
+                    }
+                }
+                if (retiredShard != null) {
+                    Object retired = ShardTopology.current().getDataSources().get(retiredShard);
+                    ShardTopology.update(topology -> topology.withoutShard(retiredShard));
+                    if (retired instanceof AutoCloseable) {
+                        ResourceCloser.closeResources((AutoCloseable) retired);
+                    }
+                }
+                logger.info("Rebalance finished");
+            } catch (SQLException e) {
+                // the dual read stays on so no row becomes unreachable
+                logger.error("Rebalance to {} failed, keys are still read from both placements", next, e);
+                throw new CompletionException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        }, rebalanceExecutor);
+        return running;
+    }
+
+    private static void copyMovedRows(EntityTable table, String source, ShardPlacementStrategy next)
+            throws SQLException, InterruptedException {
+        Throttle throttle = new Throttle(rowsPerSecond);
+        long copied = 0;
+        Object lastId = null;
+        List<Object[]> batch;
+        while (!(batch = readBatch(table, source, lastId)).isEmpty()) {
+            lastId = batch.get(batch.size() - 1)[0];
+
+            List<Object> movedIds = new ArrayList<>();
+            for (Object[] row : batch) {
+                if (!source.equals(next.getNode(table.shardKeyOf(row)))) {
+                    movedIds.add(row[0]);
+                }
+            }
+            if (!movedIds.isEmpty()) {
+                copied += copyLocked(table, source, movedIds, next);
+            }
+            throttle.pass(batch.size());
+        }
+        logger.info("Copied {} rows of {} off {}", copied, table.name, source);
+    }
+
+    /*
+     * The rows are locked on the source until they are on the target, so a delete
+     * cannot slip in between reading them and writing the copy and be undone by it.
+     */
+    private static int copyLocked(EntityTable table, String source, List<Object> ids, ShardPlacementStrategy next)
+            throws SQLException {
+        String sql = "select " + String.join(", ", table.columns) + " from " + table.name
+                + " where " + table.idColumn + " in (" + String.join(", ", Collections.nCopies(ids.size(), "?")) + ")"
+                + " for share";
+        try (Connection connection = shard(source).getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                List<Object[]> rows = readRows(connection, sql, ids);
+                Map<String, List<Object[]>> rowsByTarget = new HashMap<>();
+                for (Object[] row : rows) {
+                    rowsByTarget.computeIfAbsent(next.getNode(table.shardKeyOf(row)), key -> new ArrayList<>()).add(row);
+                }
+                for (Map.Entry<String, List<Object[]>> target : rowsByTarget.entrySet()) {
+                    insertIfAbsent(table, target.getKey(), target.getValue());
+                    GlobalSecondaryIndex.moveEntities(table.entityType, idsOf(target.getValue()), target.getKey());
+                }
+                connection.commit();
+                return rows.size();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private static List<Object> idsOf(List<Object[]> rows) {
+        List<Object> ids = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            ids.add(row[0]);
+        }
+        return ids;
+    }
+
+    private static void deleteMovedRows(EntityTable table, String source, ShardPlacementStrategy next)
+            throws SQLException, InterruptedException {
+        Throttle throttle = new Throttle(rowsPerSecond);
+        Object lastId = null;
+        List<Object[]> batch;
+        while (!(batch = readBatch(table, source, lastId)).isEmpty()) {
+            lastId = batch.get(batch.size() - 1)[0];
+            try (Connection connection = shard(source).getConnection();
+                 PreparedStatement delete = connection.prepareStatement(
+                         "delete from " + table.name + " where " + table.idColumn + " = ?")) {
+                for (Object[] row : batch) {
+                    if (!source.equals(next.getNode(table.shardKeyOf(row)))) {
+                        delete.setObject(1, row[0]);
+                        delete.addBatch();
+                    }
+                }
+                delete.executeBatch();
+            }
+            throttle.pass(batch.size());
+        }
+    }
+
+    /* keyset pagination, so each batch is an index range scan no matter how far in we are */
+    private static List<Object[]> readBatch(EntityTable table, String source, Object lastId) throws SQLException {
+        String sql = "select " + String.join(", ", table.columns) + " from " + table.name
+                + (lastId == null ? "" : " where " + table.idColumn + " > ?")
+                + " order by " + table.idColumn + " limit " + batchSize;
+        try (Connection connection = shard(source).getConnection()) {
+            return readRows(connection, sql, lastId == null ? List.of() : List.of(lastId));
+        }
+    }
+
+    private static List<Object[]> readRows(Connection connection, String sql, List<Object> parameters) throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement(sql)) {
+            for (int i = 0; i < parameters.size(); i++) {
+                select.setObject(i + 1, parameters.get(i));
+            }
+            List<Object[]> rows = new ArrayList<>(batchSize);
+            try (ResultSet resultSet = select.executeQuery()) {
+                int columnCount = resultSet.getMetaData().getColumnCount();
+                while (resultSet.next()) {
+                    Object[] row = new Object[columnCount];
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = resultSet.getObject(i + 1);
+                    }
+                    rows.add(row);
+                }
+            }
+            return rows;
+        }
+    }
+
+    private static void insertIfAbsent(EntityTable table, String target, List<Object[]> rows) throws SQLException {
+        String sql = table.insertSql() + " on conflict do nothing";
+        try (Connection connection = shard(target).getConnection();
+             PreparedStatement insert = connection.prepareStatement(sql)) {
+            for (Object[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    insert.setObject(i + 1, row[i]);
+                }
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+    }
+
+    private static DataSource shard(String shardName) {
+        DataSource dataSource = (DataSource) ShardTopology.current().getDataSources().get(shardName);
+        if (dataSource == null) {
+            throw new IllegalStateException("Unknown shard " + shardName);
+        }
+        // rows are copied and deleted on the primaries, replicas only follow
+        return ReplicatedDataSource.primaryOf(dataSource);
+    }
+
+    /* Spaces batches out so that on average no more than rowsPerSecond rows are touched. */
+    static final class Throttle {
+        private final long rowsPerSecond;
+        private final long startNanos = System.nanoTime();
+        private long rows;
+
+        Throttle(long rowsPerSecond) {
+            this.rowsPerSecond = rowsPerSecond;
+        }
+
+        void pass(int batchRows) throws InterruptedException {
+            rows += batchRows;
+            long dueNanos = startNanos + rows * TimeUnit.SECONDS.toNanos(1) / rowsPerSecond;
+            long waitNanos = dueNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+    }
+}
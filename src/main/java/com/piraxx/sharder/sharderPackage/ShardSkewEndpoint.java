@@ -0,0 +1,123 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.configs.ShardProperties;
+import com.piraxx.sharder.sharderPackage.placement.PlacementStatistics;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategies;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategy;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.PersistenceUnit;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * /actuator/shardskew: how evenly the shards share the data, next to their
+ * weights, and the weights that would even it out.
+ *
+ * ?source=keys (the default) places a sample of keys (1 to samples) with the
+ * current placement, which shows the skew of the strategy itself. samples is
+ * capped at shardSkewMaxSamples (1,000,000 by default).
+ * ?source=rows adds up the rows of every entity table on every shard, which
+ * also shows skew of the data, like a few keys with many rows. The suggested
+ * weights can be applied with ShardRebalancer.reweight.
+ *
+ * The rows are not counted: they are the planner's estimates in
+ * pg_class.reltuples, which ANALYZE and autovacuum keep close enough for a
+ * skew report, so a request costs one catalog query per shard instead of a
+ * scan of every table. A table that was never analyzed counts as empty.
+ */
+@Component
+@Endpoint(id = "shardskew")
+public class ShardSkewEndpoint {
+
+    private static final int defaultSamples = 100_000;
+
+    private static final int maxSamples = (int) ShardProperties.readLongFromEnv("shardSkewMaxSamples", 1_000_000);
+
+    // the estimated rows of the tables named in the array, tables missing on the shard left out
+    private static final String ESTIMATED_ROWS_SQL = "select coalesce(sum(greatest(c.reltuples, 0)), 0)::bigint"
+            + " from unnest(?) as t(name) join pg_class c on c.oid = to_regclass(t.name)";
+
+    @PersistenceUnit
+    private EntityManagerFactory entityManagerFactory;
+
+    @ReadOperation
+    public Map<String, Object> skew(@Nullable String source, @Nullable Integer samples) throws SQLException {
+        ShardTopology topology = ShardTopology.current();
+        ShardPlacementStrategy placement = ShardPlacementStrategies.shared();
+        boolean rows = "rows".equalsIgnoreCase(source);
+        PlacementStatistics statistics = rows
+                ? rowStatistics(topology, placement)
+                : placement.statistics(sampleKeys(samples == null ? defaultSamples : Math.min(samples, maxSamples)));
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("source", rows ? "rows" : "keys");
+        if (rows) {
+            report.put("estimated", true);
+        }
+        report.put("topologyVersion", topology.getVersion());
+        report.put("rebalancing", topology.getPreviousPlacement() != null);
+        report.put("count", statistics.getSampleSize());
+        report.put("countsPerShard", statistics.getKeysPerShard());
+        report.put("ownership", statistics.getOwnership());
+        report.put("weights", statistics.getWeights());
+        report.put("standardDeviation", statistics.getStandardDeviation());
+        report.put("maxOverExpected", statistics.getMaxOverMean());
+        report.put("idealWeights", statistics.getIdealWeights());
+        if (!rows) {
+            report.put("nanosPerLookup", statistics.getNanosPerLookup());
+        }
+        return report;
+    }
+
+    /* the keys 1 to samples, boxed as the aspect sees Long ids, without holding them all */
+    private static Iterable<Object> sampleKeys(int samples) {
+        if (samples <= 0) {
+            throw new IllegalArgumentException("samples must be positive: " + samples);
+        }
+        return new AbstractList<>() {
+            @Override
+            public Object get(int index) {
+                return (long) index + 1;
+            }
+
+            @Override
+            public int size() {
+                return samples;
+            }
+        };
+    }
+
+    private PlacementStatistics rowStatistics(ShardTopology topology, ShardPlacementStrategy placement) throws SQLException {
+        Map<String, Long> rowsPerShard = new LinkedHashMap<>();
+        Map<String, Double> weights = new LinkedHashMap<>();
+        List<EntityTable> tables = EntityTable.all(entityManagerFactory);
+        Object[] tableNames = tables.stream().map(table -> table.name).toArray();
+        for (Map.Entry<Object, Object> shard : topology.getDataSources().entrySet()) {
+            String shardName = (String) shard.getKey();
+            long rows;
+            try (Connection connection = ((DataSource) shard.getValue()).getConnection();
+                 PreparedStatement statement = connection.prepareStatement(ESTIMATED_ROWS_SQL)) {
+                statement.setArray(1, connection.createArrayOf("text", tableNames));
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    resultSet.next();
+                    rows = resultSet.getLong(1);
+                }
+            }
+            rowsPerShard.put(shardName, rows);
+            weights.put(shardName, placement.getWeight(shardName));
+        }
+        return PlacementStatistics.of("rows", rowsPerShard, weights);
+    }
+}
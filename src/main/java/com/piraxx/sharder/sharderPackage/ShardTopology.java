@@ -0,0 +1,148 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.sharderPackage.metrics.ShardMetrics;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Everything routing depends on, as one immutable, numbered snapshot: the
+ * placement in use, the placement used before a running rebalance, and the
+ * shards by name.
+ *
+ * These used to be separate volatile fields, so a request could pick a shard
+ * with the new placement and look it up in the old shard table, or see the
+ * rebalance fallback switched off between two reads. A change now builds a
+ * new snapshot next to the current one and publishes it with compareAndSet,
+ * so readers never lock and always see the parts of one version together.
+ * Changes are rare and made by one thread at a time (startup, the
+ * rebalancer); concurrent ones retry on the newer snapshot.
+ *
+ * The placement strategies themselves are only filled in before they are
+ * published, never changed in place afterwards.
+ *
+ * The sharding aspect pins the snapshot a repository call started with (see
+ * ShardingContextHolder), so the whole call is routed with one version.
+ */
+public final class ShardTopology {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardTopology.class);
+
+    private static final AtomicReference<ShardTopology> current =
+            new AtomicReference<>(new ShardTopology(0, null, null, Collections.emptyMap()));
+
+    private final long version;
+    private final ShardPlacementStrategy placement;
+    private final ShardPlacementStrategy previousPlacement;
+    // shard name to DataSource, in declaration order
+    private final Map<Object, Object> dataSources;
+
+    private ShardTopology(long version, ShardPlacementStrategy placement, ShardPlacementStrategy previousPlacement,
+                          Map<Object, Object> dataSources) {
+        this.version = version;
+        this.placement = placement;
+        this.previousPlacement = previousPlacement;
+        this.dataSources = dataSources;
+    }
+
+    public static ShardTopology current() {
+        return current.get();
+    }
+
+    /**
+     * Publishes the snapshot the change makes of the current one, under the next
+     * version. The change may be applied more than once when another change got
+     * in first, so it must not have side effects. Returning the snapshot it was
+     * given publishes nothing.
+     */
+    static ShardTopology update(UnaryOperator<ShardTopology> change) {
+        while (true) {
+            ShardTopology previous = current.get();
+            ShardTopology changed = change.apply(previous);
+            if (changed == previous) {
+                return previous;
+            }
+            ShardTopology next = new ShardTopology(previous.version + 1, changed.placement, changed.previousPlacement,
+                    changed.dataSources);
+            if (current.compareAndSet(previous, next)) {
+                ShardMetrics.recordTopologyVersion(next.version);
+                logger.info("Topology version {}: shards {}, placed on {}{}", next.version, next.dataSources.keySet(),
+                        next.placement == null ? "none" : next.placement.getNodes(),
+                        next.previousPlacement == null ? "" : ", rebalancing from " + next.previousPlacement.getNodes());
+                return next;
+            }
+        }
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /** The placement every key is routed with, null before the shards are configured. */
+    public ShardPlacementStrategy getPlacement() {
+        return placement;
+    }
+
+    /** The placement before the running rebalance, null when none is running. */
+    public ShardPlacementStrategy getPreviousPlacement() {
+        return previousPlacement;
+    }
+
+    /** The shards by name. The map is never changed, a new snapshot brings a new one. */
+    public Map<Object, Object> getDataSources() {
+        return dataSources;
+    }
+
+    /** The shard that owned the key before the running rebalance, when that is not its owner now, or null. */
+    public String previousOwner(Object shardKey) {
+        if (previousPlacement == null) {
+            return null;
+        }
+        String owner = previousPlacement.getNode(shardKey);
+        return Objects.equals(owner, placement.getNode(shardKey)) ? null : owner;
+    }
+
+    ShardTopology withPlacement(ShardPlacementStrategy placement) {
+        return new ShardTopology(version, placement, previousPlacement, dataSources);
+    }
+
+    /* the shards and a placement holding them, published together so every placed key has a DataSource */
+    ShardTopology withShards(Map<Object, Object> shards, ShardPlacementStrategy placement) {
+        return new ShardTopology(version, placement, null, Collections.unmodifiableMap(new LinkedHashMap<>(shards)));
+    }
+
+    ShardTopology withShard(String shardName, Object dataSource) {
+        Map<Object, Object> shards = new LinkedHashMap<>(dataSources);
+        if (shards.putIfAbsent(shardName, dataSource) != null) {
+            throw new IllegalArgumentException("Shard " + shardName + " already exists");
+        }
+        return new ShardTopology(version, placement, previousPlacement, Collections.unmodifiableMap(shards));
+    }
+
+    ShardTopology withoutShard(String shardName) {
+        Map<Object, Object> shards = new LinkedHashMap<>(dataSources);
+        shards.remove(shardName);
+        return new ShardTopology(version, placement, previousPlacement, Collections.unmodifiableMap(shards));
+    }
+
+    /* routes with next from now on, falling back to the current placement for keys not moved yet */
+    ShardTopology rebalancingTo(ShardPlacementStrategy next) {
+        return new ShardTopology(version, next, placement, dataSources);
+    }
+
+    ShardTopology cutOver() {
+        return new ShardTopology(version, placement, null, dataSources);
+    }
+
+    @Override
+    public String toString() {
+        return "v" + version + " " + dataSources.keySet();
+    }
+}
@@ -0,0 +1,187 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.configs.ShardProperties;
+import com.piraxx.sharder.sharderPackage.ScatterGatherExecutor.ShardStatementWork;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategies;
+import com.piraxx.sharder.sharderPackage.utils.EntityRowMapper;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.PersistenceUnit;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Writes the entities of a saveAll call with one batched upsert per shard
+ * instead of one routed save (a select and an insert) per entity.
+ *
+ * The entities are grouped by the shard that owns their id, every shard gets
+ * its rows as JDBC batches of shardWriteBatchSize statements in one
+ * transaction, and all shards are written at the same time. On Postgres the
+ * pools set reWriteBatchedInserts, so a batch travels as multi-row INSERTs.
+ *
+ * An upsert batch rewritten into one multi-row statement cannot touch the same
+ * row twice, so when the list holds several entities with the same id only the
+ * last one is written, which is what saving them one after the other leaves
+ * in the table.
+ *
+ * Every shard commits its rows on its own connection, so a saveAll is not
+ * atomic across shards: when one shard fails, the others may already have
+ * committed, and saveAll throws with their rows written. Saving the same
+ * entities again is safe, the upsert overwrites what is there. For the same
+ * reason the batched path stays out of Spring transactions, whose connection
+ * it would bypass.
+ *
+ * This only works for entities that map to a single row of plain values (see
+ * EntityTable) and have their id assigned, outside of a transaction. For
+ * anything else saveAll returns null and the caller saves the entities through
+ * JPA, where they take part in the transaction.
+ */
+@Component
+public class ShardedBatchWriter {
+
+    private static final int batchSize = (int) ShardProperties.readLongFromEnv("shardWriteBatchSize", 1_000);
+
+    private static EntityManagerFactory entityManagerFactory;
+
+    private static final ConcurrentHashMap<Class<?>, Optional<EntityTable>> tables = new ConcurrentHashMap<>();
+
+    /* @PersistenceUnit cannot inject a static field, so the factory is handed over through this setter. */
+    @PersistenceUnit
+    public void setEntityManagerFactory(EntityManagerFactory factory) {
+        ShardedBatchWriter.entityManagerFactory = factory;
+    }
+
+    /**
+     * Upserts the entities on the shards that own them and returns them, or returns
+     * null without writing anything when they cannot be written as plain rows.
+     */
+    public static <S> List<S> saveAll(Iterable<S> entities) throws SQLException {
+        if (entityManagerFactory == null || TransactionSynchronizationManager.isActualTransactionActive()) {
+            return null;
+        }
+        List<S> saved = new ArrayList<>();
+        entities.forEach(saved::add);
+        Map<EntityTable, Map<Object, List<Object[]>>> rowsByTable = new LinkedHashMap<>();
+        for (S entity : lastWritePerId(saved, entity -> entity)) {
+            EntityTable table = tableOf(entity.getClass());
+            if (table == null || !table.isWritableAsRow()) {
+                return null;
+            }
+            EntityRowMapper.Property idProperty = EntityRowMapper.metadataFor(entity.getClass()).getIdProperty();
+            Object id = idProperty == null ? null : idProperty.get(entity);
+            Object shardKey = id == null ? null : ShardKeys.of(entity);
+            if (shardKey == null) {
+                // generated ids are only known after the insert, too late to pick a shard
+                return null;
+            }
+            rowsByTable.computeIfAbsent(table, key -> new LinkedHashMap<>())
+                    .computeIfAbsent(ShardPlacementStrategies.shared().getNode(shardKey), key -> new ArrayList<>())
+                    .add(toJdbcValues(table.rowOf(entity, id)));
+        }
+
+        for (Map.Entry<EntityTable, Map<Object, List<Object[]>>> table : rowsByTable.entrySet()) {
+            writeOnShards(table.getKey().upsertSql(), table.getValue());
+        }
+        return saved;
+    }
+
+    /* every shard commits its own rows, a failing shard does not roll back the others */
+    static void writeOnShards(String upsertSql, Map<Object, List<Object[]>> rowsByShard) throws SQLException {
+        Map<Object, ShardStatementWork<Integer>> workByShard = new LinkedHashMap<>();
+        rowsByShard.forEach((shard, rows) -> workByShard.put(shard, preparedStatement -> writeBatches(preparedStatement, rows)));
+        ScatterGatherExecutor.executeOnEachShard(workByShard, upsertSql);
+    }
+
+    /** Whether saveAll can write the entity as a plain row, that is without falling back to JPA. */
+    static boolean isWritableAsRow(Object entity) {
+        if (entityManagerFactory == null || TransactionSynchronizationManager.isActualTransactionActive()) {
+            return false;
+        }
+        EntityTable table = tableOf(entity.getClass());
+        EntityRowMapper.Property idProperty = EntityRowMapper.metadataFor(entity.getClass()).getIdProperty();
+        return table != null && table.isWritableAsRow()
+                && idProperty != null && idProperty.get(entity) != null && ShardKeys.of(entity) != null;
+    }
+
+    /**
+     * The writes that are not overwritten by a later one with the same entity type
+     * and id, in their original order. Writes without an id are all kept.
+     */
+    static <T> List<T> lastWritePerId(List<T> writes, Function<T, Object> entityOf) {
+        Map<List<Object>, Integer> lastIndex = new HashMap<>();
+        for (int i = 0; i < writes.size(); i++) {
+            List<Object> key = identityOf(entityOf.apply(writes.get(i)));
+            if (key != null) {
+                lastIndex.put(key, i);
+            }
+        }
+        if (lastIndex.size() == writes.size()) {
+            return writes;
+        }
+        List<T> kept = new ArrayList<>(lastIndex.size());
+        for (int i = 0; i < writes.size(); i++) {
+            List<Object> key = identityOf(entityOf.apply(writes.get(i)));
+            if (key == null || lastIndex.get(key) == i) {
+                kept.add(writes.get(i));
+            }
+        }
+        return kept;
+    }
+
+    private static List<Object> identityOf(Object entity) {
+        EntityRowMapper.Property idProperty = EntityRowMapper.metadataFor(entity.getClass()).getIdProperty();
+        Object id = idProperty == null ? null : idProperty.get(entity);
+        return id == null ? null : List.of(entity.getClass(), id);
+    }
+
+    private static int writeBatches(PreparedStatement preparedStatement, List<Object[]> rows) throws SQLException {
+        Connection connection = preparedStatement.getConnection();
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            int pending = 0;
+            for (Object[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    preparedStatement.setObject(i + 1, row[i]);
+                }
+                preparedStatement.addBatch();
+                if (++pending == batchSize) {
+                    preparedStatement.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                preparedStatement.executeBatch();
+            }
+            connection.commit();
+            return rows.size();
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /* java.util.Date is not a JDBC type, the drivers only take its java.sql subclasses */
+    private static Object[] toJdbcValues(Object[] row) {
+        for (int i = 0; i < row.length; i++) {
+            if (row[i] instanceof Date && !(row[i] instanceof java.sql.Date)
+                    && !(row[i] instanceof java.sql.Time) && !(row[i] instanceof Timestamp)) {
+                row[i] = new Timestamp(((Date) row[i]).getTime());
+            }
+        }
+        return row;
+    }
+
+    private static EntityTable tableOf(Class<?> entityType) {
+        return tables.computeIfAbsent(entityType, type -> Optional.ofNullable(EntityTable.of(entityManagerFactory, type))).orElse(null);
+    }
+}
@@ -1,519 +1,541 @@
 package com.piraxx.sharder.sharderPackage;
 
-import com.piraxx.sharder.domain.TransactionEntity;
+import com.piraxx.sharder.sharderPackage.cache.ShardCached;
+import com.piraxx.sharder.sharderPackage.cache.ShardEntityCache;
+import com.piraxx.sharder.sharderPackage.index.GlobalSecondaryIndex;
+import com.piraxx.sharder.sharderPackage.index.IndexedFinder;
+import com.piraxx.sharder.sharderPackage.metrics.ShardMetrics;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategies;
+import com.piraxx.sharder.sharderPackage.RepositoryMethodPlan.StatementKind;
 import com.piraxx.sharder.sharderPackage.utils.HandleRepositoryMethodsReponses;
-import com.piraxx.sharder.sharderPackage.utils.ResourceCloser;
-import jakarta.persistence.Entity;
-import jakarta.persistence.EntityManager;
-import jakarta.persistence.Id;
-import jakarta.persistence.PersistenceContext;
-import org.aspectj.lang.JoinPoint;
-import org.aspectj.lang.annotation.After;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
-import org.aspectj.lang.annotation.Before;
 import org.aspectj.lang.reflect.MethodSignature;
-import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.data.jpa.repository.Query;
+import org.springframework.core.ResolvableType;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.Repository;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
-import javax.sql.DataSource;
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.math.BigDecimal;
 import java.sql.*;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
 import java.util.*;
-import java.util.Date;
 
 @Aspect
 @Component
 public class ShardingAspect {
 
-    @PersistenceContext
-    private static EntityManager entityManager;
-
-    static ConsistentHashing consistentHashing = new ConsistentHashing();
-
     private static final Logger logger = LoggerFactory.getLogger(ShardingAspect.class);
 
-
-    @Before("execution(* com.piraxx..repositories..*(..))")
-    private Object shardingAspect(JoinPoint joinPoint) throws IllegalAccessException, SQLException {
-        Boolean usesRawQuery = isAnnotatedWithQuery(joinPoint);
-        if(usesRawQuery){
-            return processRequestWithRawSqlQuery(joinPoint);
-        }else {
-            return processRequestWithoutRawSqlQuery(joinPoint);
+    // CrudRepository and JpaRepository deletes, whose argument is an entity, an id or a collection of them
+    private static final Set<String> CRUD_DELETES = Set.of(
+            "delete", "deleteById", "deleteAll", "deleteAllById", "deleteInBatch",
+            "deleteAllInBatch", "deleteAllByIdInBatch");
+
+    // CrudRepository and JpaRepository methods taking a single id, which only say where the row is when the entity is placed by its id
+    private static final Set<String> CRUD_BY_ID = Set.of(
+            "findById", "existsById", "deleteById", "getById", "getReferenceById", "getOne");
+
+    /*
+     * The entity type of a repository proxy. Inherited methods like deleteById are
+     * declared on CrudRepository, so the type comes from the repository interface
+     * the proxy implements rather than from the method.
+     */
+    private static final ClassValue<Class<?>> repositoryEntityType = new ClassValue<>() {
+        @Override
+        protected Class<?> computeValue(Class<?> proxyClass) {
+            for(Class<?> repositoryInterface: proxyClass.getInterfaces()){
+                if(Repository.class.isAssignableFrom(repositoryInterface)){
+                    Class<?> entityType = ResolvableType.forClass(repositoryInterface).as(Repository.class).resolveGeneric(0);
+                    if(entityType != null){
+                        return entityType;
+                    }
+                }
+            }
+            return null;
         }
-    }
-
-    private static Object processRequestWithRawSqlQuery(JoinPoint joinPoint) throws SQLException {
-        String sqlString = getRawSqlQueryFromJointPoint(joinPoint);
-        /* Note here the is no need to check if query string is already a native
-        * query or not because passing either a jpql or a native query to
-        * session.createNativeQuery(jpql); will still return a native string*/
-        String nativeSql = getNativeSQLFromJPQL(sqlString);
-        Boolean hasQueryParameter = isQueryParameterized(joinPoint);
-        if(hasQueryParameter){
-            return processQueriesWithParameters(nativeSql, joinPoint);
-        }else{
-            return processQueriesWithoutParameters(nativeSql, joinPoint);
+    };
+
+    // the @ShardCached of the repository interface a proxy implements, null when it does not opt in
+    private static final ClassValue<ShardCached> repositoryCacheConfig = new ClassValue<>() {
+        @Override
+        protected ShardCached computeValue(Class<?> proxyClass) {
+            for(Class<?> repositoryInterface: proxyClass.getInterfaces()){
+                ShardCached cached = repositoryInterface.getAnnotation(ShardCached.class);
+                if(cached != null){
+                    return cached;
+                }
+            }
+            return null;
+        }
+    };
+
+    /*
+     * Everything that can be known about the repository method (the native SQL, the
+     * statement kind, how to bind the arguments, how to shape the result and where the
+     * shard key is) is read from its cached plan, so the per call work is a map lookup.
+     *
+     * The advice runs around the call because a broadcast @Query is answered by the
+     * aspect itself and its merged result has to be returned to the caller. Derived
+     * methods only get their shard selected and then proceed as usual.
+     *
+     * The whole call is routed with the topology snapshot current when it starts: a
+     * shard added or removed meanwhile is seen by the next call, never half by this one.
+     * A call made from within another one, like the saves of a saveAll, keeps the
+     * snapshot of the outer call. The context is put back in one place, once the
+     * call has returned, because a broadcast or a rebalancing read proceeds more
+     * than once and every proceed has to see the same shard and topology.
+     */
+    @Around("execution(* com.piraxx..repositories..*(..))")
+    public Object shardingAspect(ProceedingJoinPoint joinPoint) throws Throwable {
+        ShardingContextHolder.Snapshot outerContext = ShardingContextHolder.snapshot();
+        if(!outerContext.hasTopology()){
+            ShardingContextHolder.setTopology(ShardTopology.current());
+        }
+        try {
+            return route(joinPoint);
+        } finally {
+            ShardingContextHolder.restore(outerContext);
         }
     }
 
-    private static Object processRequestWithoutRawSqlQuery(JoinPoint joinPoint) throws IllegalAccessException {
+    private static Object route(ProceedingJoinPoint joinPoint) throws Throwable {
+        MethodSignature signature = (MethodSignature) joinPoint.getSignature();
+        RepositoryMethodPlan plan = RepositoryMethodPlanCache.planFor(signature.getMethod());
         Object[] args = joinPoint.getArgs();
-        if(args.length == 0){
-            // if request comes without arg, like findAll
-
-            /*
-             * To implement query broadcasting to all shards, perform query on each
-             * shard and join the result as shown
-             * select * from db1.t1
-             * union
-             * select * from db2.t2
-             *
-             * The main problem is that if you run into is cross server joins,
-             * on large million + row systems, it can hit the network pretty
-             * hard and take a long time to process queries.
-             *
-             */
-        }else if(args.length == 1){
-            // if request comes in with only one arg like findById or save etc
-            Object arg = args[0];
-            if(arg instanceof String || arg instanceof  Number){
-                // if the arg is just an ID like UUID or from snowflake like in findById etc
-                selectShardForSingleArg(arg);
-
-                /* TODO:  Handle queries with single method arguments that are not Primary key
-                 *
-                 * Note there are repository methods like
-                 * Optional<StaffMemberEntity> findByStaffEmail(String staffEmail);
-                 * that the provided argument needs to be broadcast across all the shards
-                 */
-
-            }else{
-                // if the arg is an entity like in save
-                selectShardForSingleArg(arg);
+        ShardCached cached = repositoryCacheConfig.get(joinPoint.getThis().getClass());
+        if(plan.getStatementKind() == StatementKind.BULK_SAVE){
+            ShardMetrics.recordRouting(ShardMetrics.Routing.BATCHED);
+            Object saved = saveAllOnOwningShards(joinPoint, (Iterable<?>) args[0]);
+            if(cached != null && args[0] != null){
+                ShardEntityCache.evict(entityTypeOf(joinPoint), (Iterable<?>) args[0]);
             }
-        }else {
-            /*
-             * There are situations where multiple arguments come in but only one of them
-             * which may be int (or string) or an object (with an id field) that will
-             * determine the shard to operate on.
-             */
-
-            selectShardForMultipleArgs(args);
+            return saved;
+        }
+        ShardingContextHolder.setReadOnly(plan.isReadOnly() && !inReadWriteTransaction());
+        if(plan.usesRawQuery()){
+            Map<Object, Object> allShards = DataSourcesHandlerAspect.getDataSourceMap();
+            Map<Object, Object> shards = plan.shardsFor(args, allShards);
+            ShardMetrics.recordRouting(shards == allShards ? ShardMetrics.Routing.BROADCAST
+                    : shards.size() == 1 ? ShardMetrics.Routing.SINGLE_SHARD
+                    : ShardMetrics.Routing.MULTI_SHARD);
+            Object result = processRequestWithRawSqlQuery(plan, args, shards);
+            if(cached != null && plan.getStatementKind() == StatementKind.DML){
+                // which rows a @Modifying query touched is not known, so the whole entity goes
+                ShardEntityCache.evictAll(entityTypeOf(joinPoint));
+            }
+            return result;
+        }
+        if(plan.getIndexedFinder() != null){
+            ShardMetrics.recordRouting(ShardMetrics.Routing.INDEX);
+            Object result = findThroughIndex(joinPoint, plan.getIndexedFinder(), args);
+            if(cached != null && plan.getIndexedFinder().isDelete()){
+                ShardEntityCache.evictAll(entityTypeOf(joinPoint));
+            }
+            return result;
         }
-    }
-
-    private static Boolean isQueryParameterized(JoinPoint joinPoint){
-        return joinPoint.getArgs().length > 0;
-    }
 
-    private static Object processQueriesWithoutParameters (String nativeSql, JoinPoint joinPoint) throws SQLException {
-        return broadCastQueryWithoutParametersAcrossShards(nativeSql, joinPoint);
+        String methodName = plan.getMethod().getName();
+        if(CRUD_BY_ID.contains(methodName) && !routesById(joinPoint)){
+            Object result = proceedOnAllShards(joinPoint);
+            if(methodName.equals("deleteById")){
+                removeFromIndex(joinPoint, args);
+                if(cached != null){
+                    evictDeleted(entityTypeOf(joinPoint), args);
+                }
+            }
+            return result;
+        }
+        if(cached != null && methodName.equals("findById") && args.length == 1 && args[0] != null
+                && !inReadWriteTransaction()){
+            return findByIdThroughCache(joinPoint, plan, args, cached);
+        }
+        List<Object> indexAfterSave = List.of();
+        if(methodName.startsWith("save") && args.length == 1){
+            // the index entry goes in first, so the row can never exist without one
+            indexAfterSave = GlobalSecondaryIndex.indexEntities(Collections.singletonList(args[0]));
+        }
+        Object shardKey = processRequestWithoutRawSqlQuery(plan, args);
+        // read before proceeding, the index and the cache record where the row went and nothing else
+        String shard = ShardingContextHolder.getCurrentShardKey();
+        Object result = proceedOnOwningShard(joinPoint, plan, shardKey);
+        if(!indexAfterSave.isEmpty() && result != null){
+            // without a shard key the row went to the shard in the context, or the default one, and now has its id
+            GlobalSecondaryIndex.indexSaved(Collections.singletonList(result), shard);
+        }
+        if(CRUD_DELETES.contains(methodName)){
+            removeFromIndex(joinPoint, args);
+            if(cached != null){
+                evictDeleted(entityTypeOf(joinPoint), args);
+            }
+        }else if(cached != null && methodName.startsWith("save") && args.length == 1 && result != null){
+            ShardEntityCache.written(cached, entityTypeOf(joinPoint), shard, result);
+        }
+        return result;
     }
 
-    private static Object processQueriesWithParameters (String nativeSql, JoinPoint joinPoint) throws SQLException {
-        return broadCastQueryWithParameterAcrossShards(nativeSql, joinPoint);
+    /*
+     * findById on a @ShardCached repository is answered from the cache of the shard
+     * owning the id. A miss reads the shard as usual and fills the cache, unless a
+     * write to the entity happened while the row was being read.
+     */
+    private static Object findByIdThroughCache(ProceedingJoinPoint joinPoint, RepositoryMethodPlan plan, Object[] args, ShardCached cached) throws Throwable {
+        Class<?> entityType = entityTypeOf(joinPoint);
+        Object shardKey = processRequestWithoutRawSqlQuery(plan, args);
+        String shard = ShardingContextHolder.getCurrentShardKey();
+        if(shardKey == null || shard == null){
+            return proceedOnOwningShard(joinPoint, plan, shardKey);
+        }
+        Object hit = ShardEntityCache.get(entityType, shard, args[0]);
+        if(hit != null){
+            ShardMetrics.recordRouting(ShardMetrics.Routing.CACHE);
+            return Optional.of(hit);
+        }
+        long generation = ShardEntityCache.generation(entityType);
+        Object result = proceedOnOwningShard(joinPoint, plan, shardKey);
+        if(result instanceof Optional<?> found && found.isPresent()){
+            ShardEntityCache.putIfUnchanged(cached, entityType, shard, args[0], found.get(), generation);
+        }
+        return result;
     }
 
-    private static Object broadCastQueryWithoutParametersAcrossShards(String nativeSql, JoinPoint joinPoint) throws SQLException {
-        /* There are two situations
-        * 1. operations like SELECT that return sometime
-        * 2. operations like DELETE, INSERT, or UPDATE that return nothing
-        * */
-        if(nativeSql.startsWith("SELECT") || nativeSql.startsWith("select")){
-            return executeQueryWithResultForNoSQLParams(nativeSql, joinPoint);
+    private static void evictDeleted(Class<?> entityType, Object[] args) {
+        if(args.length == 0){
+            ShardEntityCache.evictAll(entityType);
+        }else if(args[0] instanceof Iterable){
+            ShardEntityCache.evict(entityType, (Iterable<?>) args[0]);
         }else{
-            executeQueryWithoutResultForNoSQLParams(nativeSql, joinPoint);
-            return null;
-
+            ShardEntityCache.evict(entityType, Collections.singletonList(args[0]));
         }
     }
 
-    private static Object broadCastQueryWithParameterAcrossShards (String nativeSql, JoinPoint joinPoint) throws SQLException {
-        if(nativeSql.startsWith("SELECT") || nativeSql.startsWith("select")){
-            return executeQueryWithResultForSQLParams(nativeSql, joinPoint);
-        }else{
-            executeQueryWithoutResultForSQLParams(nativeSql, joinPoint);
-            return null;
-        }
+    private static boolean routesById(ProceedingJoinPoint joinPoint) {
+        Class<?> entityType = entityTypeOf(joinPoint);
+        return entityType == null || ShardKeys.routesById(entityType);
     }
 
-    private static void executeQueryWithoutResultForSQLParams(String nativeSql, JoinPoint joinPoint){
-        Map<Object, Object> shardMap = DataSourcesHandlerAspect.getDataSourceMap();
+    /*
+     * An entity placed by an @ShardKey other than its id can be on any shard as far
+     * as its id tells, so a lookup by id asks every shard.
+     */
+    private static Object proceedOnAllShards(ProceedingJoinPoint joinPoint) throws Throwable {
+        ShardMetrics.recordRouting(ShardMetrics.Routing.BROADCAST);
+        List<String> shards = new ArrayList<>();
+        DataSourcesHandlerAspect.getDataSourceMap().keySet().forEach(shard -> shards.add(shard.toString()));
+        return proceedOnShards(joinPoint, shards);
+    }
 
-        /*
-         * A ResultSet object is automatically closed when the Statement object that
-         * generated it is closed, re-executed, or used to retrieve the next result
-         * from a sequence of multiple results.
-         */
-        Connection connection = null;
-        PreparedStatement preparedStatement = null;
-
-        for(Object shardKey: shardMap.keySet()){
-            DataSource dataSource = (DataSource) shardMap.get(shardKey);
-            try{
-                /*
-                 * The reason for calling dataSource.getConnection()
-                 * is that the DataSource object itself does not represent a direct,
-                 * persistent connection to the database. Instead, it acts as a factory
-                 * for providing pooled connections.
-                 *
-                 * DataSource provides connection pooling, where multiple connections are
-                 * kept alive and reused. When you call getConnection(), you're borrowing a
-                 * pre-existing connection from this pool.
-                 *
-                 * After using a connection, it is returned to the pool when it is closed in the finally block.
-                 * The pool manages these connections, so we are not disconnecting from the database, just
-                 * returning the connection to the pool for the next use.
-                 *
-                 */
-                connection = dataSource.getConnection();
-                /*
-                 * Here we are using a PreparedStatement object for sending parameterized
-                 * SQL statements to the database. Recall that parameterized statement are
-                 * statements that are meant to be reused very often with different parameter.
-                 * Thus, it is not suitable to use Statement object which is designed for normal
-                 * statements according documentation on the Statement object that says
-                 * "If the same SQL statement is executed many times, it may be more
-                 * efficient to use a PreparedStatement object."
-                 */
-                preparedStatement = connection.prepareStatement(nativeSql);
-                setSqlParameters(preparedStatement, joinPoint);
-                preparedStatement.executeUpdate();
-            }catch (Exception e){
-                logger.error("Error performing operation on shard: {}", shardKey);
-            }finally {
-                /*
-                 * closes the connection and makes it available for any other component
-                 * in the app. That is makes it idle and returns it to the pool.
-                 *
-                 * Note resources are passed in order the expecting are expected
-                 * and try-with-resources statement can eliminate the need for this
-                 * resource closing util class, but I still implemented it for
-                 * learning purpose.
-                 */
-                ResourceCloser.closeResources(connection, preparedStatement);
-            }
-        }
+    private static Class<?> entityTypeOf(ProceedingJoinPoint joinPoint) {
+        return repositoryEntityType.get(joinPoint.getThis().getClass());
     }
 
-    private static Object executeQueryWithResultForSQLParams(String nativeSql, JoinPoint joinPoint) throws SQLException {
-        Map<Object, Object> shardMap = DataSourcesHandlerAspect.getDataSourceMap();
-        List<ResultSet> results = new ArrayList<>();
-
-        Connection connection = null;
-        PreparedStatement preparedStatement = null;
-        ResultSet resultSet = null;
-
-        for(Object shardKey: shardMap.keySet()){
-            DataSource dataSource = (DataSource) shardMap.get(shardKey);
-            try{
-                /*
-                 * The reason for calling dataSource.getConnection()
-                 * is that the DataSource object itself does not represent a direct,
-                 * persistent connection to the database. Instead, it acts as a factory
-                 * for providing pooled connections.
-                 *
-                 * DataSource provides connection pooling, where multiple connections are
-                 * kept alive and reused. When you call getConnection(), you're borrowing a
-                 * pre-existing connection from this pool.
-                 *
-                 * After using a connection, it is returned to the pool when it is closed in the finally block.
-                 * The pool manages these connections, so we are not disconnecting from the database, just
-                 * returning the connection to the pool for the next use.
-                 *
-                 */
-                connection = dataSource.getConnection();
-                /*
-                 * Here we are using a PreparedStatement object for sending parameterized
-                 * SQL statements to the database. Recall that parameterized statement are
-                 * statements that are meant to be reused very often with different parameter.
-                 * Thus, it is not suitable to use Statement object which is designed for normal
-                 * statements according documentation on the Statement object that says
-                 * "If the same SQL statement is executed many times, it may be more
-                 * efficient to use a PreparedStatement object."
-                 */
-                preparedStatement = connection.prepareStatement(nativeSql);
-                setSqlParameters(preparedStatement, joinPoint);
-                resultSet = preparedStatement.executeQuery(nativeSql);
-                results.add(resultSet);
-            }catch (Exception e){
-                logger.error("Error performing operation on shard: {}", shardKey);
-            }finally {
-                /*
-                 * closes the connection and makes it available for any other component
-                 * in the app. That is makes it idle and returns it to the pool.
-                 *
-                 * Note resources are passed in order the expecting are expected
-                 * and try-with-resources statement can eliminate the need for this
-                 * resource closing util class, but I still implemented it for
-                 * learning purpose.
-                 */
-                ResourceCloser.closeResources(connection, preparedStatement, resultSet);
-            }
+    // the shard of the key was put in the ShardingContextHolder by processRequestWithoutRawSqlQuery
+    private static Object proceedOnOwningShard(ProceedingJoinPoint joinPoint, RepositoryMethodPlan plan, Object shardKey) throws Throwable {
+        ShardMetrics.recordRouting(shardKey == null ? ShardMetrics.Routing.DEFAULT_FALLBACK : ShardMetrics.Routing.SINGLE_SHARD);
+        String previousOwner = shardKey == null ? null : ShardRebalancer.previousOwner(shardKey);
+        if(previousOwner != null){
+            return proceedWhileRebalancing(joinPoint, plan, previousOwner);
         }
-        List<Map<String, Object>> combinedResults = HandleRepositoryMethodsReponses.combineQueryResults(results);
-        return HandleRepositoryMethodsReponses.transformResultSetToAppropriateReturnType(combinedResults, joinPoint);
+        return timedProceed(joinPoint);
     }
 
-    private static void executeQueryWithoutResultForNoSQLParams(String nativeSql, JoinPoint joinPoint){
-        Map<Object, Object> shardMap = DataSourcesHandlerAspect.getDataSourceMap();
-        /*
-         * A ResultSet object is automatically closed when the Statement object that
-         * generated it is closed, re-executed, or used to retrieve the next result
-         * from a sequence of multiple results.
-         */
-        Connection connection = null;
-        PreparedStatement preparedStatement = null;
-
-        for(Object shardKey: shardMap.keySet()){
-            DataSource dataSource = (DataSource) shardMap.get(shardKey);
-            try{
-                /*
-                 * The reason for calling dataSource.getConnection()
-                 * is that the DataSource object itself does not represent a direct,
-                 * persistent connection to the database. Instead, it acts as a factory
-                 * for providing pooled connections.
-                 *
-                 * DataSource provides connection pooling, where multiple connections are
-                 * kept alive and reused. When you call getConnection(), you're borrowing a
-                 * pre-existing connection from this pool.
-                 *
-                 * After using a connection, it is returned to the pool when it is closed in the finally block.
-                 * The pool manages these connections, so we are not disconnecting from the database, just
-                 * returning the connection to the pool for the next use.
-                 *
-                 */
-                connection = dataSource.getConnection();
-                /*
-                 * Here we are using a PreparedStatement object for sending parameterized
-                 * SQL statements to the database. Recall that parameterized statement are
-                 * statements that are meant to be reused very often with different parameter.
-                 * Thus, it is not suitable to use Statement object which is designed for normal
-                 * statements according documentation on the Statement object that says
-                 * "If the same SQL statement is executed many times, it may be more
-                 * efficient to use a PreparedStatement object."
-                 */
-                preparedStatement = connection.prepareStatement(nativeSql);
-                preparedStatement.executeUpdate();
-            }catch (Exception e){
-                logger.error("Error performing operation on shard: {}", shardKey);
-            }finally {
-                /*
-                 * closes the connection and makes it available for any other component
-                 * in the app. That is makes it idle and returns it to the pool.
-                 *
-                 * Note resources are passed in order the expecting are expected
-                 * and try-with-resources statement can eliminate the need for this
-                 * resource closing util class, but I still implemented it for
-                 * learning purpose.
-                 */
-                ResourceCloser.closeResources(connection, preparedStatement);
+    /*
+     * Times a call that goes to the one shard in the ShardingContextHolder. It covers
+     * the whole repository call, so JPA work around the statement is included. A
+     * shard whose circuit breaker is open is not called at all.
+     */
+    private static Object timedProceed(ProceedingJoinPoint joinPoint) throws Throwable {
+        String shard = ShardingContextHolder.getCurrentShardKey();
+        ShardCircuitBreaker breaker = shard == null ? null : ShardCircuitBreaker.of(shard);
+        if(breaker != null && !breaker.tryAcquire()){
+            throw new DataAccessResourceFailureException("Shard " + shard + " is unavailable, its circuit breaker is open");
+        }
+        long start = System.nanoTime();
+        String outcome = "error";
+        try {
+            Object result = joinPoint.proceed();
+            outcome = "success";
+            if(breaker != null){
+                breaker.recordSuccess();
             }
+            return result;
+        } catch (Throwable e) {
+            if(breaker != null){
+                breaker.recordFailure(e);
+            }
+            throw e;
+        } finally {
+            ShardMetrics.recordStatement(shard, ShardMetrics.SINGLE_SHARD_PATH, outcome, System.nanoTime() - start);
         }
     }
 
-    private static Object executeQueryWithResultForNoSQLParams(String nativeSql, JoinPoint joinPoint) throws SQLException {
-        Map<Object, Object> shardMap = DataSourcesHandlerAspect.getDataSourceMap();
-
-        /*
-         * A ResultSet object is automatically closed when the Statement object that
-         * generated it is closed, re-executed, or used to retrieve the next result
-         * from a sequence of multiple results.
-         */
-        List<ResultSet> results = new ArrayList<>();
-
-        Connection connection = null;
-        PreparedStatement preparedStatement = null;
-        ResultSet resultSet = null;
-
-        for(Object shardKey: shardMap.keySet()){
-            DataSource dataSource = (DataSource) shardMap.get(shardKey);
-            try{
-                /*
-                 * The reason for calling dataSource.getConnection()
-                 * is that the DataSource object itself does not represent a direct,
-                 * persistent connection to the database. Instead, it acts as a factory
-                 * for providing pooled connections.
-                 *
-                 * DataSource provides connection pooling, where multiple connections are
-                 * kept alive and reused. When you call getConnection(), you're borrowing a
-                 * pre-existing connection from this pool.
-                 *
-                 * After using a connection, it is returned to the pool when it is closed in the finally block.
-                 * The pool manages these connections, so we are not disconnecting from the database, just
-                 * returning the connection to the pool for the next use.
-                 *
-                 */
-                connection = dataSource.getConnection();
-
-                /*
-                 * Here we are using a PreparedStatement object for sending parameterized
-                 * SQL statements to the database. Recall that parameterized statement are
-                 * statements that are meant to be reused very often with different parameter.
-                 * Thus, it is not suitable to use Statement object which is designed for normal
-                 * statements according documentation on the Statement object that says
-                 * "If the same SQL statement is executed many times, it may be more
-                 * efficient to use a PreparedStatement object."
-                 */
-                preparedStatement = connection.prepareStatement(nativeSql);
-                resultSet = preparedStatement.executeQuery();
-                results.add(resultSet);
-            }catch (Exception e){
-                logger.error("Error performing operation on shard: {}", shardKey);
-            }finally {
-                /*
-                 * closes the connection and makes it available for any other component
-                 * in the app. That is makes it idle and returns it to the pool.
-                 *
-                 * Note resources are passed in order the expecting are expected
-                 * and try-with-resources statement can eliminate the need for this
-                 * resource closing util class, but I still implemented it for
-                 * learning purpose.
-                 */
-                ResourceCloser.closeResources(connection, preparedStatement, resultSet);
+    /*
+     * A finder on a @ShardIndexed attribute is sent to the shards the global secondary
+     * index names for the value, normally exactly one, instead of being hashed as if
+     * the value were the shard key.
+     */
+    private static Object findThroughIndex(ProceedingJoinPoint joinPoint, IndexedFinder finder, Object[] args) throws Throwable {
+        Object value = args[finder.getArgumentIndex()];
+        List<String> shards = GlobalSecondaryIndex.shardsFor(finder, value, false);
+        Object result = proceedOnShards(joinPoint, shards);
+        if(isEmpty(result)){
+            // the cache only sees writes made by this instance, so ask the index table itself before giving up
+            List<String> currentShards = GlobalSecondaryIndex.shardsFor(finder, value, true);
+            if(!currentShards.equals(shards)){
+                result = proceedOnShards(joinPoint, currentShards);
             }
         }
-        List<Map<String, Object>> combinedResults = HandleRepositoryMethodsReponses.combineQueryResults(results);
-        return HandleRepositoryMethodsReponses.transformResultSetToAppropriateReturnType(combinedResults, joinPoint);
+        if(finder.isDelete()){
+            GlobalSecondaryIndex.removeValue(finder, value);
+        }
+        return result;
     }
 
-    private static void setSqlParameters(PreparedStatement preparedStatement, JoinPoint joinPoint) throws SQLException {
-        Object[] sqlParameters = joinPoint.getArgs();
-        int paramCounter = 1;
-        for(Object param: sqlParameters){
-            setParamWithCorrectMethod(paramCounter, param, preparedStatement);
-            paramCounter++;
+    private static Object proceedOnShards(ProceedingJoinPoint joinPoint, List<String> shards) throws Throwable {
+        if(shards.isEmpty()){
+            // no row has the value, the default shard answers with an empty result of the right type
+            return joinPoint.proceed();
         }
+        Object combined = null;
+        for(String shard: shards){
+            ShardingContextHolder.setCurrentShardKey(shard);
+            combined = combine(combined, timedProceed(joinPoint));
+        }
+        return combined;
     }
 
-    private static void setParamWithCorrectMethod(int paramCounter, Object param, PreparedStatement preparedStatement) throws SQLException {
-        Class<?> paramClass = param.getClass();
-
-        if (paramClass.equals(String.class)) {
-            preparedStatement.setString(paramCounter, (String) param);
+    @SuppressWarnings("unchecked")
+    private static Object combine(Object combined, Object result) {
+        if(combined == null){
+            return result;
         }
-        if (param.equals(Integer.class) || param.equals(int.class)) {
-            preparedStatement.setInt(paramCounter, (Integer) param);
+        if(combined instanceof Collection && result instanceof Collection){
+            Collection<Object> merged = combined instanceof Set ? new LinkedHashSet<>((Collection<Object>) combined) : new ArrayList<>((Collection<Object>) combined);
+            merged.addAll((Collection<Object>) result);
+            return merged;
         }
-        if (param.equals(Long.class) || param.equals(long.class)) {
-            preparedStatement.setLong(paramCounter, (Long) param);
+        if(combined instanceof Optional){
+            return ((Optional<?>) combined).isPresent() ? combined : result;
         }
-        if (param.equals(Boolean.class) || param.equals(boolean.class)) {
-            preparedStatement.setBoolean(paramCounter, (Boolean) param);
+        if(combined instanceof Boolean && result instanceof Boolean){
+            return (Boolean) combined || (Boolean) result;
         }
-        if (param.equals(Double.class) || param.equals(double.class)) {
-            preparedStatement.setDouble(paramCounter, (Double) param);
+        if(combined instanceof Long && result instanceof Long){
+            return (Long) combined + (Long) result;
         }
-        if (param.equals(BigDecimal.class)) {
-            preparedStatement.setBigDecimal(paramCounter, (BigDecimal) param);
+        if(combined instanceof Integer && result instanceof Integer){
+            return (Integer) combined + (Integer) result;
         }
-        if (param.equals(LocalDateTime.class)) {
-            preparedStatement.setTimestamp(paramCounter, java.sql.Timestamp.valueOf((LocalDateTime) param));
+        return combined;
+    }
+
+    private static void removeFromIndex(ProceedingJoinPoint joinPoint, Object[] args) throws SQLException {
+        Class<?> entityType = entityTypeOf(joinPoint);
+        if(args.length == 0){
+            GlobalSecondaryIndex.removeAllEntities(entityType);
+        }else if(args[0] instanceof Iterable){
+            GlobalSecondaryIndex.removeEntities(entityType, (Iterable<?>) args[0]);
+        }else{
+            GlobalSecondaryIndex.removeEntities(entityType, Collections.singletonList(args[0]));
         }
-        if (param.equals(LocalDate.class)) {
-            preparedStatement.setDate(paramCounter, java.sql.Date.valueOf((LocalDate) param));
+    }
+
+    /*
+     * saveAll used to land on whatever shard happened to be the default. The entities
+     * are now written to the shards that own them: as batched upserts when they map to
+     * plain rows, otherwise one by one through the repository, where each save is
+     * routed by this aspect like any other. Inside a transaction the batched upserts,
+     * which commit on their own connections, are not used (see ShardedBatchWriter).
+     */
+    @SuppressWarnings("unchecked")
+    private static Object saveAllOnOwningShards(ProceedingJoinPoint joinPoint, Iterable<?> entities) throws Throwable {
+        if(entities == null){
+            return joinPoint.proceed();
         }
-        if (param.equals(Date.class)) {
-            preparedStatement.setTimestamp(paramCounter, new java.sql.Timestamp(((Date) param).getTime()));
+        GlobalSecondaryIndex.indexEntities(entities);
+        List<?> saved = ShardedBatchWriter.saveAll(entities);
+        if(saved != null){
+            return saved;
         }
-        if (param.equals(UUID.class)) {
-            preparedStatement.setObject(paramCounter, param);
+        CrudRepository<Object, ?> repository = (CrudRepository<Object, ?>) joinPoint.getThis();
+        List<Object> savedOneByOne = new ArrayList<>();
+        for(Object entity: entities){
+            savedOneByOne.add(repository.save(entity));
         }
+        return savedOneByOne;
     }
 
-    private static String getNativeSQLFromJPQL(String jpql) {
-        /*
-         * Entity manager factory or session factory is used to get the entityManager
-         * the factory is created during connection to the database so you just have to call
-         * the appropriate method and  use it.
-         *
-         * Note entity manager here is the one from the current data source.
-         */
-        EntityManager em =  entityManager.unwrap(Session.class);
-        Session session = em.unwrap(Session.class);
-        org.hibernate.query.Query<?> hibernateQuery = session.createNativeQuery(jpql);
-        return hibernateQuery.getQueryString();
-    }
-
-    private static String getRawSqlQueryFromJointPoint(JoinPoint joinPoint){
-        MethodSignature signature = (MethodSignature) joinPoint.getSignature();
-        Method method = signature.getMethod();
+    /*
+     * The key is moving to another shard and may not have been copied yet. Writes
+     * go to the new owner only. A read that finds nothing there is repeated on the
+     * old owner. A delete is applied on both, the old owner first: the rebalancer
+     * copies a row while holding a FOR SHARE lock on it at the old owner, so the
+     * delete there waits for a copy in progress and the second delete then removes
+     * the copy from the new owner. The order matters, deleting on the new owner
+     * first would leave a window in which the row is copied back.
+     */
+    private static Object proceedWhileRebalancing(ProceedingJoinPoint joinPoint, RepositoryMethodPlan plan, String previousOwner) throws Throwable {
+        // the copy is written to the primaries, a replica may not have the row yet
+        ShardingContextHolder.setReadOnly(false);
+        String methodName = plan.getMethod().getName();
+        String newOwner = ShardingContextHolder.getCurrentShardKey();
+        if(methodName.startsWith("delete")){
+            ShardingContextHolder.setCurrentShardKey(previousOwner);
+            joinPoint.proceed();
+            ShardingContextHolder.setCurrentShardKey(newOwner);
+            return joinPoint.proceed();
+        }
 
-        if(method.isAnnotationPresent(Query.class)){
-            Query queryAnnotation = method.getAnnotation(Query.class);
-            return queryAnnotation.value();
+        Object result = joinPoint.proceed();
+        if(isRead(methodName) && isEmpty(result)){
+            ShardingContextHolder.setCurrentShardKey(previousOwner);
+            return joinPoint.proceed();
         }
-        return null;
+        return result;
     }
 
-    private static Boolean isAnnotatedWithQuery(JoinPoint joinPoint){
-        Annotation[] repositoryMethodAnnotations = getRepositoryMethodAnnotation(joinPoint);
-        for(Annotation annotation: repositoryMethodAnnotations){
-            if(annotation.annotationType() == Query.class){
-                return true;
-            }
-        }
-        return false;
+    /*
+     * Reads go to a replica unless they are part of a read-write transaction, which
+     * already holds a primary connection and may read rows it has just written.
+     */
+    private static boolean inReadWriteTransaction() {
+        return TransactionSynchronizationManager.isActualTransactionActive()
+                && !TransactionSynchronizationManager.isCurrentTransactionReadOnly();
     }
 
-    public static Annotation[] getRepositoryMethodAnnotation(JoinPoint joinPoint){
-        MethodSignature signature = (MethodSignature) joinPoint.getSignature();
-        Method method = signature.getMethod();
-        return method.getAnnotations();
+    private static boolean isRead(String methodName) {
+        return methodName.startsWith("find") || methodName.startsWith("get") || methodName.startsWith("read")
+                || methodName.startsWith("query") || methodName.startsWith("exists");
     }
 
-    @After("execution (* com.piraxx.sharder.repositories..*(..))")
-    private void clearShardingContext() {
-        ShardingContextHolder.clear();
+    private static boolean isEmpty(Object result) {
+        return result == null
+                || Boolean.FALSE.equals(result)
+                || (result instanceof Number && ((Number) result).longValue() == 0)
+                || (result instanceof Optional && ((Optional<?>) result).isEmpty())
+                || (result instanceof Collection && ((Collection<?>) result).isEmpty());
     }
 
-    private static void selectShardForMultipleArgs(Object[] args){
-        for (Object arg: args){
-            if(arg instanceof TransactionEntity){
-                TransactionEntity transactionEntity = (TransactionEntity) arg;
-                String shardKey = determineShard(transactionEntity.getTransactionId());
-                ShardingContextHolder.setCurrentShardKey(shardKey);
-            }
+    /*
+     * The statement runs on the given shards: all of them, or only the owners of the
+     * shard keys its WHERE clause names (see ShardKeyPredicate).
+     */
+    private static Object processRequestWithRawSqlQuery(RepositoryMethodPlan plan, Object[] args, Map<Object, Object> shards) throws SQLException {
+        /* There are two situations
+        * 1. operations like SELECT that return sometime
+        * 2. operations like DELETE, INSERT, or UPDATE that return nothing
+        * */
+        if(plan.getStatementKind() == StatementKind.SELECT){
+            return executeQueryWithResult(plan, args, shards);
+        }else{
+            return adaptUpdateCount(executeQueryWithoutResult(plan, args, shards), plan.getMethod().getReturnType());
         }
     }
 
-    private static void selectShardForSingleArg(Object arg) throws IllegalAccessException {
-            Class<?> clazz = arg.getClass();
-            if(clazz.isAnnotationPresent(Entity.class)){
-                // if argument is an entity
-                String shardKey = determineShard(getIdFieldValue((arg)));
-                ShardingContextHolder.setCurrentShardKey(shardKey);
-
-            }else{
-                // if argument is a string or a number
-                String shardKey = determineShard(arg);
-                ShardingContextHolder.setCurrentShardKey(shardKey);
-            }
+    private static Object processRequestWithoutRawSqlQuery(RepositoryMethodPlan plan, Object[] args) {
+        if(args.length == 0){
+            // if request comes without arg, like findAll
+
+            /*
+             * To implement query broadcasting to all shards, perform query on each
+             * shard and join the result as shown
+             * select * from db1.t1
+             * union
+             * select * from db2.t2
+             *
+             * The main problem is that if you run into is cross server joins,
+             * on large million + row systems, it can hit the network pretty
+             * hard and take a long time to process queries.
+             *
+             */
+            return null;
+        }
+
+        /* Note there are repository methods like
+         * Optional<StaffMemberEntity> findByStaffEmail(String staffEmail);
+         * whose argument is not the primary key. When the attribute is @ShardIndexed
+         * they never get here: findThroughIndex sends them to the shards the global
+         * secondary index names. Otherwise the argument is still hashed like a key.
+         *
+         * The plan knows which argument carries the shard key: the id of an entity
+         * argument (like in save), a String or Number argument (like in findById),
+         * or nothing at all.
+         */
+        Object shardKey = plan.getShardKeyExtractor().extract(args);
+        if(shardKey != null){
+            ShardingContextHolder.setCurrentShardKey(determineShard(shardKey));
+        }
+        return shardKey;
+    }
+
+    /*
+     * Both methods below hand the statement to the ScatterGatherExecutor which runs it on
+     * the shards concurrently, so a broadcast costs the latency of the slowest shard
+     * instead of the sum of all shards.
+     */
+    private static int executeQueryWithoutResult(RepositoryMethodPlan plan, Object[] args, Map<Object, Object> shards) throws SQLException {
+        Map<Object, Integer> updateCounts = ScatterGatherExecutor.execute(
+                shards,
+                plan.getNativeSql(),
+                binderFor(plan, args),
+                PreparedStatement::executeUpdate);
+        int total = 0;
+        for(Integer count: updateCounts.values()){
+            total += count;
+        }
+        if(ShardRebalancer.isRebalancing() && plan.getNativeSql().trim().regionMatches(true, 0, "delete", 0, 6)){
+            /* The shards ran the delete at the same time, so a row's new owner may have
+             * gone before its old owner, where a copy was in progress. The old owner's
+             * delete waited for that copy, and this second pass removes what it wrote.
+             * Its rows were already counted on the old owner. */
+            ScatterGatherExecutor.execute(shards, plan.getNativeSql(), binderFor(plan, args), PreparedStatement::executeUpdate);
+        }
+        return total;
     }
 
-    private static Object getIdFieldValue(Object entityInstance ) throws IllegalAccessException {
+    private static Object executeQueryWithResult(RepositoryMethodPlan plan, Object[] args, Map<Object, Object> shards) throws SQLException {
+        if(plan.getPagedQuery() != null){
+            return plan.getPagedQuery().execute(plan, args, shards);
+        }
+        if(plan.getStreamingQuery() != null){
+            return plan.getStreamingQuery().execute(plan, args, shards);
+        }
+        List<ShardCursor> shardCursors = ScatterGatherExecutor.openCursors(
+                shards,
+                plan.getNativeSql(),
+                binderFor(plan, args));
+        MergedResultCursor merged = plan.getAggregateQuery() != null
+                ? plan.getAggregateQuery().merge(shardCursors)
+                : HandleRepositoryMethodsReponses.combineQueryResults(shardCursors, plan.getNativeSql());
+        try (MergedResultCursor combinedResults = merged) {
+            return plan.getResultShape().apply(combinedResults);
+        }
+    }
 
-        Class<?> entityClass =  entityInstance.getClass();
-        for(Field field: entityClass.getDeclaredFields()){
+    private static ScatterGatherExecutor.StatementBinder binderFor(RepositoryMethodPlan plan, Object[] args) {
+        if(!plan.isParameterized()){
+            return null;
+        }
+        return preparedStatement -> plan.bindParameters(preparedStatement, args);
+    }
 
-            if(field.isAnnotationPresent(Id.class)){
-                field.setAccessible(true);
-                return field.get(entityInstance);
-            }
+    private static Object adaptUpdateCount(int updateCount, Class<?> returnType) {
+        if(returnType == int.class || returnType == Integer.class){
+            return updateCount;
         }
-        throw new IllegalArgumentException("No field annotated in class of " + entityClass.getName());
+        if(returnType == long.class || returnType == Long.class){
+            return (long) updateCount;
+        }
+        return null;
     }
 
+    // every placed key is counted, to find the hot keys and shards (see HotKeyTracker)
     private static String determineShard(Object obj){
-        return consistentHashing.getNode(obj);
+        String shard = ShardPlacementStrategies.shared().getNode(obj);
+        HotKeyTracker.record(obj, shard);
+        return shard;
     }
 }
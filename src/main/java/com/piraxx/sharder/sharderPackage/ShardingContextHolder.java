@@ -6,6 +6,12 @@ import org.springframework.stereotype.Component;
 public class ShardingContextHolder {
     private static final ThreadLocal<String> contextHolder = new ThreadLocal<>();
 
+    // set while the repository call only reads, so a shard with replicas can serve it from one
+    private static final ThreadLocal<Boolean> readOnlyHolder = new ThreadLocal<>();
+
+    // the topology snapshot the running repository call is routed with
+    private static final ThreadLocal<ShardTopology> topologyHolder = new ThreadLocal<>();
+
     public static void setCurrentShardKey(String shardKey) {
         contextHolder.set(shardKey);
     }
@@ -14,7 +20,75 @@ public class ShardingContextHolder {
         return contextHolder.get();
     }
 
+    public static void setReadOnly(boolean readOnly) {
+        if (readOnly) {
+            readOnlyHolder.set(Boolean.TRUE);
+        } else {
+            readOnlyHolder.remove();
+        }
+    }
+
+    public static boolean isReadOnly() {
+        return readOnlyHolder.get() != null;
+    }
+
+    public static void setTopology(ShardTopology topology) {
+        topologyHolder.set(topology);
+    }
+
+    /** The snapshot pinned for the running repository call, or the current one outside of a call. */
+    public static ShardTopology getTopology() {
+        ShardTopology topology = topologyHolder.get();
+        return topology != null ? topology : ShardTopology.current();
+    }
+
+    public static long getTopologyVersion() {
+        return getTopology().getVersion();
+    }
+
     public static void clear() {
         contextHolder.remove();
+        readOnlyHolder.remove();
+        topologyHolder.remove();
+    }
+
+    /** The context as it is now, to be put back with restore when a repository call ends. */
+    public static Snapshot snapshot() {
+        return new Snapshot(contextHolder.get(), readOnlyHolder.get(), topologyHolder.get());
+    }
+
+    /*
+     * A repository call can make another one (saveAll saving one by one), so the
+     * context of the outer call is put back instead of being cleared under it.
+     */
+    public static void restore(Snapshot snapshot) {
+        restore(contextHolder, snapshot.shardKey);
+        restore(readOnlyHolder, snapshot.readOnly);
+        restore(topologyHolder, snapshot.topology);
+    }
+
+    private static <T> void restore(ThreadLocal<T> holder, T value) {
+        if (value == null) {
+            holder.remove();
+        } else {
+            holder.set(value);
+        }
+    }
+
+    public static final class Snapshot {
+        private final String shardKey;
+        private final Boolean readOnly;
+        private final ShardTopology topology;
+
+        private Snapshot(String shardKey, Boolean readOnly, ShardTopology topology) {
+            this.shardKey = shardKey;
+            this.readOnly = readOnly;
+            this.topology = topology;
+        }
+
+        /** Whether a repository call further up the stack already pinned a topology. */
+        public boolean hasTopology() {
+            return topology != null;
+        }
     }
 }
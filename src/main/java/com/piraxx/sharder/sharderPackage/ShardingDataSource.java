@@ -1,11 +1,61 @@
 package com.piraxx.sharder.sharderPackage;
 
+import com.piraxx.sharder.sharderPackage.metrics.ShardMetrics;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
 
-public class ShardingDataSource extends AbstractRoutingDataSource {
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+public class ShardingDataSource extends AbstractRoutingDataSource implements DisposableBean {
 
     @Override
     protected Object determineCurrentLookupKey() {
         return ShardingContextHolder.getCurrentShardKey();
     }
-}
\ No newline at end of file
+
+    /*
+     * Shards can be added while the application runs, so the shard is looked up in
+     * the topology the call is routed with first. The targets resolved at startup are only used
+     * for the default data source.
+     */
+    @Override
+    protected DataSource determineTargetDataSource() {
+        Object shardKey = determineCurrentLookupKey();
+        if (shardKey != null) {
+            Object shard = ShardingContextHolder.getTopology().getDataSources().get(shardKey);
+            if (shard != null) {
+                return (DataSource) shard;
+            }
+        }
+        return super.determineTargetDataSource();
+    }
+
+    /* how long borrowing from the shard's pool took, for the JPA path; the fan-out records its own */
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return super.getConnection();
+        } finally {
+            ShardMetrics.recordConnectionAcquire(determineCurrentLookupKey(), System.nanoTime() - start);
+        }
+    }
+
+    /* the shard pools are not beans of their own, so nobody else closes them */
+    @Override
+    public void destroy() throws Exception {
+        Set<Object> shards = Collections.newSetFromMap(new IdentityHashMap<>());
+        shards.addAll(getResolvedDataSources().values());
+        shards.addAll(ShardTopology.current().getDataSources().values());
+        for (Object shard : shards) {
+            if (shard instanceof AutoCloseable) {
+                ((AutoCloseable) shard).close();
+            }
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.configs.ShardProperties;
+import com.piraxx.sharder.sharderPackage.utils.HandleRepositoryMethodsReponses;
+import com.piraxx.sharder.sharderPackage.utils.HandleRepositoryMethodsReponses.RowReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A broadcast SELECT whose repository method returns Stream<T>, Flux<T> or
+ * CompletableFuture<List<T>>. The call returns at once and the fan-out runs on
+ * the shard-stream threads, so the request thread is not held while the shards
+ * are read.
+ *
+ * Without an ORDER BY every shard is drained by its own thread and its rows are
+ * handed to the caller as they arrive, whichever shard they come from. With an
+ * ORDER BY one thread runs the k-way merge of MergedResultCursor, since no row
+ * can be handed out before the heads of all shards are known.
+ *
+ * The threads wait for the consumer instead of reading ahead without bound. A
+ * Stream is fed through a queue of streamQueueSize rows, a Flux only gets as
+ * many rows as its subscriber requested. While they wait, the shard cursors
+ * are not advanced, so the databases hold back the rest of the rows as well.
+ *
+ * A Stream has to be closed, like the streams Spring Data returns, and a Flux
+ * cancelled when the caller stops early: either closes the shard cursors. A
+ * consumer that takes no row for streamProducerTimeoutMillis is given up on as
+ * well: its cursors are closed and its next read fails with a StreamFailure.
+ *
+ * At most streamThreads threads read shards for streams. When they are all
+ * busy and streamThreads more tasks are waiting, a new stream fails right
+ * away instead of opening more connections.
+ */
+public final class StreamingQuery {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamingQuery.class);
+
+    private static final int queueSize = (int) ShardProperties.readLongFromEnv("streamQueueSize", 256);
+
+    private static final long pollMillis = 100;
+
+    private static final long producerTimeoutNanos =
+            TimeUnit.MILLISECONDS.toNanos(ShardProperties.readLongFromEnv("streamProducerTimeoutMillis", 60_000));
+
+    private static final int threads = (int) ShardProperties.readLongFromEnv("streamThreads",
+            Math.max(16, Runtime.getRuntime().availableProcessors() * 4));
+
+    private static final ExecutorService executor = createExecutor(threads);
+
+    private enum ResultKind {
+        STREAM, FLUX, FUTURE
+    }
+
+    private final ResultKind resultKind;
+    private final Supplier<RowReader> rowReaders;
+
+    private StreamingQuery(ResultKind resultKind, Class<?> elementType) {
+        this.resultKind = resultKind;
+        this.rowReaders = HandleRepositoryMethodsReponses.rowReaderFor(elementType);
+    }
+
+    /** The streamed form of the method's SELECT, or null when the method returns its rows directly. */
+    static StreamingQuery of(Method method) {
+        Class<?> returnType = method.getReturnType();
+        ResultKind resultKind;
+        Type elementType;
+        if (returnType.equals(Stream.class)) {
+            resultKind = ResultKind.STREAM;
+            elementType = typeArgumentOf(method.getGenericReturnType());
+        } else if (returnType.equals(Flux.class)) {
+            resultKind = ResultKind.FLUX;
+            elementType = typeArgumentOf(method.getGenericReturnType());
+        } else if (returnType.equals(CompletableFuture.class)) {
+            Type futureType = typeArgumentOf(method.getGenericReturnType());
+            if (!(futureType instanceof ParameterizedType) || !((ParameterizedType) futureType).getRawType().equals(List.class)) {
+                logger.warn("{} returns a CompletableFuture of something other than a List, which is not supported", method);
+                return null;
+            }
+            resultKind = ResultKind.FUTURE;
+            elementType = typeArgumentOf(futureType);
+        } else {
+            return null;
+        }
+        if (!(elementType instanceof Class)) {
+            logger.warn("{} does not declare the element type of its result, which is needed to map the rows", method);
+            return null;
+        }
+        return new StreamingQuery(resultKind, (Class<?>) elementType);
+    }
+
+    Object execute(RepositoryMethodPlan plan, Object[] args, Map<Object, Object> shards) {
+        // the shard-stream threads read from replicas when the caller may
+        boolean readOnly = ShardingContextHolder.isReadOnly();
+        switch (resultKind) {
+            case STREAM: {
+                QueueSink sink = new QueueSink();
+                start(plan, args, shards, readOnly, sink);
+                return StreamSupport.stream(Spliterators.spliteratorUnknownSize(sink, Spliterator.NONNULL), false)
+                        .onClose(sink::close);
+            }
+            case FLUX:
+                return Flux.create(fluxSink -> {
+                    DemandSink sink = new DemandSink(fluxSink);
+                    fluxSink.onRequest(sink::request);
+                    fluxSink.onDispose(sink::cancel);
+                    start(plan, args, shards, readOnly, sink);
+                });
+            default: {
+                FutureSink sink = new FutureSink();
+                start(plan, args, shards, readOnly, sink);
+                return sink.future;
+            }
+        }
+    }
+
+    private void start(RepositoryMethodPlan plan, Object[] args, Map<Object, Object> shards, boolean readOnly, RowSink sink) {
+        String nativeSql = plan.getNativeSql();
+        try {
+            executor.execute(() -> stream(plan, args, shards, readOnly, sink, nativeSql));
+        } catch (RejectedExecutionException e) {
+            sink.fail(e);
+        }
+    }
+
+    private void stream(RepositoryMethodPlan plan, Object[] args, Map<Object, Object> shards, boolean readOnly,
+                        RowSink sink, String nativeSql) {
+        List<ShardCursor> cursors;
+        ShardingContextHolder.setReadOnly(readOnly);
+        try {
+            cursors = ScatterGatherExecutor.openCursors(shards, nativeSql,
+                    preparedStatement -> plan.bindParameters(preparedStatement, args));
+        } catch (Throwable e) {
+            // reported to the consumer, who would otherwise wait for rows forever
+            sink.fail(e);
+            return;
+        } finally {
+            ShardingContextHolder.setReadOnly(false);
+        }
+
+        List<MergedResultCursor> sources = new ArrayList<>();
+        try {
+            if (OrderByClause.parse(nativeSql).isOrdered()) {
+                sources.add(HandleRepositoryMethodsReponses.combineQueryResults(cursors, nativeSql));
+            } else {
+                for (ShardCursor cursor : cursors) {
+                    sources.add(HandleRepositoryMethodsReponses.combineQueryResults(List.of(cursor), nativeSql));
+                }
+            }
+        } catch (Throwable e) {
+            cursors.forEach(ShardCursor::close);
+            sink.fail(e);
+            return;
+        }
+        if (sources.isEmpty()) {
+            sink.complete();
+            return;
+        }
+
+        Drain drain = new Drain(sink, sources.size());
+        for (MergedResultCursor source : sources.subList(1, sources.size())) {
+            try {
+                executor.execute(() -> drain.run(source));
+            } catch (RejectedExecutionException e) {
+                source.close();
+                drain.failed(e);
+            }
+        }
+        drain.run(sources.get(0));
+    }
+
+    /* Moves the rows of the merged cursors into the sink and completes it once all of them are through. */
+    private final class Drain {
+
+        private final RowSink sink;
+        private final AtomicInteger remaining;
+        private final AtomicBoolean failed = new AtomicBoolean();
+
+        Drain(RowSink sink, int sources) {
+            this.sink = sink;
+            this.remaining = new AtomicInteger(sources);
+        }
+
+        void run(MergedResultCursor source) {
+            RowReader rowReader = rowReaders.get();
+            try (MergedResultCursor rows = source) {
+                while (!failed.get() && rows.next()) {
+                    Object element = rowReader.read(rows.current());
+                    if (element != null && !sink.push(element)) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed(e);
+            } catch (Throwable e) {
+                failed(e);
+            }
+            done();
+        }
+
+        void failed(Throwable e) {
+            if (failed.compareAndSet(false, true)) {
+                sink.fail(e);
+            }
+        }
+
+        private void done() {
+            if (remaining.decrementAndGet() == 0 && !failed.get()) {
+                sink.complete();
+            }
+        }
+    }
+
+    /* Where the rows go. push waits for the consumer and returns false once nobody reads anymore. */
+    private interface RowSink {
+
+        boolean push(Object element) throws InterruptedException;
+
+        void complete();
+
+        void fail(Throwable e);
+    }
+
+    /* The bounded queue behind a Stream, read by the iterator on the caller's thread. */
+    private static final class QueueSink implements RowSink, Iterator<Object> {
+
+        private static final Object END = new Object();
+
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(queueSize);
+        private volatile boolean closed;
+        private Object next;
+        private boolean ended;
+
+        @Override
+        public boolean push(Object element) throws InterruptedException {
+            long deadline = System.nanoTime() + producerTimeoutNanos;
+            while (!closed) {
+                if (queue.offer(element, pollMillis, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+                if (System.nanoTime() - deadline > 0) {
+                    abandon();
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        /* The consumer stopped reading without closing the stream: the rows are dropped and its next read fails. */
+        private void abandon() {
+            logger.warn("Stream consumer took no row for {} ms, closing the shard cursors", TimeUnit.NANOSECONDS.toMillis(producerTimeoutNanos));
+            closed = true;
+            StreamFailure failure = new StreamFailure(new TimeoutException("The consumer stopped reading the stream"));
+            do {
+                queue.clear();
+            } while (!queue.offer(failure));
+        }
+
+        @Override
+        public void complete() {
+            offer(END);
+        }
+
+        @Override
+        public void fail(Throwable e) {
+            offer(e instanceof StreamFailure ? e : new StreamFailure(e));
+        }
+
+        private void offer(Object marker) {
+            try {
+                push(marker);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !ended) {
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    throw new StreamFailure(e);
+                }
+                if (next == END) {
+                    ended = true;
+                    next = null;
+                } else if (next instanceof StreamFailure) {
+                    ended = true;
+                    close();
+                    throw (StreamFailure) next;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Object element = next;
+            next = null;
+            return element;
+        }
+
+        void close() {
+            closed = true;
+            queue.clear();
+        }
+    }
+
+    /* Emits to a Flux, one row for every row the subscriber requested. */
+    private static final class DemandSink implements RowSink {
+
+        private final FluxSink<Object> fluxSink;
+        private long demand;
+        private boolean cancelled;
+
+        DemandSink(FluxSink<Object> fluxSink) {
+            this.fluxSink = fluxSink;
+        }
+
+        @Override
+        public boolean push(Object element) throws InterruptedException {
+            synchronized (this) {
+                long deadline = System.nanoTime() + producerTimeoutNanos;
+                while (demand == 0 && !cancelled) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        // nothing requested for too long, the subscriber is given up on like a cancelled one
+                        cancelled = true;
+                        notifyAll();
+                        logger.warn("Flux subscriber requested no row for {} ms, closing the shard cursors",
+                                TimeUnit.NANOSECONDS.toMillis(producerTimeoutNanos));
+                        fluxSink.error(new StreamFailure(new TimeoutException("The subscriber stopped requesting rows")));
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                if (cancelled) {
+                    return false;
+                }
+                demand--;
+            }
+            // the sink of Flux.create serializes rows emitted by several shard threads
+            fluxSink.next(element);
+            return true;
+        }
+
+        synchronized void request(long requested) {
+            demand = demand + requested < 0 ? Long.MAX_VALUE : demand + requested;
+            notifyAll();
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+
+        @Override
+        public void complete() {
+            fluxSink.complete();
+        }
+
+        @Override
+        public void fail(Throwable e) {
+            fluxSink.error(e);
+        }
+    }
+
+    /* Collects the rows for a CompletableFuture<List<T>>. */
+    private static final class FutureSink implements RowSink {
+
+        private final CompletableFuture<List<Object>> future = new CompletableFuture<>();
+        private final List<Object> rows = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public boolean push(Object element) {
+            rows.add(element);
+            return !future.isDone();
+        }
+
+        @Override
+        public void complete() {
+            future.complete(new ArrayList<>(rows));
+        }
+
+        @Override
+        public void fail(Throwable e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    /** Thrown from a streamed result when a shard could not be read. */
+    public static final class StreamFailure extends RuntimeException {
+
+        StreamFailure(Throwable cause) {
+            super("Streaming rows from the shards failed", cause);
+        }
+    }
+
+    private static Type typeArgumentOf(Type type) {
+        return type instanceof ParameterizedType ? ((ParameterizedType) type).getActualTypeArguments()[0] : null;
+    }
+
+    /*
+     * The threads spend most of their time waiting for the consumer, so they are
+     * not taken from the fan-out pool, which would then have none left for the
+     * short queries. There is one per shard of every open unordered stream, and
+     * every one of them holds a connection, so the pool is bounded and a stream
+     * that finds it and its queue full is refused rather than run on the caller's
+     * thread, where a Stream would wait for its own consumer.
+     */
+    private static ExecutorService createExecutor(int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "shard-stream-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
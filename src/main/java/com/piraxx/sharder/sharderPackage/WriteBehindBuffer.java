@@ -0,0 +1,227 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.configs.ShardProperties;
+import com.piraxx.sharder.sharderPackage.cache.ShardEntityCache;
+import com.piraxx.sharder.sharderPackage.index.GlobalSecondaryIndex;
+import com.piraxx.sharder.sharderPackage.metrics.ShardMetrics;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategies;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Optional write-behind mode for single saves (writeBehind=true): instead of one
+ * routed insert and commit per call, entities are queued per owning shard and
+ * written together, and the caller gets a future that completes once the
+ * batch holding its entity is committed.
+ *
+ * A shard's queue is flushed when it holds writeBehindBatchSize entities or
+ * when its oldest entity has waited writeBehindFlushMillis, whichever comes
+ * first (group commit). A flush is a ShardedBatchWriter.saveAll, so the rows
+ * go out as batched upserts in one transaction, and the global secondary index
+ * and the entity cache are kept up to date the way they are for saveAll.
+ *
+ * The queues are lock free and hold at most writeBehindCapacity entities. A
+ * caller that finds its shard's queue full flushes it itself or, when a flush
+ * is already running, waits for room, so a shard that cannot keep up slows
+ * the callers down instead of filling the heap.
+ *
+ * Entities that cannot be written as a plain row, and saves whose key is being
+ * moved by a rebalance, are not queued: save returns null and the caller saves
+ * them as usual.
+ */
+@Component
+public class WriteBehindBuffer {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindBuffer.class);
+
+    private static final boolean enabled = "true".equalsIgnoreCase(System.getenv("writeBehind"));
+
+    private static final int batchSize = (int) ShardProperties.readLongFromEnv("writeBehindBatchSize", 500);
+
+    private static final long flushMillis = ShardProperties.readLongFromEnv("writeBehindFlushMillis", 5);
+
+    private static final int capacity = (int) ShardProperties.readLongFromEnv("writeBehindCapacity", 10_000);
+
+    private static final ConcurrentHashMap<String, ShardBuffer> buffers = new ConcurrentHashMap<>();
+
+    private static final ExecutorService flushers = Executors.newCachedThreadPool(daemonThreads("write-behind-"));
+
+    // the time threshold: every tick flushes the queues whose oldest entity has waited long enough
+    private static final ScheduledExecutorService ticker = enabled
+            ? Executors.newSingleThreadScheduledExecutor(daemonThreads("write-behind-ticker-"))
+            : null;
+
+    static {
+        if (ticker != null) {
+            ticker.scheduleWithFixedDelay(WriteBehindBuffer::flushDue, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues the entity on the shard that owns it and returns a future of the saved
+     * entity, or returns null when write-behind is off or the entity cannot be queued.
+     */
+    public static <S> CompletableFuture<S> save(S entity) {
+        if (!enabled || entity == null || !ShardedBatchWriter.isWritableAsRow(entity)) {
+            return null;
+        }
+        Object shardKey = ShardKeys.of(entity);
+        if (ShardRebalancer.previousOwner(shardKey) != null) {
+            return null;
+        }
+        ShardMetrics.recordRouting(ShardMetrics.Routing.WRITE_BEHIND);
+        String shard = ShardPlacementStrategies.shared().getNode(shardKey);
+        CompletableFuture<S> saved = new CompletableFuture<>();
+        buffers.computeIfAbsent(shard, name -> new ShardBuffer(name, WriteBehindBuffer::writeRows)).add(new Pending(entity, saved));
+        return saved;
+    }
+
+    /* Writes whatever is still queued, so nothing accepted is lost on a clean shutdown. */
+    @PreDestroy
+    public void flushOnShutdown() {
+        if (ticker != null) {
+            ticker.shutdown();
+        }
+        buffers.values().forEach(ShardBuffer::flushAll);
+    }
+
+    private static void flushDue() {
+        long now = System.nanoTime();
+        for (ShardBuffer buffer : buffers.values()) {
+            if (buffer.isDue(now)) {
+                buffer.flushAll();
+            }
+        }
+    }
+
+    /* index entries first, so a row can never exist without one, then the rows, then the stale cache entries */
+    private static void writeRows(List<Object> entities) throws Exception {
+        GlobalSecondaryIndex.indexEntities(entities);
+        if (ShardedBatchWriter.saveAll(entities) == null) {
+            throw new IllegalStateException("Queued entities could not be written as rows");
+        }
+        Map<Class<?>, List<Object>> byType = new HashMap<>();
+        entities.forEach(entity -> byType.computeIfAbsent(entity.getClass(), type -> new ArrayList<>()).add(entity));
+        byType.forEach(ShardEntityCache::evict);
+    }
+
+    /* Where a flushed batch goes, the shards in production and a stub in tests. */
+    @FunctionalInterface
+    interface BatchWriter {
+        void write(List<Object> entities) throws Exception;
+    }
+
+    static final class Pending {
+
+        private final Object entity;
+        @SuppressWarnings("rawtypes")
+        private final CompletableFuture future;
+        private final long queuedAt = System.nanoTime();
+
+        Pending(Object entity, CompletableFuture<?> future) {
+            this.entity = entity;
+            this.future = future;
+        }
+    }
+
+    static final class ShardBuffer {
+
+        private final String shard;
+        private final BatchWriter writer;
+        private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        // one flush per shard at a time keeps the batches full and the rows of one caller in order
+        private final AtomicBoolean flushing = new AtomicBoolean();
+
+        ShardBuffer(String shard, BatchWriter writer) {
+            this.shard = shard;
+            this.writer = writer;
+        }
+
+        void add(Pending pending) {
+            int current;
+            do {
+                current = size.get();
+                if (current >= capacity) {
+                    // full: flush it ourselves, or wait for the running flush to make room
+                    if (!tryFlush()) {
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+                    }
+                    current = -1;
+                }
+            } while (current < 0 || !size.compareAndSet(current, current + 1));
+            queue.offer(pending);
+            if (current + 1 == batchSize) {
+                flushers.execute(this::flushAll);
+            }
+        }
+
+        boolean isDue(long now) {
+            Pending oldest = queue.peek();
+            return oldest != null && now - oldest.queuedAt >= TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        }
+
+        void flushAll() {
+            while (tryFlush() && size.get() >= batchSize) {
+                // more than a batch came in while flushing, keep going
+            }
+        }
+
+        private boolean tryFlush() {
+            if (!flushing.compareAndSet(false, true)) {
+                return false;
+            }
+            try {
+                List<Pending> batch = new ArrayList<>(Math.min(size.get(), batchSize));
+                Pending pending;
+                while (batch.size() < batchSize && (pending = queue.poll()) != null) {
+                    batch.add(pending);
+                }
+                size.addAndGet(-batch.size());
+                if (!batch.isEmpty()) {
+                    write(batch);
+                }
+                return true;
+            } finally {
+                flushing.set(false);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void write(List<Pending> batch) {
+            /* Two saves of the same id in one window would make the multi-row upsert
+             * touch the row twice, only the later one is written. The earlier caller's
+             * save is overwritten just as if the two had been written one by one. */
+            List<Object> entities = new ArrayList<>(batch.size());
+            ShardedBatchWriter.lastWritePerId(batch, pending -> pending.entity).forEach(pending -> entities.add(pending.entity));
+            try {
+                writer.write(entities);
+                batch.forEach(written -> written.future.complete(written.entity));
+            } catch (Exception e) {
+                logger.error("Write-behind flush of {} entities to shard {} failed", batch.size(), shard, e);
+                batch.forEach(failed -> failed.future.completeExceptionally(e));
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,23 @@
+package com.piraxx.sharder.sharderPackage.cache;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Opts a repository into the in-process entity cache: findById is answered
+ * from the cache of the shard owning the id, save refreshes the entry and
+ * deletes or @Modifying queries evict it. Entries are detached copies, so
+ * changing a returned entity never changes the cached one.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ShardCached {
+
+    /** Entries kept per shard before the least valuable ones are evicted. */
+    long maximumSize() default 10_000;
+
+    /** How long an entry is served after it was loaded or written. */
+    long expireAfterWriteSeconds() default 300;
+}
@@ -0,0 +1,175 @@
+package com.piraxx.sharder.sharderPackage.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.piraxx.sharder.sharderPackage.utils.EntityRowMapper;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The entity cache behind @ShardCached repositories: for every entity class one
+ * Caffeine cache per shard, from id to a detached copy of the row.
+ *
+ * Every cache is bound to Micrometer as cache "sharder.entity" with entity and
+ * shard tags, so cache.gets{result=hit|miss} and cache.evictions are exported.
+ *
+ * Caffeine's W-TinyLFU admission keeps a burst of one-off lookups from pushing
+ * out the hot ids, which a plain LRU would do. Partitioning by shard keeps a
+ * topology change cheap to handle and lets the statistics show how the hits
+ * are spread over the shards.
+ *
+ * A read that went to the database may only fill the cache when no write to
+ * the same entity class happened in the meantime, otherwise it could put back
+ * a row that was just changed. Writes inside a transaction evict the entry
+ * again when the transaction completes, so a rollback or a concurrent reader
+ * cannot leave a stale copy behind.
+ */
+public final class ShardEntityCache {
+
+    private static final ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, Cache<Object, Object>>> caches = new ConcurrentHashMap<>();
+
+    // bumped by every write to an entity class, see putIfUnchanged
+    private static final ConcurrentHashMap<Class<?>, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    private ShardEntityCache() {
+    }
+
+    /** A copy of the cached entity, or null when the shard has no entry for the id. */
+    public static Object get(Class<?> entityType, String shard, Object id) throws SQLException {
+        Map<String, Cache<Object, Object>> shards = caches.get(entityType);
+        Cache<Object, Object> cache = shards == null ? null : shards.get(shard);
+        if (cache == null) {
+            return null;
+        }
+        Object cached = cache.getIfPresent(id);
+        return cached == null ? null : copyOf(cached);
+    }
+
+    /** Taken before reading from the database and handed to putIfUnchanged afterwards. */
+    public static long generation(Class<?> entityType) {
+        return generationOf(entityType).get();
+    }
+
+    /** Caches a row that was read, unless the entity class was written since the read started. */
+    public static void putIfUnchanged(ShardCached config, Class<?> entityType, String shard, Object id,
+                                      Object entityInstance, long generation) throws SQLException {
+        Cache<Object, Object> cache = cacheFor(config, entityType, shard);
+        cache.put(id, copyOf(entityInstance));
+        if (generation(entityType) != generation) {
+            cache.invalidate(id);
+        }
+    }
+
+    /** Refreshes the entry after a save, or only evicts it while a transaction could still roll back. */
+    public static void written(ShardCached config, Class<?> entityType, String shard, Object entityInstance) throws SQLException {
+        Object id = idOf(entityInstance);
+        evict(entityType, Collections.singletonList(id));
+        if (id != null && shard != null && !TransactionSynchronizationManager.isSynchronizationActive()) {
+            cacheFor(config, entityType, shard).put(id, copyOf(entityInstance));
+        }
+    }
+
+    /** Evicts the given entities or ids on every shard, now and when the current transaction completes. */
+    public static void evict(Class<?> entityType, Iterable<?> entitiesOrIds) {
+        List<Object> ids = new ArrayList<>();
+        for (Object entityOrId : entitiesOrIds) {
+            Object id = entityType.isInstance(entityOrId) ? idOf(entityOrId) : entityOrId;
+            if (id != null) {
+                ids.add(id);
+            }
+        }
+        Runnable eviction = () -> {
+            generationOf(entityType).incrementAndGet();
+            for (Cache<Object, Object> cache : partitionsOf(entityType)) {
+                ids.forEach(cache::invalidate);
+            }
+        };
+        eviction.run();
+        afterTransaction(eviction);
+    }
+
+    /** Evicts every entry of the entity class, for writes whose rows are not known like @Modifying queries. */
+    public static void evictAll(Class<?> entityType) {
+        Runnable eviction = () -> {
+            generationOf(entityType).incrementAndGet();
+            partitionsOf(entityType).forEach(Cache::invalidateAll);
+        };
+        eviction.run();
+        afterTransaction(eviction);
+    }
+
+    /** Drops everything, used when keys move between shards. */
+    public static void invalidateAll() {
+        for (Class<?> entityType : caches.keySet()) {
+            generationOf(entityType).incrementAndGet();
+            partitionsOf(entityType).forEach(Cache::invalidateAll);
+        }
+    }
+
+    /** Hit, miss and eviction counts keyed by entity name and shard, like TransactionEntity/shard1. */
+    public static Map<String, CacheStats> statistics() {
+        Map<String, CacheStats> statistics = new TreeMap<>();
+        caches.forEach((entityType, shards) -> shards.forEach(
+                (shard, cache) -> statistics.put(entityType.getSimpleName() + "/" + shard, cache.stats())));
+        return statistics;
+    }
+
+    public static long estimatedSize() {
+        long size = 0;
+        for (Class<?> entityType : caches.keySet()) {
+            for (Cache<Object, Object> cache : partitionsOf(entityType)) {
+                size += cache.estimatedSize();
+            }
+        }
+        return size;
+    }
+
+    private static Cache<Object, Object> cacheFor(ShardCached config, Class<?> entityType, String shard) {
+        return caches.computeIfAbsent(entityType, type -> new ConcurrentHashMap<>())
+                .computeIfAbsent(shard, name -> CaffeineCacheMetrics.monitor(Metrics.globalRegistry,
+                        Caffeine.newBuilder()
+                                .maximumSize(config.maximumSize())
+                                .expireAfterWrite(Duration.ofSeconds(config.expireAfterWriteSeconds()))
+                                .recordStats()
+                                .build(),
+                        "sharder.entity", "entity", entityType.getSimpleName(), "shard", name));
+    }
+
+    private static Collection<Cache<Object, Object>> partitionsOf(Class<?> entityType) {
+        Map<String, Cache<Object, Object>> shards = caches.get(entityType);
+        return shards == null ? Collections.emptyList() : shards.values();
+    }
+
+    private static AtomicLong generationOf(Class<?> entityType) {
+        return generations.computeIfAbsent(entityType, type -> new AtomicLong());
+    }
+
+    private static void afterTransaction(Runnable eviction) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    eviction.run();
+                }
+            });
+        }
+    }
+
+    private static Object copyOf(Object entityInstance) throws SQLException {
+        return EntityRowMapper.metadataFor(entityInstance.getClass()).copyOf(entityInstance);
+    }
+
+    private static Object idOf(Object entityInstance) {
+        EntityRowMapper.Property idProperty = EntityRowMapper.metadataFor(entityInstance.getClass()).getIdProperty();
+        return idProperty == null ? null : idProperty.get(entityInstance);
+    }
+}
@@ -0,0 +1,374 @@
+package com.piraxx.sharder.sharderPackage.index;
+
+import com.piraxx.sharder.configs.ShardProperties;
+import com.piraxx.sharder.sharderPackage.DataSourcesHandlerAspect;
+import com.piraxx.sharder.sharderPackage.ReplicatedDataSource;
+import com.piraxx.sharder.sharderPackage.ShardKeys;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategies;
+import com.piraxx.sharder.sharderPackage.utils.EntityRowMapper;
+import jakarta.persistence.Entity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ResolvableType;
+import org.springframework.data.repository.Repository;
+import org.springframework.data.repository.query.parser.Part;
+import org.springframework.data.repository.query.parser.PartTree;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Method;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A global secondary index: for every @ShardIndexed attribute of every row it
+ * records which shard the row lives on, in one table on a designated index
+ * shard (sharder.index-shard, the default shard when not set).
+ *
+ * sharder_index(entity_name, attribute, attribute_value, entity_id, shard)
+ *
+ * Entries are written before the row is saved and removed after it is deleted,
+ * so the index can name a shard that does not have the row (the lookup then
+ * simply finds nothing there) but never misses a shard that does. The one
+ * exception is an entity whose shard is not known before the save, because
+ * its id is generated or its shard key is not set: it is written to the
+ * default shard and indexed there right after the save, once it has its id,
+ * and a lookup racing that save can miss it.
+ *
+ * Lookups are cached in process. The cache only knows about writes made by this
+ * instance, which is why a lookup that finds nothing is checked against the
+ * table again.
+ */
+@Component
+public class GlobalSecondaryIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(GlobalSecondaryIndex.class);
+
+    private static final String TABLE = "sharder_index";
+
+    private static final int cacheSize = (int) ShardProperties.readLongFromEnv("shardIndexCacheSize", 100_000);
+
+    private static volatile String indexShard;
+
+    private static volatile String defaultShard;
+
+    private static volatile boolean tableReady;
+
+    // attributes indexed per entity class, empty for classes without @ShardIndexed fields
+    private static final ConcurrentHashMap<Class<?>, List<EntityRowMapper.Property>> indexedProperties = new ConcurrentHashMap<>();
+
+    // entity|attribute|value -> shards, least recently used entries are dropped first
+    private static final Map<String, List<String>> cache = Collections.synchronizedMap(
+            new LinkedHashMap<>(1024, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+                    return size() > cacheSize;
+                }
+            });
+
+    /* @Value cannot inject a static field, so the shard name is handed over through this setter. */
+    @Value("${sharder.index-shard:${sharder.default-shard:}}")
+    public void setIndexShard(String shardName) {
+        GlobalSecondaryIndex.indexShard = shardName == null || shardName.isBlank() ? null : shardName;
+    }
+
+    /* where rows without a known shard are written, the first shard when not set */
+    @Value("${sharder.default-shard:}")
+    public void setDefaultShard(String shardName) {
+        GlobalSecondaryIndex.defaultShard = shardName == null || shardName.isBlank() ? null : shardName;
+    }
+
+    /**
+     * Returns the indexed finder a derived repository method amounts to, or null.
+     * Only methods with a single criterion on a @ShardIndexed attribute qualify:
+     * findByEmail does, findByEmailAndStatus or findByEmailOrPhone do not, and
+     * neither does findByEmailIgnoreCase, since the index matches values exactly.
+     */
+    public static IndexedFinder finderFor(Method method) {
+        Class<?> entityType = ResolvableType.forClass(method.getDeclaringClass()).as(Repository.class).resolveGeneric(0);
+        if (entityType == null || indexedPropertiesOf(entityType).isEmpty()) {
+            return null;
+        }
+        PartTree partTree;
+        try {
+            partTree = new PartTree(method.getName(), entityType);
+        } catch (RuntimeException e) {
+            // not a derived query, like save or findAll
+            return null;
+        }
+        List<Part> parts = partTree.getParts().toList();
+        if (parts.size() != 1 || parts.get(0).getType() != Part.Type.SIMPLE_PROPERTY
+                || parts.get(0).shouldIgnoreCase() != Part.IgnoreCaseType.NEVER
+                || partTree.isLimiting() || method.getParameterCount() < 1) {
+            return null;
+        }
+        String attribute = parts.get(0).getProperty().toDotPath();
+        for (EntityRowMapper.Property property : indexedPropertiesOf(entityType)) {
+            if (property.getField().getName().equals(attribute)) {
+                return new IndexedFinder(entityType, attribute, 0, partTree.isDelete());
+            }
+        }
+        return null;
+    }
+
+    public static boolean isIndexed(Class<?> entityType) {
+        return !indexedPropertiesOf(entityType).isEmpty();
+    }
+
+    /** The shards that may hold rows with the value, an empty list when none does. */
+    public static List<String> shardsFor(IndexedFinder finder, Object value, boolean bypassCache) throws SQLException {
+        if (value == null) {
+            return List.of();
+        }
+        String cacheKey = cacheKey(finder.getEntityType(), finder.getAttribute(), value.toString());
+        if (!bypassCache) {
+            List<String> cached = cache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        List<String> shards = new ArrayList<>(2);
+        try (Connection connection = indexDataSource().getConnection();
+             PreparedStatement select = connection.prepareStatement("select distinct shard from " + TABLE
+                     + " where entity_name = ? and attribute = ? and attribute_value = ?")) {
+            select.setString(1, finder.getEntityType().getName());
+            select.setString(2, finder.getAttribute());
+            select.setString(3, value.toString());
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    shards.add(resultSet.getString(1));
+                }
+            }
+        }
+        List<String> result = List.copyOf(shards);
+        // misses are not cached: another instance may be about to insert the value
+        if (!result.isEmpty()) {
+            cache.put(cacheKey, result);
+        }
+        return result;
+    }
+
+    /**
+     * Records the indexed attributes of entities that are about to be saved, on the
+     * shard that owns their shard key, and drops entries for values they no longer have.
+     * Entities of classes without indexed attributes are skipped. Indexed entities
+     * without an id or shard key yet are returned: their shard is only known after
+     * the save, which has to index them with indexSaved.
+     */
+    public static List<Object> indexEntities(Iterable<?> entities) throws SQLException {
+        List<Object> unplaced = new ArrayList<>();
+        index(entities, null, unplaced);
+        return unplaced;
+    }
+
+    /**
+     * Records the indexed attributes of entities that were just saved on the given
+     * shard, or on the default shard when null, because no shard key was known
+     * before the save.
+     */
+    public static void indexSaved(Iterable<?> entities, String shard) throws SQLException {
+        index(entities, shard != null ? shard : defaultShardName(), null);
+    }
+
+    private static void index(Iterable<?> entities, String savedOn, List<Object> unplaced) throws SQLException {
+        List<Object[]> upserts = new ArrayList<>();
+        List<Object[]> staleValues = new ArrayList<>();
+        for (Object entity : entities) {
+            if (entity == null || !isIndexed(entity.getClass())) {
+                continue;
+            }
+            Object id = idOf(entity);
+            Object shardKey = id == null || savedOn != null ? null : ShardKeys.of(entity);
+            if (id == null || (savedOn == null && shardKey == null)) {
+                if (unplaced != null) {
+                    unplaced.add(entity);
+                }
+                continue;
+            }
+            String shard = savedOn != null ? savedOn : ShardPlacementStrategies.shared().getNode(shardKey);
+            for (EntityRowMapper.Property property : indexedPropertiesOf(entity.getClass())) {
+                Object value = property.get(entity);
+                String attribute = property.getField().getName();
+                String stringValue = value == null ? null : value.toString();
+                if (stringValue != null) {
+                    upserts.add(new Object[]{entity.getClass().getName(), attribute, stringValue, id.toString(), shard});
+                }
+                staleValues.add(new Object[]{entity.getClass().getName(), attribute, id.toString(), stringValue});
+                evict(entity.getClass(), attribute);
+            }
+        }
+        if (upserts.isEmpty() && staleValues.isEmpty()) {
+            return;
+        }
+        try (Connection connection = indexDataSource().getConnection()) {
+            executeBatch(connection, "insert into " + TABLE
+                    + " (entity_name, attribute, attribute_value, entity_id, shard) values (?, ?, ?, ?, ?)"
+                    + " on conflict (entity_name, attribute, attribute_value, entity_id) do update set shard = excluded.shard", upserts);
+            executeBatch(connection, "delete from " + TABLE
+                    + " where entity_name = ? and attribute = ? and entity_id = ? and (? is null or attribute_value <> ?)",
+                    expandStaleValues(staleValues));
+        }
+    }
+
+    /** Removes every entry of the given rows, after the rows have been deleted. */
+    public static void removeEntities(Class<?> entityType, Iterable<?> entitiesOrIds) throws SQLException {
+        if (entityType == null || !isIndexed(entityType)) {
+            return;
+        }
+        List<Object[]> deletes = new ArrayList<>();
+        for (Object entityOrId : entitiesOrIds) {
+            Object id = entityType.isInstance(entityOrId) ? idOf(entityOrId) : entityOrId;
+            if (id != null) {
+                deletes.add(new Object[]{entityType.getName(), id.toString()});
+            }
+        }
+        try (Connection connection = indexDataSource().getConnection()) {
+            executeBatch(connection, "delete from " + TABLE + " where entity_name = ? and entity_id = ?", deletes);
+        }
+        evictAll();
+    }
+
+    /** Removes every entry of an entity class, after all its rows have been deleted. */
+    public static void removeAllEntities(Class<?> entityType) throws SQLException {
+        if (entityType == null || !isIndexed(entityType)) {
+            return;
+        }
+        try (Connection connection = indexDataSource().getConnection()) {
+            executeBatch(connection, "delete from " + TABLE + " where entity_name = ?",
+                    List.<Object[]>of(new Object[]{entityType.getName()}));
+        }
+        evictAll();
+    }
+
+    /** Removes the entries of a value after a deleteBy on it. */
+    public static void removeValue(IndexedFinder finder, Object value) throws SQLException {
+        if (value == null) {
+            return;
+        }
+        try (Connection connection = indexDataSource().getConnection()) {
+            executeBatch(connection, "delete from " + TABLE + " where entity_name = ? and attribute = ? and attribute_value = ?",
+                    List.<Object[]>of(new Object[]{finder.getEntityType().getName(), finder.getAttribute(), value.toString()}));
+        }
+        cache.remove(cacheKey(finder.getEntityType(), finder.getAttribute(), value.toString()));
+    }
+
+    /** Points the entries of rows the rebalancer moved to their new shard. */
+    public static void moveEntities(Class<?> entityType, Collection<?> ids, String shard) throws SQLException {
+        if (!isIndexed(entityType) || ids.isEmpty()) {
+            return;
+        }
+        List<Object[]> updates = new ArrayList<>();
+        for (Object id : ids) {
+            updates.add(new Object[]{shard, entityType.getName(), id.toString()});
+        }
+        try (Connection connection = indexDataSource().getConnection()) {
+            executeBatch(connection, "update " + TABLE + " set shard = ? where entity_name = ? and entity_id = ?", updates);
+        }
+        evictAll();
+    }
+
+    public static void evictAll() {
+        cache.clear();
+    }
+
+    private static void evict(Class<?> entityType, String attribute) {
+        String prefix = entityType.getName() + '|' + attribute + '|';
+        synchronized (cache) {
+            cache.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+    }
+
+    /* the stale value check binds the new value twice: "? is null or attribute_value <> ?" */
+    private static List<Object[]> expandStaleValues(List<Object[]> staleValues) {
+        List<Object[]> rows = new ArrayList<>(staleValues.size());
+        for (Object[] stale : staleValues) {
+            rows.add(new Object[]{stale[0], stale[1], stale[2], stale[3], stale[3]});
+        }
+        return rows;
+    }
+
+    private static void executeBatch(Connection connection, String sql, List<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (Object[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    statement.setObject(i + 1, row[i], Types.VARCHAR);
+                }
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /* the same choice DataSourceConfig makes for the routing data source */
+    private static String defaultShardName() {
+        if (defaultShard != null) {
+            return defaultShard;
+        }
+        return DataSourcesHandlerAspect.getDataSourceMap().keySet().iterator().next().toString();
+    }
+
+    private static DataSource indexDataSource() throws SQLException {
+        Map<Object, Object> shards = DataSourcesHandlerAspect.getDataSourceMap();
+        if (shards.isEmpty()) {
+            throw new SQLException("No shards configured for the global secondary index");
+        }
+        DataSource dataSource = (DataSource) (indexShard == null ? shards.values().iterator().next() : shards.get(indexShard));
+        if (dataSource == null) {
+            throw new SQLException("Index shard " + indexShard + " is not one of " + shards.keySet());
+        }
+        // entries are read right after they are written, which a lagging replica could miss
+        dataSource = ReplicatedDataSource.primaryOf(dataSource);
+        if (!tableReady) {
+            createTable(dataSource);
+        }
+        return dataSource;
+    }
+
+    private static synchronized void createTable(DataSource dataSource) throws SQLException {
+        if (tableReady) {
+            return;
+        }
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("create table if not exists " + TABLE + " ("
+                    + "entity_name varchar(255) not null, "
+                    + "attribute varchar(255) not null, "
+                    + "attribute_value varchar(1024) not null, "
+                    + "entity_id varchar(255) not null, "
+                    + "shard varchar(255) not null, "
+                    + "primary key (entity_name, attribute, attribute_value, entity_id))");
+            statement.executeUpdate("create index if not exists " + TABLE + "_entity_id on " + TABLE + " (entity_name, entity_id)");
+        }
+        tableReady = true;
+        logger.info("Global secondary index ready in table {}", TABLE);
+    }
+
+    private static List<EntityRowMapper.Property> indexedPropertiesOf(Class<?> entityType) {
+        return indexedProperties.computeIfAbsent(entityType, type -> {
+            if (!type.isAnnotationPresent(Entity.class)) {
+                return List.of();
+            }
+            List<EntityRowMapper.Property> properties = new ArrayList<>();
+            for (EntityRowMapper.Property property : EntityRowMapper.metadataFor(type).getProperties()) {
+                if (property.getField().isAnnotationPresent(ShardIndexed.class)) {
+                    properties.add(property);
+                }
+            }
+            return List.copyOf(properties);
+        });
+    }
+
+    private static Object idOf(Object entity) {
+        EntityRowMapper.Property idProperty = EntityRowMapper.metadataFor(entity.getClass()).getIdProperty();
+        return idProperty == null ? null : idProperty.get(entity);
+    }
+
+    private static String cacheKey(Class<?> entityType, String attribute, String value) {
+        return entityType.getName() + '|' + attribute + '|' + value;
+    }
+}
@@ -0,0 +1,35 @@
+package com.piraxx.sharder.sharderPackage.index;
+
+/** A derived repository method whose only criterion is a @ShardIndexed attribute. */
+public final class IndexedFinder {
+
+    private final Class<?> entityType;
+    private final String attribute;
+    private final int argumentIndex;
+    private final boolean delete;
+
+    IndexedFinder(Class<?> entityType, String attribute, int argumentIndex, boolean delete) {
+        this.entityType = entityType;
+        this.attribute = attribute;
+        this.argumentIndex = argumentIndex;
+        this.delete = delete;
+    }
+
+    public Class<?> getEntityType() {
+        return entityType;
+    }
+
+    public String getAttribute() {
+        return attribute;
+    }
+
+    /** The method argument that carries the attribute value. */
+    public int getArgumentIndex() {
+        return argumentIndex;
+    }
+
+    /** True for deleteBy/removeBy methods, whose index entries go away with the rows. */
+    public boolean isDelete() {
+        return delete;
+    }
+}
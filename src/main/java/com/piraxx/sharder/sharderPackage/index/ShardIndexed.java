@@ -0,0 +1,17 @@
+package com.piraxx.sharder.sharderPackage.index;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an entity field whose values are recorded in the global secondary index,
+ * so a derived finder on it (findByEmail, existsByEmail, deleteByEmail, ...) is
+ * sent only to the shards holding matching rows instead of being hashed as if
+ * the value were the shard key.
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ShardIndexed {
+}
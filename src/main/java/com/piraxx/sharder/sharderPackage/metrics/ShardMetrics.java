@@ -0,0 +1,164 @@
+package com.piraxx.sharder.sharderPackage.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The sharder's Micrometer meters, registered in the global registry that
+ * Spring Boot adds its own registry to, so they show up under
+ * /actuator/metrics without the routing code having to be a bean.
+ *
+ * sharder.routing                    calls by routing decision (type tag)
+ * sharder.shard.statement            statement latency per shard (shard, path, outcome tags)
+ * sharder.shard.connection.acquire   time to borrow a connection per shard
+ * sharder.fanout.width               shards a broadcast statement went to
+ * sharder.merge.rows                 rows pulled from the shards per merged query
+ * sharder.hedge                      hedged reads per shard (winner tag: primary or hedge)
+ * sharder.circuit.rejected           calls failed fast because a shard's circuit was open
+ * sharder.topology.version           version of the routing snapshot in use
+ * sharder.shard.requests             keyed repository calls routed to each shard
+ *
+ * The latency timers publish histograms so a slow shard in a broadcast stands
+ * out in the percentiles rather than disappearing in an average. Meters are
+ * looked up once per tag combination and kept, recording is then a map lookup.
+ */
+public final class ShardMetrics {
+
+    public enum Routing {
+        // hashed to the shard owning the key
+        SINGLE_SHARD("single-shard"),
+        // sent to every shard and merged
+        BROADCAST("broadcast"),
+        // a @Query sent to the few shards owning the keys its WHERE clause names
+        MULTI_SHARD("multi-shard"),
+        // no shard key, so the default shard answers
+        DEFAULT_FALLBACK("default-fallback"),
+        // sent to the shards the global secondary index names
+        INDEX("index"),
+        // answered by the entity cache without a shard
+        CACHE("cache"),
+        // saveAll split into one batch per owning shard
+        BATCHED("batched"),
+        // save queued and written with other saves to the same shard
+        WRITE_BEHIND("write-behind");
+
+        private final String tag;
+
+        Routing(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    // the statement ran on one shard chosen by the router, or on every shard of a fan-out
+    public static final String SINGLE_SHARD_PATH = "single-shard";
+    public static final String FAN_OUT_PATH = "fan-out";
+
+    private static final MeterRegistry registry = Metrics.globalRegistry;
+
+    private static final ConcurrentHashMap<Routing, Counter> routingCounters = new ConcurrentHashMap<>();
+
+    private static final ConcurrentHashMap<String, Timer> statementTimers = new ConcurrentHashMap<>();
+
+    private static final ConcurrentHashMap<String, Timer> acquireTimers = new ConcurrentHashMap<>();
+
+    private static final ConcurrentHashMap<String, Counter> hedgeCounters = new ConcurrentHashMap<>();
+
+    private static final ConcurrentHashMap<String, Counter> rejectedCounters = new ConcurrentHashMap<>();
+
+    private static final ConcurrentHashMap<String, Counter> requestCounters = new ConcurrentHashMap<>();
+
+    private static final AtomicLong topologyVersion = registry.gauge("sharder.topology.version", new AtomicLong());
+
+    private static final DistributionSummary fanOutWidth = DistributionSummary.builder("sharder.fanout.width")
+            .description("Shards a broadcast statement was sent to")
+            .baseUnit("shards")
+            .register(registry);
+
+    private static final DistributionSummary rowsMerged = DistributionSummary.builder("sharder.merge.rows")
+            .description("Rows read from the shards to answer one broadcast query")
+            .baseUnit("rows")
+            .publishPercentileHistogram()
+            .register(registry);
+
+    private ShardMetrics() {
+    }
+
+    public static void recordRouting(Routing routing) {
+        routingCounters.computeIfAbsent(routing, key -> Counter.builder("sharder.routing")
+                .description("Repository calls by routing decision")
+                .tag("type", key.tag)
+                .register(registry)).increment();
+    }
+
+    /** outcome is success, error or cancelled (deadline passed or the caller gave up). */
+    public static void recordStatement(Object shard, String path, String outcome, long nanos) {
+        String shardName = shardName(shard);
+        statementTimers.computeIfAbsent(shardName + '|' + path + '|' + outcome, key -> Timer.builder("sharder.shard.statement")
+                .description("Time a statement took on one shard")
+                .tag("shard", shardName)
+                .tag("path", path)
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(registry)).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void recordConnectionAcquire(Object shard, long nanos) {
+        String shardName = shardName(shard);
+        acquireTimers.computeIfAbsent(shardName, key -> Timer.builder("sharder.shard.connection.acquire")
+                .description("Time to borrow a connection from a shard's pool")
+                .tag("shard", shardName)
+                .publishPercentileHistogram()
+                .register(registry)).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void recordFanOut(int shards) {
+        fanOutWidth.record(shards);
+    }
+
+    public static void recordRowsMerged(long rows) {
+        rowsMerged.record(rows);
+    }
+
+    /** A read was sent a second time, winner tells which attempt answered first. */
+    public static void recordHedge(Object shard, boolean hedgeWon) {
+        String shardName = shardName(shard);
+        String winner = hedgeWon ? "hedge" : "primary";
+        hedgeCounters.computeIfAbsent(shardName + '|' + winner, key -> Counter.builder("sharder.hedge")
+                .description("Reads sent to a replica as well because the shard was slower than usual")
+                .tag("shard", shardName)
+                .tag("winner", winner)
+                .register(registry)).increment();
+    }
+
+    public static void recordTopologyVersion(long version) {
+        topologyVersion.set(version);
+    }
+
+    public static void recordCircuitRejected(Object shard) {
+        String shardName = shardName(shard);
+        rejectedCounters.computeIfAbsent(shardName, key -> Counter.builder("sharder.circuit.rejected")
+                .description("Calls failed fast because the shard's circuit breaker was open")
+                .tag("shard", shardName)
+                .register(registry)).increment();
+    }
+
+    public static void recordShardRequest(Object shard) {
+        String shardName = shardName(shard);
+        requestCounters.computeIfAbsent(shardName, key -> Counter.builder("sharder.shard.requests")
+                .description("Repository calls routed to the shard by their shard key")
+                .tag("shard", shardName)
+                .register(registry)).increment();
+    }
+
+    private static String shardName(Object shard) {
+        // the default data source has no name of its own in the routing map
+        return shard == null ? "default" : shard.toString();
+    }
+}
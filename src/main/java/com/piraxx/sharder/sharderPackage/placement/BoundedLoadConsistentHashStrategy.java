@@ -0,0 +1,163 @@
+package com.piraxx.sharder.sharderPackage.placement;
+
+import java.util.*;
+
+/**
+ * Consistent hashing with bounded loads (Mirrokni, Thorup and Zadimoghaddam),
+ * applied to the key space rather than to live requests.
+ *
+ * The virtual nodes are placed exactly like on the plain ring. Then the arcs of
+ * the ring are handed out clockwise, and a shard that would end up owning more
+ * than (1 + epsilon) times its fair share of the hash space passes the arc on to
+ * the next shard clockwise that still has room. No shard owns more than the
+ * bound, most arcs keep their natural owner, and because the assignment only
+ * depends on the set of shards a lookup stays a deterministic binary search.
+ *
+ * A weighted shard gets virtual nodes and a fair share in proportion to its
+ * weight, so the bound follows the capacity of each shard.
+ */
+public class BoundedLoadConsistentHashStrategy implements ShardPlacementStrategy {
+
+    // hash32 values are in [0, 2^31), Math.abs(Integer.MIN_VALUE) aside
+    private static final long HASH_SPACE = 1L << 31;
+
+    private final int numberOfReplicas;
+    private final double epsilon;
+
+    private final List<String> nodes = new ArrayList<>();
+    private final Map<String, Double> weights = new HashMap<>();
+
+    private static final class Ring {
+        private final int[] hashes;
+        private final int[] owners;
+        private final String[] shards;
+
+        private Ring(int[] hashes, int[] owners, String[] shards) {
+            this.hashes = hashes;
+            this.owners = owners;
+            this.shards = shards;
+        }
+    }
+
+    private volatile Ring ring = new Ring(new int[0], new int[0], new String[0]);
+
+    public BoundedLoadConsistentHashStrategy(int numberOfReplicas, double epsilon) {
+        this.numberOfReplicas = numberOfReplicas;
+        this.epsilon = epsilon;
+    }
+
+    @Override
+    public void addNode(String node) {
+        addNode(node, 1.0);
+    }
+
+    @Override
+    public synchronized void addNode(String node, double weight) {
+        if (!(weight > 0)) {
+            throw new IllegalArgumentException("The weight of shard " + node + " must be positive: " + weight);
+        }
+        if (!nodes.contains(node)) {
+            nodes.add(node);
+        }
+        weights.put(node, weight);
+        rebuild();
+    }
+
+    @Override
+    public synchronized void removeNode(String node) {
+        if (nodes.remove(node)) {
+            weights.remove(node);
+            rebuild();
+        }
+    }
+
+    @Override
+    public synchronized double getWeight(String node) {
+        return weights.getOrDefault(node, 1.0);
+    }
+
+    private void rebuild() {
+        String[] shards = nodes.stream().sorted().toArray(String[]::new);
+        double totalWeight = 0;
+        for (String shard : shards) {
+            totalWeight += weights.get(shard);
+        }
+        TreeMap<Integer, Integer> virtualNodes = new TreeMap<>();
+        for (int shard = 0; shard < shards.length; shard++) {
+            double weight = weights.get(shards[shard]);
+            int replicas = weight == 1.0 ? numberOfReplicas : (int) Math.max(1, Math.round(numberOfReplicas * weight));
+            for (int i = 0; i < replicas; i++) {
+                virtualNodes.put(ShardKeyHasher.hash32(shards[shard] + i), shard);
+            }
+        }
+
+        int[] hashes = new int[virtualNodes.size()];
+        int[] naturalOwners = new int[virtualNodes.size()];
+        int position = 0;
+        for (Map.Entry<Integer, Integer> virtualNode : virtualNodes.entrySet()) {
+            hashes[position] = virtualNode.getKey();
+            naturalOwners[position] = virtualNode.getValue();
+            position++;
+        }
+
+        int[] owners = new int[hashes.length];
+        long[] load = new long[shards.length];
+        long[] capacity = new long[shards.length];
+        for (int shard = 0; shard < shards.length; shard++) {
+            capacity[shard] = (long) Math.ceil((1 + epsilon) * HASH_SPACE * weights.get(shards[shard]) / totalWeight);
+        }
+        for (int i = 0; i < hashes.length; i++) {
+            // a key goes to the first virtual node at or after its hash, so each virtual
+            // node owns the arc that ends at it; the first one also owns the wrap around
+            long arc = i == 0
+                    ? hashes[0] + (HASH_SPACE - hashes[hashes.length - 1])
+                    : (long) hashes[i] - hashes[i - 1];
+            owners[i] = pickOwner(i, arc, naturalOwners, load, capacity);
+            load[owners[i]] += arc;
+        }
+        ring = new Ring(hashes, owners, shards);
+    }
+
+    private static int pickOwner(int position, long arc, int[] naturalOwners, long[] load, long[] capacity) {
+        for (int step = 0; step < naturalOwners.length; step++) {
+            int candidate = naturalOwners[(position + step) % naturalOwners.length];
+            if (load[candidate] + arc <= capacity[candidate]) {
+                return candidate;
+            }
+        }
+        // an arc bigger than any remaining room (too few virtual nodes) goes to the least loaded shard for its size
+        int leastLoaded = 0;
+        for (int shard = 1; shard < load.length; shard++) {
+            if ((double) load[shard] / capacity[shard] < (double) load[leastLoaded] / capacity[leastLoaded]) {
+                leastLoaded = shard;
+            }
+        }
+        return leastLoaded;
+    }
+
+    @Override
+    public String getNode(Object key) {
+        Ring current = ring;
+        if (current.hashes.length == 0) {
+            return null;
+        }
+        int index = Arrays.binarySearch(current.hashes, ShardKeyHasher.hash32(key));
+        if (index < 0) {
+            index = -index - 1;
+            if (index == current.hashes.length) {
+                index = 0;
+            }
+        }
+        return current.shards[current.owners[index]];
+    }
+
+    @Override
+    public List<String> getNodes() {
+        return List.of(ring.shards);
+    }
+
+    @Override
+    public String toString() {
+        return "bounded-load(" + numberOfReplicas + " vnodes, epsilon " + epsilon + ")" + getNodes();
+    }
+}
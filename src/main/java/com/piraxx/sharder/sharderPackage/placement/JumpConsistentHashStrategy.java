@@ -0,0 +1,65 @@
+package com.piraxx.sharder.sharderPackage.placement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Jump Consistent Hash (Lamping and Veach). No ring and no virtual nodes: the
+ * bucket is computed from the key hash in O(log n) time with O(1) memory, and the
+ * spread over the buckets is close to perfectly even.
+ *
+ * The catch is that buckets are numbered, so shards can only be added or removed
+ * at the end of the list. Removing a shard from the middle renumbers every shard
+ * after it and moves their keys too.
+ */
+public class JumpConsistentHashStrategy implements ShardPlacementStrategy {
+
+    private volatile String[] nodes = new String[0];
+
+    @Override
+    public synchronized void addNode(String node) {
+        List<String> updated = new ArrayList<>(List.of(nodes));
+        if (!updated.contains(node)) {
+            updated.add(node);
+            nodes = updated.toArray(new String[0]);
+        }
+    }
+
+    @Override
+    public synchronized void removeNode(String node) {
+        List<String> updated = new ArrayList<>(List.of(nodes));
+        if (updated.remove(node)) {
+            nodes = updated.toArray(new String[0]);
+        }
+    }
+
+    @Override
+    public String getNode(Object key) {
+        String[] current = nodes;
+        if (current.length == 0) {
+            return null;
+        }
+        return current[jump(ShardKeyHasher.hash64(key), current.length)];
+    }
+
+    static int jump(long key, int buckets) {
+        long bucket = -1;
+        long next = 0;
+        while (next < buckets) {
+            bucket = next;
+            key = key * 2862933555777941757L + 1;
+            next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) bucket;
+    }
+
+    @Override
+    public List<String> getNodes() {
+        return List.of(nodes);
+    }
+
+    @Override
+    public String toString() {
+        return "jump" + getNodes();
+    }
+}
@@ -0,0 +1,155 @@
+package com.piraxx.sharder.sharderPackage.placement;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How a placement strategy spread a sample of keys over the shards, and how
+ * long a lookup took on average. Used to compare the strategies for a given
+ * shard count before switching.
+ *
+ * With weighted shards every shard is expected to get its weight's share of
+ * the keys, and the deviation is measured from that share instead of from the
+ * mean. The ideal weights are the ones that would have given every shard its
+ * expected share of this sample, to correct the weights after measuring the
+ * rows the shards really hold.
+ */
+public class PlacementStatistics {
+
+    private final String strategy;
+    private final Map<String, Long> keysPerShard;
+    private final Map<String, Double> weights;
+    private final long sampleSize;
+    private final double mean;
+    private final double standardDeviation;
+    private final double maxOverMean;
+    private final double nanosPerLookup;
+
+    private PlacementStatistics(String strategy, Map<String, Long> keysPerShard, Map<String, Double> weights,
+                                long sampleSize, double nanosPerLookup) {
+        this.strategy = strategy;
+        this.keysPerShard = Collections.unmodifiableMap(keysPerShard);
+        this.weights = Collections.unmodifiableMap(weights);
+        this.sampleSize = sampleSize;
+        this.nanosPerLookup = nanosPerLookup;
+
+        int shards = Math.max(keysPerShard.size(), 1);
+        this.mean = (double) sampleSize / shards;
+        double squares = 0;
+        double maxOverExpected = 0;
+        for (Map.Entry<String, Long> shard : keysPerShard.entrySet()) {
+            double expected = expectedKeys(shard.getKey());
+            long count = shard.getValue();
+            squares += (count - expected) * (count - expected);
+            maxOverExpected = Math.max(maxOverExpected, expected == 0 ? 0 : count / expected);
+        }
+        this.standardDeviation = Math.sqrt(squares / shards);
+        this.maxOverMean = maxOverExpected;
+    }
+
+    /** Statistics of keys or rows counted elsewhere, for example per shard in the database. */
+    public static PlacementStatistics of(String strategy, Map<String, Long> countsPerShard, Map<String, Double> weights) {
+        long sampleSize = countsPerShard.values().stream().mapToLong(Long::longValue).sum();
+        return new PlacementStatistics(strategy, new LinkedHashMap<>(countsPerShard), new LinkedHashMap<>(weights),
+                sampleSize, 0);
+    }
+
+    public static PlacementStatistics measure(ShardPlacementStrategy strategy, Iterable<?> sampleKeys) {
+        Map<String, Long> keysPerShard = new LinkedHashMap<>();
+        Map<String, Double> weights = new LinkedHashMap<>();
+        for (String node : strategy.getNodes()) {
+            keysPerShard.put(node, 0L);
+            weights.put(node, strategy.getWeight(node));
+        }
+        long sampleSize = 0;
+        long start = System.nanoTime();
+        for (Object key : sampleKeys) {
+            String node = strategy.getNode(key);
+            if (node != null) {
+                keysPerShard.merge(node, 1L, Long::sum);
+            }
+            sampleSize++;
+        }
+        long elapsed = System.nanoTime() - start;
+        return new PlacementStatistics(strategy.toString(), keysPerShard, weights, sampleSize,
+                sampleSize == 0 ? 0 : (double) elapsed / sampleSize);
+    }
+
+    public Map<String, Long> getKeysPerShard() {
+        return keysPerShard;
+    }
+
+    public Map<String, Double> getWeights() {
+        return weights;
+    }
+
+    /** The share of the sample every shard got, between 0 and 1. */
+    public Map<String, Double> getOwnership() {
+        Map<String, Double> ownership = new LinkedHashMap<>();
+        keysPerShard.forEach((shard, count) -> ownership.put(shard, sampleSize == 0 ? 0 : (double) count / sampleSize));
+        return ownership;
+    }
+
+    /**
+     * The weights that would have spread this sample as the current weights
+     * intend, with the same total. A shard that got nothing keeps its weight.
+     */
+    public Map<String, Double> getIdealWeights() {
+        Map<String, Double> ideal = new LinkedHashMap<>();
+        double total = 0;
+        double idealTotal = 0;
+        for (Map.Entry<String, Long> shard : keysPerShard.entrySet()) {
+            double weight = weightOf(shard.getKey());
+            double corrected = shard.getValue() == 0 ? weight : weight * expectedKeys(shard.getKey()) / shard.getValue();
+            ideal.put(shard.getKey(), corrected);
+            total += weight;
+            idealTotal += corrected;
+        }
+        double scale = idealTotal == 0 ? 1 : total / idealTotal;
+        ideal.replaceAll((shard, weight) -> weight * scale);
+        return ideal;
+    }
+
+    private double weightOf(String shard) {
+        return weights.getOrDefault(shard, 1.0);
+    }
+
+    private double expectedKeys(String shard) {
+        double totalWeight = 0;
+        for (String node : keysPerShard.keySet()) {
+            totalWeight += weightOf(node);
+        }
+        return totalWeight == 0 ? 0 : sampleSize * weightOf(shard) / totalWeight;
+    }
+
+    public long getSampleSize() {
+        return sampleSize;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getStandardDeviation() {
+        return standardDeviation;
+    }
+
+    /**
+     * 1.0 is a perfectly even spread; 1.25 means the busiest shard has 25% more keys than average,
+     * or than its weight's share when the shards are weighted.
+     */
+    public double getMaxOverMean() {
+        return maxOverMean;
+    }
+
+    public double getNanosPerLookup() {
+        return nanosPerLookup;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d keys, stddev %.1f, max/mean %.3f, %.1f ns/lookup, %s",
+                strategy, sampleSize, standardDeviation, maxOverMean, nanosPerLookup, keysPerShard);
+    }
+}
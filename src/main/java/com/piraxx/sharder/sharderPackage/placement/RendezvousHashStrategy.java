@@ -0,0 +1,130 @@
+package com.piraxx.sharder.sharderPackage.placement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rendezvous, or highest random weight, hashing. Every shard scores the key and
+ * the highest score wins. Adding or removing a shard only moves the keys that
+ * shard wins or owned, whatever its position, and there are no virtual nodes to
+ * tune. A lookup costs one mix per shard, which is cheap for the shard counts
+ * this project runs with.
+ *
+ * Weighted shards use the weighted form of the score, -weight / ln(u) with u
+ * the shard's mix of the key mapped into (0, 1), which gives every shard a
+ * share of the keys proportional to its weight. The weighted score orders
+ * shards of equal weight like the plain one, so weighting a shard only moves
+ * keys to or from that shard.
+ */
+public class RendezvousHashStrategy implements ShardPlacementStrategy {
+
+    private static final class Nodes {
+        private final String[] names;
+        private final long[] seeds;
+        // null while every shard has weight 1
+        private final double[] weights;
+
+        private Nodes(String[] names, long[] seeds, double[] weights) {
+            this.names = names;
+            this.seeds = seeds;
+            this.weights = weights;
+        }
+    }
+
+    private volatile Nodes nodes = new Nodes(new String[0], new long[0], null);
+
+    private final Map<String, Double> weights = new HashMap<>();
+
+    @Override
+    public void addNode(String node) {
+        addNode(node, 1.0);
+    }
+
+    @Override
+    public synchronized void addNode(String node, double weight) {
+        if (!(weight > 0)) {
+            throw new IllegalArgumentException("The weight of shard " + node + " must be positive: " + weight);
+        }
+        List<String> updated = new ArrayList<>(List.of(nodes.names));
+        if (!updated.contains(node)) {
+            updated.add(node);
+        }
+        weights.put(node, weight);
+        publish(updated);
+    }
+
+    @Override
+    public synchronized void removeNode(String node) {
+        List<String> updated = new ArrayList<>(List.of(nodes.names));
+        if (updated.remove(node)) {
+            weights.remove(node);
+            publish(updated);
+        }
+    }
+
+    @Override
+    public synchronized double getWeight(String node) {
+        return weights.getOrDefault(node, 1.0);
+    }
+
+    private void publish(List<String> names) {
+        long[] seeds = new long[names.size()];
+        double[] nodeWeights = new double[names.size()];
+        boolean weighted = false;
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = ShardKeyHasher.hash64(names.get(i));
+            nodeWeights[i] = weights.getOrDefault(names.get(i), 1.0);
+            weighted |= nodeWeights[i] != 1.0;
+        }
+        nodes = new Nodes(names.toArray(new String[0]), seeds, weighted ? nodeWeights : null);
+    }
+
+    @Override
+    public String getNode(Object key) {
+        Nodes current = nodes;
+        if (current.names.length == 0) {
+            return null;
+        }
+        long keyHash = ShardKeyHasher.hash64(key);
+        if (current.weights != null) {
+            return current.names[weightedWinner(current, keyHash)];
+        }
+        int winner = 0;
+        long highest = Long.MIN_VALUE;
+        for (int i = 0; i < current.seeds.length; i++) {
+            long score = ShardKeyHasher.mix64(keyHash ^ current.seeds[i]);
+            if (score > highest) {
+                highest = score;
+                winner = i;
+            }
+        }
+        return current.names[winner];
+    }
+
+    private static int weightedWinner(Nodes current, long keyHash) {
+        int winner = 0;
+        double highest = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < current.seeds.length; i++) {
+            // the mix in (0, 1) in the order of the signed comparison above, so weight 1 picks the same shard
+            double u = (((ShardKeyHasher.mix64(keyHash ^ current.seeds[i]) ^ Long.MIN_VALUE) >>> 11) + 0.5) / (1L << 53);
+            double score = -current.weights[i] / Math.log(u);
+            if (score > highest) {
+                highest = score;
+                winner = i;
+            }
+        }
+        return winner;
+    }
+
+    @Override
+    public List<String> getNodes() {
+        return List.of(nodes.names);
+    }
+
+    @Override
+    public String toString() {
+        return "rendezvous" + getNodes();
+    }
+}
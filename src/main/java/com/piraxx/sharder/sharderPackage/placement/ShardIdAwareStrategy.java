@@ -0,0 +1,88 @@
+package com.piraxx.sharder.sharderPackage.placement;
+
+import com.piraxx.sharder.sharderPackage.ShardIds;
+
+import java.util.List;
+
+/**
+ * Wraps every placement strategy so ids made by ShardIds are placed by the
+ * bucket in their bits instead of being hashed.
+ *
+ * Which shard owns a bucket is decided by the wrapped strategy, once per
+ * bucket, and kept in a table of ShardIds.BUCKETS shards. Routing such an id
+ * is then a shift, a mask and an array read. Because the buckets go through
+ * the same strategy, adding a shard moves whole buckets the way it moves
+ * other keys, and the rebalancer, which asks the next strategy for the owner
+ * of every row, moves their rows along.
+ */
+final class ShardIdAwareStrategy implements ShardPlacementStrategy {
+
+    private final ShardPlacementStrategy strategy;
+
+    // owner of every bucket, built on first use and dropped when the shards change
+    private volatile String[] bucketOwners;
+
+    ShardIdAwareStrategy(ShardPlacementStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    @Override
+    public synchronized void addNode(String node) {
+        strategy.addNode(node);
+        bucketOwners = null;
+    }
+
+    @Override
+    public synchronized void addNode(String node, double weight) {
+        strategy.addNode(node, weight);
+        bucketOwners = null;
+    }
+
+    @Override
+    public synchronized void removeNode(String node) {
+        strategy.removeNode(node);
+        bucketOwners = null;
+    }
+
+    @Override
+    public String getNode(Object key) {
+        if (!ShardIds.isShardId(key)) {
+            return strategy.getNode(key);
+        }
+        String[] owners = bucketOwners;
+        if (owners == null) {
+            owners = buildBucketOwners();
+        }
+        return owners[ShardIds.bucketOf((Long) key)];
+    }
+
+    private synchronized String[] buildBucketOwners() {
+        String[] owners = bucketOwners;
+        if (owners == null) {
+            owners = new String[ShardIds.BUCKETS];
+            for (int bucket = 0; bucket < owners.length; bucket++) {
+                owners[bucket] = strategy.getNode("bucket:" + bucket);
+            }
+            // no shards yet, nothing to remember
+            if (owners[0] != null) {
+                bucketOwners = owners;
+            }
+        }
+        return owners;
+    }
+
+    @Override
+    public List<String> getNodes() {
+        return strategy.getNodes();
+    }
+
+    @Override
+    public double getWeight(String node) {
+        return strategy.getWeight(node);
+    }
+
+    @Override
+    public String toString() {
+        return strategy.toString();
+    }
+}
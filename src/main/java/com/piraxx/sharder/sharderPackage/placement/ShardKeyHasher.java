@@ -0,0 +1,151 @@
+package com.piraxx.sharder.sharderPackage.placement;
+
+import org.apache.commons.codec.digest.MurmurHash3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Turns shard keys into hashes for the placement strategies without
+ * allocating on the hot path.
+ */
+public final class ShardKeyHasher {
+
+    // scratch space for the UTF-8 form of a key, reused so hashing does not allocate
+    private static final ThreadLocal<byte[]> keyBuffer = ThreadLocal.withInitial(() -> new byte[64]);
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private ShardKeyHasher() {
+    }
+
+    /**
+     * The hash the ring has always used: MurmurHash3 of the key's UTF-8 toString(),
+     * made non negative with Math.abs.
+     */
+    public static int hash32(Object keyObj) {
+        return Math.abs(murmur32(keyObj));
+    }
+
+    /**
+     * A 64-bit hash for strategies that need one (jump hash, rendezvous). It spreads
+     * the same MurmurHash3 value over 64 bits with the MurmurHash3 finalizer.
+     */
+    public static long hash64(Object keyObj) {
+        return mix64(murmur32(keyObj) & 0xFFFFFFFFL);
+    }
+
+    /** MurmurHash3 fmix64, a cheap bijective mixer for 64-bit values. */
+    public static long mix64(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /*
+     * Keys have always been hashed as the UTF-8 bytes of their toString(), and that
+     * has to stay true or existing rows would suddenly belong to other shards. What
+     * changes is that numbers, UUIDs and ASCII strings are written straight into a
+     * reused buffer instead of going through toString() and getBytes().
+     */
+    // the deprecated hash32 is the legacy hash every stored key was placed with, keeping it keeps the distribution
+    @SuppressWarnings("deprecation")
+    private static int murmur32(Object keyObj) {
+        byte[] buffer = keyBuffer.get();
+        int length;
+        if (keyObj instanceof Integer || keyObj instanceof Long || keyObj instanceof Short || keyObj instanceof Byte) {
+            length = writeDecimal(((Number) keyObj).longValue(), buffer);
+        } else if (keyObj instanceof UUID) {
+            length = writeUuid((UUID) keyObj, buffer);
+        } else {
+            String key = keyObj.toString();
+            length = writeAscii(key, buffer);
+            if (length < 0) {
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                return MurmurHash3.hash32(keyBytes, 0, keyBytes.length, 0);
+            }
+            if (length > buffer.length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+                keyBuffer.set(buffer);
+                writeAscii(key, buffer);
+            }
+        }
+        return MurmurHash3.hash32(buffer, 0, length, 0);
+    }
+
+    private static int writeDecimal(long value, byte[] buffer) {
+        if (value == Long.MIN_VALUE) {
+            byte[] digits = Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(digits, 0, buffer, 0, digits.length);
+            return digits.length;
+        }
+        int length = 0;
+        boolean negative = value < 0;
+        long remaining = negative ? -value : value;
+        do {
+            buffer[length++] = (byte) ('0' + (remaining % 10));
+            remaining /= 10;
+        } while (remaining != 0);
+        if (negative) {
+            buffer[length++] = '-';
+        }
+        // digits were written least significant first
+        for (int left = 0, right = length - 1; left < right; left++, right--) {
+            byte swap = buffer[left];
+            buffer[left] = buffer[right];
+            buffer[right] = swap;
+        }
+        return length;
+    }
+
+    /* Same layout as UUID.toString(): 8-4-4-4-12 lower case hex digits. */
+    private static int writeUuid(UUID uuid, byte[] buffer) {
+        long most = uuid.getMostSignificantBits();
+        long least = uuid.getLeastSignificantBits();
+        writeHex(most >>> 32, 8, buffer, 0);
+        buffer[8] = '-';
+        writeHex(most >>> 16, 4, buffer, 9);
+        buffer[13] = '-';
+        writeHex(most, 4, buffer, 14);
+        buffer[18] = '-';
+        writeHex(least >>> 48, 4, buffer, 19);
+        buffer[23] = '-';
+        writeHex(least, 12, buffer, 24);
+        return 36;
+    }
+
+    private static void writeHex(long value, int digits, byte[] buffer, int offset) {
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[offset + i] = HEX_DIGITS[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+
+    /*
+     * Returns the number of bytes needed, which is larger than the buffer when it does
+     * not fit (nothing is written then), or -1 when the key is not plain ASCII and has
+     * to go through the UTF-8 encoder.
+     */
+    private static int writeAscii(String key, byte[] buffer) {
+        int length = key.length();
+        if (length > buffer.length) {
+            for (int i = 0; i < length; i++) {
+                if (key.charAt(i) >= 0x80) {
+                    return -1;
+                }
+            }
+            return length;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if (c >= 0x80) {
+                return -1;
+            }
+            buffer[i] = (byte) c;
+        }
+        return length;
+    }
+}
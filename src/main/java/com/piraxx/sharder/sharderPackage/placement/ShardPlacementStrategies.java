@@ -0,0 +1,76 @@
+package com.piraxx.sharder.sharderPackage.placement;
+
+import com.piraxx.sharder.configs.ShardProperties;
+import com.piraxx.sharder.sharderPackage.ConsistentHashing;
+import com.piraxx.sharder.sharderPackage.ShardingContextHolder;
+import com.piraxx.sharder.sharderPackage.ShardTopology;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Creates the placement strategy named by the placementStrategy environment
+ * variable (ring, jump, rendezvous or bounded-load, ring by default) and hands
+ * out the one that every part of the sharder routes with.
+ *
+ * That one is part of the ShardTopology snapshot. When shards are added or
+ * removed a new strategy is built and published with a new snapshot (see
+ * ShardRebalancer) instead of being changed in place, so the placement in use
+ * before the change stays available until the rows have been moved.
+ */
+public final class ShardPlacementStrategies {
+
+    private ShardPlacementStrategies() {
+    }
+
+    /** The placement of the topology the running repository call is routed with, or of the current one. */
+    public static ShardPlacementStrategy shared() {
+        ShardPlacementStrategy strategy = ShardingContextHolder.getTopology().getPlacement();
+        return strategy != null ? strategy : Unconfigured.placement;
+    }
+
+    /* before the shards are configured every key is placed nowhere */
+    private static final class Unconfigured {
+        private static final ShardPlacementStrategy placement = create(System.getenv("placementStrategy"));
+    }
+
+    /** A new strategy of the configured kind holding the given shards. */
+    public static ShardPlacementStrategy createWithNodes(Iterable<String> nodes) {
+        ShardPlacementStrategy strategy = create(System.getenv("placementStrategy"));
+        for (String node : nodes) {
+            strategy.addNode(node);
+        }
+        return strategy;
+    }
+
+    /** A new strategy of the configured kind holding the given shards with their weights. */
+    public static ShardPlacementStrategy createWithNodes(Map<String, Double> weightedNodes) {
+        ShardPlacementStrategy strategy = create(System.getenv("placementStrategy"));
+        weightedNodes.forEach(strategy::addNode);
+        return strategy;
+    }
+
+    /** A new, empty strategy of the given kind, which places ids made by ShardIds by their bucket. */
+    public static ShardPlacementStrategy create(String name) {
+        return new ShardIdAwareStrategy(createHashing(name));
+    }
+
+    private static ShardPlacementStrategy createHashing(String name) {
+        String strategy = name == null || name.isBlank() ? "ring" : name.trim().toLowerCase(Locale.ROOT);
+        switch (strategy) {
+            case "ring":
+                return new ConsistentHashing();
+            case "jump":
+                return new JumpConsistentHashStrategy();
+            case "rendezvous":
+                return new RendezvousHashStrategy();
+            case "bounded-load":
+                String epsilon = System.getenv("placementEpsilon");
+                return new BoundedLoadConsistentHashStrategy(
+                        (int) ShardProperties.readLongFromEnv("replicas", ConsistentHashing.DEFAULT_REPLICAS),
+                        epsilon == null || epsilon.isBlank() ? 0.25 : Double.parseDouble(epsilon));
+            default:
+                throw new IllegalArgumentException("Unknown placement strategy: " + name);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.piraxx.sharder.sharderPackage.placement;
+
+import java.util.List;
+
+/**
+ * Decides which shard owns a key. The consistent hash ring used to be the only
+ * way to do this; it is now one implementation among several so the placement
+ * algorithm can be picked for the shard count and the key distribution at hand.
+ *
+ * Implementations must answer getNode from any thread while nodes are added or
+ * removed, and must be deterministic: the same key and the same set of nodes
+ * always give the same shard, otherwise stored rows could not be found again.
+ *
+ * Shards may carry a weight, their capacity relative to an ordinary shard of
+ * weight 1, and then get a proportional share of the keys. Strategies that
+ * cannot place by weight only accept weight 1.
+ */
+public interface ShardPlacementStrategy {
+
+    void addNode(String node);
+
+    /** Adds the shard with a share of the keys proportional to its weight. */
+    default void addNode(String node, double weight) {
+        if (weight != 1.0) {
+            throw new UnsupportedOperationException(this + " cannot weight shards, use ring, rendezvous or bounded-load");
+        }
+        addNode(node);
+    }
+
+    /** The weight the shard was added with, 1 when it was added without one. */
+    default double getWeight(String node) {
+        return 1.0;
+    }
+
+    void removeNode(String node);
+
+    /** The shard that owns the key, or null when no shard has been added yet. */
+    String getNode(Object key);
+
+    List<String> getNodes();
+
+    /** How evenly this strategy spreads the given keys and how fast it looks them up. */
+    default PlacementStatistics statistics(Iterable<?> sampleKeys) {
+        return PlacementStatistics.measure(this, sampleKeys);
+    }
+}
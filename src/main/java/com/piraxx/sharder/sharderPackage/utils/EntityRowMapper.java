@@ -0,0 +1,367 @@
+package com.piraxx.sharder.sharderPackage.utils;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.EmbeddedId;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Id;
+import jakarta.persistence.MappedSuperclass;
+import jakarta.persistence.Transient;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps rows of a result set to instances of one entity class without doing any
+ * reflection per row.
+ *
+ * The entity is inspected once (fields, @Column names, the no-arg constructor)
+ * and every persistent field gets a MethodHandle setter plus a column reader
+ * picked for the field's type, so an int field is filled straight from
+ * ResultSet.getInt without boxing. For a given column layout the column indexes
+ * are resolved once as well, which leaves the per row work at one constructor
+ * call and one typed getter/setter pair per column. @Id fields are populated
+ * like any other column.
+ *
+ * Fields inherited from @MappedSuperclass and @Entity superclasses are mapped
+ * as well, the @Id included, the fields of other superclasses are not
+ * persistent. Enums are read the way JPA writes them: by name with
+ * @Enumerated(EnumType.STRING), by ordinal otherwise.
+ */
+public final class EntityRowMapper<T> {
+
+    private static final ConcurrentHashMap<Class<?>, EntityMetadata> metadataCache = new ConcurrentHashMap<>();
+
+    // mappers for a column layout, keyed by entity class and the column labels of the query
+    private static final ConcurrentHashMap<String, EntityRowMapper<?>> mapperCache = new ConcurrentHashMap<>();
+
+    private final EntityMetadata metadata;
+    private final PropertySetter[] setters;
+    private final int[] columnIndexes;
+
+    private EntityRowMapper(EntityMetadata metadata, PropertySetter[] setters, int[] columnIndexes) {
+        this.metadata = metadata;
+        this.setters = setters;
+        this.columnIndexes = columnIndexes;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> EntityRowMapper<T> forResultSet(Class<T> entityType, ResultSetMetaData metaData) throws SQLException {
+        int columnCount = metaData.getColumnCount();
+        StringBuilder layout = new StringBuilder(entityType.getName());
+        for (int i = 1; i <= columnCount; i++) {
+            layout.append('|').append(metaData.getColumnLabel(i));
+        }
+        EntityRowMapper<?> mapper = mapperCache.get(layout.toString());
+        if (mapper == null) {
+            mapper = mapperCache.computeIfAbsent(layout.toString(), key -> bind(metadataFor(entityType), metaData));
+        }
+        return (EntityRowMapper<T>) mapper;
+    }
+
+    public static EntityMetadata metadataFor(Class<?> entityType) {
+        return metadataCache.computeIfAbsent(entityType, EntityMetadata::new);
+    }
+
+    @SuppressWarnings("unchecked")
+    public T mapRow(ResultSet resultSet) throws SQLException {
+        T entityInstance = (T) metadata.newInstance();
+        populate(entityInstance, resultSet);
+        return entityInstance;
+    }
+
+    public void populate(Object entityInstance, ResultSet resultSet) throws SQLException {
+        for (int i = 0; i < setters.length; i++) {
+            try {
+                setters[i].set(entityInstance, resultSet, columnIndexes[i]);
+            } catch (SQLException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new SQLException("Could not map column " + columnIndexes[i] + " to " + metadata.entityType.getName(), e);
+            }
+        }
+    }
+
+    private static EntityRowMapper<?> bind(EntityMetadata metadata, ResultSetMetaData metaData) {
+        try {
+            List<PropertySetter> setters = new ArrayList<>();
+            List<Integer> columnIndexes = new ArrayList<>();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                Property property = metadata.propertiesByColumn.get(normalize(metaData.getColumnLabel(i)));
+                if (property != null) {
+                    setters.add(property.setter);
+                    columnIndexes.add(i);
+                }
+            }
+            return new EntityRowMapper<>(
+                    metadata,
+                    setters.toArray(new PropertySetter[0]),
+                    columnIndexes.stream().mapToInt(Integer::intValue).toArray());
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not read result set metadata", e);
+        }
+    }
+
+    /* transaction_id, transactionId and TRANSACTIONID all refer to the same column */
+    static String normalize(String name) {
+        return name.replace("_", "").toLowerCase(Locale.ROOT);
+    }
+
+    @FunctionalInterface
+    interface PropertySetter {
+        void set(Object target, ResultSet resultSet, int column) throws Throwable;
+    }
+
+    /** What is known about one entity class, computed once. */
+    public static final class EntityMetadata {
+
+        private final Class<?> entityType;
+        private final MethodHandle constructor;
+        private final Map<String, Property> propertiesByColumn = new HashMap<>();
+        private final List<Property> properties = new ArrayList<>();
+        private Property idProperty;
+
+        private EntityMetadata(Class<?> entityType) {
+            this.entityType = entityType;
+            try {
+                this.constructor = MethodHandles.privateLookupIn(entityType, MethodHandles.lookup())
+                        .findConstructor(entityType, MethodType.methodType(void.class))
+                        .asType(MethodType.methodType(Object.class));
+
+                for (Field field : persistentFields(entityType)) {
+                    if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())
+                            || field.isAnnotationPresent(Transient.class)) {
+                        continue;
+                    }
+                    MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(field.getDeclaringClass(), MethodHandles.lookup());
+                    String columnName = field.getName();
+                    if (field.isAnnotationPresent(Column.class) && !field.getAnnotation(Column.class).name().isEmpty()) {
+                        columnName = field.getAnnotation(Column.class).name();
+                    }
+                    MethodHandle rawSetter = lookup.unreflectSetter(field);
+                    Property property = new Property(field, columnName,
+                            setterFor(field, rawSetter),
+                            lookup.unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class)),
+                            rawSetter.asType(MethodType.methodType(void.class, Object.class, Object.class)));
+                    properties.add(property);
+                    propertiesByColumn.put(normalize(columnName), property);
+                    if (idProperty == null && (field.isAnnotationPresent(Id.class) || field.isAnnotationPresent(EmbeddedId.class))) {
+                        idProperty = property;
+                    }
+                }
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new IllegalArgumentException("Cannot build a row mapper for " + entityType.getName(), e);
+            }
+        }
+
+        public Class<?> getEntityType() {
+            return entityType;
+        }
+
+        /* the fields of the mapped superclasses first, the way JPA inherits them */
+        private static List<Field> persistentFields(Class<?> entityType) {
+            Deque<Class<?>> hierarchy = new ArrayDeque<>();
+            hierarchy.push(entityType);
+            for (Class<?> type = entityType.getSuperclass(); type != null && type != Object.class; type = type.getSuperclass()) {
+                if (type.isAnnotationPresent(MappedSuperclass.class) || type.isAnnotationPresent(Entity.class)) {
+                    hierarchy.push(type);
+                }
+            }
+            List<Field> fields = new ArrayList<>();
+            for (Class<?> type : hierarchy) {
+                fields.addAll(Arrays.asList(type.getDeclaredFields()));
+            }
+            return fields;
+        }
+
+        public List<Property> getProperties() {
+            return properties;
+        }
+
+        /** The @Id (or @EmbeddedId) field, or null when the class does not declare one. */
+        public Property getIdProperty() {
+            return idProperty;
+        }
+
+        /** A new instance with the same field values, shallow like a detached copy of the row. */
+        public Object copyOf(Object entityInstance) throws SQLException {
+            Object copy = newInstance();
+            for (Property property : properties) {
+                property.set(copy, property.get(entityInstance));
+            }
+            return copy;
+        }
+
+        Object newInstance() throws SQLException {
+            try {
+                return (Object) constructor.invokeExact();
+            } catch (Throwable e) {
+                throw new SQLException("Could not instantiate " + entityType.getName(), e);
+            }
+        }
+    }
+
+    /** A persistent field of an entity together with its precompiled accessors. */
+    public static final class Property {
+
+        private final Field field;
+        private final String columnName;
+        private final PropertySetter setter;
+        private final MethodHandle getter;
+        private final MethodHandle valueSetter;
+
+        Property(Field field, String columnName, PropertySetter setter, MethodHandle getter, MethodHandle valueSetter) {
+            this.field = field;
+            this.columnName = columnName;
+            this.setter = setter;
+            this.getter = getter;
+            this.valueSetter = valueSetter;
+        }
+
+        public Field getField() {
+            return field;
+        }
+
+        public String getColumnName() {
+            return columnName;
+        }
+
+        public Object get(Object entityInstance) {
+            try {
+                return (Object) getter.invokeExact(entityInstance);
+            } catch (Throwable e) {
+                throw new IllegalStateException("Could not read " + field.getName() + " of " + field.getDeclaringClass().getName(), e);
+            }
+        }
+
+        public void set(Object entityInstance, Object value) {
+            try {
+                valueSetter.invokeExact(entityInstance, value);
+            } catch (Throwable e) {
+                throw new IllegalStateException("Could not write " + field.getName() + " of " + field.getDeclaringClass().getName(), e);
+            }
+        }
+    }
+
+    /*
+     * Picks the column reader once per field type. Primitive fields are set through
+     * a handle typed on the primitive so the value is never boxed, boxed fields
+     * check wasNull() so a NULL column stays null instead of becoming 0. The
+     * lambdas have block bodies because an expression body would compile the
+     * invokeExact call as returning Object, which the void handles reject.
+     */
+    private static PropertySetter setterFor(Field field, MethodHandle rawSetter) {
+        Class<?> type = field.getType();
+        if (type == int.class) {
+            MethodHandle setter = rawSetter.asType(MethodType.methodType(void.class, Object.class, int.class));
+            return (target, resultSet, column) -> {
+                setter.invokeExact(target, resultSet.getInt(column));
+            };
+        }
+        if (type == long.class) {
+            MethodHandle setter = rawSetter.asType(MethodType.methodType(void.class, Object.class, long.class));
+            return (target, resultSet, column) -> {
+                setter.invokeExact(target, resultSet.getLong(column));
+            };
+        }
+        if (type == double.class) {
+            MethodHandle setter = rawSetter.asType(MethodType.methodType(void.class, Object.class, double.class));
+            return (target, resultSet, column) -> {
+                setter.invokeExact(target, resultSet.getDouble(column));
+            };
+        }
+        if (type == boolean.class) {
+            MethodHandle setter = rawSetter.asType(MethodType.methodType(void.class, Object.class, boolean.class));
+            return (target, resultSet, column) -> {
+                setter.invokeExact(target, resultSet.getBoolean(column));
+            };
+        }
+
+        MethodHandle setter = rawSetter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+        if (type == Integer.class) {
+            return (target, resultSet, column) -> {
+                int value = resultSet.getInt(column);
+                setter.invokeExact(target, resultSet.wasNull() ? null : (Object) value);
+            };
+        }
+        if (type == Long.class) {
+            return (target, resultSet, column) -> {
+                long value = resultSet.getLong(column);
+                setter.invokeExact(target, resultSet.wasNull() ? null : (Object) value);
+            };
+        }
+        if (type == Double.class) {
+            return (target, resultSet, column) -> {
+                double value = resultSet.getDouble(column);
+                setter.invokeExact(target, resultSet.wasNull() ? null : (Object) value);
+            };
+        }
+        if (type == Boolean.class) {
+            return (target, resultSet, column) -> {
+                boolean value = resultSet.getBoolean(column);
+                setter.invokeExact(target, resultSet.wasNull() ? null : (Object) value);
+            };
+        }
+        if (type == String.class) {
+            return (target, resultSet, column) -> {
+                setter.invokeExact(target, (Object) resultSet.getString(column));
+            };
+        }
+        if (type == BigDecimal.class) {
+            return (target, resultSet, column) -> {
+                setter.invokeExact(target, (Object) resultSet.getBigDecimal(column));
+            };
+        }
+        if (type == LocalDateTime.class || type == LocalDate.class || type == UUID.class) {
+            return (target, resultSet, column) -> {
+                setter.invokeExact(target, (Object) resultSet.getObject(column, type));
+            };
+        }
+        if (type == Date.class) {
+            return (target, resultSet, column) -> {
+                Timestamp value = resultSet.getTimestamp(column);
+                setter.invokeExact(target, value == null ? null : (Object) new Date(value.getTime()));
+            };
+        }
+        if (type.isEnum() && field.isAnnotationPresent(Enumerated.class)
+                && field.getAnnotation(Enumerated.class).value() == EnumType.STRING) {
+            return (target, resultSet, column) -> {
+                String value = resultSet.getString(column);
+                setter.invokeExact(target, value == null ? null : (Object) enumValue(type, value));
+            };
+        }
+        if (type.isEnum()) {
+            // EnumType.ORDINAL, also what JPA uses without @Enumerated
+            Object[] constants = type.getEnumConstants();
+            return (target, resultSet, column) -> {
+                int ordinal = resultSet.getInt(column);
+                setter.invokeExact(target, resultSet.wasNull() ? null : constants[ordinal]);
+            };
+        }
+        return (target, resultSet, column) -> {
+            Object value = resultSet.getObject(column);
+            if (value != null && !type.isInstance(value)) {
+                value = HandleRepositoryMethodsReponses.convertType(value, type);
+            }
+            setter.invokeExact(target, value);
+        };
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object enumValue(Class<?> type, String value) {
+        return Enum.valueOf((Class<? extends Enum>) type, value);
+    }
+}
@@ -1,12 +1,13 @@
 package com.piraxx.sharder.sharderPackage.utils;
 
-import jakarta.persistence.Column;
+import com.piraxx.sharder.sharderPackage.MergedResultCursor;
+import com.piraxx.sharder.sharderPackage.OrderByClause;
+import com.piraxx.sharder.sharderPackage.ShardCursor;
 import jakarta.persistence.Entity;
-import jakarta.persistence.Id;
-import org.aspectj.lang.JoinPoint;
-import org.aspectj.lang.reflect.MethodSignature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Slice;
 
 import java.lang.reflect.*;
 import java.math.BigDecimal;
@@ -16,17 +17,33 @@ import java.sql.SQLException;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.function.Supplier;
 
 public class HandleRepositoryMethodsReponses {
 
     private static final Logger logger = LoggerFactory.getLogger(HandleRepositoryMethodsReponses.class);
 
 
-    /* This method assumes all the repository method will return List<entity>
-     * It will be replicated for all other expected return type*/
-    public static Object transformResultSetToAppropriateReturnType(List<Map<String, Object>> combinedResults, JoinPoint joinPoint ){
-        MethodSignature methodSignature = (MethodSignature) joinPoint.getSignature();
-        Method method = methodSignature.getMethod();
+    /**
+     * Turns the merged shard rows into whatever the repository method returns.
+     * Built once per repository method by the method plan, so the generic return
+     * type is only inspected the first time the method is called.
+     */
+    @FunctionalInterface
+    public interface ResultShape {
+        Object apply(MergedResultCursor combinedResults) throws SQLException;
+    }
+
+    /**
+     * Maps the row a shard cursor is positioned on to one element of a streamed
+     * result, like the T of Stream<T>. Null elements are left out of the stream.
+     */
+    @FunctionalInterface
+    public interface RowReader {
+        Object read(ResultSet record) throws SQLException;
+    }
+
+    public static ResultShape resultShapeFor(Method method){
 
         /* Here we get the class representing the actual return type regardless of
          * if it is parameterized or not. For example if we have List<Integer>, List is
@@ -36,20 +53,31 @@ public class HandleRepositoryMethodsReponses {
 
         // Check if the return type is `List<T>`
         if (returnType.equals(List.class)) {
-            return responseWithList(combinedResults, joinPoint);
+            return responseWithList(method);
+        }
+
+        // `Page<T>` and `Slice<T>` are built by the PagedQuery around the list of rows of the page
+        if (returnType.equals(Page.class) || returnType.equals(Slice.class)) {
+            return contentShapeFor(method);
         }
 
         // Check if the return type is `Optional<T>`
         if (returnType.equals(Optional.class)) {
-            return responseWithOptional(combinedResults, joinPoint);
+            return responseWithOptional(method);
         }
 
         // Check for those returning just the entity
-        if (isReturnTypeEntityClass(joinPoint)) {
-            return responseWithEntityClass(combinedResults, joinPoint);
+        if (isReturnTypeEntityClass(method)) {
+            return combinedResults -> buildEntity(returnType, combinedResults);
         }
 
-        return null;
+        // Check for single values like the long of a select count(*)
+        if (isScalar(returnType)) {
+            return combinedResults -> processScalar(combinedResults, returnType);
+        }
+
+        // Stream<T>, Flux<T> and CompletableFuture<List<T>> are read row by row by the StreamingQuery instead
+        return combinedResults -> null;
 
 
 //// Check if the return type is `boolean`
@@ -87,11 +115,6 @@ public class HandleRepositoryMethodsReponses {
 //            // Handle Completable return type logic here
 //        }
 //
-//// Check if the return type is `Page<T>`
-//        if (returnType.equals(Page.class)) {
-//            // Handle Page<T> return type logic here
-//        }
-//
 //// Check if the return type is `long`
 //        if (returnType.equals(long.class) || returnType.equals(Long.class)) {
 //            // Handle long return type logic here
@@ -99,67 +122,109 @@ public class HandleRepositoryMethodsReponses {
 
     }
 
-//    private static Boolean responseWithBoolean(List<Map<String, Object>> combinedResults, JoinPoint joinPoint){
+//    private static Boolean responseWithBoolean(MergedResultCursor combinedResults, JoinPoint joinPoint){
 //        Boolean response;
 //        for(Map<String, Object> record: combinedResults){
 //            for()
 //        }
 //    }
 
-    private static Object responseWithEntityClass(List<Map<String, Object>> combinedResults, JoinPoint joinPoint ){
-        Class<?> entityType = getNoneParameterizedReturnType(joinPoint);
-        try{
-            return buildEntity(entityType, combinedResults);
-        } catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException e){
-            logger.error("Error while preparing entity", e);
+    private static ResultShape responseWithOptional(Method method){
+        Class<?> type = getArgInParameterizedReturnType(method);
+        if(isGenericParameterSimpleNotEntity(method)){
+            return combinedResults -> processSimpleTypeOptional(combinedResults, type);
+        }else {
+            return combinedResults -> prepareOptionalOfEntity(combinedResults, type);
         }
-        return Optional.empty();
     }
 
-    private static Object responseWithOptional(List<Map<String, Object>> combinedResults, JoinPoint joinPoint ){
-        if(isGenericParameterSimpleNotEntity(joinPoint)){
-            return processSimpleTypeOptional(combinedResults, joinPoint);
-        }else {
-            return processEntityTypeOptional(combinedResults, joinPoint);
+    private static ResultShape responseWithList (Method method){
+        if(isGenericParameterSimpleNotEntity(method)){
+            Class<?> type = getArgInParameterizedReturnType(method);
+            return combinedResults -> processSimpleTypeList(combinedResults, type);
+        }else{
+            Class<?> entityType = getEntityTypeOfList(method);
+            return combinedResults -> entityType == null ? null : prepareListOfEntity(combinedResults, entityType);
         }
     }
 
-    private static Object responseWithList (List<Map<String, Object>> combinedResults, JoinPoint joinPoint ){
-        if(isGenericParameterSimpleNotEntity(joinPoint)){
-            return processSimpleTypeList(combinedResults, joinPoint);
-        }else{
-            return processEntityTypeList(combinedResults, joinPoint);
+    /** The rows as a List of the type argument of the return type, like the T of Page<T>. */
+    public static ResultShape contentShapeFor(Method method){
+        Class<?> type = getArgInParameterizedReturnType(method);
+        if(isGenericParameterSimpleNotEntity(method)){
+            return combinedResults -> processSimpleTypeList(combinedResults, type);
         }
+        return combinedResults -> prepareListOfEntity(combinedResults, type);
     }
 
-    private static Object processSimpleTypeOptional(List<Map<String, Object>> combinedResults, JoinPoint joinPoint ){
-        Class<?> type = getArgInParameterizedReturnType(joinPoint);
-        for(Map<String, Object> record: combinedResults){
-            for(Object value: record.values()){
-                if(value != null){
-                    if(type.isInstance(value)){
-                        return Optional.of(value);
-                    }else {
-                        return Optional.of(convertType(value, type));
-                    }
+    /* A new reader for every shard cursor, since an entity reader resolves the column layout on its first row. */
+    public static Supplier<RowReader> rowReaderFor(Class<?> elementType){
+        if(checkIfArgumentIsSimpleNotEntity(elementType)){
+            return () -> record -> firstNonNullValue(record, elementType);
+        }
+        return () -> new RowReader() {
+            private EntityRowMapper<?> rowMapper;
+
+            @Override
+            public Object read(ResultSet record) throws SQLException {
+                if(rowMapper == null){
+                    rowMapper = EntityRowMapper.forResultSet(elementType, record.getMetaData());
                 }
+                return rowMapper.mapRow(record);
+            }
+        };
+    }
+
+    private static boolean isScalar(Class<?> returnType){
+        return returnType.isPrimitive() && returnType != void.class
+                || Number.class.isAssignableFrom(returnType)
+                || returnType.equals(String.class)
+                || returnType.equals(Boolean.class);
+    }
+
+    /* The first non null column of the first row. A primitive return type cannot
+     * hold null, so an empty result, like the SUM over no rows, becomes zero. */
+    private static Object processScalar(MergedResultCursor combinedResults, Class<?> returnType) throws SQLException {
+        Optional<?> value = (Optional<?>) processSimpleTypeOptional(combinedResults, returnType);
+        if(value.isPresent()){
+            return value.get();
+        }
+        if(!returnType.isPrimitive()){
+            return null;
+        }
+        return returnType.equals(boolean.class) ? Boolean.FALSE : convertType(0, returnType);
+    }
+
+    private static Object processSimpleTypeOptional(MergedResultCursor combinedResults, Class<?> type) throws SQLException {
+        while(combinedResults.next()){
+            Object value = firstNonNullValue(combinedResults.current(), type);
+            if(value != null){
+                return Optional.of(value);
             }
         }
         return Optional.empty();
     }
 
-    private static Object processEntityTypeOptional(List<Map<String, Object>> combinedResults, JoinPoint joinPoint ){
-        Class<?> entityType = getArgInParameterizedReturnType(joinPoint);
-        return prepareOptionalOfEntity(combinedResults,entityType);
+    private static Object firstNonNullValue(ResultSet record, Class<?> type) throws SQLException {
+        int columnCount = record.getMetaData().getColumnCount();
+        for(int i=1; i<=columnCount; i++){
+            Object value = record.getObject(i);
+            if(value != null){
+                return type.isInstance(value) ? value : convertType(value, type);
+            }
+        }
+        return null;
     }
 
-    private static Object processSimpleTypeList(List<Map<String, Object>> combinedResults, JoinPoint joinPoint ){
-        Class<?> returnType = getArgInParameterizedReturnType(joinPoint);
+    private static Object processSimpleTypeList(MergedResultCursor combinedResults, Class<?> returnType) throws SQLException {
 
         List<Object> responseList = new ArrayList<>();
 
-        for(Map<String, Object> record: combinedResults){
-            for(Object value: record.values()){
+        while(combinedResults.next()){
+            ResultSet record = combinedResults.current();
+            int columnCount = record.getMetaData().getColumnCount();
+            for(int i=1; i<=columnCount; i++){
+               Object value = record.getObject(i);
                if(value != null){
                    if(returnType.isInstance(value)){
                        responseList.add(value);
@@ -172,10 +237,7 @@ public class HandleRepositoryMethodsReponses {
         return responseList;
     }
 
-    private static Object processEntityTypeList(List<Map<String, Object>> combinedResults, JoinPoint joinPoint ){
-        MethodSignature methodSignature = (MethodSignature) joinPoint.getSignature();
-        Method method = methodSignature.getMethod();
-
+    private static Class<?> getEntityTypeOfList(Method method){
         /* Here we get the class representing the actual return type regardless of
          * if it is parameterized or not. For example if we have List<Integer>, List is
          * returned.*/
@@ -201,65 +263,36 @@ public class HandleRepositoryMethodsReponses {
 
                 /* If there is an argument, we get its class name*/
                 if(actualTypeArguments.length > 0){
-                    Class<?> entityType = (Class<?>) actualTypeArguments[0];
-                    return prepareListOfEntity(combinedResults, entityType);
+                    return (Class<?>) actualTypeArguments[0];
                 }
             }
         }
         return null;
     }
 
-    private static Optional<Object> prepareOptionalOfEntity(List<Map<String, Object>> combinedResults, Class<?> entityType){
-        try{
-            Object entityInstance = buildEntity(entityType, combinedResults);
-            return Optional.of(entityInstance);
-        } catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException e){
-            logger.error("Error while preparing entity for Optional", e);
-        }
-        return Optional.empty();
+    private static Optional<Object> prepareOptionalOfEntity(MergedResultCursor combinedResults, Class<?> entityType) throws SQLException {
+        Object entityInstance = buildEntity(entityType, combinedResults);
+        return Optional.ofNullable(entityInstance);
     }
 
-    private static List<Object> prepareListOfEntity(List<Map<String, Object>> combinedResults, Class<?> entityType){
+    private static List<Object> prepareListOfEntity(MergedResultCursor combinedResults, Class<?> entityType) throws SQLException {
         List<Object> responseList = new ArrayList<>();
-        try {
-            Field[] fields = entityType.getDeclaredFields();
-            for(Map<String, Object> record: combinedResults){
-                Object entityInstance = entityType.getDeclaredConstructor().newInstance();
-
-                for(Field field: fields){
-
-                    if(field.isAnnotationPresent(Id.class)){continue;}
-                    field.setAccessible(true);
-
-                    // Use the column name if @Column is present
-                    String fieldName = field.getName();
-                    if (field.isAnnotationPresent(Column.class)) {
-                        Column columnAnnotation = field.getAnnotation(Column.class);
-                        fieldName = removeUnderScores(columnAnnotation.name());
-                    }
-
-                      for(String key: record.keySet()){
-                          if(fieldName.equalsIgnoreCase(removeUnderScores(key))){
-                              Object value = record.get(key);
-                              if(value != null && field.getType().isAssignableFrom(value.getClass())){
-                                  field.set(entityInstance, value);
-                              }else {
-                                  field.set(entityInstance, convertType(value, field.getType()));
-                              }
-                          }
-                      }
-                }
-                responseList.add(entityInstance);
-            }
-            return responseList;
 
-        } catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
-            logger.error("Error while preparing list of entities", e);
+        /* The mapper for the entity and the column layout of the query is looked up
+         * once. Every shard runs the same statement so the column positions are the
+         * same on all of them.*/
+        EntityRowMapper<?> rowMapper = null;
+        while(combinedResults.next()){
+            ResultSet record = combinedResults.current();
+            if(rowMapper == null){
+                rowMapper = EntityRowMapper.forResultSet(entityType, record.getMetaData());
+            }
+            responseList.add(rowMapper.mapRow(record));
         }
         return responseList;
     }
 
-    private static Object convertType(Object value, Class<?> targetType) {
+    static Object convertType(Object value, Class<?> targetType) {
         if (value == null) {
             return null;
         }
@@ -301,13 +334,7 @@ public class HandleRepositoryMethodsReponses {
         return value;
     }
 
-    private static String removeUnderScores(String str){
-        return str.replace("_", "");
-    }
-
-    private static Boolean isGenericParameterSimpleNotEntity(JoinPoint joinPoint){
-        MethodSignature methodSignature = (MethodSignature) joinPoint.getSignature();
-        Method method = methodSignature.getMethod();
+    private static Boolean isGenericParameterSimpleNotEntity(Method method){
         Type genericReturnType = method.getGenericReturnType();
         ParameterizedType parameterizedType = (ParameterizedType) genericReturnType;
         Type[] actualTypeArguments = parameterizedType.getActualTypeArguments();
@@ -332,23 +359,13 @@ public class HandleRepositoryMethodsReponses {
         return false;
     }
 
-    private static Class<?> getArgInParameterizedReturnType(JoinPoint joinPoint){
-        MethodSignature methodSignature = (MethodSignature) joinPoint.getSignature();
-        Method method = methodSignature.getMethod();
+    private static Class<?> getArgInParameterizedReturnType(Method method){
         ParameterizedType parameterizedType = (ParameterizedType) method.getGenericReturnType();
         Type[] types = parameterizedType.getActualTypeArguments();
         return (Class<?>) types[0];
     }
 
-    private static Class<?> getNoneParameterizedReturnType(JoinPoint joinPoint){
-        MethodSignature methodSignature = (MethodSignature) joinPoint.getSignature();
-        Method method = methodSignature.getMethod();
-        return method.getReturnType();
-    }
-
-    private static Boolean isReturnTypeEntityClass(JoinPoint joinPoint){
-        MethodSignature methodSignature = (MethodSignature) joinPoint.getSignature();
-        Method method = methodSignature.getMethod();
+    private static Boolean isReturnTypeEntityClass(Method method){
         Class<?> type = method.getReturnType();
         /* Class<?> is an implementation of Type which is an interface. So if you
         * try to get the isAnnotationPresent on Type there will be error.
@@ -360,35 +377,18 @@ public class HandleRepositoryMethodsReponses {
         return type.isAnnotationPresent(Entity.class);
     }
 
-    private static Object buildEntity(Class<?> entityType, List<Map<String, Object>> combinedResults) throws NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
-
-        Object entityInstance = entityType.getDeclaredConstructor().newInstance();
-        Field[] declaredFields = entityType.getDeclaredFields();
-
-        for(Map<String, Object> record: combinedResults) {
-            for (Field field : declaredFields) {
-
-                if (field.isAnnotationPresent(Id.class)) {
-                    continue;
-                }
-                field.setAccessible(true);
+    private static Object buildEntity(Class<?> entityType, MergedResultCursor combinedResults) throws SQLException {
 
-                String fieldName = field.getName();
-                if (field.isAnnotationPresent(Column.class)) {
-                    Column columnAnnotation = field.getAnnotation(Column.class);
-                    fieldName = removeUnderScores(columnAnnotation.name());
-                }
+        Object entityInstance = null;
+        EntityRowMapper<?> rowMapper = null;
 
-                for (String key : record.keySet()) {
-                    if (fieldName.equalsIgnoreCase(removeUnderScores(key))) {
-                        Object value = record.get(key);
-                        if (value != null && field.getType().isAssignableFrom(value.getClass())) {
-                            field.set(entityInstance, value);
-                        } else {
-                            field.set(entityInstance, convertType(value, field.getType()));
-                        }
-                    }
-                }
+        while(combinedResults.next()) {
+            ResultSet record = combinedResults.current();
+            if(rowMapper == null){
+                rowMapper = EntityRowMapper.forResultSet(entityType, record.getMetaData());
+                entityInstance = rowMapper.mapRow(record);
+            }else {
+                rowMapper.populate(entityInstance, record);
             }
         }
         return entityInstance;
@@ -399,30 +399,18 @@ public class HandleRepositoryMethodsReponses {
         return FQCN.substring(FQCN.lastIndexOf('.') + 1);
     }
 
-    public static List<Map<String, Object>> combineQueryResults(List<ResultSet> results) throws SQLException {
-
-        /*
-         * We have to loop through everything because a result set is not updatable
-         * according to this portion of the documentation
-         * "A default ResultSet object is not updatable and has a cursor that moves forward only."
-         */
-        List<Map<String, Object>> combinedResults = new ArrayList<>();
-        for (ResultSet resultSet: results){
-            ResultSetMetaData metaData = resultSet.getMetaData();
-            int columnCount  = metaData.getColumnCount();
-
-            while(resultSet.next()){
-                Map<String, Object> row = new HashMap<>();
-
-                for(int i=1; i<=columnCount; i++){
-                    String columnName = metaData.getColumnName(i);
-                    Object value = resultSet.getObject(i);
-                    row.put(columnName, value);
-                }
-                combinedResults.add(row);
-            }
+    /*
+     * Instead of copying every row of every shard into a map, the open shard cursors
+     * are wrapped in a single merged cursor and the rows are mapped one at a time as
+     * they are read. When the query is sorted the shards are merged in order.
+     */
+    public static MergedResultCursor combineQueryResults(List<ShardCursor> shardCursors, String nativeSql) throws SQLException {
+        try {
+            return MergedResultCursor.merge(shardCursors, OrderByClause.parse(nativeSql));
+        } catch (SQLException | RuntimeException e) {
+            shardCursors.forEach(ShardCursor::close);
+            throw e;
         }
-        return combinedResults;
     }
 
 }
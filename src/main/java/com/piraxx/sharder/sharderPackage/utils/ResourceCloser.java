@@ -14,7 +14,7 @@ public class ResourceCloser {
             try{
                 if(resource != null){
                     resource.close();
-                    logger.info("{} closed successfully.", resource.getClass().getSimpleName());
+                    logger.debug("{} closed successfully.", resource.getClass().getSimpleName());
                 }
             } catch (Exception ex){
                 logger.error("Error closing resource: {}", resource.getClass().getSimpleName(), ex);
@@ -0,0 +1,203 @@
+package com.piraxx.sharder.repositories;
+
+import com.piraxx.sharder.sharderPackage.ShardKey;
+import com.piraxx.sharder.sharderPackage.ShardTopology;
+import com.piraxx.sharder.sharderPackage.ShardingContextHolder;
+import com.piraxx.sharder.sharderPackage.cache.ShardCached;
+import jakarta.persistence.Embeddable;
+import jakarta.persistence.EmbeddedId;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import org.springframework.data.repository.Repository;
+
+import java.util.*;
+
+/**
+ * Repositories for the ShardingAspect tests. They are in a repositories package so
+ * the aspect advises them, keep their rows per shard in memory and record the
+ * routing context every call ran with.
+ */
+public final class RecordingRepositories {
+
+	private RecordingRepositories() {
+	}
+
+	@Entity
+	public static class Account {
+		@Id
+		public Long id;
+		public String owner;
+
+		public Account() {
+		}
+
+		public Account(Long id, String owner) {
+			this.id = id;
+			this.owner = owner;
+		}
+	}
+
+	// placed by its region, so a lookup by id has to ask every shard
+	@Entity
+	public static class RegionalAccount {
+		@Id
+		public Long id;
+		@ShardKey
+		public String region;
+
+		public RegionalAccount() {
+		}
+
+		public RegionalAccount(Long id, String region) {
+			this.id = id;
+			this.region = region;
+		}
+	}
+
+	@Embeddable
+	public static class OrderLineId {
+		@ShardKey
+		public String tenant;
+		public Long line;
+
+		public OrderLineId() {
+		}
+
+		public OrderLineId(String tenant, Long line) {
+			this.tenant = tenant;
+			this.line = line;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof OrderLineId id && Objects.equals(tenant, id.tenant) && Objects.equals(line, id.line);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(tenant, line);
+		}
+	}
+
+	// placed by the tenant part of its composite id
+	@Entity
+	public static class OrderLine {
+		@EmbeddedId
+		public OrderLineId id;
+		public String product;
+
+		public OrderLine() {
+		}
+
+		public OrderLine(OrderLineId id, String product) {
+			this.id = id;
+			this.product = product;
+		}
+	}
+
+	@ShardCached
+	public interface CachedAccounts extends Repository<Account, Long> {
+		Account save(Account account);
+
+		Optional<Account> findById(Long id);
+	}
+
+	public interface RegionalAccounts extends Repository<RegionalAccount, Long> {
+		RegionalAccount save(RegionalAccount account);
+
+		Optional<RegionalAccount> findById(Long id);
+	}
+
+	public interface OrderLines extends Repository<OrderLine, OrderLineId> {
+		OrderLine save(OrderLine orderLine);
+
+		Optional<OrderLine> findById(OrderLineId id);
+
+		void deleteById(OrderLineId id);
+	}
+
+	/** The shard, topology and read-only flag in the context while one call ran on the repository. */
+	public static final class Call {
+		public final String method;
+		public final String shard;
+		public final ShardTopology topology;
+		public final boolean readOnly;
+
+		Call(String method) {
+			this.method = method;
+			this.shard = ShardingContextHolder.getCurrentShardKey();
+			this.topology = ShardingContextHolder.getTopology();
+			this.readOnly = ShardingContextHolder.isReadOnly();
+		}
+	}
+
+	public abstract static class Store<T> {
+		public final List<Call> calls = new ArrayList<>();
+		public final Map<String, Map<Object, T>> rows = new HashMap<>();
+		// runs after a call was recorded, to change the world between two calls
+		public Runnable afterCall = () -> {
+		};
+
+		T put(String method, Object id, T row) {
+			record(method);
+			rows.computeIfAbsent(ShardingContextHolder.getCurrentShardKey(), shard -> new HashMap<>()).put(id, row);
+			return row;
+		}
+
+		Optional<T> get(String method, Object id) {
+			record(method);
+			return Optional.ofNullable(rows.getOrDefault(ShardingContextHolder.getCurrentShardKey(), Map.of()).get(id));
+		}
+
+		void remove(String method, Object id) {
+			record(method);
+			rows.getOrDefault(ShardingContextHolder.getCurrentShardKey(), new HashMap<>()).remove(id);
+		}
+
+		private void record(String method) {
+			calls.add(new Call(method));
+			afterCall.run();
+		}
+	}
+
+	public static class CachedAccountStore extends Store<Account> implements CachedAccounts {
+		@Override
+		public Account save(Account account) {
+			return put("save", account.id, account);
+		}
+
+		@Override
+		public Optional<Account> findById(Long id) {
+			return get("findById", id);
+		}
+	}
+
+	public static class RegionalAccountStore extends Store<RegionalAccount> implements RegionalAccounts {
+		@Override
+		public RegionalAccount save(RegionalAccount account) {
+			return put("save", account.id, account);
+		}
+
+		@Override
+		public Optional<RegionalAccount> findById(Long id) {
+			return get("findById", id);
+		}
+	}
+
+	public static class OrderLineStore extends Store<OrderLine> implements OrderLines {
+		@Override
+		public OrderLine save(OrderLine orderLine) {
+			return put("save", orderLine.id, orderLine);
+		}
+
+		@Override
+		public Optional<OrderLine> findById(OrderLineId id) {
+			return get("findById", id);
+		}
+
+		@Override
+		public void deleteById(OrderLineId id) {
+			remove("deleteById", id);
+		}
+	}
+}
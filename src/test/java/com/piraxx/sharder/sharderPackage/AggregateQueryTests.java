@@ -0,0 +1,115 @@
+package com.piraxx.sharder.sharderPackage;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AggregateQueryTests {
+
+	@Test
+	void splitsAverageIntoSumAndCount() {
+		AggregateQuery query = AggregateQuery.parse("select status, avg(amount) from transactions group by status");
+
+		assertNotNull(query);
+		assertEquals("select status, sum(amount), count(amount) from transactions group by status", query.getShardSql());
+	}
+
+	/* a value on two shards would be counted twice if the partial counts were added */
+	@Test
+	void refusesDistinctInsideAnAggregate() {
+		assertNull(AggregateQuery.parse("select count(distinct status) from transactions"));
+		assertNull(AggregateQuery.parse("select sum( DISTINCT amount) from transactions"));
+		assertNull(AggregateQuery.parse("select distinct count(*) from transactions"));
+	}
+
+	/* the groups are merged by the selected columns, an unselected group key would collapse them */
+	@Test
+	void refusesGroupByColumnsMissingFromTheSelectList() {
+		assertNull(AggregateQuery.parse("select count(*) from transactions group by status"));
+		assertNull(AggregateQuery.parse("select status, count(*) from transactions group by status, currency"));
+		assertNull(AggregateQuery.parse("select status, count(*) from transactions group by lower(status)"));
+	}
+
+	@Test
+	void acceptsGroupByColumnsThatAreSelected() {
+		assertNotNull(AggregateQuery.parse("select t.status, count(*) from transactions t group by t.status"));
+		assertNotNull(AggregateQuery.parse("select status s, count(*) from transactions group by s"));
+		assertNotNull(AggregateQuery.parse("select status, count(*) from transactions group by 1"));
+		assertNull(AggregateQuery.parse("select status, count(*) from transactions group by 2"));
+	}
+
+	@Test
+	void mergesPartialsOfEveryShard() throws SQLException {
+		AggregateQuery query = AggregateQuery.parse(
+				"select status, count(*), min(amount), max(amount), avg(amount) from transactions group by status order by status");
+		assertNotNull(query);
+
+		List<ShardCursor> shards = List.of(
+				shard(new Object[]{"done", 2L, 5L, 9L, 14L, 2L}, new Object[]{"open", 1L, 3L, 3L, 3L, 1L}),
+				shard(new Object[]{"done", 1L, 1L, 4L, 4L, 1L}));
+
+		List<Object[]> rows = read(query.merge(shards), 5);
+
+		assertEquals(2, rows.size());
+		assertArrayEquals(new Object[]{"done", 3L, 1L, 9L}, Arrays.copyOf(rows.get(0), 4));
+		assertEquals(0, new BigDecimal(6).compareTo((BigDecimal) rows.get(0)[4]));
+		assertArrayEquals(new Object[]{"open", 1L, 3L, 3L}, Arrays.copyOf(rows.get(1), 4));
+	}
+
+	@Test
+	void globalAggregateHasOneRowWhenNoShardReturnsAny() throws SQLException {
+		AggregateQuery query = AggregateQuery.parse("select count(*) from transactions");
+		assertNotNull(query);
+
+		List<Object[]> rows = read(query.merge(List.of()), 1);
+
+		assertEquals(1, rows.size());
+		assertEquals(0L, rows.get(0)[0]);
+	}
+
+	/* the partial rows of one shard: status, count, min, max, sum and count of the average */
+	private static ShardCursor shard(Object[]... rows) throws SQLException {
+		RowSetMetaDataImpl metaData = new RowSetMetaDataImpl();
+		metaData.setColumnCount(6);
+		metaData.setColumnType(1, Types.VARCHAR);
+		for (int column = 2; column <= 6; column++) {
+			metaData.setColumnType(column, Types.BIGINT);
+		}
+		CachedRowSet rowSet = RowSetProvider.newFactory().createCachedRowSet();
+		rowSet.setMetaData(metaData);
+		for (Object[] row : rows) {
+			rowSet.moveToInsertRow();
+			for (int i = 0; i < row.length; i++) {
+				rowSet.updateObject(i + 1, row[i]);
+			}
+			rowSet.insertRow();
+		}
+		rowSet.moveToCurrentRow();
+		rowSet.beforeFirst();
+		return ShardCursor.inMemory(rowSet);
+	}
+
+	private static List<Object[]> read(MergedResultCursor cursor, int columns) throws SQLException {
+		List<Object[]> rows = new ArrayList<>();
+		try (cursor) {
+			while (cursor.next()) {
+				ResultSet resultSet = cursor.current();
+				Object[] row = new Object[columns];
+				for (int i = 0; i < columns; i++) {
+					row[i] = resultSet.getObject(i + 1);
+				}
+				rows.add(row);
+			}
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,48 @@
+package com.piraxx.sharder.sharderPackage;
+
+import org.apache.commons.codec.digest.MurmurHash3;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ConsistentHashingTests {
+
+	/* The flattened ring must route every key exactly like the old TreeMap lookup,
+	 * otherwise existing rows would be looked for on the wrong shard. */
+	@Test
+	void routesKeysLikeTheTreeMapRing() {
+		ConsistentHashing consistentHashing = new ConsistentHashing(50);
+		TreeMap<Integer, String> legacyRing = new TreeMap<>();
+		for (String node : List.of("shard1", "shard2", "shard3")) {
+			consistentHashing.addNode(node);
+			for (int i = 0; i < 50; i++) {
+				legacyRing.put(legacyHash(node + i), node);
+			}
+		}
+
+		Random random = new Random(42);
+		List<Object> keys = new ArrayList<>(List.of(0, -1, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, "héllo"));
+		for (int i = 0; i < 10_000; i++) {
+			keys.add(random.nextInt());
+			keys.add(random.nextLong());
+			keys.add(new UUID(random.nextLong(), random.nextLong()));
+			keys.add("key-" + random.nextInt());
+		}
+
+		for (Object key : keys) {
+			SortedMap<Integer, String> tailMap = legacyRing.tailMap(legacyHash(key));
+			String expected = legacyRing.get(!tailMap.isEmpty() ? tailMap.firstKey() : legacyRing.firstKey());
+			assertEquals(expected, consistentHashing.getNode(key), "key " + key);
+		}
+	}
+
+	// the deprecated hash32 is the legacy hash the ring must keep matching, so the key distribution is preserved
+	@SuppressWarnings("deprecation")
+	private static int legacyHash(Object key) {
+		byte[] keyBytes = key.toString().getBytes(StandardCharsets.UTF_8);
+		return Math.abs(MurmurHash3.hash32(keyBytes, 0, keyBytes.length, 0));
+	}
+}
@@ -0,0 +1,84 @@
+package com.piraxx.sharder.sharderPackage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* The tracker is global, so every test counts keys of its own. */
+class HotKeyTrackerTests {
+
+	@Test
+	void neverCountsAKeyLowerThanItWasRecorded() throws InterruptedException {
+		String key = "key-" + UUID.randomUUID();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < 2_500; i++) {
+					HotKeyTracker.record(key, "shard1");
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertTrue(HotKeyTracker.countOf(key) >= 10_000);
+	}
+
+	/* ten requests for the hot key to every cold one keep the error of the sketch well above a cold key, even when a window ends halfway */
+	@Test
+	void listsAHotKeyWithItsShardAndLeavesColdKeysOff() {
+		String hot = "hot-" + UUID.randomUUID();
+		List<String> cold = new ArrayList<>();
+		for (int i = 0; i < 2_000; i++) {
+			cold.add("cold-" + UUID.randomUUID());
+		}
+
+		for (int round = 0; round < 20; round++) {
+			for (int i = 0; i < 100; i++) {
+				for (int repeat = 0; repeat < 10; repeat++) {
+					HotKeyTracker.record(hot, "shard2");
+				}
+				HotKeyTracker.record(cold.get(round * 100 + i), "shard1");
+			}
+		}
+
+		List<HotKeyTracker.HotKey> hotKeys = HotKeyTracker.hotKeys();
+		HotKeyTracker.HotKey listed = hotKeys.stream().filter(hotKey -> hotKey.getKey().equals(hot)).findFirst().orElse(null);
+		assertNotNull(listed);
+		assertEquals("shard2", listed.getShard());
+		assertTrue(listed.getCount() >= 9_000);
+		assertTrue(hotKeys.stream().noneMatch(hotKey -> cold.contains(hotKey.getKey())));
+	}
+
+	@Test
+	void halvesTheCountsAtTheEndOfAWindow() {
+		String key = "windowed-" + UUID.randomUUID();
+		for (int i = 0; i < 4_000; i++) {
+			HotKeyTracker.record(key, "shard3");
+		}
+		long before = HotKeyTracker.countOf(key);
+
+		HotKeyTracker.endWindow();
+
+		long after = HotKeyTracker.countOf(key);
+		assertTrue(after <= before / 2, before + " -> " + after);
+		// every stripe rounds its own half down
+		assertTrue(after >= 2_000 - Runtime.getRuntime().availableProcessors(), before + " -> " + after);
+		assertTrue(HotKeyTracker.requestsPerSecond().containsKey("shard3"));
+	}
+
+	@Test
+	void ignoresRequestsWithoutAKeyOrShard() {
+		String key = "unplaced-" + UUID.randomUUID();
+		HotKeyTracker.record(key, null);
+		HotKeyTracker.record(null, "shard1");
+
+		assertTrue(HotKeyTracker.hotKeys().stream().noneMatch(hotKey -> hotKey.getKey().equals(key)));
+	}
+}
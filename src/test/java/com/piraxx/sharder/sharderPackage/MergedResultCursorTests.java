@@ -0,0 +1,145 @@
+package com.piraxx.sharder.sharderPackage;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MergedResultCursorTests {
+
+	@Test
+	void mergesSortedShardsIntoOneOrder() throws SQLException {
+		MergedResultCursor merged = MergedResultCursor.merge(
+				List.of(shard(1, 4, 7), shard(2, 5, 8), shard(3, 6)),
+				OrderByClause.parse("select id from t order by id"));
+
+		assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L), ids(merged));
+	}
+
+	@Test
+	void mergesDescendingShards() throws SQLException {
+		MergedResultCursor merged = MergedResultCursor.merge(
+				List.of(shard(9, 3), shard(8, 2), shard()),
+				OrderByClause.parse("select id from t order by id desc"));
+
+		assertEquals(List.of(9L, 8L, 3L, 2L), ids(merged));
+	}
+
+	@Test
+	void readsUnorderedShardsOneAfterTheOther() throws SQLException {
+		MergedResultCursor merged = MergedResultCursor.merge(List.of(shard(5, 1), shard(3)), OrderByClause.none());
+
+		assertEquals(List.of(5L, 1L, 3L), ids(merged));
+	}
+
+	/* a page of the global order: every shard returned its own first offset + limit rows */
+	@Test
+	void cutsAWindowOutOfTheMergedOrder() throws SQLException {
+		OrderByClause orderBy = OrderByClause.parse("select id from t order by id");
+		MergedResultCursor page = MergedResultCursor.window(
+				MergedResultCursor.merge(List.of(shard(1, 3, 5), shard(2, 4, 6)), orderBy), 2, 3);
+
+		assertEquals(List.of(3L, 4L, 5L), ids(page));
+	}
+
+	@Test
+	void windowPastTheLastRowIsEmpty() throws SQLException {
+		MergedResultCursor page = MergedResultCursor.window(
+				MergedResultCursor.merge(List.of(shard(1), shard(2)), OrderByClause.parse("select id from t order by id")), 5, 10);
+
+		assertEquals(List.of(), ids(page));
+	}
+
+	@Test
+	void mergeSortedRefusesSortColumnsMissingFromTheResult() throws SQLException {
+		List<ShardCursor> cursors = List.of(shard(1), shard(2));
+
+		assertThrows(SQLException.class,
+				() -> MergedResultCursor.mergeSorted(cursors, OrderByClause.parse("select id from t order by created_at")));
+		// merge falls back to reading the shards one after the other
+		assertEquals(List.of(1L, 2L), ids(MergedResultCursor.merge(List.of(shard(1), shard(2)),
+				OrderByClause.parse("select id from t order by created_at"))));
+	}
+
+	/* en_US sorts "apple" before "Banana", Java's String order does not, so collated text is not merged by Java */
+	@Test
+	void refusesToMergeTextSortedByItsCollation() throws SQLException {
+		OrderByClause orderBy = OrderByClause.parse("select name from t order by name");
+
+		assertThrows(SQLException.class,
+				() -> MergedResultCursor.mergeSorted(List.of(textShard("apple", "Cherry"), textShard("Banana", "date")), orderBy));
+		assertEquals(List.of("apple", "Cherry", "Banana", "date"),
+				names(MergedResultCursor.merge(List.of(textShard("apple", "Cherry"), textShard("Banana", "date")), orderBy)));
+	}
+
+	@Test
+	void mergesTextSortedByABinaryCollation() throws SQLException {
+		OrderByClause orderBy = OrderByClause.parse("select name from t order by name collate \"C\"");
+
+		assertEquals(List.of("Banana", "Cherry", "apple", "date"),
+				names(MergedResultCursor.mergeSorted(List.of(textShard("Cherry", "apple"), textShard("Banana", "date")), orderBy)));
+	}
+
+	private static ShardCursor textShard(String... names) throws SQLException {
+		RowSetMetaDataImpl metaData = new RowSetMetaDataImpl();
+		metaData.setColumnCount(1);
+		metaData.setColumnLabel(1, "name");
+		metaData.setColumnName(1, "name");
+		metaData.setColumnType(1, Types.VARCHAR);
+		CachedRowSet rowSet = RowSetProvider.newFactory().createCachedRowSet();
+		rowSet.setMetaData(metaData);
+		for (String name : names) {
+			rowSet.moveToInsertRow();
+			rowSet.updateString(1, name);
+			rowSet.insertRow();
+		}
+		rowSet.moveToCurrentRow();
+		rowSet.beforeFirst();
+		return ShardCursor.inMemory(rowSet);
+	}
+
+	private static List<String> names(MergedResultCursor cursor) throws SQLException {
+		List<String> names = new ArrayList<>();
+		try (cursor) {
+			while (cursor.next()) {
+				names.add(cursor.current().getString(1));
+			}
+		}
+		return names;
+	}
+
+	private static ShardCursor shard(long... ids) throws SQLException {
+		RowSetMetaDataImpl metaData = new RowSetMetaDataImpl();
+		metaData.setColumnCount(1);
+		metaData.setColumnLabel(1, "id");
+		metaData.setColumnName(1, "id");
+		metaData.setColumnType(1, Types.BIGINT);
+		CachedRowSet rowSet = RowSetProvider.newFactory().createCachedRowSet();
+		rowSet.setMetaData(metaData);
+		for (long id : ids) {
+			rowSet.moveToInsertRow();
+			rowSet.updateLong(1, id);
+			rowSet.insertRow();
+		}
+		rowSet.moveToCurrentRow();
+		rowSet.beforeFirst();
+		return ShardCursor.inMemory(rowSet);
+	}
+
+	private static List<Long> ids(MergedResultCursor cursor) throws SQLException {
+		List<Long> ids = new ArrayList<>();
+		try (cursor) {
+			while (cursor.next()) {
+				ids.add(cursor.current().getLong(1));
+			}
+		}
+		return ids;
+	}
+}
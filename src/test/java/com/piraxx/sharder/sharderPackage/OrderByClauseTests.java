@@ -0,0 +1,89 @@
+package com.piraxx.sharder.sharderPackage;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OrderByClauseTests {
+
+	@Test
+	void readsTheColumnsAndDirectionsOfTheTrailingOrderBy() {
+		OrderByClause orderBy = OrderByClause.parse(
+				"select * from transactions t order by t.created_at desc, \"amount\" asc limit 10 offset 20");
+
+		assertTrue(orderBy.isOrdered());
+		assertEquals(2, orderBy.getSortKeys().size());
+		assertEquals("created_at", orderBy.getSortKeys().get(0).getColumn());
+		assertFalse(orderBy.getSortKeys().get(0).isAscending());
+		assertEquals("amount", orderBy.getSortKeys().get(1).getColumn());
+		assertTrue(orderBy.getSortKeys().get(1).isAscending());
+	}
+
+	@Test
+	void ignoresAnOrderByInsideASubquery() {
+		assertFalse(OrderByClause.parse(
+				"select * from (select * from transactions order by amount limit 5) t").isOrdered());
+		assertFalse(OrderByClause.parse("select * from transactions").isOrdered());
+	}
+
+	/* Postgres puts nulls last going up and first going down, unless told otherwise */
+	@Test
+	void placesNullsTheWayPostgresDoes() {
+		assertFalse(OrderByClause.parse("select * from t order by a").getSortKeys().get(0).isNullsFirst());
+		assertTrue(OrderByClause.parse("select * from t order by a desc").getSortKeys().get(0).isNullsFirst());
+		assertTrue(OrderByClause.parse("select * from t order by a nulls first").getSortKeys().get(0).isNullsFirst());
+		assertFalse(OrderByClause.parse("select * from t order by a desc nulls last").getSortKeys().get(0).isNullsFirst());
+	}
+
+	@Test
+	void comparesRowsKeyByKey() {
+		OrderByClause orderBy = OrderByClause.parse("select * from t order by status, amount desc");
+		List<Object[]> rows = new ArrayList<>(List.of(
+				new Object[]{"open", 5L},
+				new Object[]{null, 9L},
+				new Object[]{"closed", 1L},
+				new Object[]{"open", 7L}));
+
+		rows.sort(orderBy.comparator());
+
+		assertArrayEquals(new Object[]{"closed", 1L}, rows.get(0));
+		assertArrayEquals(new Object[]{"open", 7L}, rows.get(1));
+		assertArrayEquals(new Object[]{"open", 5L}, rows.get(2));
+		assertArrayEquals(new Object[]{null, 9L}, rows.get(3));
+	}
+
+	@Test
+	void recognizesBinaryCollations() {
+		List<OrderByClause.SortKey> keys = OrderByClause.parse(
+				"select * from t order by a collate \"C\" desc, b, c collate pg_catalog.\"POSIX\", d collate \"en_US\"").getSortKeys();
+
+		assertTrue(keys.get(0).isBinaryCollation());
+		assertFalse(keys.get(0).isAscending());
+		assertFalse(keys.get(1).isBinaryCollation());
+		assertTrue(keys.get(2).isBinaryCollation());
+		assertFalse(keys.get(3).isBinaryCollation());
+		assertFalse(keys.get(1).comparesLikeTheDatabase(Types.VARCHAR));
+		assertTrue(keys.get(1).comparesLikeTheDatabase(Types.BIGINT));
+		assertTrue(keys.get(0).comparesLikeTheDatabase(Types.VARCHAR));
+	}
+
+	/* a binary collation orders by code point, where String.compareTo would put U+1F600 before U+FF21 */
+	@Test
+	void comparesTextByCodePoint() {
+		OrderByClause orderBy = OrderByClause.parse("select * from t order by name collate \"C\"");
+
+		assertTrue(orderBy.comparator().compare(new Object[]{"\uFF21"}, new Object[]{"\uD83D\uDE00"}) < 0);
+		assertTrue(orderBy.comparator().compare(new Object[]{"Zebra"}, new Object[]{"apple"}) < 0);
+		assertTrue(orderBy.comparator().compare(new Object[]{"app"}, new Object[]{"apple"}) < 0);
+	}
+
+	@Test
+	void splitsOnlyOnTopLevelCommas() {
+		assertEquals(Arrays.asList("coalesce(a, b) desc", " c"), OrderByClause.splitTopLevel("coalesce(a, b) desc, c"));
+	}
+}
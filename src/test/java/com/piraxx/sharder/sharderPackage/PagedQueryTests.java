@@ -0,0 +1,84 @@
+package com.piraxx.sharder.sharderPackage;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Sort;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PagedQueryTests {
+
+	@Test
+	void onlyWindowsPageableOrLimitedStatements() {
+		assertNull(PagedQuery.of("select * from transactions order by transaction_id", -1, PagedQuery.ResultKind.ROWS, null, null, null, null));
+		assertNotNull(PagedQuery.of("select * from transactions order by transaction_id", 0, PagedQuery.ResultKind.PAGE, null, null, null, null));
+	}
+
+	/* every shard is asked for its own first offset + limit rows, the literal window is cut in the router */
+	@Test
+	void replacesALiteralLimitWithAPlaceholder() {
+		PagedQuery query = PagedQuery.of("select * from transactions order by transaction_id limit 10 offset 20;", -1,
+				PagedQuery.ResultKind.ROWS, null, null, null, null);
+
+		assertNotNull(query);
+		assertEquals("select * from transactions order by transaction_id limit ?", query.shardSqlFor(Sort.unsorted(), 30));
+		assertEquals("select count(*) from (select * from transactions ) sharder_page", query.getCountSql());
+	}
+
+	@Test
+	void appendsTheSortOfThePageable() {
+		PagedQuery query = PagedQuery.of("select * from transactions order by status", 0,
+				PagedQuery.ResultKind.PAGE, null, null, null, null);
+
+		assertEquals("select * from transactions order by status, transaction_id desc nulls last limit ?",
+				query.shardSqlFor(Sort.by(Sort.Order.desc("transactionId").nullsLast()), 5));
+		assertThrows(IllegalArgumentException.class, () -> query.shardSqlFor(Sort.by("amount; drop table x"), 5));
+	}
+
+	/* the k-way merge needs the sort values in the rows, without them the page would be cut out of unsorted rows */
+	@Test
+	void refusesToPageOnSortKeysMissingFromTheSelectList() {
+		assertThrows(IllegalArgumentException.class, () -> PagedQuery.of(
+				"select transaction_detail from transactions order by transaction_id limit 10", -1,
+				PagedQuery.ResultKind.ROWS, null, null, null, null));
+		assertThrows(IllegalArgumentException.class, () -> PagedQuery.of(
+				"select * from transactions order by lower(transaction_detail) limit 10", -1,
+				PagedQuery.ResultKind.ROWS, null, null, null, null));
+
+		assertNotNull(PagedQuery.of("select t.transaction_id, transaction_detail d from transactions t order by transaction_id, d limit 10",
+				-1, PagedQuery.ResultKind.ROWS, null, null, null, null));
+		assertNotNull(PagedQuery.of("select transaction_detail from transactions order by 1 limit 10",
+				-1, PagedQuery.ResultKind.ROWS, null, null, null, null));
+	}
+
+	@Test
+	void refusesAPageableSortOnAnUnselectedColumn() {
+		PagedQuery query = PagedQuery.of("select transaction_detail from transactions", 0,
+				PagedQuery.ResultKind.PAGE, null, null, null, null);
+
+		assertEquals("select transaction_detail from transactions order by transaction_detail asc limit ?",
+				query.shardSqlFor(Sort.by("transactionDetail"), 5));
+		assertThrows(IllegalArgumentException.class, () -> query.shardSqlFor(Sort.by("transactionId"), 5));
+	}
+
+	@Test
+	void countsOnlyWhenThePageDoesNotShowTheTotal() throws SQLException {
+		AtomicInteger counts = new AtomicInteger();
+		PagedQuery.RowCount count = () -> {
+			counts.incrementAndGet();
+			return 100;
+		};
+
+		// a page that is not full is the last one
+		assertEquals(23, PagedQuery.total(20, 10, 3, count));
+		assertEquals(0, PagedQuery.total(0, 10, 0, count));
+		assertEquals(0, counts.get());
+
+		// a full page, or an empty one past the first, needs the count
+		assertEquals(100, PagedQuery.total(20, 10, 10, count));
+		assertEquals(100, PagedQuery.total(200, 10, 0, count));
+		assertEquals(2, counts.get());
+	}
+}
@@ -0,0 +1,134 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.repositories.RecordingRepositories.*;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicatedDataSourceTests {
+
+	private final CountingDataSource primary = new CountingDataSource("replicated_primary");
+	private final CountingDataSource replica = new CountingDataSource("replicated_replica");
+
+	@AfterEach
+	void clearContext() {
+		ShardingContextHolder.clear();
+		TransactionSynchronizationManager.setActualTransactionActive(false);
+		TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+	}
+
+	@Test
+	void readsFromAReplicaAndWritesToThePrimary() throws SQLException {
+		ReplicatedDataSource dataSource = new ReplicatedDataSource("replicated", primary, List.of(replica));
+
+		dataSource.getConnection().close();
+		ShardingContextHolder.setReadOnly(true);
+		dataSource.getConnection().close();
+
+		assertEquals(1, primary.borrowed.get());
+		assertEquals(1, replica.borrowed.get());
+	}
+
+	@Test
+	void readsFromThePrimaryWhenNoReplicaIsHealthy() throws SQLException {
+		CountingDataSource down = new CountingDataSource("replicated_down");
+		down.healthy = false;
+		CountingDataSource alsoDown = new CountingDataSource("replicated_also_down");
+		alsoDown.healthy = false;
+		ReplicatedDataSource dataSource = new ReplicatedDataSource("replicated", primary, List.of(down, alsoDown));
+		ShardingContextHolder.setReadOnly(true);
+
+		for (int i = 0; i < 4; i++) {
+			try (Connection connection = dataSource.getConnection()) {
+				assertTrue(connection.isValid(1));
+			}
+		}
+
+		assertEquals(4, primary.borrowed.get());
+		assertEquals(0, down.borrowed.get() + alsoDown.borrowed.get());
+	}
+
+	@Test
+	void readsFromThePrimaryWithoutReplicas() throws SQLException {
+		ReplicatedDataSource dataSource = new ReplicatedDataSource("replicated", primary, List.of());
+		ShardingContextHolder.setReadOnly(true);
+
+		dataSource.getConnection().close();
+
+		assertFalse(dataSource.hasReplicas());
+		assertSame(primary, ReplicatedDataSource.primaryOf(dataSource));
+		assertEquals(1, primary.borrowed.get());
+	}
+
+	/* a read-write transaction may read what it has just written, which a replica may not have yet */
+	@Test
+	void keepsTheReadsOfAReadWriteTransactionOnThePrimary() {
+		ReplicatedDataSource dataSource = new ReplicatedDataSource("replicated", primary, List.of(replica));
+		List<Boolean> readOnly = new ArrayList<>();
+		OrderLines repository = advisedOrderLines(dataSource, readOnly);
+
+		repository.findById(new OrderLineId("acme", 1L));
+		TransactionSynchronizationManager.setActualTransactionActive(true);
+		TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+		repository.findById(new OrderLineId("acme", 1L));
+		TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+		repository.findById(new OrderLineId("acme", 1L));
+		repository.save(new OrderLine(new OrderLineId("acme", 2L), "widget"));
+
+		assertEquals(List.of(true, true, false, false), readOnly);
+		assertEquals(2, replica.borrowed.get());
+		assertEquals(2, primary.borrowed.get());
+	}
+
+	/* every call on the repository borrows a connection of the shard, the way a JPA repository would */
+	private static OrderLines advisedOrderLines(ReplicatedDataSource dataSource, List<Boolean> readOnly) {
+		OrderLineStore store = new OrderLineStore();
+		store.afterCall = () -> {
+			readOnly.add(ShardingContextHolder.isReadOnly());
+			try {
+				dataSource.getConnection().close();
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+		};
+		ConsistentHashing placement = new ConsistentHashing(50);
+		placement.addNode("replicated");
+		ShardingContextHolder.setTopology(ShardTopology.current().withShards(Map.of("replicated", dataSource), placement));
+		AspectJProxyFactory factory = new AspectJProxyFactory(store);
+		factory.addAspect(new ShardingAspect());
+		return factory.getProxy();
+	}
+
+	private static final class CountingDataSource extends DelegatingDataSource {
+
+		private final AtomicInteger borrowed = new AtomicInteger();
+		private volatile boolean healthy = true;
+
+		CountingDataSource(String name) {
+			JdbcDataSource dataSource = new JdbcDataSource();
+			dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+			setTargetDataSource(dataSource);
+		}
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			if (!healthy) {
+				throw new SQLException("Connection refused");
+			}
+			borrowed.incrementAndGet();
+			return super.getConnection();
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package com.piraxx.sharder.sharderPackage;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScatterGatherExecutorTests {
+
+	@AfterEach
+	void clearContext() {
+		ShardingContextHolder.clear();
+	}
+
+	@Test
+	void answersWithEveryShardInShardOrder() throws SQLException {
+		Map<Object, Object> shards = new LinkedHashMap<>();
+		shards.put("gather_b", shard("gather_b"));
+		shards.put("gather_a", shard("gather_a"));
+
+		Map<Object, Integer> answers = ScatterGatherExecutor.execute(shards, "select ?", statement -> statement.setInt(1, 7), ScatterGatherExecutorTests::firstInt);
+
+		assertEquals(List.of("gather_b", "gather_a"), List.copyOf(answers.keySet()));
+		assertEquals(List.of(7, 7), List.copyOf(answers.values()));
+	}
+
+	/* the slow shard is given up at its own deadline, the fast one is still answered */
+	@Test
+	void leavesOutAShardPastItsDeadline() throws SQLException {
+		Map<Object, Object> shards = new LinkedHashMap<>();
+		shards.put("deadline_fast", shard("deadline_fast"));
+		shards.put("deadline_slow", shard("deadline_slow"));
+
+		long start = System.nanoTime();
+		Map<Object, Integer> answers = ScatterGatherExecutor.execute(shards, "select sleep(?)",
+				statement -> statement.setLong(1, 0), work("deadline_slow"), 200, 10_000);
+
+		assertEquals(Map.of("deadline_fast", 1), answers);
+		assertTrue(elapsedMillis(start) < 3_000);
+	}
+
+	@Test
+	void stopsWaitingAtTheOverallDeadline() throws SQLException {
+		Map<Object, Object> shards = new LinkedHashMap<>();
+		shards.put("overall_fast", shard("overall_fast"));
+		shards.put("overall_slow", shard("overall_slow"));
+
+		long start = System.nanoTime();
+		Map<Object, Integer> answers = ScatterGatherExecutor.execute(shards, "select sleep(?)",
+				statement -> statement.setLong(1, 0), work("overall_slow"), 10_000, 200);
+
+		assertEquals(Map.of("overall_fast", 1), answers);
+		assertTrue(elapsedMillis(start) < 3_000);
+	}
+
+	/* a read still running at the shard's usual latency is sent to a replica again, and the first answer wins */
+	@Test
+	void hedgesASlowReadOnAReplica() throws Exception {
+		DataSource replica = shard("hedge_replica");
+		CountDownLatch firstAttemptGivenUp = new CountDownLatch(1);
+		AtomicInteger connections = new AtomicInteger();
+		DataSource slowOnce = new DelegatingDataSource(replica) {
+			@Override
+			public Connection getConnection() throws SQLException {
+				if (connections.incrementAndGet() == 1) {
+					try {
+						Thread.sleep(5_000);
+					} catch (InterruptedException e) {
+						firstAttemptGivenUp.countDown();
+						throw new SQLException("interrupted", e);
+					}
+				}
+				return super.getConnection();
+			}
+		};
+		ReplicatedDataSource hedged = new ReplicatedDataSource("hedged", shard("hedge_primary"), List.of(slowOnce));
+		ShardLatencyTracker latency = ShardLatencyTracker.of("hedged");
+		for (int i = 0; i < 64; i++) {
+			latency.record(TimeUnit.MILLISECONDS.toNanos(20));
+		}
+		ShardingContextHolder.setReadOnly(true);
+
+		long start = System.nanoTime();
+		Map<Object, Integer> answers = ScatterGatherExecutor.execute(Map.of("hedged", hedged), "select 3", null, ScatterGatherExecutorTests::firstInt);
+
+		assertEquals(Map.of("hedged", 3), answers);
+		assertTrue(elapsedMillis(start) < 3_000);
+		assertEquals(2, connections.get());
+		assertTrue(firstAttemptGivenUp.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void doesNotHedgeWrites() throws SQLException {
+		AtomicBoolean replicaUsed = new AtomicBoolean();
+		DataSource replica = new DelegatingDataSource(shard("unhedged_replica")) {
+			@Override
+			public Connection getConnection() throws SQLException {
+				replicaUsed.set(true);
+				return super.getConnection();
+			}
+		};
+		ReplicatedDataSource unhedged = new ReplicatedDataSource("unhedged", shard("unhedged_primary"), List.of(replica));
+		ShardLatencyTracker latency = ShardLatencyTracker.of("unhedged");
+		for (int i = 0; i < 64; i++) {
+			latency.record(1);
+		}
+
+		Map<Object, Integer> answers = ScatterGatherExecutor.execute(Map.of("unhedged", unhedged), "select sleep(50)", null,
+				ScatterGatherExecutorTests::sleep);
+
+		assertEquals(Map.of("unhedged", 1), answers);
+		assertFalse(replicaUsed.get());
+	}
+
+	/*
+	 * Every pool thread holds its shard until the latch opens and the queue is full, so
+	 * the next shard is run by the calling thread, which opens the latch for the others.
+	 */
+	@Test
+	void runsAShardOnTheCallingThreadWhenThePoolIsSaturated() throws SQLException {
+		DataSource dataSource = shard("saturated");
+		Thread caller = Thread.currentThread();
+		CountDownLatch callerRan = new CountDownLatch(1);
+		Map<Object, Object> shards = new LinkedHashMap<>();
+		for (int i = 0; i <= ScatterGatherExecutor.fanOutThreads * 65; i++) {
+			shards.put("saturated_" + i, dataSource);
+		}
+
+		Map<Object, Thread> ranOn = ScatterGatherExecutor.execute(shards, "select 1", null, statement -> {
+			if (Thread.currentThread() == caller) {
+				callerRan.countDown();
+			} else {
+				try {
+					callerRan.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new SQLException(e);
+				}
+			}
+			return Thread.currentThread();
+		});
+
+		assertEquals(shards.keySet(), ranOn.keySet());
+		assertTrue(ranOn.containsValue(caller));
+		assertEquals(0, callerRan.getCount());
+	}
+
+	/* the slow shard sleeps for a few seconds, every other one answers right away */
+	private static ScatterGatherExecutor.ShardStatementWork<Integer> work(String slowShard) {
+		return statement -> {
+			if (statement.getConnection().getMetaData().getURL().contains(slowShard)) {
+				statement.setLong(1, 5_000);
+			}
+			return sleep(statement);
+		};
+	}
+
+	private static Integer sleep(PreparedStatement statement) throws SQLException {
+		statement.executeQuery().close();
+		return 1;
+	}
+
+	private static Integer firstInt(PreparedStatement statement) throws SQLException {
+		try (ResultSet rows = statement.executeQuery()) {
+			rows.next();
+			return rows.getInt(1);
+		}
+	}
+
+	private static long elapsedMillis(long start) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	private static DataSource shard(String name) throws SQLException {
+		JdbcDataSource dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+		try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+			statement.execute("create alias if not exists sleep for 'java.lang.Thread.sleep'");
+		}
+		return dataSource;
+	}
+}
@@ -0,0 +1,99 @@
+package com.piraxx.sharder.sharderPackage;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.ConnectException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardCircuitBreakerTests {
+
+	private static final long OPEN_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	@Test
+	void opensAfterTheThresholdOfFailuresInARow() {
+		ShardCircuitBreaker breaker = new ShardCircuitBreaker("shard1", 3, OPEN_NANOS);
+
+		breaker.recordFailure();
+		breaker.recordFailure();
+		assertTrue(breaker.tryAcquire());
+		breaker.recordFailure();
+
+		assertFalse(breaker.tryAcquire());
+	}
+
+	@Test
+	void startsCountingAgainAfterASuccess() {
+		ShardCircuitBreaker breaker = new ShardCircuitBreaker("shard1", 3, OPEN_NANOS);
+
+		breaker.recordFailure();
+		breaker.recordFailure();
+		breaker.recordSuccess();
+		breaker.recordFailure();
+		breaker.recordFailure();
+
+		assertTrue(breaker.tryAcquire());
+	}
+
+	@Test
+	void letsOneTrialThroughAndClosesWhenItSucceeds() throws InterruptedException {
+		ShardCircuitBreaker breaker = open();
+
+		Thread.sleep(60);
+		assertTrue(breaker.tryAcquire());
+		// only the one trial while it has not reported back
+		assertFalse(breaker.tryAcquire());
+		breaker.recordSuccess();
+
+		assertTrue(breaker.tryAcquire());
+		assertTrue(breaker.tryAcquire());
+	}
+
+	@Test
+	void reopensWhenTheTrialFails() throws InterruptedException {
+		ShardCircuitBreaker breaker = open();
+
+		Thread.sleep(60);
+		assertTrue(breaker.tryAcquire());
+		breaker.recordFailure();
+
+		assertFalse(breaker.tryAcquire());
+		Thread.sleep(60);
+		assertTrue(breaker.tryAcquire());
+	}
+
+	/* a shard that answers, even with an error, is up */
+	@Test
+	void countsRejectedStatementsAsSuccesses() {
+		ShardCircuitBreaker breaker = new ShardCircuitBreaker("shard1", 2, OPEN_NANOS);
+
+		breaker.recordFailure(new SQLTimeoutException("canceled"));
+		breaker.recordFailure(new SQLIntegrityConstraintViolationException("duplicate key", "23505"));
+		breaker.recordFailure(new SQLTimeoutException("canceled"));
+
+		assertTrue(breaker.tryAcquire());
+	}
+
+	@Test
+	void recognisesShardFailuresAnywhereInTheCauseChain() {
+		assertTrue(ShardCircuitBreaker.isShardFailure(new SQLTimeoutException()));
+		assertTrue(ShardCircuitBreaker.isShardFailure(new SQLException("connection refused", "08001")));
+		assertTrue(ShardCircuitBreaker.isShardFailure(new SQLException("canceling statement due to statement timeout", "57014")));
+		assertTrue(ShardCircuitBreaker.isShardFailure(new IllegalStateException(new SQLException("wrapped", new ConnectException()))));
+
+		assertFalse(ShardCircuitBreaker.isShardFailure(new SQLException("duplicate key", "23505")));
+		assertFalse(ShardCircuitBreaker.isShardFailure(new SQLException("no state")));
+		assertFalse(ShardCircuitBreaker.isShardFailure(new IllegalArgumentException()));
+	}
+
+	private static ShardCircuitBreaker open() {
+		ShardCircuitBreaker breaker = new ShardCircuitBreaker("shard1", 1, OPEN_NANOS);
+		breaker.recordFailure();
+		assertFalse(breaker.tryAcquire());
+		return breaker;
+	}
+}
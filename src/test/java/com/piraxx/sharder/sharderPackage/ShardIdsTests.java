@@ -0,0 +1,93 @@
+package com.piraxx.sharder.sharderPackage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardIdsTests {
+
+	@Test
+	void keepsTheBucketAndTimeInTheId() {
+		long before = System.currentTimeMillis();
+		long id = ShardIds.nextId(37);
+
+		assertTrue(id > 0);
+		assertTrue(ShardIds.isShardId(id));
+		assertEquals(37, ShardIds.bucketOf(id));
+		// the sequence of a busy millisecond may borrow from the next ones
+		assertTrue(ShardIds.timestampMillisOf(id) >= before);
+		assertTrue(ShardIds.timestampMillisOf(id) <= System.currentTimeMillis() + 1_000);
+	}
+
+	@Test
+	void refusesBucketsOutOfRange() {
+		assertThrows(IllegalArgumentException.class, () -> ShardIds.nextId(-1));
+		assertThrows(IllegalArgumentException.class, () -> ShardIds.nextId(ShardIds.BUCKETS));
+	}
+
+	/* ids a client picked are hashed like any other key */
+	@Test
+	void doesNotMistakeOtherKeysForGeneratedIds() {
+		for (Object key : List.of(0L, 1L, 42L, -1L, Long.MAX_VALUE >>> 2, Long.MIN_VALUE, 7, "4611686018427387905")) {
+			assertFalse(ShardIds.isShardId(key), "key " + key);
+		}
+	}
+
+	@Test
+	void increasesOnOneThread() {
+		long previous = ShardIds.nextId();
+		for (int i = 0; i < 10_000; i++) {
+			long next = ShardIds.nextId(0);
+			// the bucket sits below the time and above the sequence, so compare with it masked out
+			assertTrue(withoutBucket(next) > withoutBucket(previous));
+			previous = next;
+		}
+	}
+
+	@Test
+	void staysUniqueAcrossThreads() throws InterruptedException {
+		Set<Long> ids = ConcurrentHashMap.newKeySet();
+		int threads = 8;
+		int perThread = 20_000;
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> workers = IntStream.range(0, threads).mapToObj(i -> new Thread(() -> {
+			try {
+				start.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			for (int n = 0; n < perThread; n++) {
+				ids.add(ShardIds.nextId());
+			}
+		})).toList();
+		workers.forEach(Thread::start);
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		assertEquals(threads * perThread, ids.size());
+	}
+
+	@Test
+	void spreadsIdsOverTheBuckets() {
+		int[] counts = new int[ShardIds.BUCKETS];
+		for (int i = 0; i < ShardIds.BUCKETS * 100; i++) {
+			counts[ShardIds.bucketOf(ShardIds.nextId())]++;
+		}
+
+		for (int count : counts) {
+			assertTrue(count > 40 && count < 200, "bucket count " + count);
+		}
+	}
+
+	private static long withoutBucket(long id) {
+		return id & ~((long) (ShardIds.BUCKETS - 1) << 14);
+	}
+}
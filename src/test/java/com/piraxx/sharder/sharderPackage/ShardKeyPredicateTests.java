@@ -0,0 +1,115 @@
+package com.piraxx.sharder.sharderPackage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardKeyPredicateTests {
+
+	private static final List<String> ID = List.of("transaction_id");
+
+	private final ConsistentHashing placement = new ConsistentHashing(50);
+	private final Map<Object, Object> shards = new LinkedHashMap<>();
+
+	@BeforeEach
+	void pinTopology() {
+		for (String shard : List.of("shard1", "shard2", "shard3")) {
+			placement.addNode(shard);
+			shards.put(shard, shard + "-dataSource");
+		}
+		ShardingContextHolder.setTopology(ShardTopology.current().withShards(shards, placement));
+	}
+
+	@AfterEach
+	void clearTopology() {
+		ShardingContextHolder.clear();
+	}
+
+	@Test
+	void routesAnEqualityOnTheKeyToItsOwner() {
+		ShardKeyPredicate predicate = ShardKeyPredicate.analyze(
+				"select * from transactions t where t.transaction_id = ? and status = ?", new int[]{0, 1}, "transactions", ID);
+
+		assertNotNull(predicate);
+		assertEquals(Set.of(placement.getNode(17L)), predicate.shardsFor(new Object[]{17L, "open"}, shards).keySet());
+	}
+
+	@Test
+	void routesAnInListToTheOwnersOfItsValues() {
+		ShardKeyPredicate predicate = ShardKeyPredicate.analyze(
+				"delete from transactions where transaction_id in (?, ?)", new int[]{0, 1}, "transactions", ID);
+
+		assertNotNull(predicate);
+		Set<String> owners = new HashSet<>(List.of(placement.getNode(1L), placement.getNode(2L)));
+		assertEquals(owners, predicate.shardsFor(new Object[]{1L, 2L}, shards).keySet());
+	}
+
+	@Test
+	void expandsACollectionArgument() {
+		ShardKeyPredicate predicate = ShardKeyPredicate.analyze(
+				"select * from transactions where transaction_id in (?)", new int[]{0}, "transactions", ID);
+
+		assertNotNull(predicate);
+		assertEquals(Set.of(placement.getNode(5L)), predicate.shardsFor(new Object[]{List.of(5L, 5L)}, shards).keySet());
+	}
+
+	@Test
+	void routesALiteralKey() {
+		ShardKeyPredicate predicate = ShardKeyPredicate.analyze(
+				"update transactions set status = 'done' where 42 = transaction_id", new int[0], "transactions", ID);
+
+		assertNotNull(predicate);
+		assertEquals(Set.of(placement.getNode(42L)), predicate.shardsFor(new Object[0], shards).keySet());
+	}
+
+	@Test
+	void routesACompositeKeyOnlyWhenEveryColumnIsBound() {
+		List<String> key = List.of("tenant_id", "transaction_id");
+		ShardKeyPredicate predicate = ShardKeyPredicate.analyze(
+				"select * from transactions where transaction_id = ? and tenant_id = ?", new int[]{0, 1}, "transactions", key);
+
+		assertNotNull(predicate);
+		Object compositeKey = ShardKeys.composite(new Object[]{"acme", 9L});
+		assertEquals(Set.of(placement.getNode(compositeKey)), predicate.shardsFor(new Object[]{9L, "acme"}, shards).keySet());
+		assertNull(ShardKeyPredicate.analyze(
+				"select * from transactions where transaction_id = ?", new int[]{0}, "transactions", key));
+	}
+
+	/* anything that may reach rows of other keys stays a broadcast */
+	@Test
+	void leavesStatementsItCannotLimitToTheBroadcast() {
+		assertNull(ShardKeyPredicate.analyze(
+				"select * from transactions where transaction_id = ? or status = ?", new int[]{0, 1}, "transactions", ID));
+		assertNull(ShardKeyPredicate.analyze(
+				"select * from transactions t join accounts a on a.id = t.account_id where t.transaction_id = ?",
+				new int[]{0}, "transactions", ID));
+		assertNull(ShardKeyPredicate.analyze(
+				"select * from accounts where transaction_id = ?", new int[]{0}, "transactions", ID));
+		assertNull(ShardKeyPredicate.analyze(
+				"select * from transactions where transaction_id > ?", new int[]{0}, "transactions", ID));
+		assertNull(ShardKeyPredicate.analyze("select * from transactions", new int[0], "transactions", ID));
+	}
+
+	@Test
+	void keepsAnOrInsideParenthesesApartFromTheKey() {
+		ShardKeyPredicate predicate = ShardKeyPredicate.analyze(
+				"select * from transactions where (status = ? or status = ?) and transaction_id = ?",
+				new int[]{0, 1, 2}, "transactions", ID);
+
+		assertNotNull(predicate);
+		assertEquals(Set.of(placement.getNode(3L)), predicate.shardsFor(new Object[]{"a", "b", 3L}, shards).keySet());
+	}
+
+	@Test
+	void broadcastsWhenTheArgumentIsMissing() {
+		ShardKeyPredicate predicate = ShardKeyPredicate.analyze(
+				"select * from transactions where transaction_id in (?)", new int[]{0}, "transactions", ID);
+
+		assertSame(shards, predicate.shardsFor(new Object[]{null}, shards));
+		assertSame(shards, predicate.shardsFor(new Object[]{List.of()}, shards));
+	}
+}
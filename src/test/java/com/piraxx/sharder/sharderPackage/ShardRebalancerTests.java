@@ -0,0 +1,255 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategies;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategy;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import org.h2.jdbcx.JdbcDataSource;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardRebalancerTests {
+
+	private static final AtomicInteger databases = new AtomicInteger();
+
+	private static SessionFactory entityManagerFactory;
+
+	private final ShardRebalancer rebalancer = new ShardRebalancer();
+	private ShardTopology before;
+	private RecordingShard source;
+
+	@Entity
+	@Table(name = "rebalanced_accounts")
+	static class RebalancedAccount {
+		@Id
+		Long id;
+		String owner;
+	}
+
+	@BeforeAll
+	static void mapEntities() {
+		entityManagerFactory = new Configuration()
+				.addAnnotatedClass(RebalancedAccount.class)
+				.setProperty(AvailableSettings.JAKARTA_JDBC_URL, "jdbc:h2:mem:rebalance_mapping;DB_CLOSE_DELAY=-1")
+				.buildSessionFactory();
+	}
+
+	@AfterAll
+	static void closeEntities() {
+		entityManagerFactory.close();
+	}
+
+	@BeforeEach
+	void publishOneShard() throws SQLException {
+		ReflectionTestUtils.setField(rebalancer, "entityManagerFactory", entityManagerFactory);
+		before = ShardTopology.current();
+		source = new RecordingShard();
+		ShardTopology.update(current -> current.withShards(Map.of("rebalance_a", source),
+				ShardPlacementStrategies.createWithNodes(List.of("rebalance_a"))));
+	}
+
+	@AfterEach
+	void restoreTopology() {
+		ShardTopology.update(current -> current.withShards(before.getDataSources(), before.getPlacement()));
+	}
+
+	/* more rows than one batch, so the copy and the delete both page through the source by id */
+	@Test
+	void movesEveryRowTheNewPlacementSendsElsewhere() throws Exception {
+		insert(source, 1, 1_100);
+		RecordingShard target = new RecordingShard();
+
+		rebalancer.addShard("rebalance_b", target).get(30, TimeUnit.SECONDS);
+
+		assertFalse(ShardRebalancer.isRebalancing());
+		List<Long> onSource = ids(source);
+		List<Long> onTarget = ids(target);
+		assertFalse(onSource.isEmpty());
+		assertFalse(onTarget.isEmpty());
+		assertEquals(1_100, onSource.size() + onTarget.size());
+		for (Long id : onSource) {
+			assertEquals("rebalance_a", ShardTopology.current().getPlacement().getNode(id));
+		}
+		for (Long id : onTarget) {
+			assertEquals("rebalance_b", ShardTopology.current().getPlacement().getNode(id));
+		}
+	}
+
+	@Test
+	void pagesThroughTheSourceByKeyInsteadOfByOffset() throws Exception {
+		insert(source, 1, 1_100);
+
+		rebalancer.addShard("rebalance_b", new RecordingShard()).get(30, TimeUnit.SECONDS);
+
+		List<String> pages = source.statements.stream().filter(sql -> sql.contains(" limit ")).toList();
+		assertTrue(pages.size() >= 6, pages.toString());
+		assertTrue(pages.stream().noneMatch(sql -> sql.contains("offset")));
+		assertEquals(2, pages.stream().filter(sql -> !sql.contains("where id > ?")).count());
+	}
+
+	/* a row on the target was written after the placement changed, the copy of the old one must not replace it */
+	@Test
+	void keepsTheRowAlreadyOnTheTarget() throws Exception {
+		insert(source, 1, 200);
+		RecordingShard target = new RecordingShard();
+		long moved = movedId(200, "rebalance_b");
+		execute(target, "insert into rebalanced_accounts (id, owner) values (" + moved + ", 'newer')");
+
+		rebalancer.addShard("rebalance_b", target).get(30, TimeUnit.SECONDS);
+
+		assertEquals("newer", owner(target, moved));
+		assertFalse(ids(source).contains(moved));
+	}
+
+	/* until the cut over both placements are read, so a failed copy leaves every row reachable and can be run again */
+	@Test
+	void resumesARebalanceThatFailedBeforeTheCutOver() throws Exception {
+		insert(source, 1, 200);
+		RecordingShard target = new RecordingShard();
+		target.failingInserts.set(1);
+
+		ExecutionException failure = assertThrows(ExecutionException.class,
+				() -> rebalancer.addShard("rebalance_b", target).get(30, TimeUnit.SECONDS));
+
+		assertInstanceOf(SQLException.class, failure.getCause());
+		assertTrue(ShardRebalancer.isRebalancing());
+		long moved = movedId(200, "rebalance_b");
+		assertEquals("rebalance_a", ShardTopology.current().previousOwner(moved));
+		assertTrue(ids(source).contains(moved));
+		assertThrows(IllegalStateException.class, () -> rebalancer.reweight(Map.of()));
+
+		rebalancer.resume().get(30, TimeUnit.SECONDS);
+
+		assertFalse(ShardRebalancer.isRebalancing());
+		assertEquals(200, ids(source).size() + ids(target).size());
+		assertTrue(ids(target).contains(moved));
+		assertFalse(ids(source).contains(moved));
+	}
+
+	@Test
+	void throttleSpacesBatchesToTheRowRate() throws InterruptedException {
+		ShardRebalancer.Throttle throttle = new ShardRebalancer.Throttle(1_000);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 4; i++) {
+			throttle.pass(100);
+		}
+
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 400);
+	}
+
+	private static long movedId(long maxId, String shard) {
+		Map<String, Double> weights = new LinkedHashMap<>();
+		weights.put("rebalance_a", 1.0);
+		weights.put("rebalance_b", 1.0);
+		ShardPlacementStrategy next = ShardPlacementStrategies.createWithNodes(weights);
+		for (long id = 1; id <= maxId; id++) {
+			if (shard.equals(next.getNode(id))) {
+				return id;
+			}
+		}
+		throw new AssertionError("no id moves to " + shard);
+	}
+
+	private static void insert(DataSource dataSource, long fromId, long toId) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+			 PreparedStatement insert = connection.prepareStatement("insert into rebalanced_accounts (id, owner) values (?, ?)")) {
+			for (long id = fromId; id <= toId; id++) {
+				insert.setLong(1, id);
+				insert.setString(2, "owner " + id);
+				insert.addBatch();
+			}
+			insert.executeBatch();
+		}
+	}
+
+	private static void execute(DataSource dataSource, String sql) throws SQLException {
+		try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+			statement.execute(sql);
+		}
+	}
+
+	private static List<Long> ids(DataSource dataSource) throws SQLException {
+		List<Long> ids = new ArrayList<>();
+		try (Connection connection = dataSource.getConnection();
+			 Statement statement = connection.createStatement();
+			 ResultSet rows = statement.executeQuery("select id from rebalanced_accounts order by id")) {
+			while (rows.next()) {
+				ids.add(rows.getLong(1));
+			}
+		}
+		return ids;
+	}
+
+	private static String owner(DataSource dataSource, long id) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+			 Statement statement = connection.createStatement();
+			 ResultSet rows = statement.executeQuery("select owner from rebalanced_accounts where id = " + id)) {
+			return rows.next() ? rows.getString(1) : null;
+		}
+	}
+
+	/*
+	 * A fresh H2 shard in Postgres mode that records the statements it prepares. H2 has
+	 * no FOR SHARE, so the copy locks its rows FOR UPDATE here, and it can be told to
+	 * fail a number of inserts.
+	 */
+	private static final class RecordingShard extends DelegatingDataSource {
+
+		private final List<String> statements = new CopyOnWriteArrayList<>();
+		private final AtomicInteger failingInserts = new AtomicInteger();
+
+		RecordingShard() throws SQLException {
+			JdbcDataSource dataSource = new JdbcDataSource();
+			dataSource.setURL("jdbc:h2:mem:rebalance_" + databases.incrementAndGet() + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+			setTargetDataSource(dataSource);
+			execute(dataSource, "create table rebalanced_accounts (id bigint primary key, owner varchar(64))");
+		}
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			Connection connection = super.getConnection();
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+					(proxy, method, args) -> {
+						if (method.getName().equals("prepareStatement")) {
+							String sql = ((String) args[0]).replace(" for share", " for update");
+							statements.add(sql);
+							if (sql.startsWith("insert") && sql.contains("on conflict") && failingInserts.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+								throw new SQLException("insert refused by the test");
+							}
+							args[0] = sql;
+						}
+						try {
+							return method.invoke(connection, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					});
+		}
+	}
+}
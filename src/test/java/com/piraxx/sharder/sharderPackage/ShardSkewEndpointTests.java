@@ -0,0 +1,178 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.configs.ShardProperties;
+import com.piraxx.sharder.sharderPackage.placement.PlacementStatistics;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategies;
+import com.piraxx.sharder.sharderPackage.placement.ShardPlacementStrategy;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardSkewEndpointTests {
+
+	private static SessionFactory entityManagerFactory;
+
+	private final ShardSkewEndpoint endpoint = new ShardSkewEndpoint();
+	private final List<String> statements = new CopyOnWriteArrayList<>();
+	private final List<Object[]> tableNames = new CopyOnWriteArrayList<>();
+	private ShardTopology before;
+
+	@Entity
+	@Table(name = "skew_accounts")
+	static class SkewAccount {
+		@Id
+		Long id;
+	}
+
+	@BeforeAll
+	static void mapEntities() {
+		entityManagerFactory = new Configuration()
+				.addAnnotatedClass(SkewAccount.class)
+				.setProperty(AvailableSettings.JAKARTA_JDBC_URL, "jdbc:h2:mem:skew_mapping;DB_CLOSE_DELAY=-1")
+				.buildSessionFactory();
+	}
+
+	@AfterAll
+	static void closeEntities() {
+		entityManagerFactory.close();
+	}
+
+	@BeforeEach
+	void publishShards() {
+		ReflectionTestUtils.setField(endpoint, "entityManagerFactory", entityManagerFactory);
+		Map<Object, Object> shards = new LinkedHashMap<>();
+		shards.put("skew_a", estimatingShard(300));
+		shards.put("skew_b", estimatingShard(100));
+		shards.put("skew_c", estimatingShard(100));
+		before = ShardTopology.current();
+		ShardTopology.update(current -> current.withShards(shards,
+				ShardPlacementStrategies.createWithNodes(List.of("skew_a", "skew_b", "skew_c"))));
+	}
+
+	@AfterEach
+	void restoreTopology() {
+		ShardTopology.update(current -> current.withShards(before.getDataSources(), before.getPlacement()));
+	}
+
+	@Test
+	void placesTheRequestedNumberOfSampleKeys() throws SQLException {
+		Map<String, Object> report = endpoint.skew(null, 3_000);
+
+		assertEquals("keys", report.get("source"));
+		assertEquals(3_000L, report.get("count"));
+		assertEquals(3_000L, countsPerShard(report).values().stream().mapToLong(Long::longValue).sum());
+	}
+
+	/* the endpoint is exposed over the web, so one request cannot ask for any number of lookups */
+	@Test
+	void capsTheSampleSize() throws SQLException {
+		Map<String, Object> report = endpoint.skew("keys", Integer.MAX_VALUE);
+
+		assertEquals(ShardProperties.readLongFromEnv("shardSkewMaxSamples", 1_000_000), report.get("count"));
+	}
+
+	@Test
+	void refusesSamplesThatAreNotPositive() {
+		assertThrows(IllegalArgumentException.class, () -> endpoint.skew(null, 0));
+		assertThrows(IllegalArgumentException.class, () -> endpoint.skew(null, -5));
+	}
+
+	/* one catalog query per shard, the tables are not scanned */
+	@Test
+	void readsRowCountsFromThePlannerEstimates() throws SQLException {
+		Map<String, Object> report = endpoint.skew("rows", null);
+
+		assertEquals("rows", report.get("source"));
+		assertEquals(true, report.get("estimated"));
+		assertEquals(Map.of("skew_a", 300L, "skew_b", 100L, "skew_c", 100L), countsPerShard(report));
+		assertEquals(500L, report.get("count"));
+		assertEquals(3, statements.size());
+		for (String sql : statements) {
+			assertTrue(sql.contains("pg_class") && sql.contains("reltuples"), sql);
+			assertFalse(sql.contains("count("), sql);
+		}
+		for (Object[] names : tableNames) {
+			assertArrayEquals(new Object[]{"skew_accounts"}, names);
+		}
+	}
+
+	/* the ideal weights keep the total and give every shard a weight inversely proportional to its surplus */
+	@Test
+	void suggestsWeightsThatEvenOutTheRows() throws SQLException {
+		@SuppressWarnings("unchecked")
+		Map<String, Double> ideal = (Map<String, Double>) endpoint.skew("rows", null).get("idealWeights");
+
+		assertEquals(3.0, ideal.values().stream().mapToDouble(Double::doubleValue).sum(), 1e-9);
+		assertEquals(ideal.get("skew_b") / 3, ideal.get("skew_a"), 1e-9);
+		assertEquals(ideal.get("skew_b"), ideal.get("skew_c"), 1e-9);
+	}
+
+	/* reweighting with the suggested weights gives every shard the share of the keys its weight asks for */
+	@Test
+	void placesKeysByTheSuggestedWeights() throws SQLException {
+		@SuppressWarnings("unchecked")
+		Map<String, Double> ideal = (Map<String, Double>) endpoint.skew("rows", null).get("idealWeights");
+
+		ShardPlacementStrategy reweighted = ShardPlacementStrategies.createWithNodes(ideal);
+		PlacementStatistics statistics = reweighted.statistics(LongStream.rangeClosed(1, 100_000).boxed().toList());
+
+		double totalWeight = ideal.values().stream().mapToDouble(Double::doubleValue).sum();
+		statistics.getOwnership().forEach((shard, share) -> assertEquals(ideal.get(shard) / totalWeight, share, 0.05, shard));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Long> countsPerShard(Map<String, Object> report) {
+		return (Map<String, Long>) report.get("countsPerShard");
+	}
+
+	/* a shard whose catalog estimates the given number of rows, recording the queries it gets */
+	private DataSource estimatingShard(long estimatedRows) {
+		ResultSet estimate = proxy(ResultSet.class, (method, args) -> method.equals("next") ? (Object) true
+				: method.equals("getLong") ? (Object) estimatedRows
+				: null);
+		PreparedStatement statement = proxy(PreparedStatement.class, (method, args) -> method.equals("executeQuery") ? estimate : null);
+		Connection connection = proxy(Connection.class, (method, args) -> {
+			if (method.equals("createArrayOf")) {
+				tableNames.add((Object[]) args[1]);
+				return proxy(Array.class, (arrayMethod, arrayArgs) -> null);
+			}
+			if (method.equals("prepareStatement")) {
+				statements.add((String) args[0]);
+				return statement;
+			}
+			return null;
+		});
+		return proxy(DataSource.class, (method, args) -> method.equals("getConnection") ? connection : null);
+	}
+
+	private interface Answer {
+		Object answer(String method, Object[] args);
+	}
+
+	private static <T> T proxy(Class<T> type, Answer answer) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+				(proxy, method, args) -> answer.answer(method.getName(), args)));
+	}
+}
@@ -0,0 +1,92 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.domain.TransactionEntity;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedBatchWriterTests {
+
+	@AfterEach
+	void clearContext() {
+		ShardingContextHolder.clear();
+	}
+
+	/* a rewritten multi-row upsert fails when it touches the same row twice, so only the last write of an id goes out */
+	@Test
+	void keepsTheLastWriteOfEveryId() {
+		TransactionEntity first = new TransactionEntity(1L, "first");
+		TransactionEntity other = new TransactionEntity(2L, "other");
+		TransactionEntity second = new TransactionEntity(1L, "second");
+		TransactionEntity unsaved = new TransactionEntity(null, "no id yet");
+
+		List<TransactionEntity> written = ShardedBatchWriter.lastWritePerId(List.of(first, other, unsaved, second), entity -> entity);
+
+		assertEquals(List.of(other, unsaved, second), written);
+		assertSame(second, written.get(2));
+	}
+
+	@Test
+	void leavesListsWithoutDuplicatesAsTheyAre() {
+		List<TransactionEntity> entities = List.of(new TransactionEntity(1L, "a"), new TransactionEntity(2L, "b"));
+
+		assertSame(entities, ShardedBatchWriter.lastWritePerId(entities, entity -> entity));
+	}
+
+	/* every shard commits on its own, so a shard that fails leaves the rows of the others written */
+	@Test
+	void keepsTheRowsOfTheShardsThatCommittedWhenAnotherFails() throws SQLException {
+		DataSource healthy = shard("batch_healthy");
+		DataSource failing = shard("batch_failing");
+		execute(failing, "insert into accounts (id, owner) values (2, 'already there')");
+		Map<Object, Object> shards = new LinkedHashMap<>();
+		shards.put("batch_healthy", healthy);
+		shards.put("batch_failing", failing);
+		ShardingContextHolder.setTopology(ShardTopology.current().withShards(shards, null));
+
+		Map<Object, List<Object[]>> rows = new LinkedHashMap<>();
+		rows.put("batch_healthy", List.of(new Object[]{1L, "ada"}, new Object[]{3L, "grace"}));
+		rows.put("batch_failing", List.of(new Object[]{4L, "alan"}, new Object[]{2L, "duplicate"}));
+
+		assertThrows(SQLException.class,
+				() -> ShardedBatchWriter.writeOnShards("insert into accounts (id, owner) values (?, ?)", rows));
+
+		assertEquals(List.of(1L, 3L), ids(healthy));
+		// the failing shard rolled back its whole batch
+		assertEquals(List.of(2L), ids(failing));
+	}
+
+	private static DataSource shard(String name) throws SQLException {
+		JdbcDataSource dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+		execute(dataSource, "create table accounts (id bigint primary key, owner varchar(64))");
+		return dataSource;
+	}
+
+	private static void execute(DataSource dataSource, String sql) throws SQLException {
+		try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+			statement.execute(sql);
+		}
+	}
+
+	private static List<Long> ids(DataSource dataSource) throws SQLException {
+		List<Long> ids = new ArrayList<>();
+		try (Connection connection = dataSource.getConnection();
+			 Statement statement = connection.createStatement();
+			 ResultSet rows = statement.executeQuery("select id from accounts order by id")) {
+			while (rows.next()) {
+				ids.add(rows.getLong(1));
+			}
+		}
+		return ids;
+	}
+}
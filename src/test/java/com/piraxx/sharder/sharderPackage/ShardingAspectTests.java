@@ -0,0 +1,103 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.repositories.RecordingRepositories.*;
+import com.piraxx.sharder.sharderPackage.cache.ShardEntityCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardingAspectTests {
+
+	private final ConsistentHashing placement = new ConsistentHashing(50);
+	private final Map<Object, Object> shards = new LinkedHashMap<>();
+	private ShardTopology before;
+
+	@BeforeEach
+	void publishTopology() {
+		for (String shard : List.of("shard1", "shard2", "shard3")) {
+			placement.addNode(shard);
+			shards.put(shard, shard + "-dataSource");
+		}
+		before = ShardTopology.current();
+		ShardTopology.update(current -> current.withShards(shards, placement));
+	}
+
+	@AfterEach
+	void restoreTopology() {
+		ShardEntityCache.evictAll(Account.class);
+		ShardTopology.update(current -> current.withShards(before.getDataSources(), before.getPlacement()));
+		ShardingContextHolder.clear();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T advised(Object target) {
+		AspectJProxyFactory factory = new AspectJProxyFactory(target);
+		factory.addAspect(new ShardingAspect());
+		return (T) factory.getProxy();
+	}
+
+	/* a lookup by id of an entity placed by another key proceeds once per shard */
+	@Test
+	void routesEveryShardOfABroadcastWithTheTopologyItStartedWith() {
+		RegionalAccountStore store = new RegionalAccountStore();
+		RegionalAccounts repository = advised(store);
+		ShardTopology pinned = ShardTopology.current();
+		store.afterCall = () -> ShardTopology.update(current -> current.withShards(Map.of("shard9", "shard9-dataSource"), placement));
+
+		repository.findById(5L);
+
+		assertEquals(List.of("shard1", "shard2", "shard3"), store.calls.stream().map(call -> call.shard).toList());
+		for (Call call : store.calls) {
+			assertSame(pinned, call.topology);
+		}
+		assertNotSame(pinned, ShardTopology.current());
+	}
+
+	@Test
+	void leavesNoContextBehind() {
+		RegionalAccounts repository = advised(new RegionalAccountStore());
+
+		repository.save(new RegionalAccount(1L, "emea"));
+
+		assertNull(ShardingContextHolder.getCurrentShardKey());
+		assertFalse(ShardingContextHolder.isReadOnly());
+		assertSame(ShardTopology.current(), ShardingContextHolder.getTopology());
+	}
+
+	/* a save writes through to the cache of the shard it went to, so the next findById does not reach the shard */
+	@Test
+	void servesFindByIdOfASavedEntityFromTheCache() {
+		CachedAccountStore store = new CachedAccountStore();
+		CachedAccounts repository = advised(store);
+
+		repository.save(new Account(42L, "ada"));
+		Optional<Account> found = repository.findById(42L);
+
+		assertEquals(List.of("save"), store.calls.stream().map(call -> call.method).toList());
+		assertEquals(placement.getNode(42L), store.calls.get(0).shard);
+		assertTrue(found.isPresent());
+		assertEquals("ada", found.get().owner);
+	}
+
+	/* a composite id is placed by the same parts as its entity, so lookups by id find what save wrote */
+	@Test
+	void routesACompositeIdToTheShardItsEntityWasSavedOn() {
+		OrderLineStore store = new OrderLineStore();
+		OrderLines repository = advised(store);
+		String owner = placement.getNode("acme");
+
+		repository.save(new OrderLine(new OrderLineId("acme", 1L), "widget"));
+		Optional<OrderLine> found = repository.findById(new OrderLineId("acme", 1L));
+		repository.deleteById(new OrderLineId("acme", 1L));
+
+		assertTrue(found.isPresent());
+		assertEquals("widget", found.get().product);
+		assertEquals(List.of(owner, owner, owner), store.calls.stream().map(call -> call.shard).toList());
+		assertTrue(store.rows.get(owner).isEmpty());
+	}
+}
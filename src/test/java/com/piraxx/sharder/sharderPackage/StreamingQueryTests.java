@@ -0,0 +1,167 @@
+package com.piraxx.sharder.sharderPackage;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import reactor.core.publisher.Flux;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingQueryTests {
+
+	private static final AtomicInteger databases = new AtomicInteger();
+
+	interface Numbers {
+		@Query(value = "select n from numbers where n > ?1", nativeQuery = true)
+		Stream<Long> streamAbove(long n);
+
+		@Query(value = "select n from numbers where n > ?1 order by n", nativeQuery = true)
+		Stream<Long> streamAboveInOrder(long n);
+
+		@Query(value = "select n from numbers where n > ?1", nativeQuery = true)
+		Flux<Long> fluxAbove(long n);
+
+		@Query(value = "select n from numbers where n > ?1", nativeQuery = true)
+		CompletableFuture<List<Long>> allAbove(long n);
+	}
+
+	@Test
+	void streamsTheRowsOfEveryShard() throws Exception {
+		Map<Object, Object> shards = shards(new NumberShard(1, 3, 5), new NumberShard(2, 4, 6));
+
+		try (Stream<Long> numbers = run("streamAbove", shards, 1L)) {
+			assertEquals(Set.of(2L, 3L, 4L, 5L, 6L), numbers.collect(Collectors.toSet()));
+		}
+	}
+
+	@Test
+	void mergesTheShardsOfAnOrderedStream() throws Exception {
+		Map<Object, Object> shards = shards(new NumberShard(1, 4, 7), new NumberShard(2, 5, 8), new NumberShard(3, 6));
+
+		try (Stream<Long> numbers = run("streamAboveInOrder", shards, 0L)) {
+			assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L), numbers.toList());
+		}
+	}
+
+	@Test
+	void completesAFutureWithAllRows() throws Exception {
+		Map<Object, Object> shards = shards(new NumberShard(1, 3), new NumberShard(2));
+
+		CompletableFuture<List<Long>> numbers = run("allAbove", shards, 0L);
+
+		assertEquals(Set.of(1L, 2L, 3L), new HashSet<>(numbers.get(10, TimeUnit.SECONDS)));
+	}
+
+	/* more rows than the queue holds, so the shard threads are still waiting on the consumer when it stops */
+	@Test
+	void closingAStreamEarlyReleasesTheShardCursors() throws Exception {
+		NumberShard first = new NumberShard(range(1, 5_000));
+		NumberShard second = new NumberShard(range(5_001, 10_000));
+
+		try (Stream<Long> numbers = run("streamAbove", shards(first, second), 0L)) {
+			assertEquals(5, numbers.limit(5).count());
+			assertEquals(1, first.open());
+			assertEquals(1, second.open());
+		}
+
+		awaitClosed(first, second);
+	}
+
+	@Test
+	void cancellingAFluxReleasesTheShardCursors() throws Exception {
+		NumberShard first = new NumberShard(range(1, 5_000));
+		NumberShard second = new NumberShard(range(5_001, 10_000));
+
+		Flux<Long> numbers = run("fluxAbove", shards(first, second), 0L);
+
+		assertEquals(5, numbers.take(5).collectList().block().size());
+		awaitClosed(first, second);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T run(String methodName, Map<Object, Object> shards, Object... args) throws NoSuchMethodException {
+		Method method = Numbers.class.getMethod(methodName, long.class);
+		RepositoryMethodPlan plan = RepositoryMethodPlanCache.planFor(method);
+		return (T) plan.getStreamingQuery().execute(plan, args, shards);
+	}
+
+	private static void awaitClosed(NumberShard... shards) throws InterruptedException, SQLException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		for (NumberShard shard : shards) {
+			while (shard.open() > 0 && System.nanoTime() - deadline < 0) {
+				Thread.sleep(10);
+			}
+			assertEquals(0, shard.open());
+		}
+	}
+
+	private static Map<Object, Object> shards(NumberShard... shards) {
+		Map<Object, Object> shardMap = new LinkedHashMap<>();
+		for (NumberShard shard : shards) {
+			shardMap.put(shard.name, shard);
+		}
+		return shardMap;
+	}
+
+	private static long[] range(long from, long to) {
+		long[] numbers = new long[(int) (to - from + 1)];
+		for (int i = 0; i < numbers.length; i++) {
+			numbers[i] = from + i;
+		}
+		return numbers;
+	}
+
+	/* an H2 shard of numbers that keeps track of the connections it handed out */
+	private static final class NumberShard extends DelegatingDataSource {
+
+		private final String name = "stream_" + databases.incrementAndGet();
+		private final List<Connection> borrowed = new CopyOnWriteArrayList<>();
+
+		NumberShard(long... numbers) throws SQLException {
+			JdbcDataSource dataSource = new JdbcDataSource();
+			dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+			setTargetDataSource(dataSource);
+			try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+				statement.execute("create table numbers (n bigint primary key)");
+				StringJoiner values = new StringJoiner(", ");
+				for (long number : numbers) {
+					values.add("(" + number + ")");
+				}
+				if (numbers.length > 0) {
+					statement.execute("insert into numbers values " + values);
+				}
+			}
+		}
+
+		// the cursors close the connection their statement hands back, so the H2 connections themselves are kept
+		@Override
+		public Connection getConnection() throws SQLException {
+			Connection connection = super.getConnection();
+			borrowed.add(connection);
+			return connection;
+		}
+
+		int open() throws SQLException {
+			int open = 0;
+			for (Connection connection : borrowed) {
+				if (!connection.isClosed()) {
+					open++;
+				}
+			}
+			return open;
+		}
+	}
+}
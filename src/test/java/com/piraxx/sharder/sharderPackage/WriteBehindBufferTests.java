@@ -0,0 +1,64 @@
+package com.piraxx.sharder.sharderPackage;
+
+import com.piraxx.sharder.domain.TransactionEntity;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteBehindBufferTests {
+
+	/* two requests saving the same id in one flush window must not fail each other's batch */
+	@Test
+	void writesTheLaterSaveOfAnIdAndCompletesBoth() {
+		List<List<Object>> batches = new ArrayList<>();
+		WriteBehindBuffer.ShardBuffer buffer = new WriteBehindBuffer.ShardBuffer("shard1", batches::add);
+		TransactionEntity first = new TransactionEntity(1L, "first");
+		TransactionEntity unrelated = new TransactionEntity(2L, "unrelated");
+		TransactionEntity second = new TransactionEntity(1L, "second");
+		CompletableFuture<TransactionEntity> firstSaved = queue(buffer, first);
+		CompletableFuture<TransactionEntity> unrelatedSaved = queue(buffer, unrelated);
+		CompletableFuture<TransactionEntity> secondSaved = queue(buffer, second);
+
+		buffer.flushAll();
+
+		assertEquals(List.of(List.of(unrelated, second)), batches);
+		assertSame(first, firstSaved.join());
+		assertSame(unrelated, unrelatedSaved.join());
+		assertSame(second, secondSaved.join());
+	}
+
+	@Test
+	void failsEveryFutureOfAFailedBatch() {
+		WriteBehindBuffer.ShardBuffer buffer = new WriteBehindBuffer.ShardBuffer("shard1", entities -> {
+			throw new IllegalStateException("shard down");
+		});
+		CompletableFuture<TransactionEntity> a = queue(buffer, new TransactionEntity(1L, "a"));
+		CompletableFuture<TransactionEntity> b = queue(buffer, new TransactionEntity(2L, "b"));
+
+		buffer.flushAll();
+
+		assertTrue(a.isCompletedExceptionally());
+		assertTrue(b.isCompletedExceptionally());
+	}
+
+	@Test
+	void isDueOnlyOnceTheOldestEntityHasWaited() {
+		WriteBehindBuffer.ShardBuffer buffer = new WriteBehindBuffer.ShardBuffer("shard1", entities -> { });
+		assertFalse(buffer.isDue(System.nanoTime()));
+
+		queue(buffer, new TransactionEntity(1L, "a"));
+
+		assertFalse(buffer.isDue(System.nanoTime() - 1_000_000_000L));
+		assertTrue(buffer.isDue(System.nanoTime() + 1_000_000_000L));
+	}
+
+	private static CompletableFuture<TransactionEntity> queue(WriteBehindBuffer.ShardBuffer buffer, TransactionEntity entity) {
+		CompletableFuture<TransactionEntity> saved = new CompletableFuture<>();
+		buffer.add(new WriteBehindBuffer.Pending(entity, saved));
+		return saved;
+	}
+}
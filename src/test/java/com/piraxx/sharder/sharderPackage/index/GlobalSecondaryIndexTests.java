@@ -0,0 +1,60 @@
+package com.piraxx.sharder.sharderPackage.index;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.repository.Repository;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GlobalSecondaryIndexTests {
+
+	@Entity
+	static class Customer {
+		@Id
+		private Long id;
+
+		@ShardIndexed
+		private String email;
+
+		private String status;
+	}
+
+	interface CustomerRepository extends Repository<Customer, Long> {
+		Optional<Customer> findByEmail(String email);
+
+		List<Customer> deleteByEmail(String email);
+
+		Optional<Customer> findByEmailIgnoreCase(String email);
+
+		List<Customer> findByEmailAndStatus(String email, String status);
+
+		List<Customer> findByStatus(String status);
+	}
+
+	@Test
+	void routesSingleCriterionFindersOnIndexedAttributes() throws NoSuchMethodException {
+		IndexedFinder finder = GlobalSecondaryIndex.finderFor(CustomerRepository.class.getMethod("findByEmail", String.class));
+
+		assertNotNull(finder);
+		assertEquals(Customer.class, finder.getEntityType());
+		assertEquals("email", finder.getAttribute());
+		assertFalse(finder.isDelete());
+		assertTrue(GlobalSecondaryIndex.finderFor(CustomerRepository.class.getMethod("deleteByEmail", String.class)).isDelete());
+	}
+
+	/* the index holds values as written, a case-insensitive match would miss rows */
+	@Test
+	void leavesIgnoreCaseFindersToTheBroadcast() throws NoSuchMethodException {
+		assertNull(GlobalSecondaryIndex.finderFor(CustomerRepository.class.getMethod("findByEmailIgnoreCase", String.class)));
+	}
+
+	@Test
+	void leavesOtherFindersAlone() throws NoSuchMethodException {
+		assertNull(GlobalSecondaryIndex.finderFor(CustomerRepository.class.getMethod("findByEmailAndStatus", String.class, String.class)));
+		assertNull(GlobalSecondaryIndex.finderFor(CustomerRepository.class.getMethod("findByStatus", String.class)));
+	}
+}
@@ -0,0 +1,92 @@
+package com.piraxx.sharder.sharderPackage.placement;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BoundedLoadConsistentHashStrategyTests {
+
+	private static final int KEYS = 100_000;
+
+	private static final double EPSILON = 0.25;
+
+	/* a shard owns at most (1 + epsilon) times its fair share of the hash space, the sample is allowed a little noise */
+	@Test
+	void boundsTheLoadOfEveryShard() {
+		BoundedLoadConsistentHashStrategy strategy = new BoundedLoadConsistentHashStrategy(10, EPSILON);
+		List.of("shard1", "shard2", "shard3", "shard4").forEach(strategy::addNode);
+
+		Map<String, Integer> counts = counts(strategy);
+
+		assertEquals(4, counts.size());
+		counts.forEach((shard, count) -> assertTrue(count <= (1 + EPSILON) * KEYS / 4 * 1.02, shard + " has " + count));
+	}
+
+	@Test
+	void boundsAWeightedShardByItsCapacity() {
+		BoundedLoadConsistentHashStrategy strategy = new BoundedLoadConsistentHashStrategy(10, EPSILON);
+		strategy.addNode("shard1");
+		strategy.addNode("shard2");
+		strategy.addNode("shard3", 2.0);
+
+		Map<String, Integer> counts = counts(strategy);
+
+		assertTrue(counts.get("shard3") <= (1 + EPSILON) * KEYS / 2 * 1.02, "shard3 has " + counts.get("shard3"));
+		assertTrue(counts.get("shard1") <= (1 + EPSILON) * KEYS / 4 * 1.02, "shard1 has " + counts.get("shard1"));
+	}
+
+	/* the owners only depend on the set of shards, not on the order they were added in */
+	@Test
+	void placesKeysTheSameWayWhateverTheOrderOfTheShards() {
+		BoundedLoadConsistentHashStrategy first = new BoundedLoadConsistentHashStrategy(100, EPSILON);
+		BoundedLoadConsistentHashStrategy second = new BoundedLoadConsistentHashStrategy(100, EPSILON);
+		List.of("shard1", "shard2", "shard3").forEach(first::addNode);
+		List.of("shard3", "shard1", "shard2").forEach(second::addNode);
+
+		for (long key = 0; key < KEYS; key++) {
+			assertEquals(first.getNode(key), second.getNode(key), "key " + key);
+		}
+	}
+
+	/* most arcs keep their natural owner, so a new shard moves about its share of the keys and not many more */
+	@Test
+	void movesAboutTheShareOfAnAddedShard() {
+		BoundedLoadConsistentHashStrategy strategy = new BoundedLoadConsistentHashStrategy(100, EPSILON);
+		List.of("shard1", "shard2", "shard3").forEach(strategy::addNode);
+		String[] before = new String[KEYS];
+		for (int key = 0; key < KEYS; key++) {
+			before[key] = strategy.getNode((long) key);
+		}
+
+		strategy.addNode("shard4");
+
+		int moved = 0;
+		for (int key = 0; key < KEYS; key++) {
+			if (!strategy.getNode((long) key).equals(before[key])) {
+				moved++;
+			}
+		}
+		assertTrue(moved > KEYS / 8 && moved < KEYS * 0.4, moved + " keys moved");
+	}
+
+	/* without a replicas environment variable the default number of virtual nodes is used */
+	@Test
+	void isCreatedWithoutAReplicasSetting() {
+		ShardPlacementStrategy strategy = ShardPlacementStrategies.create("bounded-load");
+		strategy.addNode("shard1");
+
+		assertEquals("shard1", strategy.getNode(42L));
+	}
+
+	private static Map<String, Integer> counts(ShardPlacementStrategy strategy) {
+		Map<String, Integer> counts = new HashMap<>();
+		for (long key = 0; key < KEYS; key++) {
+			counts.merge(strategy.getNode(key), 1, Integer::sum);
+		}
+		return counts;
+	}
+}
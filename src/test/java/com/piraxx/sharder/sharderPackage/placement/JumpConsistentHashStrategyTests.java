@@ -0,0 +1,70 @@
+package com.piraxx.sharder.sharderPackage.placement;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JumpConsistentHashStrategyTests {
+
+	private static final int KEYS = 100_000;
+
+	@Test
+	void spreadsKeysEvenly() {
+		JumpConsistentHashStrategy strategy = new JumpConsistentHashStrategy();
+		List.of("shard1", "shard2", "shard3", "shard4").forEach(strategy::addNode);
+
+		Map<String, Integer> counts = new HashMap<>();
+		for (long key = 0; key < KEYS; key++) {
+			counts.merge(strategy.getNode(key), 1, Integer::sum);
+		}
+
+		assertEquals(4, counts.size());
+		counts.forEach((shard, count) -> assertEquals(KEYS / 4.0, count, KEYS * 0.02, shard));
+	}
+
+	/* a shard added at the end only takes keys, the others keep the ones they keep */
+	@Test
+	void onlyMovesKeysToAnAddedShard() {
+		JumpConsistentHashStrategy strategy = new JumpConsistentHashStrategy();
+		List.of("shard1", "shard2", "shard3").forEach(strategy::addNode);
+		String[] before = new String[KEYS];
+		for (int key = 0; key < KEYS; key++) {
+			before[key] = strategy.getNode("customer-" + key);
+		}
+
+		strategy.addNode("shard4");
+
+		int moved = 0;
+		for (int key = 0; key < KEYS; key++) {
+			String after = strategy.getNode("customer-" + key);
+			if (!after.equals(before[key])) {
+				assertEquals("shard4", after, "customer-" + key);
+				moved++;
+			}
+		}
+		assertEquals(KEYS / 4.0, moved, KEYS * 0.02);
+	}
+
+	@Test
+	void placesAKeyTheSameWayEveryTime() {
+		JumpConsistentHashStrategy first = new JumpConsistentHashStrategy();
+		JumpConsistentHashStrategy second = new JumpConsistentHashStrategy();
+		List.of("shard1", "shard2", "shard3").forEach(first::addNode);
+		List.of("shard1", "shard2", "shard3").forEach(second::addNode);
+
+		for (Object key : List.of(0L, 42, -7L, "customer-7", Long.MAX_VALUE)) {
+			assertEquals(first.getNode(key), second.getNode(key), "key " + key);
+		}
+	}
+
+	@Test
+	void cannotWeightShards() {
+		JumpConsistentHashStrategy strategy = new JumpConsistentHashStrategy();
+
+		assertThrows(UnsupportedOperationException.class, () -> strategy.addNode("shard1", 2.0));
+	}
+}
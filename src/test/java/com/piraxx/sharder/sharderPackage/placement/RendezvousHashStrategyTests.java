@@ -0,0 +1,72 @@
+package com.piraxx.sharder.sharderPackage.placement;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RendezvousHashStrategyTests {
+
+	private static final int KEYS = 100_000;
+
+	@Test
+	void spreadsKeysEvenly() {
+		RendezvousHashStrategy strategy = new RendezvousHashStrategy();
+		List.of("shard1", "shard2", "shard3", "shard4").forEach(strategy::addNode);
+
+		Map<String, Integer> counts = counts(strategy);
+
+		assertEquals(4, counts.size());
+		counts.forEach((shard, count) -> assertEquals(KEYS / 4.0, count, KEYS * 0.02, shard));
+	}
+
+	@Test
+	void givesAWeightedShardItsShare() {
+		RendezvousHashStrategy strategy = new RendezvousHashStrategy();
+		strategy.addNode("shard1");
+		strategy.addNode("shard2");
+		strategy.addNode("shard3", 2.0);
+
+		Map<String, Integer> counts = counts(strategy);
+
+		assertEquals(KEYS / 2.0, counts.get("shard3"), KEYS * 0.02);
+		assertEquals(2.0, strategy.getWeight("shard3"));
+	}
+
+	/* adding or removing a shard only moves the keys that shard wins or owned, wherever it is in the list */
+	@Test
+	void onlyMovesTheKeysOfTheChangedShard() {
+		RendezvousHashStrategy strategy = new RendezvousHashStrategy();
+		List.of("shard1", "shard2", "shard3", "shard4").forEach(strategy::addNode);
+		String[] before = new String[KEYS];
+		for (int key = 0; key < KEYS; key++) {
+			before[key] = strategy.getNode((long) key);
+		}
+
+		strategy.removeNode("shard2");
+
+		for (int key = 0; key < KEYS; key++) {
+			String after = strategy.getNode((long) key);
+			if (!before[key].equals("shard2")) {
+				assertEquals(before[key], after, "key " + key);
+			}
+		}
+
+		strategy.addNode("shard2");
+
+		for (int key = 0; key < KEYS; key++) {
+			assertEquals(before[key], strategy.getNode((long) key), "key " + key);
+		}
+	}
+
+	private static Map<String, Integer> counts(ShardPlacementStrategy strategy) {
+		Map<String, Integer> counts = new HashMap<>();
+		for (long key = 0; key < KEYS; key++) {
+			counts.merge(strategy.getNode(key), 1, Integer::sum);
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,68 @@
+package com.piraxx.sharder.sharderPackage.placement;
+
+import com.piraxx.sharder.sharderPackage.ShardIds;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardIdAwareStrategyTests {
+
+	@Test
+	void placesGeneratedIdsByTheOwnerOfTheirBucket() {
+		RendezvousHashStrategy hashing = new RendezvousHashStrategy();
+		ShardIdAwareStrategy strategy = new ShardIdAwareStrategy(hashing);
+		List.of("shard1", "shard2", "shard3").forEach(strategy::addNode);
+
+		for (int bucket = 0; bucket < ShardIds.BUCKETS; bucket++) {
+			assertEquals(hashing.getNode("bucket:" + bucket), strategy.getNode(ShardIds.nextId(bucket)), "bucket " + bucket);
+		}
+	}
+
+	@Test
+	void hashesEveryOtherKey() {
+		RendezvousHashStrategy hashing = new RendezvousHashStrategy();
+		ShardIdAwareStrategy strategy = new ShardIdAwareStrategy(hashing);
+		List.of("shard1", "shard2", "shard3").forEach(strategy::addNode);
+
+		for (Object key : List.of(1L, 42, "customer-7", -5L)) {
+			assertEquals(hashing.getNode(key), strategy.getNode(key), "key " + key);
+		}
+	}
+
+	/* a new shard takes whole buckets, the ids in the others stay where they are */
+	@Test
+	void movesWholeBucketsWhenAShardIsAdded() {
+		ShardIdAwareStrategy strategy = new ShardIdAwareStrategy(new RendezvousHashStrategy());
+		List.of("shard1", "shard2").forEach(strategy::addNode);
+		long[] ids = new long[ShardIds.BUCKETS];
+		String[] before = new String[ShardIds.BUCKETS];
+		for (int bucket = 0; bucket < ids.length; bucket++) {
+			ids[bucket] = ShardIds.nextId(bucket);
+			before[bucket] = strategy.getNode(ids[bucket]);
+		}
+
+		strategy.addNode("shard3");
+
+		int moved = 0;
+		for (int bucket = 0; bucket < ids.length; bucket++) {
+			String after = strategy.getNode(ids[bucket]);
+			assertEquals(after, strategy.getNode(ShardIds.nextId(bucket)));
+			if (!after.equals(before[bucket])) {
+				assertEquals("shard3", after);
+				moved++;
+			}
+		}
+		assertTrue(moved > 0);
+	}
+
+	@Test
+	void placesNothingBeforeTheShardsAreAdded() {
+		ShardIdAwareStrategy strategy = new ShardIdAwareStrategy(new RendezvousHashStrategy());
+
+		assertNull(strategy.getNode(ShardIds.nextId(3)));
+		strategy.addNode("shard1");
+		assertEquals("shard1", strategy.getNode(ShardIds.nextId(3)));
+	}
+}
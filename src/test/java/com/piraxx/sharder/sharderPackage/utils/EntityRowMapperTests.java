@@ -0,0 +1,104 @@
+package com.piraxx.sharder.sharderPackage.utils;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Id;
+import jakarta.persistence.MappedSuperclass;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntityRowMapperTests {
+
+	enum Status { OPEN, CLOSED }
+
+	@MappedSuperclass
+	static abstract class BaseEntity {
+		@Id
+		Long id;
+		String createdBy;
+	}
+
+	// not mapped, its fields are not persistent
+	static abstract class Auditable extends BaseEntity {
+		String note;
+	}
+
+	@Entity
+	static class Account extends Auditable {
+		String owner;
+		Status status;
+		@Enumerated(EnumType.STRING)
+		Status tier;
+	}
+
+	@Test
+	void mapsTheFieldsOfMappedSuperclasses() throws SQLException {
+		EntityRowMapper.EntityMetadata metadata = EntityRowMapper.metadataFor(Account.class);
+
+		assertNotNull(metadata.getIdProperty());
+		assertEquals("id", metadata.getIdProperty().getColumnName());
+		assertEquals(BaseEntity.class, metadata.getIdProperty().getField().getDeclaringClass());
+		assertTrue(metadata.getProperties().stream().noneMatch(property -> property.getColumnName().equals("note")));
+
+		CachedRowSet rows = rows(new Object[]{7L, "batch", "ada", 1, "OPEN"});
+		rows.next();
+		Account account = EntityRowMapper.forResultSet(Account.class, rows.getMetaData()).mapRow(rows);
+
+		assertEquals(7L, account.id);
+		assertEquals("batch", account.createdBy);
+		assertEquals("ada", account.owner);
+	}
+
+	/* without @Enumerated JPA stores the ordinal, with EnumType.STRING the name */
+	@Test
+	void readsEnumsTheWayTheyAreMapped() throws SQLException {
+		CachedRowSet rows = rows(new Object[]{1L, "batch", "ada", 1, "OPEN"}, new Object[]{2L, "batch", "bob", null, null});
+		EntityRowMapper<Account> mapper = EntityRowMapper.forResultSet(Account.class, rows.getMetaData());
+
+		rows.next();
+		Account account = mapper.mapRow(rows);
+		assertEquals(Status.CLOSED, account.status);
+		assertEquals(Status.OPEN, account.tier);
+
+		rows.next();
+		Account empty = mapper.mapRow(rows);
+		assertNull(empty.status);
+		assertNull(empty.tier);
+	}
+
+	private static CachedRowSet rows(Object[]... rows) throws SQLException {
+		String[] labels = {"id", "created_by", "owner", "status", "tier"};
+		int[] types = {Types.BIGINT, Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.VARCHAR};
+		RowSetMetaDataImpl metaData = new RowSetMetaDataImpl();
+		metaData.setColumnCount(labels.length);
+		for (int i = 0; i < labels.length; i++) {
+			metaData.setColumnLabel(i + 1, labels[i]);
+			metaData.setColumnName(i + 1, labels[i]);
+			metaData.setColumnType(i + 1, types[i]);
+		}
+		CachedRowSet rowSet = RowSetProvider.newFactory().createCachedRowSet();
+		rowSet.setMetaData(metaData);
+		for (Object[] row : rows) {
+			rowSet.moveToInsertRow();
+			for (int i = 0; i < row.length; i++) {
+				if (row[i] == null) {
+					rowSet.updateNull(i + 1);
+				} else {
+					rowSet.updateObject(i + 1, row[i]);
+				}
+			}
+			rowSet.insertRow();
+		}
+		rowSet.moveToCurrentRow();
+		rowSet.beforeFirst();
+		return rowSet;
+	}
+}